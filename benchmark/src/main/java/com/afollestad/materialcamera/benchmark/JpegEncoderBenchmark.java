@@ -0,0 +1,96 @@
+package com.afollestad.materialcamera.benchmark;
+
+import com.afollestad.materialcamera.util.JpegEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes a 1080p frame with {@link JpegEncoder} and, at the same quality, with the JDK's libjpeg
+ * based ImageIO writer. The comparison with Bitmap.compress needs a device, see the library's
+ * instrumentation tests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class JpegEncoderBenchmark {
+
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+
+    @Param({"70", "95"})
+    public int quality;
+
+    private int[] mArgb;
+    private BufferedImage mImage;
+    private JpegEncoder mEncoder;
+    private ImageWriter mWriter;
+    private ImageWriteParam mWriteParam;
+    private ByteArrayOutputStream mOut;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(32);
+        mArgb = new int[WIDTH * HEIGHT];
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                final int r = 40 + col * 160 / WIDTH + random.nextInt(9);
+                final int g = 60 + row * 140 / HEIGHT + random.nextInt(9);
+                final int b = 180 - (col + row) * 120 / (WIDTH + HEIGHT) + random.nextInt(9);
+                mArgb[row * WIDTH + col] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        mImage = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        mImage.setRGB(0, 0, WIDTH, HEIGHT, mArgb, 0, WIDTH);
+        mEncoder = new JpegEncoder(quality);
+        mWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+        mWriteParam = mWriter.getDefaultWriteParam();
+        mWriteParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        mWriteParam.setCompressionQuality(quality / 100f);
+        mOut = new ByteArrayOutputStream(WIDTH * HEIGHT / 2);
+    }
+
+    @Benchmark
+    public int jpegEncoder() throws IOException {
+        mOut.reset();
+        mEncoder.encode(mArgb, WIDTH, HEIGHT, mOut);
+        return mOut.size();
+    }
+
+    @Benchmark
+    public int imageIo() throws IOException {
+        mOut.reset();
+        final ImageOutputStream stream = ImageIO.createImageOutputStream(mOut);
+        try {
+            mWriter.setOutput(stream);
+            mWriter.write(null, new IIOImage(mImage, null, null), mWriteParam);
+        } finally {
+            stream.close();
+        }
+        return mOut.size();
+    }
+}
@@ -0,0 +1,111 @@
+package com.afollestad.materialcamera.benchmark;
+
+import com.afollestad.materialcamera.util.YuvUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts and downscales one camera frame per invocation, with a per-frame allocating conversion
+ * as the baseline the kernels replace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class YuvUtilBenchmark {
+
+    @Param({"640x480", "1920x1080"})
+    public String size;
+
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private byte[] mNv21;
+    private int[] mArgb;
+    private byte[] mGray;
+    private byte[] mDownscaled;
+
+    @Setup
+    public void setUp() {
+        final String[] dimensions = size.split("x");
+        mWidth = Integer.parseInt(dimensions[0]);
+        mHeight = Integer.parseInt(dimensions[1]);
+        final int lumaSize = mWidth * mHeight;
+        mNv21 = new byte[lumaSize * 3 / 2];
+        new Random(42).nextBytes(mNv21);
+        // The same data as YUV_420_888 planes with interleaved chroma, V first like NV21
+        final ByteBuffer frame = ByteBuffer.wrap(mNv21);
+        mY = ByteBuffer.wrap(mNv21, 0, lumaSize).slice();
+        frame.position(lumaSize);
+        mV = frame.slice();
+        frame.position(lumaSize + 1);
+        mU = frame.slice();
+        mArgb = new int[lumaSize];
+        mGray = new byte[lumaSize];
+        mDownscaled = new byte[lumaSize / 16];
+    }
+
+    @Benchmark
+    public int[] planesToArgb() {
+        YuvUtil.toArgb(mY, mWidth, mU, mV, mWidth, 2, mWidth, mHeight, mArgb);
+        return mArgb;
+    }
+
+    @Benchmark
+    public int[] nv21ToArgb() {
+        YuvUtil.nv21ToArgb(mNv21, mWidth, mHeight, mArgb);
+        return mArgb;
+    }
+
+    @Benchmark
+    public byte[] toGray() {
+        YuvUtil.toGray(mY, mWidth, 1, mWidth, mHeight, mGray);
+        return mGray;
+    }
+
+    @Benchmark
+    public byte[] downscaleGray() {
+        YuvUtil.downscale(mGray, mWidth, mHeight, 4, mDownscaled);
+        return mDownscaled;
+    }
+
+    /**
+     * A new output array and floating point math for every frame, on one thread.
+     */
+    @Benchmark
+    public int[] naiveNv21ToArgb() {
+        final int[] out = new int[mWidth * mHeight];
+        final int lumaSize = mWidth * mHeight;
+        for (int row = 0; row < mHeight; row++) {
+            for (int col = 0; col < mWidth; col++) {
+                final int vu = lumaSize + (row / 2) * mWidth + (col / 2) * 2;
+                final float y = 1.164f * ((mNv21[row * mWidth + col] & 0xFF) - 16);
+                final float v = (mNv21[vu] & 0xFF) - 128;
+                final float u = (mNv21[vu + 1] & 0xFF) - 128;
+                final int r = (int) Math.max(0, Math.min(255, y + 1.596f * v));
+                final int g = (int) Math.max(0, Math.min(255, y - 0.392f * u - 0.813f * v));
+                final int b = (int) Math.max(0, Math.min(255, y + 2.017f * u));
+                out[row * mWidth + col] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,102 @@
+package com.afollestad.materialcamera.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares {@link JpegEncoder} with Bitmap.compress on the device, for time and size at the same
+ * quality. Both use the IJG quality scaling of the Annex K tables, so a quality means the same
+ * quantization for both. Results go to logcat under "JpegEncoderBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class JpegEncoderBenchmark {
+
+    private static final String TAG = "JpegEncoderBenchmark";
+    private static final int[][] SIZES = {{1280, 960}, {4032, 3024}};
+    private static final int[] QUALITIES = {70, 85, 95};
+    private static final int RUNS = 7;
+
+    /**
+     * Smooth gradients with sensor-like noise and a few hard edges, closer to a photo than noise.
+     */
+    private static int[] createImage(int width, int height) {
+        final Random random = new Random(32);
+        final int[] argb = new int[width * height];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                final int edge = ((col / 97) + (row / 61)) % 5 == 0 ? 60 : 0;
+                final int r = 40 + col * 160 / width + edge + random.nextInt(9);
+                final int g = 60 + row * 140 / height + random.nextInt(9);
+                final int b = 180 - (col + row) * 120 / (width + height) + edge / 2 + random.nextInt(9);
+                argb[row * width + col] = 0xFF000000 | Math.min(255, r) << 16 | Math.min(255, g) << 8 | Math.min(255, b);
+            }
+        }
+        return argb;
+    }
+
+    private static long median(long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    @Test
+    public void compareWithBitmapCompress() throws IOException {
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            final int[] argb = createImage(width, height);
+            final Bitmap bitmap = Bitmap.createBitmap(argb, width, height, Bitmap.Config.ARGB_8888);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(width * height / 2);
+            try {
+                for (int quality : QUALITIES) {
+                    final JpegEncoder encoder = new JpegEncoder(quality);
+                    final long[] encoderMs = new long[RUNS];
+                    final long[] compressMs = new long[RUNS];
+                    int encoderBytes = 0, compressBytes = 0;
+                    // The first run of each only warms up
+                    for (int run = -1; run < RUNS; run++) {
+                        out.reset();
+                        long start = System.nanoTime();
+                        encoder.encode(argb, width, height, out);
+                        if (run >= 0) encoderMs[run] = (System.nanoTime() - start) / 1000000;
+                        encoderBytes = out.size();
+                        if (run == RUNS - 1) assertDecodes(out.toByteArray(), width, height);
+
+                        out.reset();
+                        start = System.nanoTime();
+                        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+                        if (run >= 0) compressMs[run] = (System.nanoTime() - start) / 1000000;
+                        compressBytes = out.size();
+                    }
+                    Log.i(TAG, String.format("%dx%d q%d: JpegEncoder %d ms, %d KB; Bitmap.compress %d ms, %d KB",
+                            width, height, quality, median(encoderMs), encoderBytes / 1024,
+                            median(compressMs), compressBytes / 1024));
+                }
+            } finally {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    private static void assertDecodes(byte[] jpeg, int width, int height) {
+        final Bitmap decoded = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+        assertNotNull("The platform decoder rejected the output", decoded);
+        assertEquals(width, decoded.getWidth());
+        assertEquals(height, decoded.getHeight());
+        decoded.recycle();
+    }
+}
@@ -0,0 +1,57 @@
+package com.afollestad.materialcamera;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives low resolution preview frames while the camera is open, see
+ * {@link MaterialCamera#frameAnalyzer(FrameAnalyzer)}.
+ * <p>
+ * Frames are delivered one at a time on a worker thread. While the analyzer is busy only the most
+ * recent frame is kept, older ones are dropped and counted, so a slow analyzer never stalls the
+ * preview or the recording.
+ */
+public interface FrameAnalyzer {
+
+    /**
+     * Called on the worker thread. The frame, and the buffers of its planes, are only valid until
+     * this method returns; copy anything that needs to outlive the call.
+     */
+    void analyze(@NonNull Frame frame);
+
+    /**
+     * A YUV 4:2:0 frame, laid out like {@link android.graphics.ImageFormat#YUV_420_888}: plane 0
+     * is Y, plane 1 is U (Cb) and plane 2 is V (Cr). The planes are views of the camera's buffers,
+     * nothing is copied.
+     */
+    interface Frame {
+
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Clockwise rotation in degrees that makes the frame upright.
+         */
+        int getRotation();
+
+        /**
+         * Timestamp in nanoseconds, in the camera's time base.
+         */
+        long getTimestamp();
+
+        @NonNull
+        ByteBuffer getPlane(int plane);
+
+        int getRowStride(int plane);
+
+        int getPixelStride(int plane);
+
+        /**
+         * Total number of frames dropped since the camera was opened, because a newer frame arrived
+         * while the analyzer was still busy.
+         */
+        long getDroppedFrames();
+    }
+}
@@ -17,7 +17,9 @@ import android.support.annotation.StringRes;
 import android.support.v4.content.ContextCompat;
 
 import com.afollestad.materialcamera.internal.CameraIntentKey;
+import com.afollestad.materialcamera.internal.FrameDispatcher;
 import com.afollestad.materialcamera.util.CameraUtil;
+import com.afollestad.materialcamera.util.MetadataScrubber;
 import com.afollestad.materialdialogs.util.DialogUtils;
 
 import java.io.File;
@@ -44,6 +46,83 @@ public class MaterialCamera {
     public static final String ERROR_EXTRA = "mcam_error";
     public static final String STATUS_EXTRA = "mcam_status";
 
+    public static final String WIDTH_EXTRA = "mcam_width";
+    public static final String HEIGHT_EXTRA = "mcam_height";
+    public static final String DURATION_EXTRA = "mcam_duration_ms";
+    public static final String ROTATION_EXTRA = "mcam_rotation";
+    public static final String SIZE_EXTRA = "mcam_size_bytes";
+    public static final String CODEC_EXTRA = "mcam_codec";
+    /**
+     * Wall clock time (ms) at which the still was exposed or the recording started.
+     */
+    public static final String CAPTURE_TIME_EXTRA = "mcam_capture_time";
+    /**
+     * Time (ms) from the shutter/record tap until the image was delivered or the recorder started.
+     */
+    public static final String CAPTURE_LATENCY_EXTRA = "mcam_capture_latency_ms";
+    /**
+     * Time (ms) spent writing the still to disk or finalizing the recording.
+     */
+    public static final String SAVE_LATENCY_EXTRA = "mcam_save_latency_ms";
+    /**
+     * JPEG quality a still was re-encoded at to meet maxOutputBytes or maxOutputDimension. Absent if
+     * it was returned as captured. For a burst(), the lowest of its frames, see BURST_QUALITIES_EXTRA.
+     */
+    public static final String OUTPUT_QUALITY_EXTRA = "mcam_output_quality";
+    /**
+     * Time (ms) spent scaling the still and searching for that quality, over all frames of a burst.
+     */
+    public static final String OUTPUT_ENCODE_TIME_EXTRA = "mcam_output_encode_ms";
+    /**
+     * URI of the reduced size copy requested with stillshotProxy() or videoProxy(). For stills, the
+     * same as the data URI if the still was already that small.
+     */
+    public static final String PROXY_URI_EXTRA = "mcam_proxy_uri";
+    /**
+     * Per stream metrics of a recording made with videoProxy(): frames written to the file, frames
+     * the camera delivered that the file is missing, and the average bit rate (bits per second).
+     */
+    public static final String FRAME_COUNT_EXTRA = "mcam_frame_count";
+    public static final String DROPPED_FRAMES_EXTRA = "mcam_dropped_frames";
+    public static final String BIT_RATE_EXTRA = "mcam_bit_rate";
+    public static final String PROXY_FRAME_COUNT_EXTRA = "mcam_proxy_frame_count";
+    public static final String PROXY_DROPPED_FRAMES_EXTRA = "mcam_proxy_dropped_frames";
+    public static final String PROXY_BIT_RATE_EXTRA = "mcam_proxy_bit_rate";
+    /**
+     * Duration (ms) of a preRoll() recording from before the record button was tapped.
+     */
+    public static final String PRE_ROLL_DURATION_EXTRA = "mcam_pre_roll_ms";
+    /**
+     * ArrayList of the URIs of every frame of a burst(), in capture order. The data URI is the
+     * first of them.
+     */
+    public static final String BURST_URIS_EXTRA = "mcam_burst_uris";
+    /**
+     * The rate a burst() was captured at, as a float in frames per second.
+     */
+    public static final String BURST_FPS_EXTRA = "mcam_burst_fps";
+    /**
+     * An int array of the JPEG quality each frame of a burst() was re-encoded at, in capture order;
+     * -1 for frames returned as captured.
+     */
+    public static final String BURST_QUALITIES_EXTRA = "mcam_burst_qualities";
+    /**
+     * ArrayList of the URIs of every still taken in a stillshotSession(), in capture order. The data
+     * URI is the first of them.
+     */
+    public static final String SESSION_URIS_EXTRA = "mcam_session_uris";
+    /**
+     * Slots of a stillshotInterval() that passed without a shot, as an int: the camera was still
+     * busy with the previous one or the slot came due more than half an interval late.
+     */
+    public static final String INTERVAL_MISSED_SLOTS_EXTRA = "mcam_interval_missed_slots";
+    /**
+     * How late (ms) the shots of a stillshotInterval() were triggered after their slot, on average
+     * and at most.
+     */
+    public static final String INTERVAL_JITTER_MEAN_EXTRA = "mcam_interval_jitter_mean_ms";
+    public static final String INTERVAL_JITTER_MAX_EXTRA = "mcam_interval_jitter_max_ms";
+
     public static final int STATUS_RECORDED = 1;
     public static final int STATUS_RETRY = 2;
 
@@ -72,10 +151,27 @@ public class MaterialCamera {
     private int mVideoEncodingBitRate = -1;
     private int mAudioEncodingBitRate = -1;
     private int mVideoFrameRate = -1;
+    private double mVideoCaptureRate = -1;
     private int mVideoPreferredHeight = -1;
     private float mVideoPreferredAspect = -1f;
     private long mMaxFileSize = -1;
     private int mQualityProfile = -1;
+    private long mFragmentDuration = -1;
+    private boolean mRotateStillshots = false;
+    private boolean mMirrorFrontStillshots = false;
+    private float mStillshotAspect = -1f;
+    private long mMaxOutputBytes = -1;
+    private int mMaxOutputDimension = -1;
+    private int mScrubMetadata = 0;
+    private int mStillshotProxySize = -1;
+    private int mBurstCount = -1;
+    private boolean mStillshotSession = false;
+    private long mStillshotInterval = -1;
+    private int mVideoProxyHeight = -1;
+    private int mVideoProxyBitRate = -1;
+    private long mPreRollDuration = -1;
+    private long mPreRollMaxBytes = -1;
+    private FrameAnalyzer mFrameAnalyzer;
 
     private int mIconRecord;
     private int mIconStop;
@@ -201,6 +297,126 @@ public class MaterialCamera {
         return this;
     }
 
+    /**
+     * Remuxes recorded videos into fragmented MP4 (moof/mdat pairs, as used by DASH and HLS) before
+     * they're returned. Each fragment starts on a key frame and is at least this long.
+     */
+    public MaterialCamera fragmentedMp4(@IntRange(from = 1, to = Long.MAX_VALUE) long fragmentDurationMs) {
+        mFragmentDuration = fragmentDurationMs;
+        return this;
+    }
+
+    /**
+     * Losslessly rotates still shots upright per their EXIF orientation before they're returned, for
+     * consumers that ignore EXIF. The orientation tag is reset to normal afterwards.
+     */
+    public MaterialCamera rotateStillshots(boolean rotate) {
+        mRotateStillshots = rotate;
+        return this;
+    }
+
+    /**
+     * Losslessly mirrors front camera still shots so they match the mirrored preview. Mirrored
+     * shots are rotated upright too, as with {@link #rotateStillshots(boolean)}.
+     */
+    public MaterialCamera mirrorFrontStillshots(boolean mirror) {
+        mMirrorFrontStillshots = mirror;
+        return this;
+    }
+
+    /**
+     * Losslessly crops still shots around their center to this ratio of the long side to the short
+     * side (e.g. 16f / 9f), so it applies in portrait and landscape alike. The crop is aligned to
+     * the JPEG's 8 or 16 pixel blocks, so it can be off center by a few pixels.
+     */
+    public MaterialCamera stillshotAspect(@FloatRange(from = 0.1, to = Float.MAX_VALUE) float ratio) {
+        mStillshotAspect = ratio;
+        return this;
+    }
+
+    /**
+     * Re-encodes still shots that are larger than this at the highest JPEG quality that fits,
+     * scaling them down further if no quality does. EXIF is kept.
+     */
+    public MaterialCamera maxOutputBytes(@IntRange(from = 1, to = Long.MAX_VALUE) long maxBytes) {
+        mMaxOutputBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Limits the width and height of still shots. The smallest capture size that covers this is
+     * used where the camera offers one, and the result is scaled down to fit.
+     */
+    public MaterialCamera maxOutputDimension(@IntRange(from = 1, to = Integer.MAX_VALUE) int maxDimension) {
+        mMaxOutputDimension = maxDimension;
+        return this;
+    }
+
+    /**
+     * Strips metadata from still shots before they're returned, e.g. {@link MetadataScrubber#LOCATION}
+     * | {@link MetadataScrubber#DEVICE}. The image data is copied as is, without re-encoding.
+     */
+    public MaterialCamera scrubMetadata(@MetadataScrubber.Strip int flags) {
+        mScrubMetadata = flags;
+        return this;
+    }
+
+    /**
+     * Also returns a copy of still shots at most this many pixels wide and high, e.g. for upload,
+     * under {@link #PROXY_URI_EXTRA}. Where the camera supports it both are captured at once,
+     * otherwise the copy is scaled down from the full still in the background.
+     */
+    public MaterialCamera stillshotProxy(@IntRange(from = 1, to = Integer.MAX_VALUE) int maxDimension) {
+        mStillshotProxySize = maxDimension;
+        return this;
+    }
+
+    /**
+     * Takes this many still shots per shutter press, as fast as the camera allows, and returns
+     * them all under {@link #BURST_URIS_EXTRA}. Focus and exposure are settled once for the whole
+     * burst and the frames are saved in parallel while the rest are captured. Proxies aren't made
+     * for bursts.
+     */
+    public MaterialCamera burst(@IntRange(from = 2, to = Integer.MAX_VALUE) int count) {
+        mBurstCount = count;
+        return this;
+    }
+
+    /**
+     * Keeps the camera open after each still shot instead of showing it for review. Stills are
+     * saved in the background and collected in a thumbnail tray until the user taps done, then all
+     * of them are returned under {@link #SESSION_URIS_EXTRA}. Every frame of a burst() joins the
+     * session. Proxies aren't made in a session.
+     */
+    public MaterialCamera stillshotSession() {
+        mStillshotSession = true;
+        return this;
+    }
+
+    /**
+     * Turns the shutter into a start/stop toggle for a still shot every {@code intervalMs}, e.g.
+     * for a time-lapse, collected like a stillshotSession(). Shots follow a fixed schedule from the
+     * first one, so they don't drift; a slot the camera isn't ready for is skipped and counted under
+     * {@link #INTERVAL_MISSED_SLOTS_EXTRA}. With intervals of 20 seconds or more the camera is
+     * closed between shots to save power, and reopened shortly before the next one.
+     */
+    public MaterialCamera stillshotInterval(@IntRange(from = 1, to = Long.MAX_VALUE) long intervalMs) {
+        mStillshotInterval = intervalMs;
+        return this;
+    }
+
+    /**
+     * Receives low resolution YUV preview frames on a worker thread while the camera is open. Only
+     * the latest frame is kept while the analyzer is busy, so it never stalls the preview.
+     * <p>
+     * The analyzer is held statically until the camera activity finishes, avoid referencing the
+     * calling Activity from it.
+     */
+    public MaterialCamera frameAnalyzer(@Nullable FrameAnalyzer analyzer) {
+        mFrameAnalyzer = analyzer;
+        return this;
+    }
+
     /**
      * @deprecated Renamed to videoEncodingBitRate(int).
      */
@@ -214,6 +430,33 @@ public class MaterialCamera {
         return this;
     }
 
+    /**
+     * Records a second, smaller video-only file at the same time, e.g. for upload, returned under
+     * {@link #PROXY_URI_EXTRA} along with per stream metrics. Both files start and stop on the same
+     * camera frame. Needs the Camera2 API and a recorder size with the same aspect ratio at most
+     * {@code height} pixels high; otherwise only the full file is recorded.
+     */
+    public MaterialCamera videoProxy(@IntRange(from = 1, to = Integer.MAX_VALUE) int height,
+                                     @IntRange(from = 1, to = Integer.MAX_VALUE) int bitRate) {
+        mVideoProxyHeight = height;
+        mVideoProxyBitRate = bitRate;
+        return this;
+    }
+
+    /**
+     * Keeps encoding the preview before recording starts, holding the last {@code durationMs} in
+     * memory, so a recording begins that long before the tap, from the key frame before that. The
+     * buffer never takes more than {@code maxBytes}, or 1/4 of the heap, whichever is less, giving
+     * up the oldest frames first; pass -1 to size it from the bit rates. Needs the Camera2 API,
+     * isn't used for time-lapses, and takes the place of videoProxy(), pausing and
+     * maxAllowedFileSize().
+     */
+    public MaterialCamera preRoll(@IntRange(from = 1, to = Long.MAX_VALUE) long durationMs, long maxBytes) {
+        mPreRollDuration = durationMs;
+        mPreRollMaxBytes = maxBytes;
+        return this;
+    }
+
     public MaterialCamera audioEncodingBitRate(@IntRange(from = 1, to = Integer.MAX_VALUE) int rate) {
         mAudioEncodingBitRate = rate;
         return this;
@@ -224,6 +467,17 @@ public class MaterialCamera {
         return this;
     }
 
+    /**
+     * Records a time-lapse: frames are captured {@code captureRate} times per second and played
+     * back at the usual frame rate, e.g. 1 plays back 30 times faster at 30 fps. Only the captured
+     * frames are encoded, so file size and encoder load drop in the same proportion. The quality
+     * profile's time-lapse counterpart is used where the device has one. Time-lapses have no audio.
+     */
+    public MaterialCamera videoTimeLapse(@FloatRange(from = 0.001, to = Double.MAX_VALUE) double captureRate) {
+        mVideoCaptureRate = captureRate;
+        return this;
+    }
+
     public MaterialCamera videoPreferredHeight(@IntRange(from = 1, to = Integer.MAX_VALUE) int height) {
         mVideoPreferredHeight = height;
         return this;
@@ -317,6 +571,7 @@ public class MaterialCamera {
     }
 
     public Intent getIntent() {
+        FrameDispatcher.setAnalyzer(mFrameAnalyzer);
         final Class<?> cls = !mForceCamera1 && CameraUtil.hasCamera2(mContext, mStillShot) ?
                 CaptureActivity2.class : CaptureActivity.class;
         Intent intent = new Intent(mContext, cls)
@@ -334,7 +589,9 @@ public class MaterialCamera {
                 .putExtra(CameraIntentKey.CONTINUE_TIMER_IN_PLAYBACK, mContinueTimerInPlayback)
                 .putExtra(CameraIntentKey.STILL_SHOT, mStillShot)
                 .putExtra(CameraIntentKey.AUTO_RECORD, mAutoRecord)
-                .putExtra(CameraIntentKey.AUDIO_DISABLED, mAudioDisabled);
+                .putExtra(CameraIntentKey.AUDIO_DISABLED, mAudioDisabled)
+                .putExtra(CameraIntentKey.ROTATE_STILLSHOTS, mRotateStillshots)
+                .putExtra(CameraIntentKey.MIRROR_FRONT_STILLSHOTS, mMirrorFrontStillshots);
 
         if (mVideoEncodingBitRate > 0)
             intent.putExtra(CameraIntentKey.VIDEO_BIT_RATE, mVideoEncodingBitRate);
@@ -342,14 +599,42 @@ public class MaterialCamera {
             intent.putExtra(CameraIntentKey.AUDIO_ENCODING_BIT_RATE, mAudioEncodingBitRate);
         if (mVideoFrameRate > 0)
             intent.putExtra(CameraIntentKey.VIDEO_FRAME_RATE, mVideoFrameRate);
+        if (mVideoCaptureRate > 0)
+            intent.putExtra(CameraIntentKey.VIDEO_CAPTURE_RATE, mVideoCaptureRate);
         if (mVideoPreferredHeight > 0)
             intent.putExtra(CameraIntentKey.VIDEO_PREFERRED_HEIGHT, mVideoPreferredHeight);
         if (mVideoPreferredAspect > 0f)
             intent.putExtra(CameraIntentKey.VIDEO_PREFERRED_ASPECT, mVideoPreferredAspect);
         if (mMaxFileSize > -1)
             intent.putExtra(CameraIntentKey.MAX_ALLOWED_FILE_SIZE, mMaxFileSize);
+        if (mStillshotAspect > 0f)
+            intent.putExtra(CameraIntentKey.STILLSHOT_ASPECT, mStillshotAspect);
+        if (mMaxOutputBytes > 0)
+            intent.putExtra(CameraIntentKey.MAX_OUTPUT_BYTES, mMaxOutputBytes);
+        if (mMaxOutputDimension > 0)
+            intent.putExtra(CameraIntentKey.MAX_OUTPUT_DIMENSION, mMaxOutputDimension);
+        if (mScrubMetadata != 0)
+            intent.putExtra(CameraIntentKey.SCRUB_METADATA, mScrubMetadata);
+        if (mStillshotProxySize > 0)
+            intent.putExtra(CameraIntentKey.STILLSHOT_PROXY_SIZE, mStillshotProxySize);
+        if (mBurstCount > 1)
+            intent.putExtra(CameraIntentKey.BURST_COUNT, mBurstCount);
+        if (mStillshotSession)
+            intent.putExtra(CameraIntentKey.STILLSHOT_SESSION, true);
+        if (mStillshotInterval > 0)
+            intent.putExtra(CameraIntentKey.STILLSHOT_INTERVAL, mStillshotInterval);
+        if (mVideoProxyHeight > 0) {
+            intent.putExtra(CameraIntentKey.VIDEO_PROXY_HEIGHT, mVideoProxyHeight);
+            intent.putExtra(CameraIntentKey.VIDEO_PROXY_BIT_RATE, mVideoProxyBitRate);
+        }
+        if (mPreRollDuration > 0) {
+            intent.putExtra(CameraIntentKey.PRE_ROLL_DURATION, mPreRollDuration);
+            intent.putExtra(CameraIntentKey.PRE_ROLL_MAX_BYTES, mPreRollMaxBytes);
+        }
         if (mQualityProfile > -1)
             intent.putExtra(CameraIntentKey.QUALITY_PROFILE, mQualityProfile);
+        if (mFragmentDuration > 0)
+            intent.putExtra(CameraIntentKey.FRAGMENT_DURATION, mFragmentDuration);
 
         if (mIconRecord != 0)
             intent.putExtra(CameraIntentKey.ICON_RECORD, mIconRecord);
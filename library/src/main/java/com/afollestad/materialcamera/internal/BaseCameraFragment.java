@@ -6,14 +6,19 @@ import android.app.Fragment;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.res.ColorStateList;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.RippleDrawable;
 import android.media.MediaRecorder;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.graphics.drawable.DrawableCompat;
 import android.support.v7.content.res.AppCompatResources;
@@ -21,18 +26,31 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.HorizontalScrollView;
 import android.widget.ImageButton;
 import android.widget.ImageView;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import com.afollestad.materialcamera.ICallback;
 import com.afollestad.materialcamera.MaterialCamera;
 import com.afollestad.materialcamera.R;
 import com.afollestad.materialcamera.util.CameraUtil;
 import com.afollestad.materialcamera.util.Degrees;
+import com.afollestad.materialcamera.util.MediaInfo;
+import com.afollestad.materialcamera.util.Mp4Fragmenter;
+import com.afollestad.materialcamera.util.StillThumbnails;
 import com.afollestad.materialdialogs.DialogAction;
 import com.afollestad.materialdialogs.MaterialDialog;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static android.app.Activity.RESULT_CANCELED;
 import static com.afollestad.materialcamera.internal.BaseCaptureActivity.CAMERA_POSITION_BACK;
@@ -49,15 +67,79 @@ abstract class BaseCameraFragment extends Fragment implements CameraUriInterface
     protected ImageButton mButtonStillshot;
     protected ImageButton mButtonFacing;
     protected ImageButton mButtonFlash;
+    protected ImageButton mButtonPause;
     protected TextView mRecordDuration;
     protected TextView mDelayStartCountdown;
+    protected TextView mSessionDone;
+    private HorizontalScrollView mSessionTrayFrame;
+    private LinearLayout mSessionTray;
 
     private boolean mIsRecording;
+    // Stopping waits for the recorders to drain, clicks and the countdown are ignored until then
+    private boolean mStopPending;
+    // When the recording was paused, or -1 while it's running
+    private long mPausedAt = -1;
+    /**
+     * Finished segments of a recording paused on a recorder that can't pause itself, joined into
+     * one file when the recording stops. The segment being recorded is still in {@link #mOutputUri}.
+     */
+    private final ArrayList<String> mSegmentUris = new ArrayList<>();
+    private final ArrayList<String> mProxySegmentUris = new ArrayList<>();
+    // The recorders of the next segment are prepared, but not started until the recording resumes
+    private boolean mSegmentPrepared;
     protected String mOutputUri;
     protected BaseCaptureInterface mInterface;
     protected Handler mPositionHandler;
     protected MediaRecorder mMediaRecorder;
+    /**
+     * Records the reduced size copy alongside {@link #mMediaRecorder}, if one was requested.
+     */
+    protected MediaRecorder mProxyRecorder;
+    protected String mProxyOutputUri;
+    /**
+     * The frames, size and duration of the segments {@link #joinSegments} joined into
+     * {@link #mOutputUri} and the proxy, which the fragmented output no longer has in its sample
+     * tables; null if the recording wasn't joined or a segment couldn't be read.
+     */
+    protected MediaInfo mJoinedInfo;
+    protected MediaInfo mJoinedProxyInfo;
+    /**
+     * The burst being captured, if burst() was requested.
+     */
+    protected volatile BurstSaver mBurst;
+    /**
+     * Saves stills one at a time, in the order they were taken, away from the camera's threads.
+     * Its thread goes away while idle.
+     */
+    private final ThreadPoolExecutor mStillSaver = new ThreadPoolExecutor(0, 1,
+            5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    // Session stills (or bursts) still being saved, finishing the session waits for them
+    private final AtomicInteger mSessionSaving = new AtomicInteger();
+    private boolean mFinishSessionWhenSaved;
+    /**
+     * The schedule of a stillshotInterval(), kept across rotation like the rest of the fragment.
+     */
+    private IntervalScheduler mInterval;
+    // The camera was closed between interval shots, it's reopened ahead of the next one
+    private boolean mIntervalClosedCamera;
+    private final Handler mIntervalHandler = new Handler();
     private int mIconTextColor;
+    private long mCaptureRequestedAt = -1;
+    private long mCaptureTime = -1;
+    private long mCaptureLatency = -1;
+
+    // Handler times are uptime, which the interval schedule has to match
+    /**
+     * Fragment duration of a joined recording when fragmentedMp4() wasn't requested.
+     */
+    private static final long JOINED_FRAGMENT_MS = 2000;
+
+    private static final IntervalScheduler.Clock UPTIME_CLOCK = new IntervalScheduler.Clock() {
+        @Override
+        public long uptimeMs() {
+            return SystemClock.uptimeMillis();
+        }
+    };
 
     protected static void LOG(Object context, String message) {
         Log.d(context instanceof Class<?> ? ((Class<?>) context).getSimpleName() :
@@ -74,7 +156,7 @@ abstract class BaseCameraFragment extends Fragment implements CameraUriInterface
             final long now = System.currentTimeMillis();
             if (mRecordEnd != -1) {
                 if (now >= mRecordEnd) {
-                    stopRecordingVideo(true);
+                    stopRecordingWhenDrained(true);
                 } else {
                     final long diff = mRecordEnd - now;
                     mRecordDuration.setText(String.format("-%s", CameraUtil.getDurationString(diff)));
@@ -122,11 +204,13 @@ abstract class BaseCameraFragment extends Fragment implements CameraUriInterface
 
         mButtonFlash = (ImageButton) view.findViewById(R.id.flash);
         setupFlashMode();
+        mButtonPause = (ImageButton) view.findViewById(R.id.pause);
 
         mButtonVideo.setOnClickListener(this);
         mButtonStillshot.setOnClickListener(this);
         mButtonFacing.setOnClickListener(this);
         mButtonFlash.setOnClickListener(this);
+        mButtonPause.setOnClickListener(this);
 
         int primaryColor = getArguments().getInt(CameraIntentKey.PRIMARY_COLOR);
         if (CameraUtil.isColorDark(primaryColor)) {
@@ -140,6 +224,8 @@ abstract class BaseCameraFragment extends Fragment implements CameraUriInterface
 
         if (mMediaRecorder != null && mIsRecording) {
             setImageRes(mButtonVideo, mInterface.iconStop());
+            mButtonPause.setVisibility(View.VISIBLE);
+            setImageRes(mButtonPause, mPausedAt != -1 ? mInterface.iconPlay() : mInterface.iconPause());
         } else {
             setImageRes(mButtonVideo, mInterface.iconRecord());
             mInterface.setDidRecord(false);
@@ -156,6 +242,25 @@ abstract class BaseCameraFragment extends Fragment implements CameraUriInterface
             mButtonFlash.setVisibility(View.VISIBLE);
         }
 
+        if (mInterface.stillshotInterval() > 0) {
+            if (mInterval == null)
+                mInterval = new IntervalScheduler(mInterface.stillshotInterval(), UPTIME_CLOCK);
+            else if (mInterval.isRunning())
+                setImageRes(mButtonStillshot, mInterface.iconStop());
+        }
+
+        mSessionDone = (TextView) view.findViewById(R.id.sessionDone);
+        mSessionTrayFrame = (HorizontalScrollView) view.findViewById(R.id.sessionTrayFrame);
+        mSessionTray = (LinearLayout) view.findViewById(R.id.sessionTray);
+        if (mInterface.stillshotSession()) {
+            mSessionDone.setVisibility(View.VISIBLE);
+            mSessionDone.setTextColor(mIconTextColor);
+            mSessionDone.setOnClickListener(this);
+            for (String uri : mInterface.getSessionUris())
+                addSessionThumbnail(uri);
+            invalidateSessionDone();
+        }
+
         if (mInterface.autoRecordDelay() < 1000) {
             mDelayStartCountdown.setVisibility(View.GONE);
         } else {
@@ -237,13 +342,20 @@ abstract class BaseCameraFragment extends Fragment implements CameraUriInterface
         mButtonStillshot = null;
         mButtonFacing = null;
         mButtonFlash = null;
+        mButtonPause = null;
         mRecordDuration = null;
+        mSessionDone = null;
+        mSessionTrayFrame = null;
+        mSessionTray = null;
+        StillThumbnails.cancel(mThumbnailCallback);
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        if (mInterface != null && mInterface.hasLengthLimit()) {
+        if (mInterval != null && mInterval.isRunning())
+            scheduleIntervalSlot();
+        if (mInterface != null && mInterface.hasLengthLimit() && mPausedAt == -1) {
             if (mInterface.countdownImmediately() || mInterface.getRecordingStart() > -1) {
                 if (mInterface.getRecordingStart() == -1)
                     mInterface.setRecordingStart(System.currentTimeMillis());
@@ -276,6 +388,16 @@ abstract class BaseCameraFragment extends Fragment implements CameraUriInterface
     public abstract void closeCamera();
 
     public void cleanup() {
+        // An interval keeps its schedule while paused for a rotation, onResume picks it back up
+        mIntervalHandler.removeCallbacks(mIntervalSlot);
+        mIntervalHandler.removeCallbacks(mIntervalReopen);
+        mIntervalHandler.removeCallbacks(mIntervalShotTaken);
+        mIntervalClosedCamera = false;
+        if (mStopPending) {
+            // Closing the camera drops the drain the stop was waiting for
+            mStopPending = false;
+            mButtonVideo.setEnabled(true);
+        }
         closeCamera();
         releaseRecorder();
         stopCounter();
@@ -283,6 +405,248 @@ abstract class BaseCameraFragment extends Fragment implements CameraUriInterface
 
     public abstract void takeStillshot();
 
+    /**
+     * @return whether {@link #takeStillshot()} would start a capture right now, i.e. the camera is
+     * open and not busy with another one.
+     */
+    protected abstract boolean canTakeStillshot();
+
+    /**
+     * Starts collecting a burst for the shutter, if one was requested. The first frame is shown for
+     * review once all of them are saved.
+     *
+     * @return false if stills are taken one at a time.
+     */
+    protected final boolean startBurst(final long shutterPressedAt) {
+        if (mInterface.burstCount() < 2) return false;
+        final BurstSaver burst = new BurstSaver(mInterface, mInterface.burstCount());
+        mBurst = burst;
+        final boolean session = mInterface.stillshotSession();
+        if (session) mSessionSaving.incrementAndGet();
+        burst.whenSaved(new ICallback() {
+            @Override
+            public void done(Exception e) {
+                if (mBurst != burst) return;
+                mBurst = null;
+                if (mButtonStillshot != null)
+                    mButtonStillshot.setEnabled(true);
+                if (session) {
+                    // The frames join the session like single stills, a failed burst is dropped
+                    if (e != null) {
+                        Log.e("BaseCameraFragment", "Unable to save the burst", e);
+                        burst.cancel();
+                    } else {
+                        for (String uri : burst.getUris())
+                            addToSession(uri);
+                    }
+                    onSessionSaveDone();
+                    return;
+                }
+                if (e != null) {
+                    throwError(e);
+                    return;
+                }
+                mInterface.setCaptureTimings(burst.getFirstFrameTime(), burst.getFirstFrameAt() - shutterPressedAt,
+                        SystemClock.elapsedRealtime() - burst.getLastFrameAt());
+                final ArrayList<String> uris = burst.getUris();
+                LOG(BaseCameraFragment.this, String.format("Burst of %d saved, captured at %.1f fps",
+                        uris.size(), burst.getFramesPerSecond()));
+                mInterface.setBurstResult(uris, burst.getFramesPerSecond(), burst.getQualities());
+                mInterface.setOutputQuality(burst.getLowestQuality(), burst.getEncodeTime());
+                mOutputUri = uris.get(0);
+                mInterface.onShowStillshot(mOutputUri);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Drops a burst that hasn't finished, deleting its frames.
+     */
+    protected final void cancelBurst() {
+        if (mBurst != null) {
+            mBurst.cancel();
+            mBurst = null;
+            if (mInterface != null && mInterface.stillshotSession())
+                onSessionSaveDone();
+        }
+    }
+
+    /**
+     * Queues work on the thread stills are saved on, after the stills queued before it. Can be
+     * called from any thread.
+     */
+    protected final void runOnSaveThread(Runnable job) {
+        mStillSaver.execute(job);
+    }
+
+    /**
+     * Queues a still taken in a session to be saved in the background, after which it joins the
+     * session and its tray. The camera can take the next one right away. Can be called from any
+     * thread.
+     */
+    protected final void saveToSession(final byte[] jpeg) {
+        final File output = getOutputPictureFile();
+        final SavePipeline pipeline = SavePipeline.forBurst(mInterface, SavePipeline.reportTo(mInterface));
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mSessionSaving.incrementAndGet();
+        if (mInterface.stillshotInterval() > 0)
+            mIntervalHandler.post(mIntervalShotTaken);
+        mStillSaver.execute(new Runnable() {
+            @Override
+            public void run() {
+                Exception error = null;
+                try {
+                    pipeline.save(jpeg, output);
+                } catch (IOException e) {
+                    error = e;
+                }
+                final Exception result = error;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (result != null || mInterface == null) {
+                            // Failed, or finished after the activity went away with the session
+                            if (result != null)
+                                Log.e("BaseCameraFragment", "Unable to save a session still", result);
+                            //noinspection ResultOfMethodCallIgnored
+                            output.delete();
+                        } else {
+                            LOG(BaseCameraFragment.this, "Session still saved, " +
+                                    (mSessionSaving.get() - 1) + " more queued");
+                            addToSession(Uri.fromFile(output).toString());
+                        }
+                        onSessionSaveDone();
+                    }
+                });
+            }
+        });
+    }
+
+    private void addToSession(String uri) {
+        mInterface.addToSession(uri);
+        addSessionThumbnail(uri);
+    }
+
+    private void onSessionSaveDone() {
+        if (mSessionSaving.decrementAndGet() == 0 && mFinishSessionWhenSaved && mInterface != null)
+            mInterface.finishSession();
+        else
+            invalidateSessionDone();
+    }
+
+    private final StillThumbnails.Callback mThumbnailCallback = new StillThumbnails.Callback() {
+        @Override
+        public void onThumbnail(@NonNull String uri, @Nullable Bitmap bitmap) {
+            if (mSessionTray == null || bitmap == null) return;
+            final View thumbnail = mSessionTray.findViewWithTag(uri);
+            if (thumbnail instanceof ImageView)
+                ((ImageView) thumbnail).setImageBitmap(bitmap);
+        }
+    };
+
+    /**
+     * Adds a placeholder to the tray right away, its thumbnail is decoded in the background.
+     */
+    private void addSessionThumbnail(String uri) {
+        if (mSessionTray == null) return;
+        final int size = getResources().getDimensionPixelSize(R.dimen.mcam_thumbnail_strip_height);
+        final ImageView thumbnail = new ImageView(getActivity());
+        thumbnail.setLayoutParams(new LinearLayout.LayoutParams(size, size));
+        thumbnail.setScaleType(ImageView.ScaleType.CENTER_CROP);
+        thumbnail.setTag(uri);
+        mSessionTray.addView(thumbnail);
+        mSessionTrayFrame.setVisibility(View.VISIBLE);
+        mSessionTrayFrame.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSessionTrayFrame != null && mSessionTray != null)
+                    mSessionTrayFrame.smoothScrollTo(mSessionTray.getWidth(), 0);
+            }
+        });
+        StillThumbnails.load(uri, size, mThumbnailCallback);
+    }
+
+    private final Runnable mIntervalSlot = new Runnable() {
+        @Override
+        public void run() {
+            if (mInterval == null || !mInterval.isRunning()) return;
+            if (mInterval.onSlotDue(canTakeStillshot()))
+                takeStillshot();
+            else
+                LOG(BaseCameraFragment.this, "Interval slot missed, " + mInterval.getMissed() + " so far");
+            scheduleIntervalSlot();
+        }
+    };
+
+    private final Runnable mIntervalReopen = new Runnable() {
+        @Override
+        public void run() {
+            mIntervalClosedCamera = false;
+            openCamera();
+        }
+    };
+
+    /**
+     * Once a shot's image is in hand, closes the camera until shortly before the next slot if the
+     * interval is long enough for that to save power.
+     */
+    private final Runnable mIntervalShotTaken = new Runnable() {
+        @Override
+        public void run() {
+            if (mInterval == null || !mInterval.isRunning() || !mInterval.closesCameraBetweenShots() ||
+                    !isResumed() || mIntervalClosedCamera)
+                return;
+            final long reopenAt = mInterval.getReopenAt();
+            if (reopenAt <= SystemClock.uptimeMillis()) return;
+            LOG(BaseCameraFragment.this, "Closing the camera for " + (reopenAt - SystemClock.uptimeMillis()) +
+                    "ms until the next interval shot");
+            closeCamera();
+            mIntervalClosedCamera = true;
+            mIntervalHandler.postAtTime(mIntervalReopen, reopenAt);
+        }
+    };
+
+    private void scheduleIntervalSlot() {
+        mIntervalHandler.removeCallbacks(mIntervalSlot);
+        mIntervalHandler.postAtTime(mIntervalSlot, mInterval.getNextSlotAt());
+    }
+
+    private void toggleInterval() {
+        if (mInterval.isRunning()) {
+            stopInterval();
+        } else {
+            mInterval.start();
+            setImageRes(mButtonStillshot, mInterface.iconStop());
+            scheduleIntervalSlot();
+        }
+    }
+
+    private void stopInterval() {
+        mIntervalHandler.removeCallbacks(mIntervalSlot);
+        mIntervalHandler.removeCallbacks(mIntervalReopen);
+        mIntervalHandler.removeCallbacks(mIntervalShotTaken);
+        mInterval.stop();
+        if (mIntervalClosedCamera) {
+            mIntervalClosedCamera = false;
+            openCamera();
+        }
+        if (mButtonStillshot != null)
+            setImageRes(mButtonStillshot, mInterface.iconStillshot());
+        LOG(this, "Interval capture: " + mInterval);
+        final Bundle stats = new Bundle();
+        stats.putInt(MaterialCamera.INTERVAL_MISSED_SLOTS_EXTRA, mInterval.getMissed());
+        stats.putLong(MaterialCamera.INTERVAL_JITTER_MEAN_EXTRA, mInterval.getJitter().getMean());
+        stats.putLong(MaterialCamera.INTERVAL_JITTER_MAX_EXTRA, mInterval.getJitter().getMax());
+        mInterface.setIntervalStats(stats);
+    }
+
+    private void invalidateSessionDone() {
+        if (mSessionDone == null || mInterface == null) return;
+        mSessionDone.setText(getString(R.string.mcam_session_done, mInterface.getSessionUris().size()));
+        mSessionDone.setEnabled(!mFinishSessionWhenSaved);
+    }
+
     public abstract void onPreferencesUpdated();
 
     @Override
@@ -325,23 +689,55 @@ abstract class BaseCameraFragment extends Fragment implements CameraUriInterface
 
     public final void releaseRecorder() {
         if (mMediaRecorder != null) {
-            if (mIsRecording) {
+            if (mIsRecording && mSegmentPrepared) {
+                // Paused between segments, the next one was never started
+                //noinspection ResultOfMethodCallIgnored
+                new File(Uri.parse(mOutputUri).getPath()).delete();
+                if (mProxyOutputUri != null) {
+                    //noinspection ResultOfMethodCallIgnored
+                    new File(Uri.parse(mProxyOutputUri).getPath()).delete();
+                }
+                mIsRecording = false;
+            } else if (mIsRecording) {
+                final long stopStart = SystemClock.elapsedRealtime();
                 try {
                     mMediaRecorder.stop();
+                    if (mInterface != null)
+                        mInterface.setCaptureTimings(mCaptureTime, mCaptureLatency, SystemClock.elapsedRealtime() - stopStart);
                 } catch (Throwable t) {
                     //noinspection ResultOfMethodCallIgnored
                     new File(mOutputUri).delete();
                     t.printStackTrace();
                 }
+                if (mProxyRecorder != null) {
+                    try {
+                        mProxyRecorder.stop();
+                    } catch (Throwable t) {
+                        //noinspection ResultOfMethodCallIgnored
+                        new File(Uri.parse(mProxyOutputUri).getPath()).delete();
+                        mProxyOutputUri = null;
+                        t.printStackTrace();
+                    }
+                }
                 mIsRecording = false;
             }
             mMediaRecorder.reset();
             mMediaRecorder.release();
             mMediaRecorder = null;
         }
+        if (mProxyRecorder != null) {
+            mProxyRecorder.reset();
+            mProxyRecorder.release();
+            mProxyRecorder = null;
+        }
+        mSegmentPrepared = false;
     }
 
     public boolean startRecordingVideo() {
+        mCaptureRequestedAt = SystemClock.elapsedRealtime();
+        mPausedAt = -1;
+        mSegmentUris.clear();
+        mProxySegmentUris.clear();
         if (mInterface != null && mInterface.hasLengthLimit() && !mInterface.countdownImmediately()) {
             // Countdown wasn't started in onResume, start it now
             if (mInterface.getRecordingStart() == -1)
@@ -356,8 +752,295 @@ abstract class BaseCameraFragment extends Fragment implements CameraUriInterface
         return true;
     }
 
+    /**
+     * Should be called right after the media recorder was started, to track how long starting took.
+     */
+    protected final void onRecordingStarted() {
+        mCaptureTime = System.currentTimeMillis();
+        mCaptureLatency = mCaptureRequestedAt > -1 ? SystemClock.elapsedRealtime() - mCaptureRequestedAt : -1;
+        if (mButtonPause != null && canPauseRecording()) {
+            mButtonPause.setVisibility(View.VISIBLE);
+            setImageRes(mButtonPause, mInterface.iconPause());
+        }
+    }
+
+    /**
+     * Stops the recording once the recorders have every frame the camera already sent them, see
+     * {@link #drainRecorders(Runnable)}.
+     */
+    private void stopRecordingWhenDrained(final boolean reachedZero) {
+        if (mStopPending) return;
+        mStopPending = true;
+        mButtonVideo.setEnabled(false);
+        drainRecorders(new Runnable() {
+            @Override
+            public void run() {
+                mStopPending = false;
+                mButtonVideo.setEnabled(true);
+                stopRecordingVideo(reachedZero);
+                mIsRecording = false;
+            }
+        });
+    }
+
+    /**
+     * Stops the camera sending frames to the recorders, and runs {@code onDrained} on the main
+     * thread once those already sent reached them. Runs it straight away by default.
+     */
+    protected void drainRecorders(@NonNull Runnable onDrained) {
+        onDrained.run();
+    }
+
     public void stopRecordingVideo(boolean reachedZero) {
         getActivity().setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED);
+        mPausedAt = -1;
+        if (mButtonPause != null)
+            mButtonPause.setVisibility(View.GONE);
+    }
+
+    /**
+     * MediaRecorder can pause itself from Nougat on; before that, pausing ends the current segment
+     * and prepares the next one straight away, so resuming only has to start it.
+     */
+    private static boolean canPauseRecorder() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+    }
+
+    /**
+     * @return whether the recording that just started can be paused.
+     */
+    protected boolean canPauseRecording() {
+        return true;
+    }
+
+    private void togglePause() {
+        if (mPausedAt == -1) pauseRecordingVideo();
+        else resumeRecordingVideo();
+    }
+
+    @SuppressLint("NewApi")
+    private void pauseRecordingVideo() {
+        try {
+            if (canPauseRecorder()) {
+                pauseRecorders();
+            } else {
+                if (!splitSegment()) return;
+                mSegmentPrepared = true;
+            }
+        } catch (Throwable t) {
+            t.printStackTrace();
+            throwError(new Exception("Failed to pause recording: " + t.getMessage(), t));
+            return;
+        }
+        mPausedAt = System.currentTimeMillis();
+        stopCounter();
+        setImageRes(mButtonPause, mInterface.iconPlay());
+    }
+
+    @SuppressLint("NewApi")
+    private void resumeRecordingVideo() {
+        final long resumeStart = SystemClock.elapsedRealtime();
+        try {
+            if (canPauseRecorder()) {
+                resumeRecorders();
+            } else {
+                // Not ready yet, the click is ignored
+                if (!startNextSegment()) return;
+                mSegmentPrepared = false;
+            }
+        } catch (Throwable t) {
+            t.printStackTrace();
+            throwError(new Exception("Failed to resume recording: " + t.getMessage(), t));
+            return;
+        }
+        LOG(this, "Recording resumed in " + (SystemClock.elapsedRealtime() - resumeStart) + "ms");
+        // The time spent paused counts towards neither the duration nor the length limit
+        mInterface.setRecordingStart(mInterface.getRecordingStart() + System.currentTimeMillis() - mPausedAt);
+        mPausedAt = -1;
+        startCounter();
+        setImageRes(mButtonPause, mInterface.iconPause());
+    }
+
+    /**
+     * Pauses the recorders in place, from Nougat on.
+     */
+    @SuppressLint("NewApi")
+    protected void pauseRecorders() throws Exception {
+        mMediaRecorder.pause();
+        if (mProxyRecorder != null)
+            mProxyRecorder.pause();
+    }
+
+    /**
+     * Resumes the recorders {@link #pauseRecorders()} paused.
+     */
+    @SuppressLint("NewApi")
+    protected void resumeRecorders() throws Exception {
+        mMediaRecorder.resume();
+        if (mProxyRecorder != null)
+            mProxyRecorder.resume();
+    }
+
+    /**
+     * Ends the current segment of a recording that's being paused, with {@link #finishSegment()},
+     * and prepares the recorders of the next one without starting them. Only used before Nougat.
+     * Both may finish asynchronously, {@link #startNextSegment()} reports when they're done.
+     *
+     * @return false if the recording couldn't continue, the error has been thrown then.
+     */
+    protected abstract boolean splitSegment() throws Exception;
+
+    /**
+     * Starts the recorders {@link #splitSegment()} prepared.
+     *
+     * @return false if they aren't ready yet.
+     */
+    protected boolean startNextSegment() throws Exception {
+        mMediaRecorder.start();
+        if (mProxyRecorder != null)
+            mProxyRecorder.start();
+        return true;
+    }
+
+    /**
+     * Stops the recorders and keeps what they recorded as finished segments of the recording.
+     */
+    protected final void finishSegment() {
+        try {
+            mMediaRecorder.stop();
+            mSegmentUris.add(mOutputUri);
+        } catch (Throwable t) {
+            // Nothing was recorded since the last resume
+            //noinspection ResultOfMethodCallIgnored
+            new File(Uri.parse(mOutputUri).getPath()).delete();
+            t.printStackTrace();
+        }
+        mMediaRecorder.reset();
+        mMediaRecorder.release();
+        mMediaRecorder = null;
+        if (mProxyRecorder != null) {
+            try {
+                mProxyRecorder.stop();
+                mProxySegmentUris.add(mProxyOutputUri);
+            } catch (Throwable t) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(Uri.parse(mProxyOutputUri).getPath()).delete();
+                t.printStackTrace();
+            }
+            mProxyRecorder.reset();
+            mProxyRecorder.release();
+            mProxyRecorder = null;
+        }
+    }
+
+    /**
+     * Joins the segments of a recording paused by {@link #splitSegment()} into a single output,
+     * which replaces {@link #mOutputUri} (and the proxy), then runs {@code onJoined} on the main
+     * thread. Samples are copied as is, so nothing is re-encoded. Runs {@code onJoined} straight
+     * away if the recording was never split.
+     */
+    protected final void joinSegments(@NonNull final Runnable onJoined) {
+        mJoinedInfo = null;
+        mJoinedProxyInfo = null;
+        if (mSegmentUris.isEmpty()) {
+            onJoined.run();
+            return;
+        }
+        // The last segment, unless stopping it failed or it never started
+        final List<File> segments = segmentFiles(mSegmentUris, mOutputUri);
+        final List<File> proxySegments = segmentFiles(mProxySegmentUris, mProxyOutputUri);
+        mSegmentUris.clear();
+        mProxySegmentUris.clear();
+        if (segments.isEmpty()) {
+            onJoined.run();
+            return;
+        }
+        final File output = getOutputMediaFile();
+        final long fragmentDuration = mInterface.fragmentDuration() > 0 ?
+                mInterface.fragmentDuration() : JOINED_FRAGMENT_MS;
+        final Handler handler = new Handler();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    final long joinStart = SystemClock.elapsedRealtime();
+                    final MediaInfo info = sumSegments(segments);
+                    final MediaInfo proxyInfo = sumSegments(proxySegments);
+                    new Mp4Fragmenter(fragmentDuration).join(segments, output);
+                    File proxy = null;
+                    if (!proxySegments.isEmpty()) {
+                        proxy = CameraUtil.makeProxyFile(output);
+                        new Mp4Fragmenter(fragmentDuration).join(proxySegments, proxy);
+                    }
+                    for (File segment : segments) {
+                        //noinspection ResultOfMethodCallIgnored
+                        segment.delete();
+                    }
+                    for (File segment : proxySegments) {
+                        //noinspection ResultOfMethodCallIgnored
+                        segment.delete();
+                    }
+                    LOG(BaseCameraFragment.class, "Joined " + segments.size() + " segments in " +
+                            (SystemClock.elapsedRealtime() - joinStart) + "ms");
+                    final File joinedProxy = proxy;
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mOutputUri = Uri.fromFile(output).toString();
+                            mJoinedInfo = info;
+                            if (joinedProxy != null) {
+                                mProxyOutputUri = Uri.fromFile(joinedProxy).toString();
+                                mJoinedProxyInfo = proxyInfo;
+                            }
+                            if (isAdded()) onJoined.run();
+                        }
+                    });
+                } catch (final IOException e) {
+                    //noinspection ResultOfMethodCallIgnored
+                    output.delete();
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            throwError(new Exception("Failed to join the recorded segments: " + e.getMessage(), e));
+                        }
+                    });
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Adds up the frames, size and duration of recorded segments.
+     *
+     * @return null if there are none, or one of them can't be read.
+     */
+    @Nullable
+    private static MediaInfo sumSegments(List<File> segments) throws IOException {
+        if (segments.isEmpty()) return null;
+        final MediaInfo total = new MediaInfo();
+        total.frameCount = 0;
+        total.durationMs = 0;
+        for (File segment : segments) {
+            final MediaInfo info = MediaInfo.read(segment);
+            if (info == null || info.frameCount <= 0 || info.durationMs <= 0) return null;
+            total.frameCount += info.frameCount;
+            total.durationMs += info.durationMs;
+            total.sizeBytes += info.sizeBytes;
+        }
+        return total;
+    }
+
+    private static List<File> segmentFiles(List<String> uris, @Nullable String current) {
+        final List<File> files = new ArrayList<>();
+        if (current != null) {
+            uris = new ArrayList<>(uris);
+            uris.add(current);
+        }
+        for (String uri : uris) {
+            final File file = new File(Uri.parse(uri).getPath());
+            if (file.length() > 0) files.add(file);
+        }
+        return files;
     }
 
     @Override
@@ -391,8 +1074,7 @@ abstract class BaseCameraFragment extends Fragment implements CameraUriInterface
             setupFlashMode();
         } else if (id == R.id.video) {
             if (mIsRecording) {
-                stopRecordingVideo(false);
-                mIsRecording = false;
+                stopRecordingWhenDrained(false);
             } else {
                 if (getArguments().getBoolean(CameraIntentKey.SHOW_PORTRAIT_WARNING, true) &&
                         Degrees.isPortrait(getActivity())) {
@@ -412,10 +1094,24 @@ abstract class BaseCameraFragment extends Fragment implements CameraUriInterface
                     mIsRecording = startRecordingVideo();
                 }
             }
+        } else if (id == R.id.pause) {
+            togglePause();
         } else if (id == R.id.stillshot) {
-            takeStillshot();
+            if (mInterval != null) toggleInterval();
+            else takeStillshot();
         } else if (id == R.id.flash) {
             invalidateFlash(true);
+        } else if (id == R.id.sessionDone) {
+            if (mInterval != null && mInterval.isRunning())
+                stopInterval();
+            if (mSessionSaving.get() == 0) {
+                mInterface.finishSession();
+            } else {
+                // Returns once the stills still in the queue are saved
+                mFinishSessionWhenSaved = true;
+                mButtonStillshot.setEnabled(false);
+                invalidateSessionDone();
+            }
         }
     }
 
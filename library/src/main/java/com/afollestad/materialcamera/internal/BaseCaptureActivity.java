@@ -11,6 +11,7 @@ import android.media.CamcorderProfile;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
@@ -20,6 +21,7 @@ import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.app.AppCompatDelegate;
+import android.util.Log;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
@@ -28,11 +30,17 @@ import com.afollestad.materialcamera.MaterialCamera;
 import com.afollestad.materialcamera.R;
 import com.afollestad.materialcamera.TimeLimitReachedException;
 import com.afollestad.materialcamera.util.CameraUtil;
+import com.afollestad.materialcamera.util.MediaInfo;
+import com.afollestad.materialcamera.util.Mp4Fragmenter;
+import com.afollestad.materialcamera.util.StillThumbnails;
+import com.afollestad.materialcamera.util.VideoThumbnails;
 import com.afollestad.materialdialogs.MaterialDialog;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -50,6 +58,18 @@ public abstract class BaseCaptureActivity extends AppCompatActivity implements B
     private Object mBackCameraId;
     private boolean mDidRecord = false;
     private List<Integer> mFlashModes;
+    private long mCaptureTime = -1;
+    private long mCaptureLatency = -1;
+    private long mSaveLatency = -1;
+    private int mOutputQuality = -1;
+    private long mOutputEncodeTime = -1;
+    private String mProxyUri;
+    private Bundle mStreamStats;
+    private ArrayList<String> mBurstUris;
+    private float mBurstFps = -1;
+    private int[] mBurstQualities;
+    private ArrayList<String> mSessionUris = new ArrayList<>();
+    private Bundle mIntervalStats;
 
     public static final int PERMISSION_RC = 69;
 
@@ -89,6 +109,18 @@ public abstract class BaseCaptureActivity extends AppCompatActivity implements B
                 outState.putInt("back_camera_id_int", (Integer) mBackCameraId);
         }
         outState.putInt("flash_mode", mFlashMode);
+        outState.putLong("capture_time", mCaptureTime);
+        outState.putLong("capture_latency", mCaptureLatency);
+        outState.putLong("save_latency", mSaveLatency);
+        outState.putInt("output_quality", mOutputQuality);
+        outState.putLong("output_encode_time", mOutputEncodeTime);
+        outState.putString("proxy_uri", mProxyUri);
+        outState.putBundle("stream_stats", mStreamStats);
+        outState.putStringArrayList("burst_uris", mBurstUris);
+        outState.putFloat("burst_fps", mBurstFps);
+        outState.putIntArray("burst_qualities", mBurstQualities);
+        outState.putStringArrayList("session_uris", mSessionUris);
+        outState.putBundle("interval_stats", mIntervalStats);
     }
 
     @Override
@@ -142,6 +174,19 @@ public abstract class BaseCaptureActivity extends AppCompatActivity implements B
                 mBackCameraId = savedInstanceState.getInt("back_camera_id_int");
             }
             mFlashMode = savedInstanceState.getInt("flash_mode");
+            mCaptureTime = savedInstanceState.getLong("capture_time", -1);
+            mCaptureLatency = savedInstanceState.getLong("capture_latency", -1);
+            mSaveLatency = savedInstanceState.getLong("save_latency", -1);
+            mOutputQuality = savedInstanceState.getInt("output_quality", -1);
+            mOutputEncodeTime = savedInstanceState.getLong("output_encode_time", -1);
+            mProxyUri = savedInstanceState.getString("proxy_uri");
+            mStreamStats = savedInstanceState.getBundle("stream_stats");
+            mBurstUris = savedInstanceState.getStringArrayList("burst_uris");
+            mBurstFps = savedInstanceState.getFloat("burst_fps", -1);
+            mBurstQualities = savedInstanceState.getIntArray("burst_qualities");
+            final ArrayList<String> sessionUris = savedInstanceState.getStringArrayList("session_uris");
+            if (sessionUris != null) mSessionUris = sessionUris;
+            mIntervalStats = savedInstanceState.getBundle("interval_stats");
         }
 
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON |
@@ -185,6 +230,13 @@ public abstract class BaseCaptureActivity extends AppCompatActivity implements B
             finish();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing())
+            FrameDispatcher.setAnalyzer(null);
+    }
+
     @Override
     public final void onBackPressed() {
         Fragment frag = getFragmentManager().findFragmentById(R.id.container);
@@ -194,6 +246,12 @@ public abstract class BaseCaptureActivity extends AppCompatActivity implements B
                 return;
             } else if (frag instanceof BaseCameraFragment) {
                 ((BaseCameraFragment) frag).cleanup();
+                // Backing out of a session discards it
+                for (String uri : mSessionUris) {
+                    deleteOutputFile(uri);
+                    StillThumbnails.evict(uri);
+                }
+                mSessionUris.clear();
             } else if (frag instanceof BaseGalleryFragment && allowRetry()) {
                 onRetry(((CameraUriInterface) frag).getOutputUri());
                 return;
@@ -309,6 +367,19 @@ public abstract class BaseCaptureActivity extends AppCompatActivity implements B
     public final void onRetry(@Nullable String outputUri) {
         if (outputUri != null)
             deleteOutputFile(outputUri);
+        if (mProxyUri != null && !mProxyUri.equals(outputUri))
+            deleteOutputFile(mProxyUri);
+        mProxyUri = null;
+        mStreamStats = null;
+        if (mBurstUris != null) {
+            for (String uri : mBurstUris) {
+                if (!uri.equals(outputUri))
+                    deleteOutputFile(uri);
+            }
+            mBurstUris = null;
+            mBurstFps = -1;
+            mBurstQualities = null;
+        }
         if (!shouldAutoSubmit() || restartTimerOnRetry())
             setRecordingStart(-1);
         if (getIntent().getBooleanExtra(CameraIntentKey.RETRY_EXITS, false)) {
@@ -337,6 +408,8 @@ public abstract class BaseCaptureActivity extends AppCompatActivity implements B
                 // No countdown or countdown should not continue through playback, reset timer to 0
                 setRecordingStart(-1);
             }
+            // Start extracting the poster while the review screen is being created
+            VideoThumbnails.prefetch(this, outputUri);
             Fragment frag = PlaybackVideoFragment.newInstance(outputUri, allowRetry(),
                     getIntent().getIntExtra(CameraIntentKey.PRIMARY_COLOR, 0));
             getFragmentManager().beginTransaction()
@@ -402,14 +475,151 @@ public abstract class BaseCaptureActivity extends AppCompatActivity implements B
 
     @Override
     public final void useMedia(String uri) {
+        if (uri != null && !useStillshot() && fragmentDuration() > 0)
+            fragmentAsync(uri);
+        else
+            returnMedia(uri);
+    }
+
+    private void returnMedia(String uri) {
         if (uri != null) {
-            setResult(Activity.RESULT_OK, getIntent()
+            final Intent result = getIntent()
                     .putExtra(MaterialCamera.STATUS_EXTRA, MaterialCamera.STATUS_RECORDED)
-                    .setDataAndType(Uri.parse(uri), useStillshot() ? "image/jpeg" : "video/mp4"));
+                    .setDataAndType(Uri.parse(uri), useStillshot() ? "image/jpeg" : "video/mp4");
+            putMediaInfo(result, uri);
+            setResult(Activity.RESULT_OK, result);
         }
         finish();
     }
 
+    private void putMediaInfo(Intent result, String uri) {
+        if (mCaptureTime > -1)
+            result.putExtra(MaterialCamera.CAPTURE_TIME_EXTRA, mCaptureTime);
+        if (mCaptureLatency > -1)
+            result.putExtra(MaterialCamera.CAPTURE_LATENCY_EXTRA, mCaptureLatency);
+        if (mSaveLatency > -1)
+            result.putExtra(MaterialCamera.SAVE_LATENCY_EXTRA, mSaveLatency);
+        if (mOutputQuality > -1) {
+            result.putExtra(MaterialCamera.OUTPUT_QUALITY_EXTRA, mOutputQuality)
+                    .putExtra(MaterialCamera.OUTPUT_ENCODE_TIME_EXTRA, mOutputEncodeTime);
+        }
+        if (mProxyUri != null)
+            result.putExtra(MaterialCamera.PROXY_URI_EXTRA, mProxyUri);
+        if (mStreamStats != null)
+            result.putExtras(mStreamStats);
+        if (mBurstUris != null) {
+            result.putStringArrayListExtra(MaterialCamera.BURST_URIS_EXTRA, mBurstUris)
+                    .putExtra(MaterialCamera.BURST_FPS_EXTRA, mBurstFps);
+            if (mBurstQualities != null)
+                result.putExtra(MaterialCamera.BURST_QUALITIES_EXTRA, mBurstQualities);
+        }
+        if (!mSessionUris.isEmpty())
+            result.putStringArrayListExtra(MaterialCamera.SESSION_URIS_EXTRA, mSessionUris);
+        if (mIntervalStats != null)
+            result.putExtras(mIntervalStats);
+        try {
+            final MediaInfo info = MediaInfo.read(new File(Uri.parse(uri).getPath()));
+            if (info == null) return;
+            result.putExtra(MaterialCamera.WIDTH_EXTRA, info.width)
+                    .putExtra(MaterialCamera.HEIGHT_EXTRA, info.height)
+                    .putExtra(MaterialCamera.ROTATION_EXTRA, info.rotation)
+                    .putExtra(MaterialCamera.SIZE_EXTRA, info.sizeBytes)
+                    .putExtra(MaterialCamera.CODEC_EXTRA, info.codec);
+            if (info.durationMs > -1)
+                result.putExtra(MaterialCamera.DURATION_EXTRA, info.durationMs);
+        } catch (IOException e) {
+            Log.e("BaseCaptureActivity", "Failed to read media info from " + uri, e);
+        }
+    }
+
+    private void fragmentAsync(final String uri) {
+        final Handler handler = new Handler();
+        final File file = new File(Uri.parse(uri).getPath());
+        new Thread() {
+            @Override
+            public void run() {
+                final File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+                try {
+                    // A paused recording was already fragmented when its segments were joined
+                    if (!Mp4Fragmenter.isFragmented(file)) {
+                        new Mp4Fragmenter(fragmentDuration()).remux(file, temp);
+                        if (!temp.renameTo(file))
+                            throw new IOException("Unable to replace " + file + " with the fragmented video");
+                    }
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!isFinishing()) returnMedia(uri);
+                        }
+                    });
+                } catch (final IOException e) {
+                    //noinspection ResultOfMethodCallIgnored
+                    temp.delete();
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isFinishing()) return;
+                            setResult(RESULT_CANCELED, new Intent().putExtra(MaterialCamera.ERROR_EXTRA, e));
+                            finish();
+                        }
+                    });
+                }
+            }
+        }.start();
+    }
+
+    @Override
+    public void setCaptureTimings(long captureTime, long captureLatency, long saveLatency) {
+        mCaptureTime = captureTime;
+        mCaptureLatency = captureLatency;
+        mSaveLatency = saveLatency;
+    }
+
+    @Override
+    public void setOutputQuality(int quality, long encodeTime) {
+        mOutputQuality = quality;
+        mOutputEncodeTime = encodeTime;
+    }
+
+    @Override
+    public void setProxyUri(@Nullable String uri) {
+        mProxyUri = uri;
+    }
+
+    @Override
+    public void setStreamStats(@Nullable Bundle stats) {
+        mStreamStats = stats;
+    }
+
+    @Override
+    public void setBurstResult(@Nullable ArrayList<String> uris, float framesPerSecond, @Nullable int[] qualities) {
+        mBurstUris = uris;
+        mBurstFps = framesPerSecond;
+        mBurstQualities = qualities;
+    }
+
+    @Override
+    public void addToSession(String outputUri) {
+        mSessionUris.add(outputUri);
+    }
+
+    @NonNull
+    @Override
+    public ArrayList<String> getSessionUris() {
+        return mSessionUris;
+    }
+
+    @Override
+    public void finishSession() {
+        if (mSessionUris.isEmpty()) finish();
+        else useMedia(mSessionUris.get(0));
+    }
+
+    @Override
+    public void setIntervalStats(@Nullable Bundle stats) {
+        mIntervalStats = stats;
+    }
+
     @Override
     public void setDidRecord(boolean didRecord) {
         mDidRecord = didRecord;
@@ -457,6 +667,11 @@ public abstract class BaseCaptureActivity extends AppCompatActivity implements B
         return getIntent().getIntExtra(CameraIntentKey.VIDEO_FRAME_RATE, defaultVal);
     }
 
+    @Override
+    public double videoCaptureRate() {
+        return getIntent().getDoubleExtra(CameraIntentKey.VIDEO_CAPTURE_RATE, -1);
+    }
+
     @Override
     public float videoPreferredAspect() {
         return getIntent().getFloatExtra(CameraIntentKey.VIDEO_PREFERRED_ASPECT, 4f / 3f);
@@ -584,7 +799,86 @@ public abstract class BaseCaptureActivity extends AppCompatActivity implements B
 
     @Override
     public boolean audioDisabled() {
-        return getIntent().getBooleanExtra(CameraIntentKey.AUDIO_DISABLED, false);
+        // Time-lapses are recorded without audio
+        return getIntent().getBooleanExtra(CameraIntentKey.AUDIO_DISABLED, false) || videoCaptureRate() > 0;
+    }
+
+    @Override
+    public long fragmentDuration() {
+        return getIntent().getLongExtra(CameraIntentKey.FRAGMENT_DURATION, -1);
+    }
+
+    @Override
+    public boolean rotateStillshots() {
+        return getIntent().getBooleanExtra(CameraIntentKey.ROTATE_STILLSHOTS, false);
+    }
+
+    @Override
+    public boolean mirrorFrontStillshots() {
+        return getIntent().getBooleanExtra(CameraIntentKey.MIRROR_FRONT_STILLSHOTS, false);
+    }
+
+    @Override
+    public float stillshotAspect() {
+        return getIntent().getFloatExtra(CameraIntentKey.STILLSHOT_ASPECT, -1f);
+    }
+
+    @Override
+    public long maxOutputBytes() {
+        return getIntent().getLongExtra(CameraIntentKey.MAX_OUTPUT_BYTES, -1);
+    }
+
+    @Override
+    public int maxOutputDimension() {
+        return getIntent().getIntExtra(CameraIntentKey.MAX_OUTPUT_DIMENSION, -1);
+    }
+
+    @Override
+    public int scrubMetadata() {
+        return getIntent().getIntExtra(CameraIntentKey.SCRUB_METADATA, 0);
+    }
+
+    @Override
+    public int stillshotProxySize() {
+        return getIntent().getIntExtra(CameraIntentKey.STILLSHOT_PROXY_SIZE, -1);
+    }
+
+    @Override
+    public int burstCount() {
+        return useStillshot() ? getIntent().getIntExtra(CameraIntentKey.BURST_COUNT, 1) : 1;
+    }
+
+    @Override
+    public boolean stillshotSession() {
+        return useStillshot() && (getIntent().getBooleanExtra(CameraIntentKey.STILLSHOT_SESSION, false) ||
+                stillshotInterval() > 0);
+    }
+
+    @Override
+    public long stillshotInterval() {
+        return useStillshot() ? getIntent().getLongExtra(CameraIntentKey.STILLSHOT_INTERVAL, -1) : -1;
+    }
+
+    @Override
+    public int videoProxyHeight() {
+        return getIntent().getIntExtra(CameraIntentKey.VIDEO_PROXY_HEIGHT, -1);
+    }
+
+    @Override
+    public int videoProxyBitRate() {
+        return getIntent().getIntExtra(CameraIntentKey.VIDEO_PROXY_BIT_RATE, -1);
+    }
+
+    @Override
+    public long preRollDuration() {
+        // A time-lapse's frames can't be kept ahead of the tap
+        if (useStillshot() || videoCaptureRate() > 0) return -1;
+        return getIntent().getLongExtra(CameraIntentKey.PRE_ROLL_DURATION, -1);
+    }
+
+    @Override
+    public long preRollMaxBytes() {
+        return getIntent().getLongExtra(CameraIntentKey.PRE_ROLL_MAX_BYTES, -1);
     }
 
     @Override
@@ -1,9 +1,12 @@
 package com.afollestad.materialcamera.internal;
 
+import android.os.Bundle;
 import android.support.annotation.DrawableRes;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.StringRes;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -50,6 +53,11 @@ public interface BaseCaptureInterface {
 
     void useMedia(String uri);
 
+    /**
+     * Records how long the last capture took, these are attached to the result of {@link #useMedia(String)}.
+     */
+    void setCaptureTimings(long captureTime, long captureLatency, long saveLatency);
+
     boolean shouldAutoSubmit();
 
     boolean allowRetry();
@@ -68,6 +76,11 @@ public interface BaseCaptureInterface {
 
     int videoFrameRate(int defaultVal);
 
+    /**
+     * @return the time-lapse capture rate in frames per second, or -1 to record in real time.
+     */
+    double videoCaptureRate();
+
     int videoPreferredHeight();
 
     float videoPreferredAspect();
@@ -137,5 +150,81 @@ public interface BaseCaptureInterface {
 
     boolean audioDisabled();
 
+    long fragmentDuration();
+
+    boolean rotateStillshots();
+
+    boolean mirrorFrontStillshots();
+
+    float stillshotAspect();
+
+    long maxOutputBytes();
+
+    int maxOutputDimension();
+
+    int scrubMetadata();
+
+    int stillshotProxySize();
+
+    int burstCount();
+
+    boolean stillshotSession();
+
+    long stillshotInterval();
+
+    int videoProxyHeight();
+
+    int videoProxyBitRate();
+
+    /**
+     * @return how much to record from before the tap, in milliseconds, or -1 for no pre-roll.
+     */
+    long preRollDuration();
+
+    /**
+     * @return the most memory the pre-roll may take, or -1 to size it from the bit rates.
+     */
+    long preRollMaxBytes();
+
+    /**
+     * Records the quality a still was re-encoded at to meet the output limits, and how long that
+     * took; -1 if it was kept as captured. These are attached to the result of {@link #useMedia(String)}.
+     */
+    void setOutputQuality(int quality, long encodeTime);
+
+    /**
+     * Records where the reduced size copy of a still was written, or null if there is none.
+     */
+    void setProxyUri(@Nullable String uri);
+
+    /**
+     * Records the per stream metrics of a recording, as result extras.
+     */
+    void setStreamStats(@Nullable Bundle stats);
+
+    /**
+     * Records every frame of a burst, the rate they were captured at and the quality each was
+     * re-encoded at (-1 where kept as captured), or null if there is none.
+     */
+    void setBurstResult(@Nullable ArrayList<String> uris, float framesPerSecond, @Nullable int[] qualities);
+
+    /**
+     * Adds a saved still to the session, in place of {@link #onShowStillshot(String)}.
+     */
+    void addToSession(String outputUri);
+
+    @NonNull
+    ArrayList<String> getSessionUris();
+
+    /**
+     * Returns every still of the session, or cancels if there are none.
+     */
+    void finishSession();
+
+    /**
+     * Records the missed slots and trigger jitter of an interval capture, or null if there is none.
+     */
+    void setIntervalStats(@Nullable Bundle stats);
+
     boolean shouldHideCameraFacing();
 }
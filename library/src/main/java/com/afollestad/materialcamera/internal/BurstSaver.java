@@ -0,0 +1,224 @@
+package com.afollestad.materialcamera.internal;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.afollestad.materialcamera.ICallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Saves the frames of a burst on a small worker pool as they arrive, so writing and processing one
+ * frame overlaps with capturing the next. The camera callbacks only copy each JPEG out and hand it
+ * over; a burst holds at most its frame count in memory.
+ */
+class BurstSaver {
+
+    private static final int THREADS = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    private final SavePipeline mPipeline;
+    private final File[] mFiles;
+    // The quality each frame was re-encoded at, -1 if kept as captured
+    private final int[] mQualities;
+    private long mEncodeTime;
+    private final ExecutorService mExecutor;
+    private int mReceived;
+    private int mSaved;
+    private Exception mError;
+    private boolean mCancelled;
+    private long mFirstFrameAt = -1;
+    private long mFirstFrameTime = -1;
+    private long mLastFrameAt = -1;
+    private Handler mHandler;
+    private ICallback mCallback;
+
+    BurstSaver(BaseCaptureInterface captureInterface, int count) {
+        mFiles = new File[count];
+        mQualities = new int[count];
+        Arrays.fill(mQualities, -1);
+        mPipeline = SavePipeline.forBurst(captureInterface, new SavePipeline.QualityListener() {
+            @Override
+            public void onOutputQuality(@NonNull File still, int quality, long encodeTime) {
+                onFrameQuality(still, quality, encodeTime);
+            }
+        });
+        mExecutor = Executors.newFixedThreadPool(Math.min(THREADS, count), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "BurstSaver");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+
+    int getCount() {
+        return mFiles.length;
+    }
+
+    synchronized int getReceived() {
+        return mReceived;
+    }
+
+    /**
+     * @param callback will always return in the calling thread once every frame is saved, with the
+     *                 first error if any frame failed.
+     */
+    synchronized void whenSaved(ICallback callback) {
+        mHandler = new Handler();
+        mCallback = callback;
+        if (mSaved == mFiles.length)
+            postResult();
+    }
+
+    /**
+     * Queues the next frame to be written to {@code output} and processed.
+     *
+     * @return the frame's index in the burst, or -1 if the burst already has all its frames.
+     */
+    synchronized int add(final byte[] jpeg, final File output) {
+        if (mReceived == mFiles.length || mCancelled)
+            return -1;
+        final long now = SystemClock.elapsedRealtime();
+        if (mFirstFrameAt == -1) {
+            mFirstFrameAt = now;
+            mFirstFrameTime = System.currentTimeMillis();
+        }
+        mLastFrameAt = now;
+        final int index = mReceived++;
+        mFiles[index] = output;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Exception error = null;
+                try {
+                    mPipeline.save(jpeg, output);
+                } catch (IOException e) {
+                    error = e;
+                }
+                onSaved(index, error);
+            }
+        });
+        if (mReceived == mFiles.length)
+            mExecutor.shutdown();
+        return index;
+    }
+
+    private synchronized void onFrameQuality(File still, int quality, long encodeTime) {
+        for (int i = 0; i < mReceived; i++) {
+            if (mFiles[i].equals(still)) {
+                mQualities[i] = quality;
+                if (encodeTime > 0) mEncodeTime += encodeTime;
+                return;
+            }
+        }
+    }
+
+    private synchronized void onSaved(int index, Exception error) {
+        if (mCancelled) {
+            // Finished writing after the rest were deleted
+            //noinspection ResultOfMethodCallIgnored
+            mFiles[index].delete();
+            return;
+        }
+        if (error != null) {
+            Log.e("BurstSaver", "Unable to save frame " + index, error);
+            if (mError == null) mError = error;
+        }
+        if (++mSaved == mFiles.length && mCallback != null)
+            postResult();
+    }
+
+    private void postResult() {
+        final ICallback callback = mCallback;
+        final Exception error = mError;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.done(error);
+            }
+        });
+    }
+
+    /**
+     * Stops saving and deletes the frames written so far, e.g. when the camera closes mid-burst.
+     */
+    synchronized void cancel() {
+        mCancelled = true;
+        mExecutor.shutdownNow();
+        mCallback = null;
+        for (int i = 0; i < mReceived; i++) {
+            //noinspection ResultOfMethodCallIgnored
+            mFiles[i].delete();
+        }
+    }
+
+    synchronized ArrayList<String> getUris() {
+        final ArrayList<String> uris = new ArrayList<>(mReceived);
+        for (int i = 0; i < mReceived; i++)
+            uris.add(Uri.fromFile(mFiles[i]).toString());
+        return uris;
+    }
+
+    /**
+     * @return the quality each frame was re-encoded at to meet the output limits, in capture order;
+     * -1 for those kept as captured.
+     */
+    synchronized int[] getQualities() {
+        return Arrays.copyOf(mQualities, mReceived);
+    }
+
+    /**
+     * @return the lowest quality any frame was re-encoded at, or -1 if all were kept as captured.
+     */
+    synchronized int getLowestQuality() {
+        int lowest = -1;
+        for (int i = 0; i < mReceived; i++) {
+            if (mQualities[i] > -1 && (lowest == -1 || mQualities[i] < lowest))
+                lowest = mQualities[i];
+        }
+        return lowest;
+    }
+
+    /**
+     * @return the time spent re-encoding all the frames.
+     */
+    synchronized long getEncodeTime() {
+        return mEncodeTime;
+    }
+
+    /**
+     * @return the rate the frames arrived at, or -1 with fewer than two frames.
+     */
+    synchronized float getFramesPerSecond() {
+        if (mReceived < 2 || mLastFrameAt == mFirstFrameAt) return -1;
+        return (mReceived - 1) * 1000f / (mLastFrameAt - mFirstFrameAt);
+    }
+
+    /**
+     * @return the {@link SystemClock#elapsedRealtime()} the first frame arrived at.
+     */
+    synchronized long getFirstFrameAt() {
+        return mFirstFrameAt;
+    }
+
+    /**
+     * @return the wall clock time the first frame arrived at.
+     */
+    synchronized long getFirstFrameTime() {
+        return mFirstFrameTime;
+    }
+
+    synchronized long getLastFrameAt() {
+        return mLastFrameAt;
+    }
+}
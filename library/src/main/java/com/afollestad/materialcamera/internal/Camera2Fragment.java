@@ -18,7 +18,7 @@ import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
@@ -32,9 +32,13 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.Surface;
@@ -42,14 +46,16 @@ import android.view.TextureView;
 import android.view.View;
 import android.widget.Toast;
 
+import com.afollestad.materialcamera.BuildConfig;
+import com.afollestad.materialcamera.MaterialCamera;
 import com.afollestad.materialcamera.R;
 import com.afollestad.materialcamera.util.CameraUtil;
 import com.afollestad.materialcamera.util.Degrees;
+import com.afollestad.materialcamera.util.MediaInfo;
 import com.afollestad.materialdialogs.DialogAction;
 import com.afollestad.materialdialogs.MaterialDialog;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -57,6 +63,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -80,21 +87,69 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
      * An {@link ImageReader} that handles still image capture.
      */
     private ImageReader mImageReader;
+    /**
+     * A smaller JPEG {@link ImageReader} captured along with each still, if a proxy was requested
+     * and the camera allows it.
+     */
+    private ImageReader mProxyReader;
+    // A saved still waiting for its proxy, and the proxy's bytes; matched by sensor timestamp
+    private File mPendingStill;
+    private long mPendingStillTimestamp;
+    private byte[] mProxyBytes;
+    private long mProxyTimestamp;
+    // Set once the still requested last waited too long for its proxy
+    private boolean mProxyTimedOut;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mProxyTimeout = new Runnable() {
+        @Override
+        public void run() {
+            mProxyTimedOut = true;
+            deliverStillshot();
+        }
+    };
+    /**
+     * A small YUV {@link ImageReader} feeding the frame analyzer, only created if one is registered.
+     */
+    private ImageReader mAnalysisReader;
+    private FrameDispatcher mFrameDispatcher;
 
     private Size mPreviewSize;
     private Size mVideoSize;
+    /**
+     * Size of the proxy recording, null if none is made.
+     */
+    private Size mVideoProxySize;
+    // The AE frame rate range for a time-lapse, or null to leave it to the camera
+    private Range<Integer> mTimeLapseFpsRange;
+    // With a proxy, both encoder surfaces are only added to the repeating request while recording
+    private Surface mRecorderSurface;
+    private Surface mProxySurface;
+    private boolean mRecorderTargeted;
+    /**
+     * Encodes the preview ahead of recording if preRoll() was requested, in place of the media
+     * recorders; {@link #mRecorderSurface} is then its video encoder's input.
+     */
+    private PreRollRecorder mPreRoll;
+    private volatile int mRecordSequenceId;
+    // Run once the frames requested for the encoders before they were untargeted reached them
+    private final List<Runnable> mOnRecordDrained = new ArrayList<>();
+    private boolean mRecordDraining;
+    // Frames the camera was asked to send to both encoders, over every segment of the recording
+    private volatile int mRecordedFrames;
     @Degrees.DegreeUnits
     private int mDisplayOrientation;
     private boolean mAfAvailable;
+    private long mShutterPressedAt;
+
+    @Degrees.DegreeUnits
+    private int mSensorOrientation;
+    // Whether frames are stamped with elapsedRealtimeNanos() rather than nanoTime()
+    private boolean mRealtimeTimestamps;
 
     /**
-     * {@link CaptureRequest.Builder} for the camera preview
-     */
-    private CaptureRequest.Builder mPreviewBuilder;
-    /**
-     * {@link CaptureRequest} generated by {@link #mPreviewBuilder}
+     * The session's requests, built when it's configured
      */
-    private CaptureRequest mPreviewRequest;
+    private volatile CaptureRequestCache mRequests;
 
     private HandlerThread mBackgroundThread;
     private Handler mBackgroundHandler;
@@ -181,98 +236,164 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
     }
 
     /**
-     * The current state of camera state for taking pictures.
+     * Sequences the focus lock, precapture and still for the shutter.
      *
      * @see #mCaptureCallback
      */
-    private int mState = STATE_PREVIEW;
+    private final StillCaptureEngine mCaptureEngine = new StillCaptureEngine(new StillCaptureEngine.Callback() {
+        @Override
+        public void lockFocus() {
+            Camera2Fragment.this.lockFocus();
+        }
+
+        @Override
+        public void triggerPrecapture() {
+            runPrecaptureSequence();
+        }
+
+        @Override
+        public void captureStill() {
+            captureStillPicture();
+        }
+
+        @Override
+        public void onCaptureTimedOut() {
+            Log.w("stillshot", "The still never started, unlocking the focus");
+            unlockFocus();
+        }
+
+        @Override
+        public void scheduleDeadline(long delayMs) {
+            final Handler handler = mBackgroundHandler;
+            if (handler == null) return;
+            handler.removeCallbacks(mCaptureDeadline);
+            handler.postDelayed(mCaptureDeadline, delayMs);
+        }
+    }, new StillCaptureEngine.Clock() {
+        @Override
+        public long elapsedMs() {
+            return SystemClock.elapsedRealtime();
+        }
+    });
+
+    private final Runnable mCaptureDeadline = new Runnable() {
+        @Override
+        public void run() {
+            mCaptureEngine.checkDeadline();
+        }
+    };
+
+    /**
+     * Whether {@link #mCaptureCallback} is attached to the repeating preview.
+     */
+    private volatile boolean mWatchingResults;
 
     /**
-     * Camera state: Showing camera preview.
+     * Max preview width that is guaranteed by Camera2 API
      */
-    private static final int STATE_PREVIEW = 0;
+    private static final int MAX_PREVIEW_WIDTH = 1920;
 
     /**
-     * Camera state: Waiting for the focus to be locked.
+     * Max preview height that is guaranteed by Camera2 API
      */
-    private static final int STATE_WAITING_LOCK = 1;
+    private static final int MAX_PREVIEW_HEIGHT = 1080;
 
     /**
-     * Camera state: Waiting for the exposure to be precapture state.
+     * Max width and height of the frames given to the frame analyzer.
      */
-    private static final int STATE_WAITING_PRECAPTURE = 2;
+    private static final int MAX_ANALYSIS_WIDTH = 640;
+    private static final int MAX_ANALYSIS_HEIGHT = 480;
 
     /**
-     * Camera state: Waiting for the exposure state to be something other than precapture.
+     * How long a still waits for its proxy before one is scaled down from it instead, counted on the
+     * camera thread from when the still's capture is issued. If it runs out while the still is
+     * still being saved, the still goes out as soon as it's saved, with a proxy only if one came.
      */
-    private static final int STATE_WAITING_NON_PRECAPTURE = 3;
+    private static final long PROXY_TIMEOUT_MS = 2000;
 
     /**
-     * Camera state: Picture was taken.
+     * How long stopping a recording waits for the frames already sent to the encoders, after which
+     * it goes ahead without them.
      */
-    private static final int STATE_PICTURE_TAKEN = 4;
+    private static final long RECORD_DRAIN_TIMEOUT_MS = 500;
 
     /**
-     * Max preview width that is guaranteed by Camera2 API
+     * How long each frame of a burst may take to start exposing.
      */
-    private static final int MAX_PREVIEW_WIDTH = 1920;
+    private static final long BURST_FRAME_TIMEOUT_MS = 1000;
 
     /**
-     * Max preview height that is guaranteed by Camera2 API
+     * The pre-roll buffer never takes more than this fraction of the heap.
      */
-    private static final int MAX_PREVIEW_HEIGHT = 1080;
+    private static final int PRE_ROLL_HEAP_FRACTION = 4;
+
+    /**
+     * JPEG buffers the still reader holds; a burst uses more so the camera isn't held up while a
+     * frame is copied out.
+     */
+    private static final int MAX_STILL_IMAGES = 4;
+
+    /**
+     * Counts the frames requested for both encoders and notices when the last of them is done.
+     */
+    private final CameraCaptureSession.CaptureCallback mRecordCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            mRecordedFrames++;
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            // Counted so that it shows up as dropped by both streams
+            mRecordedFrames++;
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(@NonNull CameraCaptureSession session, int sequenceId, long frameNumber) {
+            if (sequenceId == mRecordSequenceId) mMainHandler.post(mRecordDrained);
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session, int sequenceId) {
+            if (sequenceId == mRecordSequenceId) mMainHandler.post(mRecordDrained);
+        }
+    };
+
+    private final Runnable mRecordDrained = new Runnable() {
+        @Override
+        public void run() {
+            onRecordDrained();
+        }
+    };
+
+    private final Runnable mRecordDrainTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.w("Camera2Fragment", "Timed out waiting for the last recorded frames");
+            onRecordDrained();
+        }
+    };
+
+    /**
+     * Results {@link #mCaptureCallback} was handed, only counted on the background thread.
+     */
+    private int mResultsProcessed;
 
     /**
      * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
+     * Only attached to the repeating preview while a capture is in progress, see
+     * {@link #setRepeatingPreview(boolean)}.
      */
     private CameraCaptureSession.CaptureCallback mCaptureCallback
             = new CameraCaptureSession.CaptureCallback() {
 
         private void process(CaptureResult result) {
-            switch (mState) {
-                case STATE_PREVIEW: {
-                    // We have nothing to do when the camera preview is working normally.
-                    break;
-                }
-                case STATE_WAITING_LOCK: {
-                    Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
-                    if (afState == null) {
-                        captureStillPicture();
-                    } else if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
-                            CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
-                        // CONTROL_AE_STATE can be null on some devices
-                        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                        if (aeState == null ||
-                                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
-                            mState = STATE_PICTURE_TAKEN;
-                            captureStillPicture();
-                        } else {
-                            runPrecaptureSequence();
-                        }
-                    }
-                    break;
-                }
-                case STATE_WAITING_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null ||
-                            aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
-                            aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED ||
-                            aeState == CameraMetadata.CONTROL_AE_STATE_CONVERGED) {
-                        mState = STATE_WAITING_NON_PRECAPTURE;
-                    }
-                    break;
-                }
-                case STATE_WAITING_NON_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
-                        mState = STATE_PICTURE_TAKEN;
-                        captureStillPicture();
-                    }
-                    break;
-                }
-            }
+            mResultsProcessed++;
+            // CONTROL_AE_STATE can be null on some devices
+            mCaptureEngine.onResult(result.get(CaptureResult.CONTROL_AF_STATE),
+                    result.get(CaptureResult.CONTROL_AE_STATE));
         }
 
         @Override
@@ -313,6 +434,27 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
     }
 
 
+    /**
+     * Picks the largest size within the analysis bounds, preferring the preview's aspect ratio.
+     */
+    private static Size chooseAnalysisSize(Size[] choices, Size previewSize) {
+        Size best = null;
+        Size bestWithAspect = null;
+        final CompareSizesByArea byArea = new CompareSizesByArea();
+        for (Size option : choices) {
+            if (option.getWidth() > MAX_ANALYSIS_WIDTH || option.getHeight() > MAX_ANALYSIS_HEIGHT)
+                continue;
+            if (best == null || byArea.compare(option, best) > 0)
+                best = option;
+            if ((long) option.getWidth() * previewSize.getHeight() == (long) option.getHeight() * previewSize.getWidth() &&
+                    (bestWithAspect == null || byArea.compare(option, bestWithAspect) > 0))
+                bestWithAspect = option;
+        }
+        if (bestWithAspect != null) return bestWithAspect;
+        if (best != null) return best;
+        return Collections.min(Arrays.asList(choices), byArea);
+    }
+
     private static Size chooseOptimalSize(Size[] choices, int width, int height, Size aspectRatio) {
         // Collect the supported resolutions that are at least as big as the preview Surface
         List<Size> bigEnough = new ArrayList<>();
@@ -334,6 +476,56 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
         }
     }
 
+    /**
+     * Picks the smallest JPEG size with the aspect ratio of {@code largest} whose long side still
+     * covers {@code maxDimension}, so size limited stills don't capture pixels that get scaled away.
+     */
+    private static Size chooseStillSize(Size[] choices, Size largest, int maxDimension) {
+        if (maxDimension <= 0) return largest;
+        Size still = largest;
+        for (Size option : choices) {
+            if ((long) option.getWidth() * largest.getHeight() == (long) option.getHeight() * largest.getWidth() &&
+                    Math.max(option.getWidth(), option.getHeight()) >= maxDimension &&
+                    option.getWidth() < still.getWidth())
+                still = option;
+        }
+        return still;
+    }
+
+    /**
+     * @return the AE frame rate range with the lowest ceiling that still covers a time-lapse's
+     * capture rate, so the sensor doesn't run much faster than the frames that are kept, or null
+     * if there's no time-lapse.
+     */
+    @Nullable
+    private static Range<Integer> chooseTimeLapseFpsRange(@Nullable Range<Integer>[] ranges, double captureRate) {
+        if (ranges == null || captureRate <= 0) return null;
+        Range<Integer> best = null;
+        for (Range<Integer> range : ranges) {
+            if (range.getUpper() < captureRate) continue;
+            if (best == null || range.getUpper() < best.getUpper() ||
+                    (range.getUpper().equals(best.getUpper()) && range.getLower() < best.getLower()))
+                best = range;
+        }
+        return best;
+    }
+
+    /**
+     * @return the largest size with the same aspect ratio as {@code video} that's at most
+     * {@code maxHeight} high, or null.
+     */
+    private static Size chooseVideoProxySize(Size[] choices, Size video, int maxHeight) {
+        if (maxHeight <= 0) return null;
+        Size proxy = null;
+        for (Size option : choices) {
+            if ((long) option.getWidth() * video.getHeight() == (long) option.getHeight() * video.getWidth() &&
+                    option.getHeight() <= maxHeight && option.getWidth() < video.getWidth() &&
+                    (proxy == null || option.getWidth() > proxy.getWidth()))
+                proxy = option;
+        }
+        return proxy;
+    }
+
     /**
      * Given {@code choices} of {@code Size}s supported by a camera, choose the smallest one that
      * is at least as large as the respective texture view size, and that is at most as large as the
@@ -427,6 +619,15 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
 
     private void stopBackgroundThread() {
         stopCounter();
+        if (BuildConfig.DEBUG) {
+            mBackgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    LOG(Camera2Fragment.class, String.format("Camera thread CPU time: %dms, capture results processed: %d",
+                            SystemClock.currentThreadTimeMillis(), mResultsProcessed));
+                }
+            });
+        }
         mBackgroundThread.quitSafely();
         try {
             mBackgroundThread.join();
@@ -515,6 +716,10 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
             //noinspection ConstantConditions,ResourceType
             @Degrees.DegreeUnits
             final int sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            mSensorOrientation = sensorOrientation;
+            final Integer timestampSource = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            mRealtimeTimestamps = timestampSource != null &&
+                    timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
 
             @Degrees.DegreeUnits
             int deviceRotation = Degrees.getDisplayRotation(getActivity());
@@ -571,46 +776,55 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
                         rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
                         maxPreviewHeight, largest);
 
-                mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(), ImageFormat.JPEG, 2);
+                final Size stillSize = chooseStillSize(map.getOutputSizes(ImageFormat.JPEG), largest,
+                        mInterface.maxOutputDimension());
+                mImageReader = ImageReader.newInstance(stillSize.getWidth(), stillSize.getHeight(), ImageFormat.JPEG,
+                        Math.min(Math.max(2, mInterface.burstCount()), MAX_STILL_IMAGES));
                 mImageReader.setOnImageAvailableListener(
                         new ImageReader.OnImageAvailableListener() {
                             @Override
                             public void onImageAvailable(ImageReader reader) {
+                                final long capturedAt = SystemClock.elapsedRealtime();
+                                final long captureTime = System.currentTimeMillis();
                                 Image image = reader.acquireNextImage();
+                                final long timestamp = image.getTimestamp();
                                 ByteBuffer buffer = image.getPlanes()[0].getBuffer();
                                 final byte[] bytes = new byte[buffer.remaining()];
                                 buffer.get(bytes);
+                                image.close();
 
-                                final File outputPic = getOutputPictureFile();
-
-                                FileOutputStream output = null;
-                                try {
-                                    output = new FileOutputStream(outputPic);
-                                    output.write(bytes);
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                } finally {
-                                    image.close();
-                                    if (null != output) {
-                                        try {
-                                            output.close();
-                                        } catch (IOException e) {
-                                            e.printStackTrace();
-                                        }
-                                    }
+                                final BurstSaver burst = mBurst;
+                                if (burst != null) {
+                                    // Saved in the background, leaving this thread free for the next frame
+                                    burst.add(bytes, getOutputPictureFile());
+                                    return;
+                                }
+                                if (mInterface.stillshotSession()) {
+                                    saveToSession(bytes);
+                                    return;
                                 }
-                                Log.d("stillshot", "picture saved to disk - jpeg, size: " + bytes.length);
-                                mOutputUri = Uri.fromFile(outputPic).toString();
-                                mInterface.onShowStillshot(mOutputUri);
+                                saveStill(bytes, timestamp, captureTime, capturedAt);
                             }
                         }, mBackgroundHandler);
+                setUpProxyReader(map, stillSize);
             } else {
-                mMediaRecorder = new MediaRecorder();
+                // A pre-roll encodes without a media recorder, and without a proxy
+                final boolean preRoll = mInterface.preRollDuration() > 0;
+                if (!preRoll)
+                    mMediaRecorder = new MediaRecorder();
                 mVideoSize = chooseVideoSize((BaseCaptureInterface) activity, map.getOutputSizes(MediaRecorder.class));
+                mVideoProxySize = preRoll ? null : chooseVideoProxySize(map.getOutputSizes(MediaRecorder.class),
+                        mVideoSize, mInterface.videoProxyHeight());
                 mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
                         width, height, mVideoSize);
+                mTimeLapseFpsRange = chooseTimeLapseFpsRange(characteristics.get(
+                        CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES), mInterface.videoCaptureRate());
+                if (mTimeLapseFpsRange != null)
+                    Log.d("Camera2Fragment", "Time-lapse frame rate range: " + mTimeLapseFpsRange);
             }
 
+            setUpFrameAnalysis(map);
+
             int orientation = VideoStreamView.getScreenOrientation(activity);
             if (orientation == ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE ||
                     orientation == ActivityInfo.SCREEN_ORIENTATION_REVERSE_LANDSCAPE) {
@@ -648,14 +862,198 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
         }
     }
 
+    /**
+     * Adds a second, smaller JPEG output to still captures if the camera has a size with the same
+     * aspect ratio within the proxy limit. Otherwise the proxy is scaled down from the saved still.
+     */
+    private void setUpProxyReader(StreamConfigurationMap map, Size stillSize) {
+        if (mProxyReader != null) {
+            mProxyReader.close();
+            mProxyReader = null;
+        }
+        final int maxDimension = mInterface.stillshotProxySize();
+        if (maxDimension <= 0 || mInterface.burstCount() > 1 || mInterface.stillshotSession()) return;
+        Size proxySize = null;
+        for (Size option : map.getOutputSizes(ImageFormat.JPEG)) {
+            if ((long) option.getWidth() * stillSize.getHeight() == (long) option.getHeight() * stillSize.getWidth() &&
+                    Math.max(option.getWidth(), option.getHeight()) <= maxDimension &&
+                    option.getWidth() < stillSize.getWidth() &&
+                    (proxySize == null || option.getWidth() > proxySize.getWidth()))
+                proxySize = option;
+        }
+        if (proxySize == null) return;
+        mProxyReader = ImageReader.newInstance(proxySize.getWidth(), proxySize.getHeight(), ImageFormat.JPEG, 2);
+        mProxyReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                final Image image = reader.acquireNextImage();
+                try {
+                    final ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                    mProxyBytes = new byte[buffer.remaining()];
+                    buffer.get(mProxyBytes);
+                    mProxyTimestamp = image.getTimestamp();
+                } finally {
+                    image.close();
+                }
+                deliverStillshot();
+            }
+        }, mBackgroundHandler);
+    }
+
+    /**
+     * Writes a still and runs its save pipeline on the save thread, leaving the camera thread free
+     * for the capture results that follow. It's then handed back to the camera thread to be
+     * delivered with its proxy.
+     */
+    private void saveStill(final byte[] jpeg, final long timestamp, final long captureTime, final long capturedAt) {
+        final File outputPic = getOutputPictureFile();
+        final SavePipeline pipeline = SavePipeline.forStillshot(mInterface, mProxyReader != null);
+        final Handler handler = mBackgroundHandler;
+        runOnSaveThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pipeline.save(jpeg, outputPic);
+                    Log.d("stillshot", "picture saved to disk - jpeg, size: " + jpeg.length);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                final long savedAt = SystemClock.elapsedRealtime();
+                // Does nothing if the camera thread stopped in the meantime
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mInterface == null) return;
+                        mInterface.setCaptureTimings(captureTime, capturedAt - mShutterPressedAt,
+                                savedAt - capturedAt);
+                        mPendingStill = outputPic;
+                        mPendingStillTimestamp = timestamp;
+                        deliverStillshot();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Shows the saved still once the proxy captured with it is saved too. Called on the camera
+     * thread by both image listeners and the proxy timeout, whichever comes last delivers. The
+     * proxy is saved on the save thread and the still is shown from the main thread.
+     */
+    private void deliverStillshot() {
+        final File still = mPendingStill;
+        if (still == null) return;
+        final boolean proxyReady = mProxyBytes != null && mProxyTimestamp == mPendingStillTimestamp;
+        final boolean proxyWanted = mProxyReader != null;
+        if (proxyWanted && !proxyReady && !mProxyTimedOut)
+            return;
+        mBackgroundHandler.removeCallbacks(mProxyTimeout);
+        mPendingStill = null;
+        final byte[] proxyBytes = proxyReady ? mProxyBytes : null;
+        mProxyBytes = null;
+
+        final BaseCaptureInterface captureInterface = mInterface;
+        runOnSaveThread(new Runnable() {
+            @Override
+            public void run() {
+                String proxyUri = null;
+                if (proxyBytes != null) {
+                    final File proxy = CameraUtil.makeProxyFile(still);
+                    try {
+                        SavePipeline.forProxy(captureInterface).save(proxyBytes, proxy);
+                        proxyUri = Uri.fromFile(proxy).toString();
+                    } catch (IOException e) {
+                        Log.e("stillshot", "Unable to save the proxy", e);
+                    }
+                } else if (proxyWanted) {
+                    Log.w("stillshot", "No proxy was captured, scaling it down from the still");
+                    new SavePipeline().add(new SavePipeline.ProxyStage(captureInterface)).run(still);
+                }
+                final String savedProxyUri = proxyUri;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mInterface == null) return;
+                        // The fallback stage sets the proxy it scales down itself
+                        if (proxyBytes != null)
+                            mInterface.setProxyUri(savedProxyUri);
+                        mOutputUri = Uri.fromFile(still).toString();
+                        mInterface.onShowStillshot(mOutputUri);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Starts the wait for the proxy of the still that was just requested, on the camera thread.
+     */
+    private void armProxyTimeout() {
+        final Handler handler = mBackgroundHandler;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                mProxyTimedOut = false;
+                handler.removeCallbacks(mProxyTimeout);
+                handler.postDelayed(mProxyTimeout, PROXY_TIMEOUT_MS);
+            }
+        });
+    }
+
+    private void setUpFrameAnalysis(StreamConfigurationMap map) {
+        releaseFrameAnalysis();
+        mFrameDispatcher = FrameDispatcher.create();
+        if (mFrameDispatcher == null) return;
+        final FrameDispatcher dispatcher = mFrameDispatcher;
+        final int rotation = mDisplayOrientation;
+        final Size size = chooseAnalysisSize(map.getOutputSizes(ImageFormat.YUV_420_888), mPreviewSize);
+        // One image being analyzed, one pending, and room for acquireLatestImage() to work with
+        mAnalysisReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, 4);
+        mAnalysisReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                final Image image;
+                try {
+                    image = reader.acquireLatestImage();
+                } catch (IllegalStateException e) {
+                    // All images are held by the analyzer, the frame will be skipped
+                    return;
+                }
+                if (image != null)
+                    dispatcher.offer(new ImageFrame(image, rotation));
+            }
+        }, mBackgroundHandler);
+    }
+
+    private void releaseFrameAnalysis() {
+        if (mFrameDispatcher == null) return;
+        final ImageReader reader = mAnalysisReader;
+        Log.d("Camera2Fragment", "Frame analysis stopped, dropped frames: " + mFrameDispatcher.getDroppedFrames());
+        // The reader can only be closed once the analyzer is done with its image
+        mFrameDispatcher.stop(new Runnable() {
+            @Override
+            public void run() {
+                reader.close();
+            }
+        });
+        mFrameDispatcher = null;
+        mAnalysisReader = null;
+    }
+
     @Override
     public void closeCamera() {
         try {
+            cancelBurst();
             if (mOutputUri != null) {
                 final File outputFile = new File(Uri.parse(mOutputUri).getPath());
                 if (outputFile.length() == 0)
                     outputFile.delete();
             }
+            if (mProxyOutputUri != null) {
+                final File proxyFile = new File(Uri.parse(mProxyOutputUri).getPath());
+                if (proxyFile.length() == 0)
+                    proxyFile.delete();
+            }
             mCameraOpenCloseLock.acquire();
             if (null != mCameraDevice) {
                 mCameraDevice.close();
@@ -665,6 +1063,25 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
                 mMediaRecorder.release();
                 mMediaRecorder = null;
             }
+            if (null != mPreRoll) {
+                mPreRoll.stop();
+                mPreRoll = null;
+            }
+            mRequests = null;
+            cancelRecordDrain();
+            mCaptureEngine.reset();
+            mWatchingResults = false;
+            Log.d("stillshot", "Capture sequences: " + mCaptureEngine);
+            releaseFrameAnalysis();
+            if (null != mProxyReader) {
+                mProxyReader.close();
+                mProxyReader = null;
+            }
+            if (null != mImageReader) {
+                // A new one is made each time the camera opens, e.g. for every interval shot
+                mImageReader.close();
+                mImageReader = null;
+            }
         } catch (InterruptedException e) {
             throwError(new Exception("Interrupted while trying to lock camera opening.", e));
         } finally {
@@ -674,13 +1091,11 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
 
     @Override
     public void onPreferencesUpdated() {
-        if (mInterface == null || !mInterface.useStillshot() || mPreviewSession == null || mPreviewBuilder == null) {
+        if (mInterface == null || !mInterface.useStillshot() || mPreviewSession == null || mRequests == null) {
             return;
         }
-        setFlashMode(mPreviewBuilder);
-        mPreviewRequest = mPreviewBuilder.build();
         try {
-            mPreviewSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
+            setRepeatingPreview(!mCaptureEngine.isIdle());
         } catch (Throwable t) {
             t.printStackTrace();
         }
@@ -691,7 +1106,9 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
             return;
         try {
             if (!mInterface.useStillshot()) {
-                if (!setUpMediaRecorder()) {
+                if (mInterface.preRollDuration() > 0) {
+                    if (!setUpPreRoll()) return;
+                } else if (!setUpMediaRecorder()) {
                     return;
                 }
             }
@@ -700,21 +1117,32 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
             texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
 
             List<Surface> surfaces = new ArrayList<>();
+            final List<Surface> previewTargets = new ArrayList<>();
+            // Still captures, or the encoders that are only targeted while recording
+            final List<Surface> captureTargets = new ArrayList<>();
             Surface previewSurface = new Surface(texture);
-            surfaces.add(previewSurface);
+            previewTargets.add(previewSurface);
             if (mInterface.useStillshot()) {
-                mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-                mPreviewBuilder.addTarget(previewSurface);
-
-                surfaces.add(mImageReader.getSurface());
+                captureTargets.add(mImageReader.getSurface());
+                if (mProxyReader != null)
+                    captureTargets.add(mProxyReader.getSurface());
             } else {
-                mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
-                mPreviewBuilder.addTarget(previewSurface);
-
-                Surface recorderSurface = mMediaRecorder.getSurface();
-                surfaces.add(recorderSurface);
-                mPreviewBuilder.addTarget(recorderSurface);
+                if (mPreRoll == null)
+                    mRecorderSurface = mMediaRecorder.getSurface();
+                mRecorderTargeted = false;
+                if (mProxyRecorder != null) {
+                    // Added to the request with the full recording's surface once both have started
+                    mProxySurface = mProxyRecorder.getSurface();
+                    captureTargets.add(mRecorderSurface);
+                    captureTargets.add(mProxySurface);
+                } else {
+                    previewTargets.add(mRecorderSurface);
+                }
             }
+            if (mAnalysisReader != null)
+                previewTargets.add(mAnalysisReader.getSurface());
+            surfaces.addAll(previewTargets);
+            surfaces.addAll(captureTargets);
 
             mCameraDevice.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
                 @Override
@@ -723,11 +1151,44 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
                         return;
                     }
                     mPreviewSession = cameraCaptureSession;
+                    try {
+                        if (mInterface.useStillshot()) {
+                            final int[] jpegOrientations = new int[4];
+                            for (int rotation = 0; rotation < jpegOrientations.length; rotation++)
+                                jpegOrientations[rotation] = getJpegOrientation(rotation);
+                            mRequests = CaptureRequestCache.forStillshot(mCameraDevice, previewTargets,
+                                    captureTargets, jpegOrientations);
+                        } else {
+                            mRequests = CaptureRequestCache.forVideo(mCameraDevice, previewTargets, captureTargets,
+                                    mTimeLapseFpsRange);
+                        }
+                    } catch (CameraAccessException e) {
+                        e.printStackTrace();
+                        return;
+                    }
                     updatePreview();
                 }
 
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
+                    if (mProxyReader != null) {
+                        // Two JPEG outputs aren't a guaranteed stream combination, retry without the
+                        // proxy output and scale proxies down from the still instead
+                        Log.w("Camera2Fragment", "Session configuration failed, retrying without the proxy output");
+                        mProxyReader.close();
+                        mProxyReader = null;
+                        startPreview();
+                        return;
+                    } else if (mProxyRecorder != null) {
+                        Log.w("Camera2Fragment", "Session configuration failed, retrying without the proxy recording");
+                        mVideoProxySize = null;
+                        releaseRecorder();
+                        //noinspection ResultOfMethodCallIgnored
+                        new File(Uri.parse(mProxyOutputUri).getPath()).delete();
+                        mProxyOutputUri = null;
+                        startPreview();
+                        return;
+                    }
                     throwError(new Exception("Camera configuration failed"));
                 }
             }, mBackgroundHandler);
@@ -742,26 +1203,33 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
         }
 
         try {
-            if (mInterface.useStillshot()) {
-                mPreviewBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                // Flash is automatically enabled when necessary.
-                setFlashMode(mPreviewBuilder);
-
-                // Finally, we start displaying the camera preview.
-                mPreviewRequest = mPreviewBuilder.build();
-                mPreviewSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
-            } else {
-                setUpCaptureRequestBuilder(mPreviewBuilder);
-                mPreviewRequest = mPreviewBuilder.build();
-                mPreviewSession.setRepeatingRequest(mPreviewRequest, null, mBackgroundHandler);
-            }
+            // Finally, we start displaying the camera preview. Flash is automatically enabled when necessary.
+            setRepeatingPreview(!mCaptureEngine.isIdle());
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
-    private void setUpCaptureRequestBuilder(CaptureRequest.Builder builder) {
-        builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+    /**
+     * (Re)starts the repeating preview for the current flash mode. Its results should only be
+     * watched while a still capture is in progress; the rest of the time no callback is attached, so
+     * idle preview frames don't wake the background thread at all.
+     */
+    private void setRepeatingPreview(boolean watchResults) throws CameraAccessException {
+        mPreviewSession.setRepeatingRequest(mRequests.preview(mInterface.getFlashMode()),
+                watchResults ? mCaptureCallback : null, mBackgroundHandler);
+        mWatchingResults = watchResults;
+    }
+
+    /**
+     * @param displayRotation one of the {@link Surface} rotation constants.
+     */
+    private int getJpegOrientation(int displayRotation) {
+        // default camera orientation used to be 90 degrees, for Nexus 5X, 6P it is 270 degrees
+        if (mSensorOrientation == Degrees.DEGREES_270) {
+            displayRotation += 2 % 3;
+        }
+        return ORIENTATIONS.get(displayRotation);
     }
 
     private void configureTransform(int viewWidth, int viewHeight) {
@@ -808,9 +1276,12 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
         }
         mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
 
-        final CamcorderProfile profile = CamcorderProfile.get(0, mInterface.qualityProfile());
+        final double captureRate = mInterface.videoCaptureRate();
+        final CamcorderProfile profile = CameraUtil.getRecordingProfile(0, mInterface.qualityProfile(), captureRate > 0);
         mMediaRecorder.setOutputFormat(profile.fileFormat);
         mMediaRecorder.setVideoFrameRate(mInterface.videoFrameRate(profile.videoFrameRate));
+        if (captureRate > 0)
+            mMediaRecorder.setCaptureRate(captureRate);
         mMediaRecorder.setVideoSize(mVideoSize.getWidth(), mVideoSize.getHeight());
         mMediaRecorder.setVideoEncodingBitRate(mInterface.videoEncodingBitRate(profile.videoBitRate));
         mMediaRecorder.setVideoEncoder(profile.videoCodec);
@@ -843,11 +1314,238 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
 
         try {
             mMediaRecorder.prepare();
-            return true;
         } catch (Throwable e) {
             throwError(new Exception("Failed to prepare the media recorder: " + e.getMessage(), e));
             return false;
         }
+        if (mVideoProxySize != null)
+            setUpProxyRecorder(profile);
+        return true;
+    }
+
+    /**
+     * Prepares a video-only recorder for the proxy next to the full recording. Only one recorder
+     * can use the microphone.
+     */
+    private void setUpProxyRecorder(CamcorderProfile profile) {
+        final File proxyFile = CameraUtil.makeProxyFile(new File(Uri.parse(mOutputUri).getPath()));
+        mProxyRecorder = new MediaRecorder();
+        mProxyRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+        mProxyRecorder.setOutputFormat(profile.fileFormat);
+        mProxyRecorder.setVideoFrameRate(mInterface.videoFrameRate(profile.videoFrameRate));
+        if (mInterface.videoCaptureRate() > 0)
+            mProxyRecorder.setCaptureRate(mInterface.videoCaptureRate());
+        mProxyRecorder.setVideoSize(mVideoProxySize.getWidth(), mVideoProxySize.getHeight());
+        mProxyRecorder.setVideoEncodingBitRate(mInterface.videoProxyBitRate());
+        mProxyRecorder.setVideoEncoder(profile.videoCodec);
+        mProxyRecorder.setOutputFile(proxyFile.getPath());
+        mProxyRecorder.setOrientationHint(mDisplayOrientation);
+        try {
+            mProxyRecorder.prepare();
+            mProxyOutputUri = Uri.fromFile(proxyFile).toString();
+        } catch (Throwable e) {
+            Log.w("Camera2Fragment", "Failed to prepare the proxy recorder, recording without it", e);
+            mProxyRecorder.release();
+            mProxyRecorder = null;
+            mVideoProxySize = null;
+        }
+    }
+
+    /**
+     * Creates and starts the pre-roll encoders with the settings the media recorder would use.
+     */
+    private boolean setUpPreRoll() {
+        final Activity activity = getActivity();
+        if (null == activity) return false;
+
+        boolean canUseAudio = true;
+        boolean audioEnabled = !mInterface.audioDisabled();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            canUseAudio = ContextCompat.checkSelfPermission(activity, Manifest.permission.RECORD_AUDIO) == PackageManager.PERMISSION_GRANTED;
+        if (!canUseAudio && audioEnabled)
+            Toast.makeText(getActivity(), R.string.mcam_no_audio_access, Toast.LENGTH_LONG).show();
+
+        final CamcorderProfile profile = CameraUtil.getRecordingProfile(0, mInterface.qualityProfile(), false);
+        final List<PreRollRecorder.Encoder> encoders = new ArrayList<>();
+        try {
+            final int videoBitRate = mInterface.videoEncodingBitRate(profile.videoBitRate);
+            final PreRollCodecs.VideoEncoder video = new PreRollCodecs.VideoEncoder(
+                    PreRollCodecs.VideoEncoder.mimeType(profile.videoCodec), mVideoSize.getWidth(),
+                    mVideoSize.getHeight(), videoBitRate, mInterface.videoFrameRate(profile.videoFrameRate));
+            encoders.add(video);
+            int bitRate = videoBitRate;
+            if (canUseAudio && audioEnabled) {
+                final int audioBitRate = mInterface.audioEncodingBitRate(profile.audioBitRate);
+                encoders.add(new PreRollCodecs.AudioEncoder(profile.audioSampleRate, profile.audioChannels, audioBitRate,
+                        mRealtimeTimestamps));
+                bitRate += audioBitRate;
+            }
+            final long durationMs = mInterface.preRollDuration();
+            mPreRoll = new PreRollRecorder(encoders, durationMs * 1000, getPreRollMaxBytes(bitRate, durationMs),
+                    new Executor() {
+                        @Override
+                        public void execute(@NonNull Runnable flush) {
+                            // Seconds of samples to write, kept off the main thread
+                            runOnSaveThread(flush);
+                        }
+                    });
+            mPreRoll.start();
+            mRecorderSurface = video.getInputSurface();
+            mRecorderTargeted = false;
+            return true;
+        } catch (IOException e) {
+            for (PreRollRecorder.Encoder encoder : encoders)
+                encoder.stop();
+            mPreRoll = null;
+            throwError(new Exception("Failed to set up the pre-roll: " + e.getMessage(), e));
+            return false;
+        }
+    }
+
+    /**
+     * The samples are kept on the heap, so the buffer never gets more than a fraction of it. Left
+     * to itself, it's sized for the bit rates over the duration plus the extra group of pictures
+     * it may hold, with room for bursts.
+     */
+    private long getPreRollMaxBytes(int bitRate, long durationMs) {
+        final long heapLimit = Runtime.getRuntime().maxMemory() / PRE_ROLL_HEAP_FRACTION;
+        long maxBytes = mInterface.preRollMaxBytes();
+        if (maxBytes <= 0)
+            maxBytes = (long) bitRate * (durationMs + 1000) / 8000 * 3 / 2;
+        if (maxBytes > heapLimit) {
+            Log.w("Camera2Fragment", "Pre-roll buffer limited to " + heapLimit / 1024 + " KB");
+            maxBytes = heapLimit;
+        }
+        return maxBytes;
+    }
+
+    /**
+     * Stops the pre-roll encoders, finalizing the recording, and reports how much of it came from
+     * before the tap.
+     */
+    private void finishPreRoll() {
+        try {
+            // The encoder's surface goes away with it
+            if (mPreviewSession != null)
+                mPreviewSession.stopRepeating();
+        } catch (CameraAccessException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+        final PreRollRecorder preRoll = mPreRoll;
+        mPreRoll = null;
+        final long stopStart = SystemClock.elapsedRealtime();
+        if (preRoll.stop()) {
+            Log.d("Camera2Fragment", "Pre-roll recording with " + preRoll.getPreRollUs() / 1000 +
+                    "ms of pre-roll finalized in " + (SystemClock.elapsedRealtime() - stopStart) + "ms");
+            final Bundle stats = new Bundle();
+            stats.putLong(MaterialCamera.PRE_ROLL_DURATION_EXTRA, preRoll.getPreRollUs() / 1000);
+            mInterface.setStreamStats(stats);
+        } else {
+            if (preRoll.getError() != null)
+                Log.e("Camera2Fragment", "Pre-roll recording failed", preRoll.getError());
+            if (mOutputUri != null) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(Uri.parse(mOutputUri).getPath()).delete();
+            }
+        }
+    }
+
+    /**
+     * Adds both encoder surfaces to the repeating request in one step, so the full and proxy
+     * recordings start on the same frame.
+     */
+    private void addRecorderTargets() throws CameraAccessException {
+        if (mRecorderTargeted) return;
+        mRecorderTargeted = true;
+        mRecordSequenceId = mPreviewSession.setRepeatingRequest(mRequests.record(), mRecordCallback, mBackgroundHandler);
+    }
+
+    /**
+     * Removes both encoder surfaces from the repeating request in one step, so both recordings end
+     * on the same frame.
+     *
+     * @return false if they weren't targeted.
+     */
+    private boolean removeRecorderTargets() throws CameraAccessException {
+        if (!mRecorderTargeted) return false;
+        mRecorderTargeted = false;
+        mPreviewSession.setRepeatingRequest(mRequests.preview(mInterface.getFlashMode()), null, mBackgroundHandler);
+        return true;
+    }
+
+    /**
+     * With a proxy, removes the encoder surfaces and runs {@code onDrained} once the frames already
+     * requested for them are done, which the record callback reports on the camera thread. Without
+     * one the encoders are preview targets, there's nothing to wait for.
+     */
+    @Override
+    protected void drainRecorders(@NonNull Runnable onDrained) {
+        mOnRecordDrained.add(onDrained);
+        if (mProxyRecorder != null && mPreviewSession != null && mRequests != null) {
+            try {
+                if (removeRecorderTargets()) {
+                    mRecordDraining = true;
+                    mMainHandler.postDelayed(mRecordDrainTimeout, RECORD_DRAIN_TIMEOUT_MS);
+                }
+            } catch (CameraAccessException e) {
+                e.printStackTrace();
+            }
+        }
+        // Otherwise after the drain already pending, if any
+        if (!mRecordDraining) onRecordDrained();
+    }
+
+    private void onRecordDrained() {
+        mMainHandler.removeCallbacks(mRecordDrainTimeout);
+        mRecordDraining = false;
+        while (!mOnRecordDrained.isEmpty())
+            mOnRecordDrained.remove(0).run();
+    }
+
+    /**
+     * Forgets a drain that's still pending, its recorders are released along with the camera.
+     */
+    private void cancelRecordDrain() {
+        mMainHandler.removeCallbacks(mRecordDrainTimeout);
+        mMainHandler.removeCallbacks(mRecordDrained);
+        mOnRecordDrained.clear();
+        mRecordDraining = false;
+    }
+
+    /**
+     * Hands the proxy and the metrics of both streams to the activity once they're finalized.
+     */
+    private void reportStreams() {
+        if (mProxyOutputUri == null || mOutputUri == null) return;
+        final Bundle stats = new Bundle();
+        putStreamStats(stats, mOutputUri, mJoinedInfo, MaterialCamera.FRAME_COUNT_EXTRA,
+                MaterialCamera.DROPPED_FRAMES_EXTRA, MaterialCamera.BIT_RATE_EXTRA);
+        putStreamStats(stats, mProxyOutputUri, mJoinedProxyInfo, MaterialCamera.PROXY_FRAME_COUNT_EXTRA,
+                MaterialCamera.PROXY_DROPPED_FRAMES_EXTRA, MaterialCamera.PROXY_BIT_RATE_EXTRA);
+        mInterface.setStreamStats(stats);
+        mInterface.setProxyUri(mProxyOutputUri);
+    }
+
+    /**
+     * @param joined the segments' totals if the recording was paused, the joined file is fragmented
+     *               and has no sample tables to count.
+     */
+    private void putStreamStats(Bundle stats, String uri, @Nullable MediaInfo joined, String framesKey,
+                                String droppedKey, String bitRateKey) {
+        try {
+            final MediaInfo info = joined != null ? joined : MediaInfo.read(new File(Uri.parse(uri).getPath()));
+            if (info == null || info.frameCount <= 0 || info.durationMs <= 0) return;
+            final long bitRate = info.sizeBytes * 8000 / info.durationMs;
+            stats.putInt(framesKey, info.frameCount);
+            // A time-lapse keeps only some of the camera's frames on purpose
+            if (mInterface.videoCaptureRate() <= 0)
+                stats.putInt(droppedKey, Math.max(0, mRecordedFrames - info.frameCount));
+            stats.putLong(bitRateKey, bitRate);
+            Log.d("Camera2Fragment", info.frameCount + " of " + mRecordedFrames + " frames recorded at " +
+                    bitRate / 1000 + " kbps to " + uri);
+        } catch (IOException e) {
+            Log.e("Camera2Fragment", "Failed to read " + uri, e);
+        }
     }
 
     @Override
@@ -866,7 +1564,19 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
             }
 
             // Start recording
-            mMediaRecorder.start();
+            if (mPreRoll != null) {
+                final Uri uri = Uri.fromFile(getOutputMediaFile());
+                mOutputUri = uri.toString();
+                mPreRoll.record(new PreRollCodecs.MuxerOutput(uri.getPath(), mDisplayOrientation));
+            } else {
+                mMediaRecorder.start();
+                if (mProxyRecorder != null) {
+                    mProxyRecorder.start();
+                    mRecordedFrames = 0;
+                    addRecorderTargets();
+                }
+            }
+            onRecordingStarted();
 
             mButtonVideo.setEnabled(false);
             mButtonVideo.postDelayed(new Runnable() {
@@ -887,14 +1597,32 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
     }
 
     @Override
-    public void stopRecordingVideo(boolean reachedZero) {
+    public void stopRecordingVideo(final boolean reachedZero) {
         super.stopRecordingVideo(reachedZero);
 
+        if (mPreRoll != null)
+            finishPreRoll();
+
+        if (mProxyRecorder != null && mPreviewSession != null && mRequests != null) {
+            try {
+                // Normally drained already, unless stopping after an error
+                removeRecorderTargets();
+            } catch (CameraAccessException e) {
+                e.printStackTrace();
+            }
+        }
+
         if (mInterface.hasLengthLimit() && mInterface.shouldAutoSubmit() &&
                 (mInterface.getRecordingStart() < 0 || mMediaRecorder == null)) {
             stopCounter();
             releaseRecorder();
-            mInterface.onShowPreview(mOutputUri, reachedZero);
+            joinSegments(new Runnable() {
+                @Override
+                public void run() {
+                    reportStreams();
+                    mInterface.onShowPreview(mOutputUri, reachedZero);
+                }
+            });
             return;
         }
 
@@ -902,65 +1630,160 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
             mOutputUri = null;
 
         releaseRecorder();
+        final boolean showPreview = mInterface.getRecordingStart() > -1 && getActivity() != null;
+        joinSegments(new Runnable() {
+            @Override
+            public void run() {
+                reportStreams();
+                if (showPreview)
+                    mInterface.onShowPreview(mOutputUri, reachedZero);
+            }
+        });
         setImageRes(mButtonVideo, mInterface.iconRecord());
         if (!CameraUtil.isChromium())
             mButtonFacing.setVisibility(View.VISIBLE);
-        if (mInterface.getRecordingStart() > -1 && getActivity() != null)
-            mInterface.onShowPreview(mOutputUri, reachedZero);
 
         stopCounter();
     }
 
+    @Override
+    protected boolean canPauseRecording() {
+        return mPreRoll == null;
+    }
+
+    /**
+     * With a proxy, the camera stops sending frames to the recorders while they're paused, so
+     * none are counted that the recorders drop. They're paused once the frames already requested
+     * reached them.
+     */
+    @Override
+    protected void pauseRecorders() throws Exception {
+        if (mProxyRecorder == null) {
+            super.pauseRecorders();
+            return;
+        }
+        drainRecorders(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Camera2Fragment.super.pauseRecorders();
+                } catch (Exception e) {
+                    throwError(new Exception("Failed to pause recording: " + e.getMessage(), e));
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void resumeRecorders() throws Exception {
+        if (mProxyRecorder == null) {
+            super.resumeRecorders();
+            return;
+        }
+        // After the pause, if it's still draining
+        drainRecorders(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Camera2Fragment.super.resumeRecorders();
+                    addRecorderTargets();
+                } catch (Exception e) {
+                    throwError(new Exception("Failed to resume recording: " + e.getMessage(), e));
+                }
+            }
+        });
+    }
+
+    @Override
+    protected boolean splitSegment() throws CameraAccessException {
+        if (mProxyRecorder != null) {
+            // Finished once the recorders are drained, resuming is ignored until the next
+            // segment's session is configured
+            drainRecorders(new Runnable() {
+                @Override
+                public void run() {
+                    finishSegment();
+                    startPreview();
+                }
+            });
+            mRequests = null;
+            return true;
+        }
+        // The recorder is one of the preview targets, it can't go away while they're requested
+        mPreviewSession.stopRepeating();
+        finishSegment();
+        // New recorders need a new session, the preview resumes once it's configured
+        mRequests = null;
+        startPreview();
+        return mMediaRecorder != null;
+    }
+
+    @Override
+    protected boolean startNextSegment() throws Exception {
+        if (mRequests == null) return false;
+        super.startNextSegment();
+        if (mProxyRecorder != null)
+            addRecorderTargets();
+        return true;
+    }
+
     @Override
     /**
      * @link http://pierrchen.blogspot.si/2015/01/android-camera2-api-explained.html
      * @link https://github.com/googlesamples/android-Camera2Basic/blob/master/Application/src/main/java/com/example/android/camera2basic/Camera2BasicFragment.java
      */
     public void takeStillshot() {
-        lockFocus();
+        if (mRequests == null) return;
+        final long pressedAt = SystemClock.elapsedRealtime();
+        if (!mCaptureEngine.isIdle()) {
+            Log.d("stillshot", "Still capture already in progress, ignoring the shutter");
+            return;
+        }
+        mShutterPressedAt = pressedAt;
+        if (startBurst(pressedAt)) {
+            // The still's deadline has to cover every frame of the burst
+            mCaptureEngine.setTimeout(StillCaptureEngine.STATE_PICTURE_TAKEN,
+                    BURST_FRAME_TIMEOUT_MS * mInterface.burstCount());
+        }
+        mCaptureEngine.start(mAfAvailable);
     }
 
+    @Override
+    protected boolean canTakeStillshot() {
+        return mRequests != null && mCaptureEngine.isIdle() && mBurst == null;
+    }
+
+    /**
+     * Lock the focus as the first step for a still image capture. Called by {@link #mCaptureEngine}.
+     */
     private void lockFocus() {
         try {
-            if (mAfAvailable) {
-                // This is how to tell the camera to lock focus.
-                mPreviewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
-                // Tell #mCaptureCallback to wait for the lock.
-                mState = STATE_WAITING_LOCK;
-            } else {
-                runPrecaptureSequence();
-                return;
-            }
-
-            setFlashMode(mPreviewBuilder);
-
-            mPreviewSession.capture(mPreviewBuilder.build(), mCaptureCallback, mBackgroundHandler);
+            // Watch the preview's results until the capture is done
+            setRepeatingPreview(true);
+            // This is how to tell the camera to lock focus.
+            mPreviewSession.capture(mRequests.lockFocus(mInterface.getFlashMode()), mCaptureCallback, mBackgroundHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Run the precapture sequence for capturing a still image. This method should be called when
-     * we get a response in {@link #mCaptureCallback} from {@link #lockFocus()}.
+     * Run the precapture sequence for capturing a still image. Called by {@link #mCaptureEngine},
+     * after {@link #lockFocus()} or first if the camera can't focus.
      */
     private void runPrecaptureSequence() {
         try {
+            if (!mWatchingResults) setRepeatingPreview(true);
             // This is how to tell the camera to trigger.
-            mPreviewBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
-            // Tell #mCaptureCallback to wait for the precapture sequence to be set.
-            mState = STATE_WAITING_PRECAPTURE;
-            setFlashMode(mPreviewBuilder);
-
-            mPreviewSession.capture(mPreviewBuilder.build(), mCaptureCallback, mBackgroundHandler);
+            mPreviewSession.capture(mRequests.precapture(mInterface.getFlashMode()), mCaptureCallback, mBackgroundHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Capture a still picture. This method should be called when we get a response in
-     * {@link #mCaptureCallback} from both {@link #takeStillshot()}.
+     * Capture a still picture. Called by {@link #mCaptureEngine} once the focus and exposure are
+     * ready, or have taken too long.
      */
     private void captureStillPicture() {
         try {
@@ -968,96 +1791,121 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
             if (null == activity || null == mCameraDevice) {
                 return;
             }
-            // This is the CaptureRequest.Builder that we use to take a picture.
-            final CaptureRequest.Builder captureBuilder =
-                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-            captureBuilder.addTarget(mImageReader.getSurface());
-
-            // Use the same AE and AF modes as the preview.
-            captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            setFlashMode(captureBuilder);
-
-            // Orientation
-            CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
-
-            CameraCharacteristics characteristics = manager.getCameraCharacteristics(mCameraDevice.getId());
-
-            //noinspection ConstantConditions,ResourceType
-            @Degrees.DegreeUnits
-            final int sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-            int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-
-            // default camera orientation used to be 90 degrees, for Nexus 5X, 6P it is 270 degrees
-            if (sensorOrientation == Degrees.DEGREES_270) {
-                displayRotation += 2 % 3;
-            }
-
-            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, ORIENTATIONS.get(displayRotation));
+            // The request that we use to take a picture, oriented for the current display rotation.
+            final int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+            final CaptureRequest still = mRequests.still(mInterface.getFlashMode(), displayRotation);
+            final BurstSaver burst = mBurst;
+            final int frames = burst != null ? burst.getCount() : 1;
 
             CameraCaptureSession.CaptureCallback CaptureCallback
                     = new CameraCaptureSession.CaptureCallback() {
 
+                private int mStarted;
+
+                @Override
+                public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                             @NonNull CaptureRequest request, long timestamp, long frameNumber) {
+                    if (++mStarted < frames) return;
+                    // The (last) still's frame is being exposed, so the focus lock is no longer needed
+                    if (mCaptureEngine.onCaptureStarted())
+                        unlockFocus();
+                }
+
                 @Override
                 public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                @NonNull CaptureRequest request,
                                                @NonNull TotalCaptureResult result) {
                     Log.d("stillshot", "onCaptureCompleted");
-                    unlockFocus();
                 }
             };
 
-            mPreviewSession.stopRepeating();
-            mPreviewSession.capture(captureBuilder.build(), CaptureCallback, null);
+            // Queued alongside the repeating preview, which keeps the viewfinder running
+            if (burst != null) {
+                // Every frame of the burst reuses the same request, back to back
+                mPreviewSession.captureBurst(Collections.nCopies(frames, still), CaptureCallback, mBackgroundHandler);
+            } else {
+                mPreviewSession.capture(still, CaptureCallback, mBackgroundHandler);
+                if (mProxyReader != null)
+                    armProxyTimeout();
+            }
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Unlock the focus. This method should be called when still image capture sequence is
-     * finished.
+     * Unlock the focus. This method should be called once the still's frame has started exposing,
+     * the capture itself finishes in the background.
      */
     private void unlockFocus() {
         try {
             // Reset the auto-focus trigger
-            mPreviewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
-                    CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
-            setFlashMode(mPreviewBuilder);
-            mPreviewSession.capture(mPreviewBuilder.build(), mCaptureCallback,
+            mPreviewSession.capture(mRequests.unlockFocus(mInterface.getFlashMode()), null,
                     mBackgroundHandler);
             // After this, the camera will go back to the normal state of preview.
-            mState = STATE_PREVIEW;
-            mPreviewSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
-                    mBackgroundHandler);
+            setRepeatingPreview(false);
+            Log.d("stillshot", "Ready for the next capture " +
+                    (SystemClock.elapsedRealtime() - mShutterPressedAt) + "ms after the shutter");
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
-    private void setFlashMode(CaptureRequest.Builder requestBuilder) {
-        mPreviewBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
-
-        int aeMode;
-        int flashMode;
-        switch (mInterface.getFlashMode()) {
-            case FLASH_MODE_AUTO:
-                aeMode = CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH;
-                flashMode = CameraMetadata.FLASH_MODE_SINGLE;
-                break;
-            case FLASH_MODE_ALWAYS_ON:
-                aeMode = CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH;
-                flashMode = CameraMetadata.FLASH_MODE_TORCH;
-                break;
-            case FLASH_MODE_OFF:
-            default:
-                aeMode = CaptureRequest.CONTROL_AE_MODE_ON;
-                flashMode = CameraMetadata.FLASH_MODE_OFF;
-                break;
-        }
-
-        requestBuilder.set(CaptureRequest.CONTROL_AE_MODE, aeMode);
-        requestBuilder.set(CaptureRequest.FLASH_MODE, flashMode);
+    /**
+     * A frame analyzer view of an {@link Image} from the analysis reader.
+     */
+    private static class ImageFrame extends FrameDispatcher.PendingFrame {
+
+        private final Image mImage;
+        private final Image.Plane[] mPlanes;
+        private final int mRotation;
+
+        ImageFrame(Image image, int rotation) {
+            mImage = image;
+            mPlanes = image.getPlanes();
+            mRotation = rotation;
+        }
+
+        @Override
+        public int getWidth() {
+            return mImage.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return mImage.getHeight();
+        }
+
+        @Override
+        public int getRotation() {
+            return mRotation;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mImage.getTimestamp();
+        }
+
+        @NonNull
+        @Override
+        public ByteBuffer getPlane(int plane) {
+            return mPlanes[plane].getBuffer();
+        }
+
+        @Override
+        public int getRowStride(int plane) {
+            return mPlanes[plane].getRowStride();
+        }
+
+        @Override
+        public int getPixelStride(int plane) {
+            return mPlanes[plane].getPixelStride();
+        }
+
+        @Override
+        void release() {
+            mImage.close();
+        }
     }
 
     static class CompareSizesByArea implements Comparator<Size> {
@@ -4,6 +4,7 @@ import android.Manifest;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
 import android.graphics.Point;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
@@ -11,6 +12,8 @@ import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 import android.view.View;
@@ -21,10 +24,10 @@ import com.afollestad.materialcamera.ICallback;
 import com.afollestad.materialcamera.R;
 import com.afollestad.materialcamera.util.CameraUtil;
 import com.afollestad.materialcamera.util.Degrees;
-import com.afollestad.materialcamera.util.ImageUtil;
 import com.afollestad.materialcamera.util.ManufacturerUtil;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -49,10 +52,18 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
 
     private Camera.Size mVideoSize;
     private Camera mCamera;
+    private CameraParameters mParameters;
     private Point mWindowSize;
     private int mDisplayOrientation;
     private boolean mIsAutoFocusing;
     List<Integer> mFlashModes;
+    private FrameDispatcher mFrameDispatcher;
+    private BufferFrame[] mAnalysisFrames;
+
+    /**
+     * Number of preview buffers cycled between the camera and the frame analyzer.
+     */
+    private static final int ANALYSIS_BUFFER_COUNT = 3;
 
     public static CameraFragment newInstance() {
         CameraFragment fragment = new CameraFragment();
@@ -215,7 +226,8 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
             activity.getWindowManager().getDefaultDisplay().getSize(mWindowSize);
             final int toOpen = getCurrentCameraId();
             mCamera = Camera.open(toOpen == -1 ? 0 : toOpen);
-            Camera.Parameters parameters = mCamera.getParameters();
+            mParameters = new CameraParameters(mCamera);
+            Camera.Parameters parameters = mParameters.get();
             List<Camera.Size> videoSizes = parameters.getSupportedVideoSizes();
             if (videoSizes == null || videoSizes.size() == 0)
                 videoSizes = parameters.getSupportedPreviewSizes();
@@ -232,18 +244,19 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
                     parameters.setRecordingHint(true);
             }
 
-            Camera.Size mStillShotSize = getHighestSupportedStillShotSize(parameters.getSupportedPictureSizes());
+            Camera.Size mStillShotSize = getHighestSupportedStillShotSize(parameters.getSupportedPictureSizes(),
+                    mInterface.maxOutputDimension());
             parameters.setPictureSize(mStillShotSize.width, mStillShotSize.height);
 
-            setCameraDisplayOrientation(parameters);
-            mCamera.setParameters(parameters);
+            setCameraDisplayOrientation();
+            mParameters.commit();
 
-            // NOTE: onFlashModesLoaded should not be called while modifying camera parameters as
-            //       the flash parameters set in setupFlashMode will then be overwritten
+            // The flash mode set by onFlashModesLoaded goes to the same cached parameters
             mFlashModes = CameraUtil.getSupportedFlashModes(this.getActivity(), parameters);
             mInterface.setFlashModes(mFlashModes);
             onFlashModesLoaded();
 
+            setUpFrameAnalysis(parameters.getPreviewSize());
             createPreview();
             mMediaRecorder = new MediaRecorder();
 
@@ -255,7 +268,11 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
         }
     }
 
-    private Camera.Size getHighestSupportedStillShotSize(List<Camera.Size> supportedPictureSizes) {
+    /**
+     * Picks the highest resolution, or if {@code maxDimension} is set, the smallest one with the
+     * same aspect ratio whose long side still covers it.
+     */
+    private Camera.Size getHighestSupportedStillShotSize(List<Camera.Size> supportedPictureSizes, int maxDimension) {
         Collections.sort(supportedPictureSizes, new Comparator<Camera.Size>() {
             @Override
             public int compare(Camera.Size lhs, Camera.Size rhs) {
@@ -266,12 +283,20 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
             }
         });
         Camera.Size maxSize = supportedPictureSizes.get(0);
+        if (maxDimension > 0) {
+            final Camera.Size largest = maxSize;
+            for (Camera.Size size : supportedPictureSizes) {
+                if ((long) size.width * largest.height == (long) size.height * largest.width &&
+                        Math.max(size.width, size.height) >= maxDimension && size.width < maxSize.width)
+                    maxSize = size;
+            }
+        }
         Log.d("CameraFragment", "Using resolution: " + maxSize.width + "x" + maxSize.height);
         return maxSize;
     }
 
     @SuppressWarnings("WrongConstant")
-    private void setCameraDisplayOrientation(Camera.Parameters parameters) {
+    private void setCameraDisplayOrientation() {
         Camera.CameraInfo info =
                 new Camera.CameraInfo();
         Camera.getCameraInfo(getCurrentCameraId(), info);
@@ -293,8 +318,8 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
                 previewOrientation = Degrees.mirror(mDisplayOrientation);
         }
 
-        parameters.setRotation(jpegOrientation);
-        mCamera.setDisplayOrientation(previewOrientation);
+        mParameters.get().setRotation(jpegOrientation);
+        mParameters.setDisplayOrientation(previewOrientation);
     }
 
     private void createPreview() {
@@ -310,9 +335,50 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
         mPreviewView.setAspectRatio(mWindowSize.x, mWindowSize.y);
     }
 
+    private void setUpFrameAnalysis(Camera.Size previewSize) {
+        releaseFrameAnalysis();
+        mFrameDispatcher = FrameDispatcher.create();
+        if (mFrameDispatcher == null) return;
+        // Camera1 can't deliver a separate low resolution stream, frames are preview sized NV21
+        final Camera camera = mCamera;
+        final int size = previewSize.width * previewSize.height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        mAnalysisFrames = new BufferFrame[ANALYSIS_BUFFER_COUNT];
+        for (int i = 0; i < mAnalysisFrames.length; i++) {
+            mAnalysisFrames[i] = new BufferFrame(camera, new byte[size], previewSize.width, previewSize.height);
+            camera.addCallbackBuffer(mAnalysisFrames[i].mData);
+        }
+        final FrameDispatcher dispatcher = mFrameDispatcher;
+        final BufferFrame[] frames = mAnalysisFrames;
+        camera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] data, Camera camera) {
+                if (data == null) return;
+                for (BufferFrame frame : frames) {
+                    if (frame.mData == data) {
+                        frame.mTimestamp = System.nanoTime();
+                        frame.mRotation = mDisplayOrientation;
+                        dispatcher.offer(frame);
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    private void releaseFrameAnalysis() {
+        if (mFrameDispatcher == null) return;
+        if (mCamera != null) mCamera.setPreviewCallbackWithBuffer(null);
+        Log.d("CameraFragment", "Frame analysis stopped, dropped frames: " + mFrameDispatcher.getDroppedFrames());
+        mFrameDispatcher.stop(null);
+        mFrameDispatcher = null;
+        mAnalysisFrames = null;
+    }
+
     @Override
     public void closeCamera() {
         try {
+            cancelBurst();
+            releaseFrameAnalysis();
             if (mCamera != null) {
                 try {
                     mCamera.lock();
@@ -321,6 +387,10 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
                 mCamera.release();
                 mCamera = null;
             }
+            if (mParameters != null) {
+                Log.d("CameraFragment", "Camera parameters: " + mParameters);
+                mParameters = null;
+            }
         } catch (IllegalStateException e) {
             throwError(new Exception("Illegal state while trying to close camera.", e));
         }
@@ -332,7 +402,8 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
             if (null == activity) return false;
             final BaseCaptureInterface captureInterface = (BaseCaptureInterface) activity;
 
-            setCameraDisplayOrientation(mCamera.getParameters());
+            setCameraDisplayOrientation();
+            mParameters.commit();
             mMediaRecorder = new MediaRecorder();
             mCamera.stopPreview();
             mCamera.unlock();
@@ -350,9 +421,13 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
             }
             mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.DEFAULT);
 
-            final CamcorderProfile profile = CamcorderProfile.get(getCurrentCameraId(), mInterface.qualityProfile());
+            final double captureRate = mInterface.videoCaptureRate();
+            final CamcorderProfile profile = CameraUtil.getRecordingProfile(getCurrentCameraId(),
+                    mInterface.qualityProfile(), captureRate > 0);
             mMediaRecorder.setOutputFormat(profile.fileFormat);
             mMediaRecorder.setVideoFrameRate(mInterface.videoFrameRate(profile.videoFrameRate));
+            if (captureRate > 0)
+                mMediaRecorder.setCaptureRate(captureRate);
             mMediaRecorder.setVideoSize(mVideoSize.width, mVideoSize.height);
             mMediaRecorder.setVideoEncodingBitRate(mInterface.videoEncodingBitRate(profile.videoBitRate));
             mMediaRecorder.setVideoEncoder(profile.videoCodec);
@@ -422,6 +497,7 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
 
                 // Start recording
                 mMediaRecorder.start();
+                onRecordingStarted();
 
                 mButtonVideo.setEnabled(false);
                 mButtonVideo.postDelayed(new Runnable() {
@@ -458,12 +534,17 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
             }
             releaseRecorder();
             closeCamera();
-            mButtonFacing.postDelayed(new Runnable() {
+            joinSegments(new Runnable() {
                 @Override
                 public void run() {
-                    mInterface.onShowPreview(mOutputUri, reachedZero);
+                    mButtonFacing.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            mInterface.onShowPreview(mOutputUri, reachedZero);
+                        }
+                    }, 100);
                 }
-            }, 100);
+            });
             return;
         }
 
@@ -478,12 +559,26 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
         setImageRes(mButtonVideo, mInterface.iconRecord());
         if (!CameraUtil.isChromium())
             mButtonFacing.setVisibility(View.VISIBLE);
-        if (mInterface.getRecordingStart() > -1 && getActivity() != null)
-            mInterface.onShowPreview(mOutputUri, reachedZero);
+        if (mInterface.getRecordingStart() > -1 && getActivity() != null) {
+            joinSegments(new Runnable() {
+                @Override
+                public void run() {
+                    mInterface.onShowPreview(mOutputUri, reachedZero);
+                }
+            });
+        }
 
         stopCounter();
     }
 
+    @Override
+    protected boolean splitSegment() {
+        finishSegment();
+        // The preview holds its last frame until the next segment starts
+        mCamera.lock();
+        return prepareMediaRecorder();
+    }
+
     private void setupFlashMode() {
         String flashMode = null;
         switch (mInterface.getFlashMode()) {
@@ -498,10 +593,9 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
             default:
                 break;
         }
-        if (flashMode != null) {
-            Camera.Parameters parameters = mCamera.getParameters();
-            parameters.setFlashMode(flashMode);
-            mCamera.setParameters(parameters);
+        if (flashMode != null && mParameters != null) {
+            mParameters.get().setFlashMode(flashMode);
+            mParameters.commit();
         }
     }
 
@@ -510,28 +604,132 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
         setupFlashMode();
     }
 
+    /**
+     * A frame analyzer view of an NV21 preview buffer. The plane buffers are created once per
+     * preview buffer, so handing a frame to the analyzer doesn't allocate.
+     */
+    private static class BufferFrame extends FrameDispatcher.PendingFrame {
+
+        private final Camera mCamera;
+        final byte[] mData;
+        private final int mWidth;
+        private final int mHeight;
+        private final ByteBuffer[] mPlanes;
+        long mTimestamp;
+        int mRotation;
+
+        BufferFrame(Camera camera, byte[] data, int width, int height) {
+            mCamera = camera;
+            mData = data;
+            mWidth = width;
+            mHeight = height;
+            // NV21 is a Y plane followed by interleaved V/U samples
+            final int ySize = width * height;
+            final int vuSize = data.length - ySize;
+            mPlanes = new ByteBuffer[]{
+                    ByteBuffer.wrap(data, 0, ySize).slice(),
+                    ByteBuffer.wrap(data, ySize + 1, vuSize - 1).slice(),
+                    ByteBuffer.wrap(data, ySize, vuSize - 1).slice()
+            };
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public int getRotation() {
+            return mRotation;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        @NonNull
+        @Override
+        public ByteBuffer getPlane(int plane) {
+            return mPlanes[plane].duplicate();
+        }
+
+        @Override
+        public int getRowStride(int plane) {
+            return mWidth;
+        }
+
+        @Override
+        public int getPixelStride(int plane) {
+            return plane == 0 ? 1 : 2;
+        }
+
+        @Override
+        void release() {
+            try {
+                mCamera.addCallbackBuffer(mData);
+            } catch (RuntimeException ignored) {
+                // The camera has been released
+            }
+        }
+    }
+
     @Override
     public void takeStillshot() {
-        Camera.ShutterCallback shutterCallback = new Camera.ShutterCallback() {
+        final Camera.ShutterCallback shutterCallback = new Camera.ShutterCallback() {
             public void onShutter() {
                 //Log.d(TAG, "onShutter'd");
             }
         };
-        Camera.PictureCallback rawCallback = new Camera.PictureCallback() {
+        final Camera.PictureCallback rawCallback = new Camera.PictureCallback() {
             public void onPictureTaken(byte[] data, Camera camera) {
                 //Log.d(TAG, "onPictureTaken - raw. Raw is null: " + (data == null));
             }
         };
+        final long shutterPressedAt = SystemClock.elapsedRealtime();
+        final boolean burst = startBurst(shutterPressedAt);
         Camera.PictureCallback jpegCallback = new Camera.PictureCallback() {
             public void onPictureTaken(final byte[] data, Camera camera) {
                 //Log.d(TAG, "onPictureTaken - jpeg, size: " + data.length);
+                if (burst) {
+                    // Saved in the background while the next frame is taken
+                    if (mBurst == null || mBurst.add(data, getOutputPictureFile()) == -1) return;
+                    if (mBurst.getReceived() < mBurst.getCount()) {
+                        try {
+                            // The preview stops for every picture, restart it for the next one
+                            camera.startPreview();
+                            camera.takePicture(shutterCallback, rawCallback, this);
+                        } catch (RuntimeException e) {
+                            throwError(new Exception("Unable to continue the burst.", e));
+                        }
+                    } else if (mInterface.stillshotSession()) {
+                        restartSessionPreview(camera);
+                    }
+                    return;
+                }
+                if (mInterface.stillshotSession()) {
+                    // Saved in the background while the camera gets ready for the next one
+                    saveToSession(data);
+                    if (restartSessionPreview(camera))
+                        mButtonStillshot.setEnabled(true);
+                    return;
+                }
+                final long capturedAt = SystemClock.elapsedRealtime();
+                final long captureTime = System.currentTimeMillis();
                 final File outputPic = getOutputPictureFile();
-                // lets save the image to disk
-                ImageUtil.saveToDiskAsync(data, outputPic, new ICallback() {
+                // lets save the image to disk, then run any post-processing
+                SavePipeline.forStillshot(mInterface, false).saveAsync(data, outputPic, new ICallback() {
                     @Override
                     public void done(Exception e) {
                         if (e == null) {
                             Log.d("CameraFragment", "Picture saved to disk - jpeg, size: " + data.length);
+                            mInterface.setCaptureTimings(captureTime, capturedAt - shutterPressedAt,
+                                    SystemClock.elapsedRealtime() - capturedAt);
                             mOutputUri = Uri.fromFile(outputPic).toString();
                             mInterface.onShowStillshot(mOutputUri);
                             //mCamera.startPreview();
@@ -553,6 +751,25 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
         mCamera.takePicture(shutterCallback, rawCallback, jpegCallback);
     }
 
+    @Override
+    protected boolean canTakeStillshot() {
+        // The shutter stays disabled while a picture is being taken
+        return mCamera != null && mBurst == null && mButtonStillshot != null && mButtonStillshot.isEnabled();
+    }
+
+    /**
+     * The preview stops for every picture, a session keeps it running between them.
+     */
+    private boolean restartSessionPreview(Camera camera) {
+        try {
+            camera.startPreview();
+            return true;
+        } catch (RuntimeException e) {
+            throwError(new Exception("Unable to restart the preview.", e));
+            return false;
+        }
+    }
+
     static class CompareSizesByArea implements Comparator<Camera.Size> {
         @Override
         public int compare(Camera.Size lhs, Camera.Size rhs) {
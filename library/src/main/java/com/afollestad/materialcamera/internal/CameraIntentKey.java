@@ -23,6 +23,7 @@ public class CameraIntentKey {
     public static final String AUDIO_ENCODING_BIT_RATE = "audio_encoding_bit_rate";
     public static final String AUDIO_DISABLED = "audio_disabled";
     public static final String VIDEO_FRAME_RATE = "video_frame_rate";
+    public static final String VIDEO_CAPTURE_RATE = "video_capture_rate";
     public static final String VIDEO_PREFERRED_HEIGHT = "video_preferred_height";
     public static final String VIDEO_PREFERRED_ASPECT = "video_preferred_aspect";
     public static final String MAX_ALLOWED_FILE_SIZE = "max_allowed_file_size";
@@ -46,4 +47,19 @@ public class CameraIntentKey {
     public static final String STILL_SHOT = "still_shot";
 
     public static final String AUTO_RECORD = "auto_record";
+    public static final String FRAGMENT_DURATION = "fragment_duration";
+    public static final String ROTATE_STILLSHOTS = "rotate_stillshots";
+    public static final String MIRROR_FRONT_STILLSHOTS = "mirror_front_stillshots";
+    public static final String STILLSHOT_ASPECT = "stillshot_aspect";
+    public static final String MAX_OUTPUT_BYTES = "max_output_bytes";
+    public static final String MAX_OUTPUT_DIMENSION = "max_output_dimension";
+    public static final String SCRUB_METADATA = "scrub_metadata";
+    public static final String STILLSHOT_PROXY_SIZE = "stillshot_proxy_size";
+    public static final String BURST_COUNT = "burst_count";
+    public static final String STILLSHOT_SESSION = "stillshot_session";
+    public static final String STILLSHOT_INTERVAL = "stillshot_interval";
+    public static final String VIDEO_PROXY_HEIGHT = "video_proxy_height";
+    public static final String VIDEO_PROXY_BIT_RATE = "video_proxy_bit_rate";
+    public static final String PRE_ROLL_DURATION = "pre_roll_duration";
+    public static final String PRE_ROLL_MAX_BYTES = "pre_roll_max_bytes";
 }
@@ -0,0 +1,110 @@
+package com.afollestad.materialcamera.internal;
+
+import android.hardware.Camera;
+import android.util.Log;
+
+import com.afollestad.materialcamera.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a Camera1 {@link Camera.Parameters} around for as long as the camera is open, so reads
+ * and edits don't each fetch the whole parameter string from the camera service. Edits are
+ * batched on the cached copy and {@link #commit()} only sends it if its flattened form differs
+ * from what was last applied; the service always takes the full set, so the saving is in the
+ * round-trips that aren't made. The display orientation is cached the same way.
+ */
+@SuppressWarnings("deprecation")
+class CameraParameters {
+
+    private final Camera mCamera;
+    private final Camera.Parameters mParameters;
+    private String mApplied;
+    private int mDisplayOrientation = -1;
+
+    // Calls into the camera service, and the ones that were avoided
+    private int mGets;
+    private int mSets;
+    private int mSkipped;
+
+    CameraParameters(Camera camera) {
+        mCamera = camera;
+        mParameters = camera.getParameters();
+        mGets++;
+        mApplied = mParameters.flatten();
+    }
+
+    /**
+     * @return the cached parameters, to read or edit. Edits reach the camera on {@link #commit()}.
+     */
+    Camera.Parameters get() {
+        return mParameters;
+    }
+
+    /**
+     * Sends the edits made since the last commit, if there are any.
+     *
+     * @return false if nothing changed and no call was made.
+     */
+    boolean commit() {
+        final String flattened = mParameters.flatten();
+        if (flattened.equals(mApplied)) {
+            mSkipped++;
+            return false;
+        }
+        if (BuildConfig.DEBUG)
+            Log.d("CameraParameters", "Applying changes to " + changedKeys(mApplied, flattened));
+        try {
+            mCamera.setParameters(mParameters);
+            mSets++;
+            mApplied = flattened;
+        } catch (RuntimeException e) {
+            // The camera rejected a value and kept its previous ones, resync the cache with those
+            mParameters.unflatten(mApplied);
+            throw e;
+        }
+        return true;
+    }
+
+    void setDisplayOrientation(int degrees) {
+        if (degrees == mDisplayOrientation) {
+            mSkipped++;
+            return;
+        }
+        mCamera.setDisplayOrientation(degrees);
+        mSets++;
+        mDisplayOrientation = degrees;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d gets, %d sets, %d unchanged sets skipped", mGets, mSets, mSkipped);
+    }
+
+    /**
+     * @return the keys whose values differ between two flattened parameter strings.
+     */
+    static List<String> changedKeys(String before, String after) {
+        final Map<String, String> old = unflatten(before);
+        final List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, String> entry : unflatten(after).entrySet()) {
+            if (!entry.getValue().equals(old.remove(entry.getKey())))
+                changed.add(entry.getKey());
+        }
+        changed.addAll(old.keySet());
+        return changed;
+    }
+
+    private static Map<String, String> unflatten(String flattened) {
+        final Map<String, String> values = new HashMap<>();
+        for (String pair : flattened.split(";")) {
+            final int equals = pair.indexOf('=');
+            if (equals > 0)
+                values.put(pair.substring(0, equals), pair.substring(equals + 1));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,162 @@
+package com.afollestad.materialcamera.internal;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.util.Range;
+import android.view.Surface;
+
+import java.util.List;
+
+import static com.afollestad.materialcamera.internal.BaseCaptureActivity.FLASH_MODE_ALWAYS_ON;
+import static com.afollestad.materialcamera.internal.BaseCaptureActivity.FLASH_MODE_AUTO;
+import static com.afollestad.materialcamera.internal.BaseCaptureActivity.FLASH_MODE_OFF;
+
+/**
+ * The {@link CaptureRequest}s a Camera2 session submits, built once when it's configured. There is
+ * one of each for every flash mode and, for stills, every display rotation, so neither a
+ * preference change nor the shutter has to edit a builder or query the camera before submitting.
+ * The requests are immutable and safe to reuse for as long as the session's surfaces are.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class CaptureRequestCache {
+
+    private static final int[] FLASH_MODES = {FLASH_MODE_OFF, FLASH_MODE_ALWAYS_ON, FLASH_MODE_AUTO};
+    private static final int ROTATIONS = 4;
+
+    // Indexed by flash mode
+    private final CaptureRequest[] mPreview = new CaptureRequest[FLASH_MODES.length];
+    private final CaptureRequest[] mLockFocus = new CaptureRequest[FLASH_MODES.length];
+    private final CaptureRequest[] mPrecapture = new CaptureRequest[FLASH_MODES.length];
+    private final CaptureRequest[] mUnlockFocus = new CaptureRequest[FLASH_MODES.length];
+    // Indexed by flash mode * ROTATIONS + display rotation
+    private final CaptureRequest[] mStill = new CaptureRequest[FLASH_MODES.length * ROTATIONS];
+    private CaptureRequest mRecord;
+
+    private CaptureRequestCache() {
+    }
+
+    /**
+     * @param jpegOrientations the JPEG orientation for each {@link Surface} rotation constant.
+     */
+    static CaptureRequestCache forStillshot(CameraDevice device, List<Surface> previewTargets,
+                                            List<Surface> stillTargets, int[] jpegOrientations) throws CameraAccessException {
+        final CaptureRequestCache cache = new CaptureRequestCache();
+        final CaptureRequest.Builder preview = device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+        for (Surface target : previewTargets)
+            preview.addTarget(target);
+        preview.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+
+        final CaptureRequest.Builder still = device.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        for (Surface target : stillTargets)
+            still.addTarget(target);
+        // Use the same AE and AF modes as the preview.
+        still.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+
+        for (int flashMode : FLASH_MODES) {
+            setFlashMode(preview, flashMode);
+            cache.mPreview[flashMode] = preview.build();
+
+            preview.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
+            cache.mLockFocus[flashMode] = preview.build();
+            preview.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
+            cache.mUnlockFocus[flashMode] = preview.build();
+            preview.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+
+            preview.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_START);
+            cache.mPrecapture[flashMode] = preview.build();
+            preview.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+
+            setFlashMode(still, flashMode);
+            for (int rotation = 0; rotation < ROTATIONS; rotation++) {
+                still.set(CaptureRequest.JPEG_ORIENTATION, jpegOrientations[rotation]);
+                cache.mStill[flashMode * ROTATIONS + rotation] = still.build();
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @param recordTargets the encoder surfaces that {@link #record()} adds to the preview, if
+     *                      they're only targeted while recording.
+     * @param fpsRange      the AE frame rate range of a time-lapse, which the preview shares so
+     *                      recording doesn't change it.
+     */
+    static CaptureRequestCache forVideo(CameraDevice device, List<Surface> previewTargets, List<Surface> recordTargets,
+                                        @Nullable Range<Integer> fpsRange) throws CameraAccessException {
+        final CaptureRequestCache cache = new CaptureRequestCache();
+        final CaptureRequest.Builder builder = device.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+        for (Surface target : previewTargets)
+            builder.addTarget(target);
+        builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+        if (fpsRange != null)
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+        // The flash isn't controlled while recording
+        final CaptureRequest preview = builder.build();
+        for (int flashMode : FLASH_MODES)
+            cache.mPreview[flashMode] = preview;
+        for (Surface target : recordTargets)
+            builder.addTarget(target);
+        cache.mRecord = builder.build();
+        return cache;
+    }
+
+    CaptureRequest preview(@BaseCaptureActivity.FlashMode int flashMode) {
+        return mPreview[flashMode];
+    }
+
+    CaptureRequest lockFocus(@BaseCaptureActivity.FlashMode int flashMode) {
+        return mLockFocus[flashMode];
+    }
+
+    CaptureRequest precapture(@BaseCaptureActivity.FlashMode int flashMode) {
+        return mPrecapture[flashMode];
+    }
+
+    CaptureRequest unlockFocus(@BaseCaptureActivity.FlashMode int flashMode) {
+        return mUnlockFocus[flashMode];
+    }
+
+    /**
+     * @param displayRotation one of the {@link Surface} rotation constants.
+     */
+    CaptureRequest still(@BaseCaptureActivity.FlashMode int flashMode, int displayRotation) {
+        return mStill[flashMode * ROTATIONS + displayRotation];
+    }
+
+    /**
+     * @return the video preview with the encoder surfaces added.
+     */
+    CaptureRequest record() {
+        return mRecord;
+    }
+
+    private static void setFlashMode(CaptureRequest.Builder builder, int mode) {
+        builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+
+        int aeMode;
+        int flashMode;
+        switch (mode) {
+            case FLASH_MODE_AUTO:
+                aeMode = CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH;
+                flashMode = CameraMetadata.FLASH_MODE_SINGLE;
+                break;
+            case FLASH_MODE_ALWAYS_ON:
+                aeMode = CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH;
+                flashMode = CameraMetadata.FLASH_MODE_TORCH;
+                break;
+            case FLASH_MODE_OFF:
+            default:
+                aeMode = CaptureRequest.CONTROL_AE_MODE_ON;
+                flashMode = CameraMetadata.FLASH_MODE_OFF;
+                break;
+        }
+
+        builder.set(CaptureRequest.CONTROL_AE_MODE, aeMode);
+        builder.set(CaptureRequest.FLASH_MODE, flashMode);
+    }
+}
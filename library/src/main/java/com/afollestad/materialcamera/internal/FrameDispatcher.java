@@ -0,0 +1,125 @@
+package com.afollestad.materialcamera.internal;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.afollestad.materialcamera.FrameAnalyzer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands preview frames to the registered {@link FrameAnalyzer} on a worker thread, keeping only the
+ * latest frame while the analyzer is busy. Frames are released back to the camera as soon as they're
+ * analyzed or dropped.
+ */
+public class FrameDispatcher implements Runnable {
+
+    /**
+     * A frame that owns a camera buffer, which has to be returned once analyzed or dropped.
+     */
+    static abstract class PendingFrame implements FrameAnalyzer.Frame {
+
+        long mDropped;
+
+        abstract void release();
+
+        @Override
+        public long getDroppedFrames() {
+            return mDropped;
+        }
+    }
+
+    private static FrameAnalyzer sAnalyzer;
+
+    private final FrameAnalyzer mAnalyzer;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicReference<PendingFrame> mPending = new AtomicReference<>();
+    private final AtomicBoolean mDraining = new AtomicBoolean();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile boolean mStopped;
+
+    public static void setAnalyzer(@Nullable FrameAnalyzer analyzer) {
+        sAnalyzer = analyzer;
+    }
+
+    @Nullable
+    static FrameDispatcher create() {
+        return sAnalyzer != null ? new FrameDispatcher(sAnalyzer) : null;
+    }
+
+    private FrameDispatcher(FrameAnalyzer analyzer) {
+        mAnalyzer = analyzer;
+    }
+
+    /**
+     * Queues a frame, replacing (and releasing) one that hasn't been picked up yet. Never blocks.
+     */
+    void offer(@NonNull PendingFrame frame) {
+        if (mStopped) {
+            frame.release();
+            return;
+        }
+        final PendingFrame replaced = mPending.getAndSet(frame);
+        if (replaced != null) {
+            mDropped.incrementAndGet();
+            replaced.release();
+        }
+        if (mDraining.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Stopped concurrently
+                final PendingFrame pending = mPending.getAndSet(null);
+                if (pending != null) pending.release();
+            }
+        }
+    }
+
+    long getDroppedFrames() {
+        return mDropped.get();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final PendingFrame frame = mPending.getAndSet(null);
+            if (frame == null) {
+                mDraining.set(false);
+                // A frame may have been offered after the check above, but before the flag was cleared
+                if (mPending.get() != null && mDraining.compareAndSet(false, true))
+                    continue;
+                return;
+            }
+            try {
+                if (!mStopped) {
+                    frame.mDropped = mDropped.get();
+                    mAnalyzer.analyze(frame);
+                }
+            } catch (RuntimeException e) {
+                Log.e("FrameDispatcher", "Frame analyzer failed", e);
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * Releases the pending frame and stops the worker.
+     *
+     * @param whenIdle invoked on the worker thread once the frame being analyzed (if any) has been
+     *                 released, e.g. to close the buffers the frames point into.
+     */
+    void stop(@Nullable Runnable whenIdle) {
+        mStopped = true;
+        final PendingFrame frame = mPending.getAndSet(null);
+        if (frame != null) frame.release();
+        if (whenIdle != null) mExecutor.execute(whenIdle);
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,122 @@
+package com.afollestad.materialcamera.internal;
+
+import com.afollestad.materialcamera.util.LatencyHistogram;
+
+import java.util.Locale;
+
+/**
+ * Works out when each shot of an interval capture is due. Slots are fixed multiples of the interval
+ * from the start rather than from the previous shot, so a late shot never pushes the ones after it
+ * and the schedule can't drift. A slot the camera isn't ready for, or that comes due more than half
+ * an interval late, is skipped and counted as missed; how late each shot was triggered is kept in a
+ * histogram.
+ * <p>
+ * Long intervals close the camera between shots and reopen it a little ahead of the next slot.
+ */
+class IntervalScheduler {
+
+    interface Clock {
+        long uptimeMs();
+    }
+
+    /**
+     * Shorter intervals keep the camera open, reopening it costs about as much as it saves.
+     */
+    static final long CLOSE_CAMERA_MIN_INTERVAL_MS = 20000;
+    /**
+     * How long before a slot a closed camera is reopened, enough to open it and settle the preview.
+     */
+    static final long CAMERA_WARMUP_MS = 3000;
+
+    private final long mInterval;
+    private final Clock mClock;
+    private final LatencyHistogram mJitter = new LatencyHistogram();
+    private long mStartedAt = -1;
+    // Index of the next slot
+    private long mSlot;
+    private int mTaken;
+    private int mMissed;
+
+    IntervalScheduler(long intervalMs, Clock clock) {
+        mInterval = intervalMs;
+        mClock = clock;
+    }
+
+    long getInterval() {
+        return mInterval;
+    }
+
+    boolean isRunning() {
+        return mStartedAt != -1;
+    }
+
+    /**
+     * Starts a new schedule with its first slot due now. Statistics carry over from earlier runs.
+     */
+    void start() {
+        mStartedAt = mClock.uptimeMs();
+        mSlot = 0;
+    }
+
+    void stop() {
+        mStartedAt = -1;
+    }
+
+    /**
+     * @return the clock time the next slot is due at.
+     */
+    long getNextSlotAt() {
+        return mStartedAt + mSlot * mInterval;
+    }
+
+    boolean closesCameraBetweenShots() {
+        return mInterval >= CLOSE_CAMERA_MIN_INTERVAL_MS;
+    }
+
+    /**
+     * @return the clock time a camera closed after the last shot should be reopened at.
+     */
+    long getReopenAt() {
+        return getNextSlotAt() - CAMERA_WARMUP_MS;
+    }
+
+    /**
+     * Called once the next slot is due, moves the schedule on to the slot after it.
+     *
+     * @param ready whether the camera can take a shot right now.
+     * @return true if a shot should be taken now, false if the slot was missed.
+     */
+    boolean onSlotDue(boolean ready) {
+        final long now = mClock.uptimeMs();
+        final long late = Math.max(0, now - getNextSlotAt());
+        if (!ready || late > mInterval / 2) {
+            // Skip this slot and any others that have passed since
+            final long next = Math.max(mSlot + 1, (now - mStartedAt) / mInterval + 1);
+            mMissed += next - mSlot;
+            mSlot = next;
+            return false;
+        }
+        mJitter.record(late);
+        mTaken++;
+        mSlot++;
+        return true;
+    }
+
+    int getTaken() {
+        return mTaken;
+    }
+
+    int getMissed() {
+        return mMissed;
+    }
+
+    LatencyHistogram getJitter() {
+        return mJitter;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d shots every %dms, %d slots missed, trigger jitter: %s",
+                mTaken, mInterval, mMissed, mJitter);
+    }
+}
@@ -3,6 +3,7 @@ package com.afollestad.materialcamera.internal;
 import android.app.Activity;
 import android.app.Fragment;
 import android.content.pm.ActivityInfo;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
@@ -10,19 +11,24 @@ import android.support.annotation.Nullable;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
 
 import com.afollestad.easyvideoplayer.EasyVideoCallback;
 import com.afollestad.easyvideoplayer.EasyVideoPlayer;
 import com.afollestad.materialcamera.R;
 import com.afollestad.materialcamera.util.CameraUtil;
+import com.afollestad.materialcamera.util.VideoThumbnails;
 import com.afollestad.materialdialogs.MaterialDialog;
 
 /**
  * @author Aidan Follestad (afollestad)
  */
-public class PlaybackVideoFragment extends Fragment implements CameraUriInterface, EasyVideoCallback {
+public class PlaybackVideoFragment extends Fragment implements CameraUriInterface, EasyVideoCallback, VideoThumbnails.Callback {
 
     private EasyVideoPlayer mPlayer;
+    private ImageView mPoster;
+    private ImageView[] mThumbnails;
     private String mOutputUri;
     private BaseCaptureInterface mInterface;
 
@@ -109,9 +115,46 @@ public class PlaybackVideoFragment extends Fragment implements CameraUriInterfac
             startCountdownTimer();
         }
 
+        mPoster = (ImageView) view.findViewById(R.id.posterView);
+        final LinearLayout strip = (LinearLayout) view.findViewById(R.id.thumbnailStrip);
+        mThumbnails = new ImageView[VideoThumbnails.STRIP_COUNT];
+        for (int i = 0; i < mThumbnails.length; i++) {
+            final int index = i;
+            mThumbnails[i] = new ImageView(getActivity());
+            mThumbnails[i].setScaleType(ImageView.ScaleType.CENTER_CROP);
+            mThumbnails[i].setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    seekToThumbnail(index);
+                }
+            });
+            strip.addView(mThumbnails[i], new LinearLayout.LayoutParams(0, ViewGroup.LayoutParams.MATCH_PARENT, 1f));
+        }
+        VideoThumbnails.load(getActivity(), mOutputUri, this);
+
         mPlayer.setSource(Uri.parse(mOutputUri));
     }
 
+    private void seekToThumbnail(int index) {
+        if (mPlayer == null || !mPlayer.isPrepared()) return;
+        // Thumbnails are taken from the middle of each slice of the video
+        final int count = VideoThumbnails.STRIP_COUNT;
+        mPlayer.seekTo((int) ((long) mPlayer.getDuration() * (2 * index + 1) / (2 * count)));
+    }
+
+    @Override
+    public void onThumbnail(int index, @Nullable Bitmap bitmap) {
+        if (bitmap == null || mThumbnails == null) return;
+        if (index == VideoThumbnails.POSTER) {
+            if (mPlayer != null && !mPlayer.isPrepared()) {
+                mPoster.setImageBitmap(bitmap);
+                mPoster.setVisibility(View.VISIBLE);
+            }
+        } else {
+            mThumbnails[index].setImageBitmap(bitmap);
+        }
+    }
+
     private void startCountdownTimer() {
         if (mCountdownHandler == null)
             mCountdownHandler = new Handler();
@@ -122,6 +165,9 @@ public class PlaybackVideoFragment extends Fragment implements CameraUriInterfac
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        VideoThumbnails.cancel(this);
+        mPoster = null;
+        mThumbnails = null;
         if (mCountdownHandler != null) {
             mCountdownHandler.removeCallbacks(mCountdownRunnable);
             mCountdownHandler = null;
@@ -160,6 +206,10 @@ public class PlaybackVideoFragment extends Fragment implements CameraUriInterfac
 
     @Override
     public void onPrepared(EasyVideoPlayer player) {
+        if (mPoster != null) {
+            mPoster.setVisibility(View.GONE);
+            mPoster.setImageDrawable(null);
+        }
     }
 
     @Override
@@ -0,0 +1,158 @@
+package com.afollestad.materialcamera.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A circular buffer of encoded samples covering the last few seconds, from one or more tracks in
+ * the order they were encoded. Memory is accounted in bytes, sample data plus a fixed overhead per
+ * sample, and capped; the oldest samples go first when the cap is reached.
+ * <p>
+ * The buffer always starts on a sync sample of the reference (video) track, since samples before
+ * it couldn't be decoded. It starts on the latest one that still covers the duration, so it holds
+ * at least that much unless memory runs out, and at most one more group of pictures.
+ * <p>
+ * Safe to fill from several encoder threads.
+ */
+class PreRollBuffer {
+
+    static class Sample {
+
+        final int track;
+        final byte[] data;
+        final long timeUs;
+        final boolean keyFrame;
+
+        Sample(int track, byte[] data, long timeUs, boolean keyFrame) {
+            this.track = track;
+            this.data = data;
+            this.timeUs = timeUs;
+            this.keyFrame = keyFrame;
+        }
+    }
+
+    /**
+     * Rough cost of a sample besides its data: the object, its array header and the queue slot.
+     */
+    static final int SAMPLE_OVERHEAD_BYTES = 64;
+
+    private final int mReferenceTrack;
+    private final long mDurationUs;
+    private final long mMaxBytes;
+    private final ArrayDeque<Sample> mSamples = new ArrayDeque<>();
+    // The buffered sync samples of the reference track, oldest first
+    private final ArrayDeque<Sample> mKeyFrames = new ArrayDeque<>();
+    private long mBytes;
+    private long mEvicted;
+
+    /**
+     * @param referenceTrack the track whose sync samples the buffer starts on.
+     * @param durationUs     how much to keep before the newest sample.
+     * @param maxBytes       the most memory the buffered samples may take.
+     */
+    PreRollBuffer(int referenceTrack, long durationUs, long maxBytes) {
+        if (durationUs <= 0 || maxBytes <= 0)
+            throw new IllegalArgumentException("Pre-roll duration and size must be positive");
+        mReferenceTrack = referenceTrack;
+        mDurationUs = durationUs;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Copies the remaining bytes of {@code data} into the buffer, evicting the oldest samples to
+     * stay within the limits.
+     */
+    synchronized void add(int track, ByteBuffer data, long timeUs, boolean keyFrame) {
+        final byte[] copy = new byte[data.remaining()];
+        data.get(copy);
+        final Sample sample = new Sample(track, copy, timeUs, keyFrame);
+        mSamples.addLast(sample);
+        if (track == mReferenceTrack && keyFrame)
+            mKeyFrames.addLast(sample);
+        mBytes += cost(copy.length);
+        trim(timeUs);
+    }
+
+    private void trim(long newestUs) {
+        // Whole groups go while the next one covers the duration by itself
+        while (mKeyFrames.size() > 1 && newestUs - second(mKeyFrames).timeUs >= mDurationUs)
+            removeUntil(second(mKeyFrames));
+        // Then the oldest samples while over the cap, and the rest of their group with them
+        while (mBytes > mMaxBytes)
+            removeFirst();
+        final Sample head = mSamples.peekFirst();
+        if (head != null && head != mKeyFrames.peekFirst())
+            removeUntil(mKeyFrames.peekFirst());
+    }
+
+    private static Sample second(ArrayDeque<Sample> samples) {
+        final Iterator<Sample> iterator = samples.iterator();
+        iterator.next();
+        return iterator.next();
+    }
+
+    /**
+     * Removes the samples before {@code sample}, or all of them if it's null.
+     */
+    private void removeUntil(Sample sample) {
+        while (!mSamples.isEmpty() && mSamples.peekFirst() != sample)
+            removeFirst();
+    }
+
+    private void removeFirst() {
+        final Sample head = mSamples.removeFirst();
+        if (head == mKeyFrames.peekFirst())
+            mKeyFrames.removeFirst();
+        mBytes -= cost(head.data.length);
+        mEvicted++;
+    }
+
+    private static long cost(int size) {
+        return size + SAMPLE_OVERHEAD_BYTES;
+    }
+
+    /**
+     * Empties the buffer.
+     *
+     * @return the buffered samples, oldest first, starting with a sync sample of the reference
+     * track. Samples of other tracks from before it are left out.
+     */
+    synchronized List<Sample> drain() {
+        final List<Sample> samples = new ArrayList<>(mSamples.size());
+        final Sample head = mSamples.peekFirst();
+        for (Sample sample : mSamples) {
+            if (sample.timeUs >= head.timeUs || sample.track == mReferenceTrack)
+                samples.add(sample);
+        }
+        mSamples.clear();
+        mKeyFrames.clear();
+        mBytes = 0;
+        return samples;
+    }
+
+    synchronized boolean isEmpty() {
+        return mSamples.isEmpty();
+    }
+
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return the time from the oldest buffered sample to the newest.
+     */
+    synchronized long getDurationUs() {
+        if (mSamples.isEmpty()) return 0;
+        return mSamples.peekLast().timeUs - mSamples.peekFirst().timeUs;
+    }
+
+    /**
+     * @return how many samples were dropped to stay within the limits.
+     */
+    synchronized long getEvicted() {
+        return mEvicted;
+    }
+}
@@ -0,0 +1,329 @@
+package com.afollestad.materialcamera.internal;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The {@link PreRollRecorder} encoders and output, on top of MediaCodec and MediaMuxer.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class PreRollCodecs {
+
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    private PreRollCodecs() {
+    }
+
+    /**
+     * Delivers a codec's output from a thread of its own until the end of the stream.
+     */
+    private abstract static class CodecEncoder implements PreRollRecorder.Encoder {
+
+        final MediaCodec mCodec;
+        private Thread mDrainThread;
+
+        CodecEncoder(MediaFormat format) throws IOException {
+            mCodec = MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+            try {
+                mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            } catch (RuntimeException e) {
+                mCodec.release();
+                throw new IOException("Failed to configure the " + format.getString(MediaFormat.KEY_MIME) + " encoder", e);
+            }
+        }
+
+        @Override
+        public void start(@NonNull final Callback callback) throws IOException {
+            mCodec.start();
+            mDrainThread = new Thread("PreRollDrain") {
+                @Override
+                public void run() {
+                    try {
+                        drain(callback);
+                    } catch (RuntimeException e) {
+                        callback.onError(CodecEncoder.this, e);
+                    }
+                }
+            };
+            mDrainThread.start();
+        }
+
+        private void drain(Callback callback) {
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            while (true) {
+                final int index = mCodec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    callback.onFormat(this, mCodec.getOutputFormat());
+                } else if (index >= 0) {
+                    // The codec config is part of the output format already
+                    if (info.size > 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        final ByteBuffer data = mCodec.getOutputBuffer(index);
+                        data.limit(info.offset + info.size);
+                        data.position(info.offset);
+                        callback.onSample(this, data, info.presentationTimeUs,
+                                (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                    }
+                    mCodec.releaseOutputBuffer(index, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                        return;
+                }
+            }
+        }
+
+        /**
+         * Asks the codec to finish its stream, after which the drain thread ends.
+         */
+        abstract void signalEndOfStream();
+
+        @Override
+        public void stop() {
+            if (mDrainThread != null) {
+                try {
+                    signalEndOfStream();
+                    mDrainThread.join(STOP_TIMEOUT_MS);
+                    if (mDrainThread.isAlive())
+                        Log.w("PreRollCodecs", "Timed out waiting for the end of the stream");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    Log.w("PreRollCodecs", "Failed to end the stream", e);
+                }
+                mDrainThread = null;
+            }
+            try {
+                mCodec.stop();
+            } catch (RuntimeException ignored) {
+                // Never started, or already failed
+            }
+            mCodec.release();
+        }
+    }
+
+    /**
+     * Encodes the frames the camera draws into {@link #getInputSurface()}, with a sync sample every
+     * second so the pre-roll can start close to its limit.
+     */
+    static class VideoEncoder extends CodecEncoder {
+
+        private final Surface mInputSurface;
+
+        VideoEncoder(String mimeType, int width, int height, int bitRate, int frameRate) throws IOException {
+            super(createFormat(mimeType, width, height, bitRate, frameRate));
+            mInputSurface = mCodec.createInputSurface();
+        }
+
+        private static MediaFormat createFormat(String mimeType, int width, int height, int bitRate, int frameRate) {
+            final MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            return format;
+        }
+
+        /**
+         * @return the surface to add to the camera session, it's valid until {@link #stop()}.
+         */
+        Surface getInputSurface() {
+            return mInputSurface;
+        }
+
+        /**
+         * @return the MediaFormat mime type for a MediaRecorder video encoder.
+         */
+        static String mimeType(int videoEncoder) {
+            switch (videoEncoder) {
+                case MediaRecorder.VideoEncoder.H263:
+                    return MediaFormat.MIMETYPE_VIDEO_H263;
+                case MediaRecorder.VideoEncoder.MPEG_4_SP:
+                    return MediaFormat.MIMETYPE_VIDEO_MPEG4;
+                case MediaRecorder.VideoEncoder.VP8:
+                    return MediaFormat.MIMETYPE_VIDEO_VP8;
+                case MediaRecorder.VideoEncoder.HEVC:
+                    return MediaFormat.MIMETYPE_VIDEO_HEVC;
+                default:
+                    return MediaFormat.MIMETYPE_VIDEO_AVC;
+            }
+        }
+
+        @Override
+        void signalEndOfStream() {
+            mCodec.signalEndOfInputStream();
+        }
+
+        @Override
+        public void stop() {
+            super.stop();
+            mInputSurface.release();
+        }
+    }
+
+    /**
+     * Encodes the microphone to AAC. Timestamps count samples from the first read, so they don't
+     * drift, starting from the same clock the camera stamps its frames with.
+     */
+    static class AudioEncoder extends CodecEncoder {
+
+        private final AudioRecord mAudioRecord;
+        private final int mSampleRate;
+        private final int mFrameBytes;
+        private final boolean mRealtime;
+        private volatile boolean mStopping;
+        private Thread mFeedThread;
+
+        /**
+         * @param realtime whether the camera's timestamp source is
+         *                 {@code SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME}, i.e.
+         *                 {@link SystemClock#elapsedRealtimeNanos()} rather than
+         *                 {@link System#nanoTime()}.
+         */
+        AudioEncoder(int sampleRate, int channels, int bitRate, boolean realtime) throws IOException {
+            super(createFormat(sampleRate, channels, bitRate));
+            mSampleRate = sampleRate;
+            mRealtime = realtime;
+            mFrameBytes = 2 * channels;
+            final int channelConfig = channels == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+            final int minBuffer = AudioRecord.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+            mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, sampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT, Math.max(minBuffer, sampleRate * mFrameBytes / 4));
+            if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                mAudioRecord.release();
+                mCodec.release();
+                throw new IOException("Failed to initialize the audio recorder");
+            }
+        }
+
+        private static MediaFormat createFormat(int sampleRate, int channels, int bitRate) {
+            final MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channels);
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+            return format;
+        }
+
+        @Override
+        public void start(@NonNull final Callback callback) throws IOException {
+            super.start(callback);
+            mAudioRecord.startRecording();
+            mFeedThread = new Thread("PreRollAudio") {
+                @Override
+                public void run() {
+                    try {
+                        feed();
+                    } catch (RuntimeException e) {
+                        callback.onError(AudioEncoder.this, e);
+                    }
+                }
+            };
+            mFeedThread.start();
+        }
+
+        private void feed() {
+            final long startUs = (mRealtime ? SystemClock.elapsedRealtimeNanos() : System.nanoTime()) / 1000;
+            long frames = 0;
+            while (true) {
+                final int index = mCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                if (index < 0) continue;
+                final long timeUs = startUs + frames * 1000000 / mSampleRate;
+                if (mStopping) {
+                    mCodec.queueInputBuffer(index, 0, 0, timeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    return;
+                }
+                final ByteBuffer input = mCodec.getInputBuffer(index);
+                input.clear();
+                final int read = mAudioRecord.read(input, input.remaining() - input.remaining() % mFrameBytes);
+                if (read < 0)
+                    throw new IllegalStateException("Failed to read audio: " + read);
+                mCodec.queueInputBuffer(index, 0, read, timeUs, 0);
+                frames += read / mFrameBytes;
+            }
+        }
+
+        @Override
+        void signalEndOfStream() {
+            mStopping = true;
+            try {
+                mFeedThread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void stop() {
+            super.stop();
+            try {
+                mAudioRecord.stop();
+            } catch (IllegalStateException ignored) {
+                // Never started
+            }
+            mAudioRecord.release();
+        }
+    }
+
+    /**
+     * Writes an MP4 file.
+     */
+    static class MuxerOutput implements PreRollRecorder.Output {
+
+        private final String mPath;
+        private final MediaMuxer mMuxer;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+        MuxerOutput(String path, int orientationHint) throws IOException {
+            mPath = path;
+            mMuxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mMuxer.setOrientationHint(orientationHint);
+        }
+
+        @Override
+        public int addTrack(@NonNull Object format) {
+            // Reported by a CodecEncoder
+            return mMuxer.addTrack((MediaFormat) format);
+        }
+
+        @Override
+        public void start() {
+            mMuxer.start();
+        }
+
+        @Override
+        public void writeSample(int track, @NonNull ByteBuffer data, long timeUs, boolean keyFrame) {
+            mInfo.set(data.position(), data.remaining(), timeUs, keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            mMuxer.writeSampleData(track, data, mInfo);
+        }
+
+        @Override
+        public void stop() throws IOException {
+            try {
+                mMuxer.stop();
+            } catch (IllegalStateException e) {
+                throw new IOException("Failed to finalize the recording", e);
+            } finally {
+                mMuxer.release();
+            }
+        }
+
+        @Override
+        public void discard() {
+            mMuxer.release();
+            //noinspection ResultOfMethodCallIgnored
+            new File(mPath).delete();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.afollestad.materialcamera.internal;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps encoding while nothing is being recorded, holding the last few seconds in a
+ * {@link PreRollBuffer}. When {@link #record} is called, the buffer is written out from its first
+ * video sync sample and the live samples follow it into the same output, so the recording starts
+ * before the tap without a gap between the two.
+ * <p>
+ * The encoders and the output are interfaces, so this runs the same with fakes; the formats are
+ * opaque here, only handed from one to the other. The first encoder is the video one.
+ */
+class PreRollRecorder {
+
+    interface Encoder {
+
+        interface Callback {
+
+            /**
+             * The encoder's output format is known, it's called before the first sample.
+             *
+             * @param format handed to {@link Output#addTrack} as is, e.g. a MediaFormat.
+             */
+            void onFormat(@NonNull Encoder encoder, @NonNull Object format);
+
+            /**
+             * @param data the encoded sample between its position and limit, only valid during the
+             *             call.
+             */
+            void onSample(@NonNull Encoder encoder, @NonNull ByteBuffer data, long timeUs, boolean keyFrame);
+
+            void onError(@NonNull Encoder encoder, @NonNull Exception e);
+        }
+
+        void start(@NonNull Callback callback) throws IOException;
+
+        /**
+         * Stops the encoder, returning once its last sample has been delivered.
+         */
+        void stop();
+    }
+
+    interface Output {
+
+        /**
+         * @param format as the encoder reported it.
+         * @return the index of the track added.
+         */
+        int addTrack(@NonNull Object format);
+
+        void start() throws IOException;
+
+        void writeSample(int track, @NonNull ByteBuffer data, long timeUs, boolean keyFrame) throws IOException;
+
+        /**
+         * Finalizes the output, only called if it was started.
+         */
+        void stop() throws IOException;
+
+        /**
+         * Releases an output that was never started and deletes what it created.
+         */
+        void discard();
+    }
+
+    private static final int VIDEO_TRACK = 0;
+
+    private final List<Encoder> mEncoders;
+    private final PreRollBuffer mBuffer;
+    private final Object[] mFormats;
+    private final Encoder.Callback mCallback = new Encoder.Callback() {
+        @Override
+        public void onFormat(@NonNull Encoder encoder, @NonNull Object format) {
+            synchronized (PreRollRecorder.this) {
+                mFormats[mEncoders.indexOf(encoder)] = format;
+            }
+        }
+
+        @Override
+        public void onSample(@NonNull Encoder encoder, @NonNull ByteBuffer data, long timeUs, boolean keyFrame) {
+            final Runnable flush;
+            synchronized (PreRollRecorder.this) {
+                final int track = mEncoders.indexOf(encoder);
+                if (mOutputTracks != null) {
+                    if (mError != null) return;
+                    if (mFlushing) {
+                        // Queued behind the buffer being written
+                        final byte[] copy = new byte[data.remaining()];
+                        data.get(copy);
+                        mPending.add(new PreRollBuffer.Sample(track, copy, timeUs, keyFrame));
+                        return;
+                    }
+                    try {
+                        writeSample(track, data, timeUs, keyFrame);
+                    } catch (IOException e) {
+                        onError(encoder, e);
+                    }
+                    return;
+                }
+                mBuffer.add(track, data, timeUs, keyFrame);
+                flush = prepareFlush();
+            }
+            if (flush != null) mFlushExecutor.execute(flush);
+        }
+
+        @Override
+        public void onError(@NonNull Encoder encoder, @NonNull Exception e) {
+            synchronized (PreRollRecorder.this) {
+                if (mError == null) mError = e;
+            }
+        }
+    };
+
+    private final Executor mFlushExecutor;
+    private Output mOutput;
+    // Output track of each encoder, set once the output is being started
+    private int[] mOutputTracks;
+    // While the buffer is written out, live samples queue up behind it
+    private boolean mFlushing;
+    private List<PreRollBuffer.Sample> mPending = new ArrayList<>();
+    private long mPreRollUs = -1;
+    private Exception mError;
+
+    /**
+     * @param encoders   the video encoder first, then any others, e.g. audio.
+     * @param durationUs how much to keep from before {@link #record} is called.
+     * @param maxBytes   the most memory the kept samples may take.
+     * @param flushExecutor runs the writing of the buffered samples, which can take a while, once
+     *                      recording starts.
+     */
+    PreRollRecorder(@NonNull List<Encoder> encoders, long durationUs, long maxBytes, @NonNull Executor flushExecutor) {
+        mEncoders = encoders;
+        mFlushExecutor = flushExecutor;
+        mBuffer = new PreRollBuffer(VIDEO_TRACK, durationUs, maxBytes);
+        mFormats = new Object[encoders.size()];
+    }
+
+    void start() throws IOException {
+        for (Encoder encoder : mEncoders)
+            encoder.start(mCallback);
+    }
+
+    /**
+     * Starts writing to {@code output}, beginning with what's buffered. If there's no video sync
+     * sample buffered yet, the output starts with the first one encoded. Returns right away, the
+     * buffer is written on the flush executor.
+     */
+    void record(@NonNull Output output) {
+        final Runnable flush;
+        synchronized (this) {
+            if (mOutput != null)
+                throw new IllegalStateException("Already recording");
+            mOutput = output;
+            flush = prepareFlush();
+        }
+        if (flush != null) mFlushExecutor.execute(flush);
+    }
+
+    private boolean hasFormats() {
+        for (Object format : mFormats) {
+            if (format == null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Takes the buffered samples for the output once it can start, called with the lock held.
+     *
+     * @return the job that starts the output and writes them, or null if it can't start yet.
+     */
+    private Runnable prepareFlush() {
+        if (mOutput == null || mOutputTracks != null || mBuffer.isEmpty() || !hasFormats())
+            return null;
+        mOutputTracks = new int[mFormats.length];
+        mFlushing = true;
+        mPreRollUs = mBuffer.getDurationUs();
+        final List<PreRollBuffer.Sample> buffered = mBuffer.drain();
+        final Object[] formats = mFormats.clone();
+        return new Runnable() {
+            @Override
+            public void run() {
+                flush(formats, buffered);
+            }
+        };
+    }
+
+    /**
+     * Starts the output and writes the buffered samples, then those that queued up meanwhile,
+     * until none are left and live samples can be written as they come.
+     */
+    private void flush(Object[] formats, List<PreRollBuffer.Sample> samples) {
+        try {
+            for (int i = 0; i < formats.length; i++)
+                mOutputTracks[i] = mOutput.addTrack(formats[i]);
+            mOutput.start();
+            while (true) {
+                for (PreRollBuffer.Sample sample : samples)
+                    writeSample(sample.track, ByteBuffer.wrap(sample.data), sample.timeUs, sample.keyFrame);
+                synchronized (this) {
+                    if (mPending.isEmpty()) {
+                        mFlushing = false;
+                        notifyAll();
+                        return;
+                    }
+                    samples = mPending;
+                    mPending = new ArrayList<>();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                if (mError == null) mError = e;
+                mPending.clear();
+                mFlushing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeSample(int track, ByteBuffer data, long timeUs, boolean keyFrame) throws IOException {
+        mOutput.writeSample(mOutputTracks[track], data, timeUs, keyFrame);
+    }
+
+    /**
+     * @return how much of the recording came from before {@link #record} was called, or -1 if
+     * nothing has been written yet.
+     */
+    synchronized long getPreRollUs() {
+        return mPreRollUs;
+    }
+
+    /**
+     * @return the first encoding or writing error, which fails the recording, or null.
+     */
+    synchronized Exception getError() {
+        return mError;
+    }
+
+    /**
+     * Stops the encoders and finalizes the output, if recording, after the buffer is written out.
+     *
+     * @return whether the output holds a complete recording.
+     */
+    boolean stop() {
+        // Not holding the lock, the encoders deliver their last samples while stopping
+        for (Encoder encoder : mEncoders)
+            encoder.stop();
+        synchronized (this) {
+            while (mFlushing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (mOutputTracks == null) {
+                // Stopped before a video sync sample or a format arrived
+                if (mOutput != null) mOutput.discard();
+                return false;
+            }
+            try {
+                mOutput.stop();
+            } catch (IOException e) {
+                if (mError == null) mError = e;
+                return false;
+            }
+            return mError == null;
+        }
+    }
+}
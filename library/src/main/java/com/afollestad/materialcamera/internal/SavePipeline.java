@@ -0,0 +1,328 @@
+package com.afollestad.materialcamera.internal;
+
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.afollestad.materialcamera.ICallback;
+import com.afollestad.materialcamera.util.CameraUtil;
+import com.afollestad.materialcamera.util.JpegTransform;
+import com.afollestad.materialcamera.util.MetadataScrubber;
+import com.afollestad.materialcamera.util.TargetSizeEncoder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.afollestad.materialcamera.internal.BaseCaptureActivity.CAMERA_POSITION_FRONT;
+
+/**
+ * Post-processing applied to a still shot once it's on disk, before it's shown for review. Each
+ * stage writes a new file that then replaces the capture, so a stage that fails just leaves the
+ * previous version in place.
+ */
+class SavePipeline {
+
+    interface Stage {
+        /**
+         * @return false if the input needs no changes, {@code output} is ignored then.
+         */
+        boolean process(File input, File output) throws IOException;
+    }
+
+    interface QualityListener {
+        /**
+         * Receives the quality {@code still} was re-encoded at to meet the output limits, and how
+         * long that took; -1 if it was kept as captured. Called on the thread the pipeline runs on.
+         */
+        void onOutputQuality(@NonNull File still, int quality, long encodeTime);
+    }
+
+    private final List<Stage> mStages = new ArrayList<>();
+
+    SavePipeline add(Stage stage) {
+        mStages.add(stage);
+        return this;
+    }
+
+    /**
+     * Builds the stages the capture options ask for: those of {@link #forBurst} and then the proxy.
+     *
+     * @param proxyCaptured whether the camera captured the proxy along with the still; otherwise
+     *                      it's scaled down from the finished still, if requested.
+     */
+    static SavePipeline forStillshot(BaseCaptureInterface captureInterface, boolean proxyCaptured) {
+        final SavePipeline pipeline = forBurst(captureInterface, reportTo(captureInterface));
+        if (captureInterface.stillshotProxySize() > 0 && !proxyCaptured)
+            pipeline.add(new ProxyStage(captureInterface));
+        return pipeline;
+    }
+
+    /**
+     * Builds the stages for each frame of a burst, which get no proxy.
+     *
+     * @param qualities receives the output quality of each frame.
+     */
+    static SavePipeline forBurst(BaseCaptureInterface captureInterface, QualityListener qualities) {
+        final SavePipeline pipeline = new SavePipeline();
+        addEdits(pipeline, captureInterface);
+        if (captureInterface.maxOutputBytes() > 0 || captureInterface.maxOutputDimension() > 0)
+            pipeline.add(new SizeLimitStage(captureInterface, qualities));
+        if (captureInterface.scrubMetadata() != 0)
+            pipeline.add(new ScrubStage(captureInterface.scrubMetadata()));
+        return pipeline;
+    }
+
+    /**
+     * Builds the stages for a proxy the camera captured, so it matches the processed still. The
+     * output limits don't apply to it.
+     */
+    static SavePipeline forProxy(BaseCaptureInterface captureInterface) {
+        final SavePipeline pipeline = new SavePipeline();
+        addEdits(pipeline, captureInterface);
+        if (captureInterface.scrubMetadata() != 0)
+            pipeline.add(new ScrubStage(captureInterface.scrubMetadata()));
+        return pipeline;
+    }
+
+    /**
+     * @return a listener that records the output quality of single stills in the capture result.
+     */
+    static QualityListener reportTo(final BaseCaptureInterface captureInterface) {
+        return new QualityListener() {
+            @Override
+            public void onOutputQuality(@NonNull File still, int quality, long encodeTime) {
+                captureInterface.setOutputQuality(quality, encodeTime);
+            }
+        };
+    }
+
+    private static void addEdits(SavePipeline pipeline, BaseCaptureInterface captureInterface) {
+        final boolean mirror = captureInterface.mirrorFrontStillshots() &&
+                captureInterface.getCurrentCameraPosition() == CAMERA_POSITION_FRONT;
+        if (captureInterface.rotateStillshots() || mirror)
+            pipeline.add(new OrientationStage(mirror));
+        if (captureInterface.stillshotAspect() > 0f)
+            pipeline.add(new CropStage(captureInterface.stillshotAspect()));
+    }
+
+    /**
+     * Runs every stage over {@code file} on the calling thread.
+     */
+    void run(File file) {
+        for (Stage stage : mStages) {
+            final File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+            try {
+                if (stage.process(file, temp) && !temp.renameTo(file))
+                    throw new IOException("Unable to replace " + file);
+            } catch (IOException e) {
+                Log.e("SavePipeline", stage.getClass().getSimpleName() + " failed, keeping its input", e);
+            } finally {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the capture to disk and runs the stages on the calling thread.
+     */
+    void save(byte[] input, File output) throws IOException {
+        final FileOutputStream outputStream = new FileOutputStream(output);
+        try {
+            outputStream.write(input);
+            outputStream.flush();
+        } finally {
+            outputStream.close();
+        }
+        run(output);
+    }
+
+    /**
+     * Writes the capture to disk and runs the stages on a background thread.
+     *
+     * @param callback will always return in originating thread, with an error only if the capture
+     *                 couldn't be written.
+     */
+    void saveAsync(final byte[] input, final File output, final ICallback callback) {
+        final Handler handler = new Handler();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    save(input, output);
+
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.done(null);
+                        }
+                    });
+                } catch (final Exception e) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.done(e);
+                        }
+                    });
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Losslessly rotates the pixels upright per the EXIF orientation, which is then reset, and
+     * optionally mirrors them so front camera shots match the preview.
+     */
+    static class OrientationStage implements Stage {
+
+        private final boolean mMirror;
+
+        OrientationStage(boolean mirror) {
+            mMirror = mirror;
+        }
+
+        @Override
+        public boolean process(File input, File output) throws IOException {
+            final int orientation = new ExifInterface(input.getAbsolutePath())
+                    .getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            if (orientation == ExifInterface.ORIENTATION_NORMAL && !mMirror)
+                return false;
+            int transform = JpegTransform.fromExifOrientation(orientation);
+            if (mMirror) transform = JpegTransform.mirror(transform);
+            JpegTransform.transform(input, output, transform);
+            return true;
+        }
+    }
+
+    /**
+     * Losslessly crops around the center to an aspect ratio of the long side to the short side.
+     */
+    static class CropStage implements Stage {
+
+        private final float mAspect;
+
+        CropStage(float aspect) {
+            mAspect = aspect < 1f ? 1f / aspect : aspect;
+        }
+
+        @Override
+        public boolean process(File input, File output) throws IOException {
+            final BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(input.getAbsolutePath(), opts);
+            final int width = opts.outWidth;
+            final int height = opts.outHeight;
+            if (width <= 0 || height <= 0)
+                throw new IOException("Unable to read the size of " + input);
+
+            final boolean landscape = width >= height;
+            int longSide = Math.max(width, height);
+            int shortSide = Math.min(width, height);
+            if (Math.abs((float) longSide / shortSide - mAspect) < 0.01f)
+                return false;
+            if ((float) longSide / shortSide > mAspect)
+                longSide = Math.round(shortSide * mAspect);
+            else
+                shortSide = Math.round(longSide / mAspect);
+            final int cropWidth = landscape ? longSide : shortSide;
+            final int cropHeight = landscape ? shortSide : longSide;
+            JpegTransform.crop(input, output, (width - cropWidth) / 2, (height - cropHeight) / 2, cropWidth, cropHeight);
+            return true;
+        }
+    }
+
+    /**
+     * Scales down and re-encodes at the highest quality that meets the output limits. Runs last,
+     * since it's the only lossy stage.
+     * <p>
+     * The frames of a burst go through it one at a time: each search already spreads its encodes
+     * over {@link TargetSizeEncoder}'s pool, and holds a whole decoded frame while it runs.
+     */
+    static class SizeLimitStage implements Stage {
+
+        private final BaseCaptureInterface mInterface;
+        private final QualityListener mQualities;
+
+        SizeLimitStage(@NonNull BaseCaptureInterface captureInterface, @NonNull QualityListener qualities) {
+            mInterface = captureInterface;
+            mQualities = qualities;
+        }
+
+        @Override
+        public synchronized boolean process(File input, File output) throws IOException {
+            mQualities.onOutputQuality(input, -1, -1);
+            final TargetSizeEncoder.Result result = TargetSizeEncoder.fit(input, output,
+                    mInterface.maxOutputBytes(), mInterface.maxOutputDimension());
+            if (result == null)
+                return false;
+            Log.d("SavePipeline", "Re-encoded at quality " + result.quality + " (" + result.jpeg.length +
+                    " bytes) after " + result.attempts + " encodes in " + result.elapsedMs + "ms");
+            mQualities.onOutputQuality(input, result.quality, result.elapsedMs);
+            return true;
+        }
+    }
+
+    /**
+     * Strips the selected metadata, copying the image data as is. Runs after the stages that read
+     * the EXIF orientation or carry metadata over.
+     */
+    static class ScrubStage implements Stage {
+
+        private final int mFlags;
+
+        ScrubStage(int flags) {
+            mFlags = flags;
+        }
+
+        @Override
+        public boolean process(File input, File output) throws IOException {
+            return MetadataScrubber.scrub(input, output, mFlags);
+        }
+    }
+
+    /**
+     * Scales the finished still down into a separate proxy file, leaving the still itself alone.
+     * Its URI is handed to the interface on the main thread, ahead of whatever the caller posts
+     * there once the pipeline is done.
+     */
+    static class ProxyStage implements Stage {
+
+        private final BaseCaptureInterface mInterface;
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+        ProxyStage(@NonNull BaseCaptureInterface captureInterface) {
+            mInterface = captureInterface;
+        }
+
+        @Override
+        public boolean process(File input, File output) throws IOException {
+            setProxyUri(null);
+            final File proxy = CameraUtil.makeProxyFile(input);
+            final TargetSizeEncoder.Result result = TargetSizeEncoder.fit(input, proxy, -1,
+                    mInterface.stillshotProxySize());
+            if (result != null) {
+                Log.d("SavePipeline", "Proxy scaled down in " + result.elapsedMs + "ms");
+                setProxyUri(Uri.fromFile(proxy).toString());
+            } else {
+                setProxyUri(Uri.fromFile(input).toString());
+            }
+            return false;
+        }
+
+        private void setProxyUri(final String uri) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mInterface.setProxyUri(uri);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.afollestad.materialcamera.internal;
+
+import com.afollestad.materialcamera.util.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The focus lock and exposure precapture sequence that precedes a Camera2 still, kept apart from
+ * the camera itself: it's fed the AF and AE states of each result and tells its {@link Callback}
+ * which request to send next. The shutter starts a sequence on the main thread while results arrive
+ * on the camera's background thread, so every transition is a compare-and-set on one atomic state
+ * and only the thread that wins it acts.
+ * <p>
+ * Each waiting phase has a deadline. A camera that never reports a locked focus or a converged
+ * exposure gets its still captured anyway once the deadline passes, and a still that never starts
+ * exposing puts the sequence back to idle, so the shutter can't hang. How long each phase took is
+ * kept in a histogram per phase.
+ */
+class StillCaptureEngine {
+
+    interface Callback {
+        /**
+         * Sends the AF trigger, with results watched from now on.
+         */
+        void lockFocus();
+
+        /**
+         * Sends the AE precapture trigger, with results watched from now on.
+         */
+        void triggerPrecapture();
+
+        /**
+         * Sends the still request. {@link #onCaptureStarted()} is expected once it's exposing.
+         */
+        void captureStill();
+
+        /**
+         * The still never started exposing, the sequence is idle again and the focus can be
+         * unlocked.
+         */
+        void onCaptureTimedOut();
+
+        /**
+         * Calls {@link #checkDeadline()} after the given delay, replacing any earlier request.
+         */
+        void scheduleDeadline(long delayMs);
+    }
+
+    interface Clock {
+        long elapsedMs();
+    }
+
+    static final int STATE_PREVIEW = 0;
+    static final int STATE_WAITING_LOCK = 1;
+    static final int STATE_WAITING_PRECAPTURE = 2;
+    static final int STATE_WAITING_NON_PRECAPTURE = 3;
+    static final int STATE_PICTURE_TAKEN = 4;
+    private static final String[] STATE_NAMES = {"preview", "lock", "precapture", "non-precapture", "picture"};
+
+    // Values of the CaptureResult AF and AE state constants
+    static final int AF_STATE_FOCUSED_LOCKED = 4;
+    static final int AF_STATE_NOT_FOCUSED_LOCKED = 5;
+    static final int AE_STATE_CONVERGED = 2;
+    static final int AE_STATE_FLASH_REQUIRED = 4;
+    static final int AE_STATE_PRECAPTURE = 5;
+
+    /**
+     * How long each state may last before the sequence moves on anyway, indexed by state.
+     */
+    private static final long[] DEFAULT_TIMEOUTS_MS = {0, 3000, 1000, 3000, 3000};
+
+    private final Callback mCallback;
+    private final Clock mClock;
+    private final AtomicInteger mState = new AtomicInteger(STATE_PREVIEW);
+    // Set from any thread, read on the camera thread
+    private final AtomicLongArray mTimeouts = new AtomicLongArray(DEFAULT_TIMEOUTS_MS);
+    // Indexed by state, how long it lasted
+    private final LatencyHistogram[] mLatencies = new LatencyHistogram[STATE_NAMES.length];
+    // From the shutter to the still exposing
+    private final LatencyHistogram mSequenceLatency = new LatencyHistogram();
+    private final AtomicInteger mTimeoutsHit = new AtomicInteger();
+    private volatile long mSequenceStartedAt;
+    private volatile long mStateEnteredAt;
+
+    StillCaptureEngine(Callback callback, Clock clock) {
+        mCallback = callback;
+        mClock = clock;
+        for (int i = 0; i < mLatencies.length; i++)
+            mLatencies[i] = new LatencyHistogram();
+    }
+
+    void setTimeout(int state, long timeoutMs) {
+        mTimeouts.set(state, timeoutMs);
+    }
+
+    int getState() {
+        return mState.get();
+    }
+
+    boolean isIdle() {
+        return mState.get() == STATE_PREVIEW;
+    }
+
+    LatencyHistogram getLatency(int state) {
+        return mLatencies[state];
+    }
+
+    LatencyHistogram getSequenceLatency() {
+        return mSequenceLatency;
+    }
+
+    int getTimeoutsHit() {
+        return mTimeoutsHit.get();
+    }
+
+    /**
+     * Starts a sequence for the shutter, with a focus lock first if the camera can focus.
+     *
+     * @return false if a sequence is already running.
+     */
+    boolean start(boolean focusAvailable) {
+        if (!isIdle())
+            return false;
+        // Only the shutter leaves the idle state, so the times can be set before the state that
+        // makes the background thread look at them
+        final long now = mClock.elapsedMs();
+        mSequenceStartedAt = now;
+        mStateEnteredAt = now;
+        final int first = focusAvailable ? STATE_WAITING_LOCK : STATE_WAITING_PRECAPTURE;
+        if (!mState.compareAndSet(STATE_PREVIEW, first))
+            return false;
+        mCallback.scheduleDeadline(mTimeouts.get(first));
+        if (focusAvailable) mCallback.lockFocus();
+        else mCallback.triggerPrecapture();
+        return true;
+    }
+
+    /**
+     * Advances the sequence with the 3A state of a capture result; either may be null on devices
+     * that don't report it.
+     */
+    void onResult(Integer afState, Integer aeState) {
+        switch (mState.get()) {
+            case STATE_WAITING_LOCK:
+                if (afState == null) {
+                    capture(STATE_WAITING_LOCK);
+                } else if (afState == AF_STATE_FOCUSED_LOCKED || afState == AF_STATE_NOT_FOCUSED_LOCKED) {
+                    if (aeState == null || aeState == AE_STATE_CONVERGED) {
+                        capture(STATE_WAITING_LOCK);
+                    } else if (advance(STATE_WAITING_LOCK, STATE_WAITING_PRECAPTURE)) {
+                        mCallback.triggerPrecapture();
+                    }
+                }
+                break;
+            case STATE_WAITING_PRECAPTURE:
+                if (aeState == null || aeState == AE_STATE_PRECAPTURE ||
+                        aeState == AE_STATE_FLASH_REQUIRED || aeState == AE_STATE_CONVERGED)
+                    advance(STATE_WAITING_PRECAPTURE, STATE_WAITING_NON_PRECAPTURE);
+                break;
+            case STATE_WAITING_NON_PRECAPTURE:
+                if (aeState == null || aeState != AE_STATE_PRECAPTURE)
+                    capture(STATE_WAITING_NON_PRECAPTURE);
+                break;
+        }
+        checkDeadline();
+    }
+
+    /**
+     * Ends the sequence once the still is exposing.
+     *
+     * @return false if the sequence had already ended, e.g. because the capture timed out.
+     */
+    boolean onCaptureStarted() {
+        if (!advance(STATE_PICTURE_TAKEN, STATE_PREVIEW))
+            return false;
+        mSequenceLatency.record(mClock.elapsedMs() - mSequenceStartedAt);
+        return true;
+    }
+
+    /**
+     * Moves on from the current state if it has outlasted its deadline: a waiting state captures
+     * anyway, a still that never started gives up.
+     */
+    void checkDeadline() {
+        final int state = mState.get();
+        if (state == STATE_PREVIEW || mClock.elapsedMs() - mStateEnteredAt < mTimeouts.get(state))
+            return;
+        if (state == STATE_PICTURE_TAKEN) {
+            if (advance(STATE_PICTURE_TAKEN, STATE_PREVIEW)) {
+                mTimeoutsHit.incrementAndGet();
+                mCallback.onCaptureTimedOut();
+            }
+        } else if (capture(state)) {
+            mTimeoutsHit.incrementAndGet();
+        }
+    }
+
+    /**
+     * Abandons a running sequence without a callback, e.g. when the camera closes.
+     */
+    void reset() {
+        mState.set(STATE_PREVIEW);
+    }
+
+    private boolean capture(int from) {
+        if (!advance(from, STATE_PICTURE_TAKEN))
+            return false;
+        mCallback.captureStill();
+        return true;
+    }
+
+    private boolean advance(int from, int to) {
+        if (!mState.compareAndSet(from, to))
+            return false;
+        final long now = mClock.elapsedMs();
+        mLatencies[from].record(now - mStateEnteredAt);
+        mStateEnteredAt = now;
+        if (to != STATE_PREVIEW)
+            mCallback.scheduleDeadline(mTimeouts.get(to));
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("Shutter to exposure: ").append(mSequenceLatency);
+        for (int state = STATE_WAITING_LOCK; state < STATE_NAMES.length; state++) {
+            if (mLatencies[state].getCount() > 0)
+                sb.append("; ").append(STATE_NAMES[state]).append(": ").append(mLatencies[state]);
+        }
+        return sb.append("; deadlines hit: ").append(mTimeoutsHit.get()).toString();
+    }
+}
@@ -7,6 +7,7 @@ import android.graphics.Color;
 import android.hardware.Camera;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
+import android.media.CamcorderProfile;
 import android.os.Build;
 import android.support.annotation.ColorInt;
 import android.support.annotation.NonNull;
@@ -53,6 +54,28 @@ public class CameraUtil {
         return new File(dir, prefix + timeStamp + extension);
     }
 
+    /**
+     * @return the file for a reduced size copy of {@code original}, next to it.
+     */
+    public static File makeProxyFile(@NonNull File original) {
+        final String name = original.getName();
+        final int dot = name.lastIndexOf('.');
+        return new File(original.getParentFile(), dot > 0 ?
+                name.substring(0, dot) + "_proxy" + name.substring(dot) : name + "_proxy");
+    }
+
+    /**
+     * @param timeLapse use the quality's time-lapse counterpart, if the camera has one.
+     */
+    public static CamcorderProfile getRecordingProfile(int cameraId, int quality, boolean timeLapse) {
+        if (timeLapse) {
+            final int timeLapseQuality = CamcorderProfile.QUALITY_TIME_LAPSE_LOW - CamcorderProfile.QUALITY_LOW + quality;
+            if (CamcorderProfile.hasProfile(cameraId, timeLapseQuality))
+                return CamcorderProfile.get(cameraId, timeLapseQuality);
+        }
+        return CamcorderProfile.get(cameraId, quality);
+    }
+
     public static boolean hasCamera(Context context) {
         return context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_CAMERA) ||
                 context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT);
@@ -0,0 +1,167 @@
+package com.afollestad.materialcamera.util;
+
+/**
+ * In-place edits of an EXIF APP1 segment as read by {@link JpegDecoder}: marker, length, the
+ * "Exif\0\0" header and then TIFF structured data. Only single valued SHORT and LONG entries are
+ * rewritten and removed entries are zeroed rather than cut out, which keeps the segment the same
+ * size.
+ */
+class ExifSegment {
+
+    static final int TAG_ORIENTATION = 0x0112;
+    static final int TAG_EXIF_IFD = 0x8769;
+    static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+    static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+    static final int TAG_GPS_IFD = 0x8825;
+
+    private static final int TIFF_START = 10;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    // Bytes per value of each TIFF field type, indexed by type
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    private ExifSegment() {
+    }
+
+    static boolean isExif(byte[] segment) {
+        return segment.length >= TIFF_START + 8 && (segment[1] & 0xFF) == (JpegTables.APP1 & 0xFF) &&
+                segment[4] == 'E' && segment[5] == 'x' && segment[6] == 'i' && segment[7] == 'f' &&
+                segment[8] == 0 && segment[9] == 0;
+    }
+
+    /**
+     * Sets the orientation tag back to 1 (normal), if present.
+     */
+    static void resetOrientation(byte[] segment) {
+        if (!isExif(segment)) return;
+        setValue(segment, findEntry(segment, firstIfd(segment), TAG_ORIENTATION), 1);
+    }
+
+    /**
+     * Updates the pixel dimensions recorded in the EXIF sub-IFD, if present.
+     */
+    static void setPixelDimensions(byte[] segment, int width, int height) {
+        if (!isExif(segment)) return;
+        final int exifIfd = pointedIfd(segment, firstIfd(segment), TAG_EXIF_IFD);
+        setValue(segment, findEntry(segment, exifIfd, TAG_PIXEL_X_DIMENSION), width);
+        setValue(segment, findEntry(segment, exifIfd, TAG_PIXEL_Y_DIMENSION), height);
+    }
+
+    /**
+     * @return the absolute offset of IFD0, or -1.
+     */
+    static int firstIfd(byte[] segment) {
+        return toIfd(segment, readInt(segment, TIFF_START + 4));
+    }
+
+    /**
+     * @return the absolute offset of the IFD that {@code tag} points to from within {@code ifd}, or -1.
+     */
+    static int pointedIfd(byte[] segment, int ifd, int tag) {
+        final int entry = findEntry(segment, ifd, tag);
+        return entry < 0 ? -1 : toIfd(segment, readInt(segment, entry + 8));
+    }
+
+    /**
+     * @return the absolute offset of the 12 byte entry for {@code tag} in {@code ifd}, or -1.
+     */
+    static int findEntry(byte[] segment, int ifd, int tag) {
+        if (ifd < 0) return -1;
+        final int entries = readShort(segment, ifd);
+        for (int i = 0; i < entries; i++) {
+            final int entry = ifd + 2 + i * 12;
+            if (entry + 12 > segment.length) return -1;
+            if (readShort(segment, entry) == tag) return entry;
+        }
+        return -1;
+    }
+
+    /**
+     * Overwrites the value of a single valued SHORT or LONG entry; other entries are left alone.
+     */
+    static void setValue(byte[] segment, int entry, int value) {
+        if (entry < 0 || readInt(segment, entry + 4) != 1) return;
+        final int type = readShort(segment, entry + 2);
+        if (type == TYPE_SHORT) {
+            // Stored left-justified in the 4 byte value field
+            writeShort(segment, entry + 8, value);
+        } else if (type == TYPE_LONG) {
+            writeShort(segment, entry + 8 + (isLittleEndian(segment) ? 2 : 0), value >>> 16);
+            writeShort(segment, entry + 8 + (isLittleEndian(segment) ? 0 : 2), value);
+        }
+    }
+
+    /**
+     * Removes an entry from {@code ifd} and zeroes any value it stored outside of the entry. Later
+     * entries and the next IFD link move up, so the segment keeps its size and other offsets.
+     *
+     * @return false if there was no such entry.
+     */
+    static boolean removeEntry(byte[] segment, int ifd, int tag) {
+        final int entry = findEntry(segment, ifd, tag);
+        if (entry < 0) return false;
+        clearValue(segment, entry);
+        final int entries = readShort(segment, ifd);
+        final int end = Math.min(segment.length, ifd + 2 + entries * 12 + 4);
+        System.arraycopy(segment, entry + 12, segment, entry, end - entry - 12);
+        for (int i = end - 12; i < end; i++)
+            segment[i] = 0;
+        writeShort(segment, ifd, entries - 1);
+        return true;
+    }
+
+    /**
+     * Zeroes every value of {@code ifd} and then the IFD itself. Whatever points to it must be
+     * removed too.
+     */
+    static void clearIfd(byte[] segment, int ifd) {
+        if (ifd < 0) return;
+        final int entries = readShort(segment, ifd);
+        final int end = Math.min(segment.length, ifd + 2 + entries * 12 + 4);
+        for (int entry = ifd + 2; entry + 12 <= end; entry += 12)
+            clearValue(segment, entry);
+        for (int i = ifd; i < end; i++)
+            segment[i] = 0;
+    }
+
+    /**
+     * Zeroes the out-of-line value of an entry; values of 4 bytes or less live in the entry itself.
+     */
+    private static void clearValue(byte[] segment, int entry) {
+        final int type = readShort(segment, entry + 2);
+        if (type <= 0 || type >= TYPE_SIZES.length) return;
+        final long size = (long) TYPE_SIZES[type] * (readInt(segment, entry + 4) & 0xFFFFFFFFL);
+        if (size <= 4) return;
+        final int start = TIFF_START + readInt(segment, entry + 8);
+        if (start < TIFF_START || start + size > segment.length) return;
+        for (int i = start; i < start + size; i++)
+            segment[i] = 0;
+    }
+
+    private static int toIfd(byte[] segment, int offset) {
+        final int ifd = TIFF_START + offset;
+        return offset < 0 || ifd + 2 > segment.length ? -1 : ifd;
+    }
+
+    private static boolean isLittleEndian(byte[] segment) {
+        return segment[TIFF_START] == 'I';
+    }
+
+    static int readShort(byte[] segment, int offset) {
+        final int a = segment[offset] & 0xFF, b = segment[offset + 1] & 0xFF;
+        return isLittleEndian(segment) ? b << 8 | a : a << 8 | b;
+    }
+
+    static int readInt(byte[] segment, int offset) {
+        final boolean littleEndian = isLittleEndian(segment);
+        final int high = readShort(segment, offset + (littleEndian ? 2 : 0));
+        final int low = readShort(segment, offset + (littleEndian ? 0 : 2));
+        return high << 16 | low;
+    }
+
+    private static void writeShort(byte[] segment, int offset, int value) {
+        final boolean littleEndian = isLittleEndian(segment);
+        segment[offset] = (byte) (littleEndian ? value : value >> 8);
+        segment[offset + 1] = (byte) (littleEndian ? value >> 8 : value);
+    }
+}
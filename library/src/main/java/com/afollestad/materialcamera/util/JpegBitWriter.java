@@ -0,0 +1,108 @@
+package com.afollestad.materialcamera.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.afollestad.materialcamera.util.JpegTables.ZIGZAG;
+import static com.afollestad.materialcamera.util.JpegTables.bitLength;
+
+/**
+ * Accumulates Huffman coded entropy data, inserting the 0x00 stuffing byte after each 0xFF.
+ */
+class JpegBitWriter {
+
+    private byte[] mBuffer;
+    private int mLength;
+    private int mBits;
+    private int mBitCount;
+
+    JpegBitWriter(int capacity) {
+        mBuffer = new byte[Math.max(64, capacity)];
+    }
+
+    /**
+     * Appends the lowest {@code size} bits of {@code code}, most significant bit first.
+     */
+    void write(int code, int size) {
+        mBits = (mBits << size) | (code & ((1 << size) - 1));
+        mBitCount += size;
+        while (mBitCount >= 8) {
+            final int b = (mBits >> (mBitCount - 8)) & 0xFF;
+            put(b);
+            if (b == 0xFF) put(0);
+            mBitCount -= 8;
+        }
+    }
+
+    /**
+     * Huffman codes one block: the DC difference, then run-length coded AC coefficients.
+     *
+     * @param quantized the block's quantized coefficients, in natural order.
+     */
+    void writeBlock(int[] quantized, int dcDiff, int[] dcCodes, int[] dcSizes, int[] acCodes, int[] acSizes) {
+        int category = bitLength(dcDiff);
+        write(dcCodes[category], dcSizes[category]);
+        if (category > 0)
+            write(dcDiff < 0 ? dcDiff - 1 : dcDiff, category);
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            final int value = quantized[ZIGZAG[k]];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                write(acCodes[0xF0], acSizes[0xF0]);
+                run -= 16;
+            }
+            category = bitLength(value);
+            final int symbol = (run << 4) | category;
+            write(acCodes[symbol], acSizes[symbol]);
+            write(value < 0 ? value - 1 : value, category);
+            run = 0;
+        }
+        if (run > 0)
+            write(acCodes[0], acSizes[0]);
+    }
+
+    /**
+     * Pads the last byte with 1 bits, as required before a marker.
+     */
+    void flush() {
+        if (mBitCount > 0)
+            write(0x7F, 8 - mBitCount);
+        mBits = 0;
+    }
+
+    void reset() {
+        mLength = 0;
+        mBits = 0;
+        mBitCount = 0;
+    }
+
+    int length() {
+        return mLength;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(mBuffer, 0, mLength);
+    }
+
+    /**
+     * Writes out the whole bytes so far and empties the buffer, keeping any pending bits.
+     */
+    void drainTo(OutputStream out) throws IOException {
+        writeTo(out);
+        mLength = 0;
+    }
+
+    private void put(int b) {
+        if (mLength == mBuffer.length) {
+            final byte[] grown = new byte[mBuffer.length * 2];
+            System.arraycopy(mBuffer, 0, grown, 0, mLength);
+            mBuffer = grown;
+        }
+        mBuffer[mLength++] = (byte) b;
+    }
+}
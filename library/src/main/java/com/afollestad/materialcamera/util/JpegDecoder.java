@@ -0,0 +1,594 @@
+package com.afollestad.materialcamera.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.afollestad.materialcamera.util.JpegTables.APP0;
+import static com.afollestad.materialcamera.util.JpegTables.COM;
+import static com.afollestad.materialcamera.util.JpegTables.DHT;
+import static com.afollestad.materialcamera.util.JpegTables.DQT;
+import static com.afollestad.materialcamera.util.JpegTables.DRI;
+import static com.afollestad.materialcamera.util.JpegTables.EOI;
+import static com.afollestad.materialcamera.util.JpegTables.RST0;
+import static com.afollestad.materialcamera.util.JpegTables.SOF0;
+import static com.afollestad.materialcamera.util.JpegTables.SOF1;
+import static com.afollestad.materialcamera.util.JpegTables.SOI;
+import static com.afollestad.materialcamera.util.JpegTables.SOS;
+import static com.afollestad.materialcamera.util.JpegTables.ZIGZAG;
+
+/**
+ * Baseline JPEG decoder that can decode at 1/2, 1/4 or 1/8 scale straight from the DCT
+ * coefficients. Scaled decodes run a reduced size inverse DCT on only the low frequency
+ * coefficients of each block (at 1/8 just the DC coefficient is used), which makes a thumbnail cost a
+ * fraction of a full decode.
+ * <p>
+ * The file is streamed from a {@link FileChannel} and decoded one MCU row at a time into a
+ * caller-provided ARGB buffer, so memory use doesn't grow with the image size.
+ */
+public class JpegDecoder {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final float[][] IDCT_TABLES = new float[9][];
+    private static final int[] UNIT_QUANT = new int[64];
+
+    static {
+        Arrays.fill(UNIT_QUANT, 1);
+        for (int size = 1; size <= 8; size <<= 1) {
+            // table[x * size + u] = C(u) * cos((2x + 1) * u * PI / (2 * size)) / 2
+            final float[] table = new float[size * size];
+            for (int x = 0; x < size; x++) {
+                for (int u = 0; u < size; u++) {
+                    final double c = u == 0 ? Math.sqrt(0.5) : 1.0;
+                    table[x * size + u] = (float) (c * Math.cos((2 * x + 1) * u * Math.PI / (2 * size)) / 2);
+                }
+            }
+            IDCT_TABLES[size] = table;
+        }
+    }
+
+    /**
+     * Receives the quantized coefficients of each block, in natural order, from {@link #readCoefficients}.
+     */
+    interface BlockSink {
+        void block(int component, int blockX, int blockY, int[] coefficients) throws IOException;
+    }
+
+    private static class Component {
+        int id;
+        int h;
+        int v;
+        int quantTable;
+        int dcTable;
+        int acTable;
+        int predictor;
+    }
+
+    private static class HuffmanTable {
+        // 8 bit lookahead: (code length << 8) | symbol, 0 if the code is longer
+        final int[] lookup = new int[256];
+        final int[] maxCode = new int[18];
+        final int[] valueOffset = new int[17];
+        final int[] values;
+
+        HuffmanTable(int[] bits, int[] values) {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                valueOffset[length] = k - code;
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    if (length <= 8) {
+                        final int shift = 8 - length;
+                        for (int fill = 0; fill < 1 << shift; fill++)
+                            lookup[(code << shift) | fill] = (length << 8) | values[k];
+                    }
+                    code++;
+                    k++;
+                }
+                maxCode[length] = bits[length - 1] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final List<byte[]> mMarkers;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long mFilePosition;
+
+    private final int[][] mQuantTables = new int[4][];
+    private final HuffmanTable[] mDcTables = new HuffmanTable[4];
+    private final HuffmanTable[] mAcTables = new HuffmanTable[4];
+    private Component[] mComponents;
+    private int mWidth;
+    private int mHeight;
+    private int mRestartInterval;
+    private int mMaxH;
+    private int mMaxV;
+
+    // Entropy decoder state
+    private long mBits;
+    private int mBitCount;
+    private int mMarker;
+
+    /**
+     * Reads the headers up to the start of the scan.
+     *
+     * @throws IOException if the file isn't a baseline JPEG.
+     */
+    public JpegDecoder(@NonNull FileChannel channel) throws IOException {
+        this(channel, null);
+    }
+
+    /**
+     * @param markers if not null, receives each APPn and COM segment in full (marker, length and
+     *                payload) so they can be written back out unchanged.
+     */
+    JpegDecoder(@NonNull FileChannel channel, @Nullable List<byte[]> markers) throws IOException {
+        mChannel = channel;
+        mMarkers = markers;
+        mFilePosition = 0;
+        mBuffer.limit(0);
+        readHeaders();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @param scale 1, 2, 4 or 8.
+     */
+    public int getScaledWidth(int scale) {
+        return (mWidth + scale - 1) / scale;
+    }
+
+    public int getScaledHeight(int scale) {
+        return (mHeight + scale - 1) / scale;
+    }
+
+    int getComponentCount() {
+        return mComponents.length;
+    }
+
+    int getComponentId(int component) {
+        return mComponents[component].id;
+    }
+
+    int getSamplingH(int component) {
+        return mComponents[component].h;
+    }
+
+    int getSamplingV(int component) {
+        return mComponents[component].v;
+    }
+
+    int getMaxSamplingH() {
+        return mMaxH;
+    }
+
+    int getMaxSamplingV() {
+        return mMaxV;
+    }
+
+    /**
+     * @return the component's quantization table, in natural order.
+     */
+    int[] getQuantTable(int component) {
+        return mQuantTables[mComponents[component].quantTable];
+    }
+
+    /**
+     * Entropy decodes the scan without dequantizing or transforming anything, for lossless
+     * transcoding. Blocks are delivered in MCU order; block coordinates are per component, counting
+     * the padding blocks that fill out the last MCU row and column. Can only be called once, and
+     * not together with {@link #decode}.
+     */
+    void readCoefficients(@NonNull BlockSink sink) throws IOException {
+        final int mcusX = (mWidth + mMaxH * 8 - 1) / (mMaxH * 8);
+        final int mcusY = (mHeight + mMaxV * 8 - 1) / (mMaxV * 8);
+        final int[] coefficients = new int[64];
+        int restartsLeft = mRestartInterval;
+        int nextRestart = 0;
+        for (int mcuY = 0; mcuY < mcusY; mcuY++) {
+            for (int mcuX = 0; mcuX < mcusX; mcuX++) {
+                if (mRestartInterval > 0) {
+                    if (restartsLeft == 0) {
+                        readRestart(nextRestart);
+                        nextRestart = (nextRestart + 1) & 7;
+                        restartsLeft = mRestartInterval;
+                    }
+                    restartsLeft--;
+                }
+                for (int c = 0; c < mComponents.length; c++) {
+                    final Component component = mComponents[c];
+                    for (int by = 0; by < component.v; by++) {
+                        for (int bx = 0; bx < component.h; bx++) {
+                            decodeBlock(component, coefficients, 8, UNIT_QUANT);
+                            sink.block(c, mcuX * component.h + bx, mcuY * component.v + by, coefficients);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the image scaled down by {@code scale}. Can only be called once per decoder.
+     *
+     * @param scale 1, 2, 4 or 8.
+     * @param argb  receives getScaledWidth(scale) * getScaledHeight(scale) pixels.
+     */
+    public void decode(int scale, @NonNull int[] argb) throws IOException {
+        if (scale != 1 && scale != 2 && scale != 4 && scale != 8)
+            throw new IllegalArgumentException("Scale must be 1, 2, 4 or 8");
+        final int outWidth = getScaledWidth(scale);
+        final int outHeight = getScaledHeight(scale);
+        if (argb.length < outWidth * outHeight)
+            throw new IllegalArgumentException("Output buffer is smaller than " + outWidth + "x" + outHeight);
+
+        final int size = 8 / scale;
+        final float[] idct = IDCT_TABLES[size];
+        final int mcusX = (mWidth + mMaxH * 8 - 1) / (mMaxH * 8);
+        final int mcusY = (mHeight + mMaxV * 8 - 1) / (mMaxV * 8);
+        final int count = mComponents.length;
+
+        // One MCU row of samples per component, at the scaled size
+        final byte[][] planes = new byte[count][];
+        final int[] planeWidths = new int[count];
+        for (int c = 0; c < count; c++) {
+            planeWidths[c] = mcusX * mComponents[c].h * size;
+            planes[c] = new byte[planeWidths[c] * mComponents[c].v * size];
+        }
+        final int[] coefficients = new int[64];
+        final float[] workspace = new float[64];
+        final int mcuRowHeight = mMaxV * size;
+
+        int restartsLeft = mRestartInterval;
+        int nextRestart = 0;
+        for (int mcuY = 0; mcuY < mcusY; mcuY++) {
+            for (int mcuX = 0; mcuX < mcusX; mcuX++) {
+                if (mRestartInterval > 0) {
+                    if (restartsLeft == 0) {
+                        readRestart(nextRestart);
+                        nextRestart = (nextRestart + 1) & 7;
+                        restartsLeft = mRestartInterval;
+                    }
+                    restartsLeft--;
+                }
+                for (int c = 0; c < count; c++) {
+                    final Component component = mComponents[c];
+                    for (int by = 0; by < component.v; by++) {
+                        for (int bx = 0; bx < component.h; bx++) {
+                            decodeBlock(component, coefficients, size, mQuantTables[component.quantTable]);
+                            final int offset = by * size * planeWidths[c] + (mcuX * component.h + bx) * size;
+                            inverseDct(coefficients, size, idct, workspace, planes[c], offset, planeWidths[c]);
+                        }
+                    }
+                }
+            }
+            final int firstRow = mcuY * mcuRowHeight;
+            final int rows = Math.min(mcuRowHeight, outHeight - firstRow);
+            for (int row = 0; row < rows; row++)
+                convertRow(planes, planeWidths, row, argb, (firstRow + row) * outWidth, outWidth);
+        }
+    }
+
+    private void convertRow(byte[][] planes, int[] planeWidths, int row, int[] out, int offset, int width) {
+        if (mComponents.length == 1) {
+            final int start = row * planeWidths[0];
+            for (int x = 0; x < width; x++) {
+                final int gray = planes[0][start + x] & 0xFF;
+                out[offset + x] = 0xFF000000 | gray << 16 | gray << 8 | gray;
+            }
+            return;
+        }
+        final Component cy = mComponents[0], cb = mComponents[1], cr = mComponents[2];
+        final int yRow = (row * cy.v / mMaxV) * planeWidths[0];
+        final int cbRow = (row * cb.v / mMaxV) * planeWidths[1];
+        final int crRow = (row * cr.v / mMaxV) * planeWidths[2];
+        for (int x = 0; x < width; x++) {
+            final int y = (planes[0][yRow + x * cy.h / mMaxH] & 0xFF) << 16;
+            final int u = (planes[1][cbRow + x * cb.h / mMaxH] & 0xFF) - 128;
+            final int v = (planes[2][crRow + x * cr.h / mMaxH] & 0xFF) - 128;
+            // JFIF full range YCbCr, 16 bit fixed point
+            final int r = clamp((y + 91881 * v + 32768) >> 16);
+            final int g = clamp((y - 22554 * u - 46802 * v + 32768) >> 16);
+            final int b = clamp((y + 116130 * u + 32768) >> 16);
+            out[offset + x] = 0xFF000000 | r << 16 | g << 8 | b;
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /**
+     * Decodes one block's coefficients multiplied by {@code quant}, keeping only the top-left
+     * size x size ones.
+     */
+    private void decodeBlock(Component component, int[] coefficients, int size, int[] quant) throws IOException {
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++)
+                coefficients[row * 8 + col] = 0;
+        }
+
+        final int dcCategory = decodeSymbol(mDcTables[component.dcTable]);
+        if (dcCategory > 0)
+            component.predictor += extend(readBits(dcCategory), dcCategory);
+        coefficients[0] = component.predictor * quant[0];
+
+        final HuffmanTable ac = mAcTables[component.acTable];
+        for (int k = 1; k < 64; ) {
+            final int symbol = decodeSymbol(ac);
+            final int run = symbol >> 4;
+            final int category = symbol & 15;
+            if (category == 0) {
+                if (run != 15) break;
+                k += 16;
+                continue;
+            }
+            k += run;
+            if (k > 63) throw new IOException("Corrupt JPEG data");
+            final int value = extend(readBits(category), category);
+            final int index = ZIGZAG[k];
+            if ((index >> 3) < size && (index & 7) < size)
+                coefficients[index] = value * quant[index];
+            k++;
+        }
+    }
+
+    private static void inverseDct(int[] coefficients, int size, float[] table, float[] workspace,
+                                   byte[] out, int offset, int stride) {
+        if (size == 1) {
+            out[offset] = (byte) clamp(Math.round(coefficients[0] / 8f) + 128);
+            return;
+        }
+        // Rows: workspace[v * size + x] = sum over u of F(v, u) * T(x, u)
+        for (int v = 0; v < size; v++) {
+            for (int x = 0; x < size; x++) {
+                float sum = 0f;
+                for (int u = 0; u < size; u++)
+                    sum += coefficients[v * 8 + u] * table[x * size + u];
+                workspace[v * size + x] = sum;
+            }
+        }
+        // Columns
+        for (int y = 0; y < size; y++) {
+            final int rowStart = offset + y * stride;
+            for (int x = 0; x < size; x++) {
+                float sum = 0f;
+                for (int v = 0; v < size; v++)
+                    sum += workspace[v * size + x] * table[y * size + v];
+                out[rowStart + x] = (byte) clamp(Math.round(sum) + 128);
+            }
+        }
+    }
+
+    private static int extend(int value, int category) {
+        return value < 1 << (category - 1) ? value - (1 << category) + 1 : value;
+    }
+
+    private int decodeSymbol(HuffmanTable table) throws IOException {
+        fillBits(16);
+        final int entry = table.lookup[(int) (mBits >>> (mBitCount - 8)) & 0xFF];
+        if (entry != 0) {
+            mBitCount -= entry >> 8;
+            return entry & 0xFF;
+        }
+        int length = 9;
+        int code = (int) (mBits >>> (mBitCount - 9)) & 0x1FF;
+        while (code > table.maxCode[length]) {
+            length++;
+            if (length > 16) throw new IOException("Corrupt JPEG data: bad Huffman code");
+            code = (int) (mBits >>> (mBitCount - length)) & ((1 << length) - 1);
+        }
+        mBitCount -= length;
+        return table.values[table.valueOffset[length] + code];
+    }
+
+    private int readBits(int count) throws IOException {
+        fillBits(count);
+        mBitCount -= count;
+        return (int) (mBits >>> mBitCount) & ((1 << count) - 1);
+    }
+
+    /**
+     * Tops up the bit buffer to at least {@code count} bits, un-stuffing 0xFF00. When a marker is
+     * reached, zero bits are fed instead and the marker is kept for {@link #readRestart}.
+     */
+    private void fillBits(int count) throws IOException {
+        while (mBitCount < count) {
+            int b = 0;
+            if (mMarker == 0) {
+                b = readByte();
+                if (b == 0xFF) {
+                    int next = readByte();
+                    while (next == 0xFF) next = readByte();
+                    if (next != 0) {
+                        mMarker = 0xFF00 | next;
+                        b = 0;
+                    }
+                }
+            }
+            mBits = (mBits << 8) | b;
+            mBitCount += 8;
+        }
+    }
+
+    private void readRestart(int expected) throws IOException {
+        mBits = 0;
+        mBitCount = 0;
+        if (mMarker == 0) {
+            // Skip to the next marker
+            int b;
+            do {
+                b = readByte();
+                while (b != 0xFF) b = readByte();
+                do b = readByte(); while (b == 0xFF);
+            } while (b == 0);
+            mMarker = 0xFF00 | b;
+        }
+        if (mMarker != RST0 + expected)
+            throw new IOException(String.format("Expected RST%d, found marker %04X", expected, mMarker));
+        mMarker = 0;
+        for (Component component : mComponents)
+            component.predictor = 0;
+    }
+
+    private void readHeaders() throws IOException {
+        if (readShort() != SOI) throw new IOException("Not a JPEG file");
+        while (true) {
+            int marker = readByte();
+            if (marker != 0xFF) throw new IOException("Corrupt JPEG data: expected a marker");
+            do marker = readByte(); while (marker == 0xFF);
+            marker |= 0xFF00;
+            if (marker == EOI) throw new IOException("No image data");
+            final int length = readShort() - 2;
+            if (marker == SOF0 || marker == SOF1) {
+                readFrame();
+            } else if (marker == DQT) {
+                readQuantTables(length);
+            } else if (marker == DHT) {
+                readHuffmanTables(length);
+            } else if (marker == DRI) {
+                mRestartInterval = readShort();
+            } else if (mMarkers != null && ((marker & 0xFFF0) == APP0 || marker == COM)) {
+                final byte[] segment = new byte[length + 4];
+                segment[0] = (byte) 0xFF;
+                segment[1] = (byte) marker;
+                segment[2] = (byte) ((length + 2) >> 8);
+                segment[3] = (byte) (length + 2);
+                for (int i = 0; i < length; i++)
+                    segment[4 + i] = (byte) readByte();
+                mMarkers.add(segment);
+            } else if (marker == SOS) {
+                readScan();
+                return;
+            } else if (marker >= 0xFFC2 && marker <= 0xFFCF && marker != 0xFFC4 && marker != 0xFFC8 && marker != 0xFFCC) {
+                throw new IOException(String.format("Unsupported JPEG process (marker %04X)", marker));
+            } else {
+                skip(length);
+            }
+        }
+    }
+
+    private void readFrame() throws IOException {
+        if (readByte() != 8) throw new IOException("Only 8 bit JPEGs are supported");
+        mHeight = readShort();
+        mWidth = readShort();
+        final int count = readByte();
+        if (count != 1 && count != 3)
+            throw new IOException("Unsupported number of components: " + count);
+        if (mHeight == 0) throw new IOException("JPEGs with a DNL marker are not supported");
+        mComponents = new Component[count];
+        mMaxH = mMaxV = 1;
+        for (int i = 0; i < count; i++) {
+            final Component component = new Component();
+            component.id = readByte();
+            final int sampling = readByte();
+            component.h = sampling >> 4;
+            component.v = sampling & 15;
+            component.quantTable = readByte() & 3;
+            if (component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4)
+                throw new IOException("Invalid sampling factors");
+            if (count == 1) {
+                // A single component scan isn't interleaved, each MCU is one block
+                component.h = component.v = 1;
+            }
+            mMaxH = Math.max(mMaxH, component.h);
+            mMaxV = Math.max(mMaxV, component.v);
+            mComponents[i] = component;
+        }
+    }
+
+    private void readQuantTables(int length) throws IOException {
+        while (length > 0) {
+            final int info = readByte();
+            final boolean wide = (info >> 4) != 0;
+            final int[] table = new int[64];
+            for (int k = 0; k < 64; k++)
+                table[ZIGZAG[k]] = wide ? readShort() : readByte();
+            mQuantTables[info & 3] = table;
+            length -= 1 + (wide ? 128 : 64);
+        }
+    }
+
+    private void readHuffmanTables(int length) throws IOException {
+        while (length > 0) {
+            final int info = readByte();
+            final int[] bits = new int[16];
+            int total = 0;
+            for (int i = 0; i < 16; i++) {
+                bits[i] = readByte();
+                total += bits[i];
+            }
+            final int[] values = new int[total];
+            for (int i = 0; i < total; i++)
+                values[i] = readByte();
+            final HuffmanTable table = new HuffmanTable(bits, values);
+            if ((info >> 4) == 0) mDcTables[info & 3] = table;
+            else mAcTables[info & 3] = table;
+            length -= 17 + total;
+        }
+    }
+
+    private void readScan() throws IOException {
+        if (mComponents == null) throw new IOException("Scan before frame header");
+        final int count = readByte();
+        if (count != mComponents.length)
+            throw new IOException("Non-interleaved scans are not supported");
+        for (int i = 0; i < count; i++) {
+            final int id = readByte();
+            final int tables = readByte();
+            Component component = null;
+            for (Component c : mComponents) {
+                if (c.id == id) component = c;
+            }
+            if (component == null) throw new IOException("Unknown component " + id);
+            component.dcTable = (tables >> 4) & 3;
+            component.acTable = tables & 3;
+            if (mDcTables[component.dcTable] == null || mAcTables[component.acTable] == null)
+                throw new IOException("Missing Huffman table");
+            if (mQuantTables[component.quantTable] == null)
+                throw new IOException("Missing quantization table");
+        }
+        skip(3); // Spectral selection and successive approximation, fixed for baseline
+    }
+
+    private int readByte() throws IOException {
+        if (!mBuffer.hasRemaining()) {
+            mBuffer.clear();
+            int read;
+            do {
+                read = mChannel.read(mBuffer, mFilePosition);
+            } while (read == 0);
+            if (read < 0) throw new EOFException("Unexpected end of JPEG data");
+            mFilePosition += read;
+            mBuffer.flip();
+        }
+        return mBuffer.get() & 0xFF;
+    }
+
+    private int readShort() throws IOException {
+        return (readByte() << 8) | readByte();
+    }
+
+    private void skip(int count) throws IOException {
+        final int buffered = Math.min(count, mBuffer.remaining());
+        mBuffer.position(mBuffer.position() + buffered);
+        mFilePosition += count - buffered;
+    }
+}
@@ -0,0 +1,280 @@
+package com.afollestad.materialcamera.util;
+
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.afollestad.materialcamera.util.JpegTables.AC_CHROMA_CODES;
+import static com.afollestad.materialcamera.util.JpegTables.AC_CHROMA_SIZES;
+import static com.afollestad.materialcamera.util.JpegTables.AC_LUMA_CODES;
+import static com.afollestad.materialcamera.util.JpegTables.AC_LUMA_SIZES;
+import static com.afollestad.materialcamera.util.JpegTables.APP0;
+import static com.afollestad.materialcamera.util.JpegTables.DC_CHROMA_CODES;
+import static com.afollestad.materialcamera.util.JpegTables.DC_CHROMA_SIZES;
+import static com.afollestad.materialcamera.util.JpegTables.DC_LUMA_CODES;
+import static com.afollestad.materialcamera.util.JpegTables.DC_LUMA_SIZES;
+import static com.afollestad.materialcamera.util.JpegTables.DQT;
+import static com.afollestad.materialcamera.util.JpegTables.DRI;
+import static com.afollestad.materialcamera.util.JpegTables.EOI;
+import static com.afollestad.materialcamera.util.JpegTables.RST0;
+import static com.afollestad.materialcamera.util.JpegTables.SOF0;
+import static com.afollestad.materialcamera.util.JpegTables.SOI;
+import static com.afollestad.materialcamera.util.JpegTables.SOS;
+import static com.afollestad.materialcamera.util.JpegTables.writeQuantTable;
+import static com.afollestad.materialcamera.util.JpegTables.writeShort;
+
+/**
+ * Baseline JPEG encoder (YCbCr 4:2:0, standard Huffman tables) that encodes in parallel. The image
+ * is split into stripes of whole MCU rows separated by restart markers; since the entropy coder is
+ * reset at each marker, the stripes are encoded independently on all cores and then concatenated.
+ * <p>
+ * An encoder holds the quantization tables for its quality and can be reused, including from
+ * several threads at once.
+ */
+public class JpegEncoder {
+
+    /**
+     * MCU rows (16 pixels each) per stripe, i.e. per restart interval.
+     */
+    private static final int MCU_ROWS_PER_STRIPE = 4;
+
+    private static final float[] AAN_SCALE = {
+            1.0f, 1.387039845f, 1.306562965f, 1.175875602f,
+            1.0f, 0.785694958f, 0.541196100f, 0.275899379f
+    };
+
+    private final int mQuality;
+    private final int[] mLumaQuant;
+    private final int[] mChromaQuant;
+    // Reciprocal quantizers with the AAN DCT output scaling folded in
+    private final float[] mLumaDivisors;
+    private final float[] mChromaDivisors;
+
+    public JpegEncoder(@IntRange(from = 1, to = 100) int quality) {
+        mQuality = quality;
+        mLumaQuant = JpegTables.scaleQuantTable(JpegTables.LUMINANCE_QUANT, quality);
+        mChromaQuant = JpegTables.scaleQuantTable(JpegTables.CHROMINANCE_QUANT, quality);
+        mLumaDivisors = divisors(mLumaQuant);
+        mChromaDivisors = divisors(mChromaQuant);
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    private static float[] divisors(int[] quant) {
+        final float[] divisors = new float[64];
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                final int i = row * 8 + col;
+                divisors[i] = 1f / (quant[i] * AAN_SCALE[row] * AAN_SCALE[col] * 8f);
+            }
+        }
+        return divisors;
+    }
+
+    /**
+     * Encodes ARGB_8888 pixels (alpha is ignored) as a baseline JFIF stream.
+     */
+    public void encode(@NonNull final int[] argb, final int width, final int height,
+                       @NonNull OutputStream out) throws IOException {
+        if (width < 1 || height < 1 || width > 0xFFFF || height > 0xFFFF)
+            throw new IllegalArgumentException("Unsupported image size " + width + "x" + height);
+        if (argb.length < width * height)
+            throw new IllegalArgumentException("Pixel array is smaller than " + width + "x" + height);
+
+        final int mcusPerRow = (width + 15) / 16;
+        final int mcuRows = (height + 15) / 16;
+        final int rowsPerStripe = mcusPerRow * MCU_ROWS_PER_STRIPE <= 0xFFFF ? MCU_ROWS_PER_STRIPE : 1;
+        final int stripeCount = (mcuRows + rowsPerStripe - 1) / rowsPerStripe;
+        final JpegBitWriter[] stripes = new JpegBitWriter[stripeCount];
+
+        RowBands.run(stripeCount, width * 16 * rowsPerStripe, new RowBands.Kernel() {
+            @Override
+            public void run(int start, int end) {
+                final Workspace workspace = new Workspace();
+                for (int stripe = start; stripe < end; stripe++) {
+                    final JpegBitWriter writer = new JpegBitWriter(width * 16 * rowsPerStripe / 8);
+                    final int firstRow = stripe * rowsPerStripe;
+                    encodeStripe(argb, width, height, firstRow, Math.min(mcuRows, firstRow + rowsPerStripe),
+                            mcusPerRow, writer, workspace);
+                    stripes[stripe] = writer;
+                }
+            }
+        });
+
+        writeHeaders(out, width, height, mcusPerRow * rowsPerStripe);
+        for (int i = 0; i < stripeCount; i++) {
+            if (i > 0) writeMarker(out, RST0 + ((i - 1) & 7));
+            stripes[i].writeTo(out);
+        }
+        writeMarker(out, EOI);
+        out.flush();
+    }
+
+    /**
+     * Per thread buffers, so encoding a stripe doesn't allocate.
+     */
+    private static class Workspace {
+        final float[] y = new float[256];
+        final float[] cb = new float[64];
+        final float[] cr = new float[64];
+        final float[] block = new float[64];
+        final int[] quantized = new int[64];
+        final int[] predictors = new int[3];
+    }
+
+    private void encodeStripe(int[] argb, int width, int height, int firstMcuRow, int endMcuRow,
+                              int mcusPerRow, JpegBitWriter writer, Workspace ws) {
+        ws.predictors[0] = ws.predictors[1] = ws.predictors[2] = 0;
+        for (int mcuRow = firstMcuRow; mcuRow < endMcuRow; mcuRow++) {
+            for (int mcuCol = 0; mcuCol < mcusPerRow; mcuCol++) {
+                loadMcu(argb, width, height, mcuCol * 16, mcuRow * 16, ws);
+                for (int i = 0; i < 4; i++) {
+                    final int offset = (i >> 1) * 128 + (i & 1) * 8;
+                    for (int row = 0; row < 8; row++)
+                        System.arraycopy(ws.y, offset + row * 16, ws.block, row * 8, 8);
+                    encodeBlock(ws.block, mLumaDivisors, ws, 0, DC_LUMA_CODES, DC_LUMA_SIZES,
+                            AC_LUMA_CODES, AC_LUMA_SIZES, writer);
+                }
+                System.arraycopy(ws.cb, 0, ws.block, 0, 64);
+                encodeBlock(ws.block, mChromaDivisors, ws, 1, DC_CHROMA_CODES, DC_CHROMA_SIZES,
+                        AC_CHROMA_CODES, AC_CHROMA_SIZES, writer);
+                System.arraycopy(ws.cr, 0, ws.block, 0, 64);
+                encodeBlock(ws.block, mChromaDivisors, ws, 2, DC_CHROMA_CODES, DC_CHROMA_SIZES,
+                        AC_CHROMA_CODES, AC_CHROMA_SIZES, writer);
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Converts a 16x16 MCU to level shifted Y, and 2x2 averaged Cb/Cr. Pixels past the right and
+     * bottom edges repeat the last column and row.
+     */
+    private static void loadMcu(int[] argb, int width, int height, int left, int top, Workspace ws) {
+        final float[] cb = ws.cb;
+        final float[] cr = ws.cr;
+        for (int i = 0; i < 64; i++) {
+            cb[i] = 0f;
+            cr[i] = 0f;
+        }
+        for (int row = 0; row < 16; row++) {
+            final int rowStart = Math.min(top + row, height - 1) * width;
+            for (int col = 0; col < 16; col++) {
+                final int pixel = argb[rowStart + Math.min(left + col, width - 1)];
+                final int r = (pixel >> 16) & 0xFF;
+                final int g = (pixel >> 8) & 0xFF;
+                final int b = pixel & 0xFF;
+                ws.y[row * 16 + col] = 0.299f * r + 0.587f * g + 0.114f * b - 128f;
+                final int c = (row >> 1) * 8 + (col >> 1);
+                cb[c] += -0.168736f * r - 0.331264f * g + 0.5f * b;
+                cr[c] += 0.5f * r - 0.418688f * g - 0.081312f * b;
+            }
+        }
+        for (int i = 0; i < 64; i++) {
+            cb[i] *= 0.25f;
+            cr[i] *= 0.25f;
+        }
+    }
+
+    private static void encodeBlock(float[] block, float[] divisors, Workspace ws, int component,
+                                    int[] dcCodes, int[] dcSizes, int[] acCodes, int[] acSizes,
+                                    JpegBitWriter writer) {
+        forwardDct(block);
+        final int[] quantized = ws.quantized;
+        for (int i = 0; i < 64; i++)
+            quantized[i] = Math.round(block[i] * divisors[i]);
+
+        final int dc = quantized[0];
+        writer.writeBlock(quantized, dc - ws.predictors[component], dcCodes, dcSizes, acCodes, acSizes);
+        ws.predictors[component] = dc;
+    }
+
+    /**
+     * In-place AAN forward DCT (libjpeg's jfdctflt). Outputs are scaled by the AAN factors, which
+     * the divisors undo.
+     */
+    private static void forwardDct(float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            // First pass transforms rows, the second columns
+            final int step = pass == 0 ? 1 : 8;
+            final int next = pass == 0 ? 8 : 1;
+            for (int i = 0, base = 0; i < 8; i++, base += next) {
+                final int p0 = base, p1 = base + step, p2 = base + 2 * step, p3 = base + 3 * step;
+                final int p4 = base + 4 * step, p5 = base + 5 * step, p6 = base + 6 * step, p7 = base + 7 * step;
+                final float tmp0 = data[p0] + data[p7];
+                final float tmp7 = data[p0] - data[p7];
+                final float tmp1 = data[p1] + data[p6];
+                final float tmp6 = data[p1] - data[p6];
+                final float tmp2 = data[p2] + data[p5];
+                final float tmp5 = data[p2] - data[p5];
+                final float tmp3 = data[p3] + data[p4];
+                final float tmp4 = data[p3] - data[p4];
+
+                float tmp10 = tmp0 + tmp3;
+                final float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+
+                data[p0] = tmp10 + tmp11;
+                data[p4] = tmp10 - tmp11;
+                final float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[p2] = tmp13 + z1;
+                data[p6] = tmp13 - z1;
+
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                final float z5 = (tmp10 - tmp12) * 0.382683433f;
+                final float z2 = 0.541196100f * tmp10 + z5;
+                final float z4 = 1.306562965f * tmp12 + z5;
+                final float z3 = tmp11 * 0.707106781f;
+                final float z11 = tmp7 + z3;
+                final float z13 = tmp7 - z3;
+
+                data[p5] = z13 + z2;
+                data[p3] = z13 - z2;
+                data[p1] = z11 + z4;
+                data[p7] = z11 - z4;
+            }
+        }
+    }
+
+    private void writeHeaders(OutputStream out, int width, int height, int restartInterval) throws IOException {
+        writeMarker(out, SOI);
+
+        writeMarker(out, APP0);
+        writeShort(out, 16);
+        out.write(new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+
+        writeMarker(out, DQT);
+        writeShort(out, 2 + 2 * 65);
+        writeQuantTable(out, 0, mLumaQuant);
+        writeQuantTable(out, 1, mChromaQuant);
+
+        writeMarker(out, SOF0);
+        writeShort(out, 17);
+        out.write(8);
+        writeShort(out, height);
+        writeShort(out, width);
+        out.write(3);
+        out.write(new byte[]{1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+
+        JpegTables.writeStandardHuffmanTables(out);
+
+        writeMarker(out, DRI);
+        writeShort(out, 4);
+        writeShort(out, restartInterval);
+
+        writeMarker(out, SOS);
+        writeShort(out, 12);
+        out.write(new byte[]{3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+    }
+
+    private static void writeMarker(OutputStream out, int marker) throws IOException {
+        writeShort(out, marker);
+    }
+}
@@ -0,0 +1,215 @@
+package com.afollestad.materialcamera.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Baseline JPEG constants shared by the encoder, decoder and lossless transforms: marker codes, the
+ * zigzag order, and the example quantization and Huffman tables of ITU T.81 Annex K, plus helpers
+ * to write them out as segments.
+ */
+class JpegTables {
+
+    static final int SOI = 0xFFD8;
+    static final int EOI = 0xFFD9;
+    static final int SOF0 = 0xFFC0;
+    static final int SOF1 = 0xFFC1;
+    static final int DHT = 0xFFC4;
+    static final int SOS = 0xFFDA;
+    static final int DQT = 0xFFDB;
+    static final int DRI = 0xFFDD;
+    static final int RST0 = 0xFFD0;
+    static final int APP0 = 0xFFE0;
+    static final int APP1 = 0xFFE1;
+    static final int COM = 0xFFFE;
+
+    /**
+     * Natural (row major) index of each coefficient in zigzag order.
+     */
+    static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    /**
+     * Annex K.1 luminance and chrominance quantization tables, in natural order.
+     */
+    static final int[] LUMINANCE_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+    static final int[] CHROMINANCE_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    /**
+     * Annex K.3 Huffman tables: the number of codes of each length (1-16), then the symbols.
+     */
+    static final int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    static final int[] DC_LUMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    static final int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    static final int[] DC_CHROMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    static final int[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+            0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+            0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+            0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+            0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+            0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+            0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+            0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+            0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+            0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    static final int[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+            0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+            0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+            0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+            0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+            0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+            0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+            0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+            0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+            0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    /**
+     * Codes and code lengths of the Annex K Huffman tables, indexed by symbol.
+     */
+    static final int[] DC_LUMA_CODES = new int[12];
+    static final int[] DC_LUMA_SIZES = new int[12];
+    static final int[] AC_LUMA_CODES = new int[256];
+    static final int[] AC_LUMA_SIZES = new int[256];
+    static final int[] DC_CHROMA_CODES = new int[12];
+    static final int[] DC_CHROMA_SIZES = new int[12];
+    static final int[] AC_CHROMA_CODES = new int[256];
+    static final int[] AC_CHROMA_SIZES = new int[256];
+
+    static {
+        buildHuffmanCodes(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES, DC_LUMA_CODES, DC_LUMA_SIZES);
+        buildHuffmanCodes(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES, AC_LUMA_CODES, AC_LUMA_SIZES);
+        buildHuffmanCodes(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES, DC_CHROMA_CODES, DC_CHROMA_SIZES);
+        buildHuffmanCodes(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES, AC_CHROMA_CODES, AC_CHROMA_SIZES);
+    }
+
+    private JpegTables() {
+    }
+
+    /**
+     * Scales a base quantization table the way libjpeg does for quality 1-100.
+     */
+    static int[] scaleQuantTable(int[] base, int quality) {
+        quality = Math.max(1, Math.min(100, quality));
+        final int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        final int[] table = new int[64];
+        for (int i = 0; i < 64; i++)
+            table[i] = Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+        return table;
+    }
+
+    /**
+     * Derives canonical Huffman codes from a bits/values table (Annex C).
+     *
+     * @param codes receives the code of each symbol.
+     * @param sizes receives the code length of each symbol, 0 for symbols not in the table.
+     */
+    static void buildHuffmanCodes(int[] bits, int[] values, int[] codes, int[] sizes) {
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++) {
+                codes[values[k]] = code++;
+                sizes[values[k]] = length;
+                k++;
+            }
+            code <<= 1;
+        }
+    }
+
+    /**
+     * Number of bits needed for the magnitude of {@code value}, the JPEG "category" (SSSS).
+     */
+    static int bitLength(int value) {
+        if (value < 0) value = -value;
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Writes a DHT segment holding all four Annex K tables: luminance as table 0, chrominance as 1.
+     */
+    static void writeStandardHuffmanTables(OutputStream out) throws IOException {
+        writeShort(out, DHT);
+        writeShort(out, 2 + 4 * 17 + DC_LUMINANCE_VALUES.length + AC_LUMINANCE_VALUES.length +
+                DC_CHROMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length);
+        writeHuffmanTable(out, 0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        writeHuffmanTable(out, 0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        writeHuffmanTable(out, 0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        writeHuffmanTable(out, 0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+    }
+
+    private static void writeHuffmanTable(OutputStream out, int classAndId, int[] bits, int[] values) throws IOException {
+        out.write(classAndId);
+        for (int count : bits)
+            out.write(count);
+        for (int value : values)
+            out.write(value);
+    }
+
+    /**
+     * Writes one 8 bit quantization table, given in natural order, as part of a DQT segment.
+     */
+    static void writeQuantTable(OutputStream out, int id, int[] table) throws IOException {
+        out.write(id);
+        for (int k = 0; k < 64; k++)
+            out.write(table[ZIGZAG[k]]);
+    }
+
+    static void writeShort(OutputStream out, int value) throws IOException {
+        out.write((value >> 8) & 0xFF);
+        out.write(value & 0xFF);
+    }
+}
@@ -0,0 +1,381 @@
+package com.afollestad.materialcamera.util;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.afollestad.materialcamera.util.JpegTables.AC_CHROMA_CODES;
+import static com.afollestad.materialcamera.util.JpegTables.AC_CHROMA_SIZES;
+import static com.afollestad.materialcamera.util.JpegTables.AC_LUMA_CODES;
+import static com.afollestad.materialcamera.util.JpegTables.AC_LUMA_SIZES;
+import static com.afollestad.materialcamera.util.JpegTables.DC_CHROMA_CODES;
+import static com.afollestad.materialcamera.util.JpegTables.DC_CHROMA_SIZES;
+import static com.afollestad.materialcamera.util.JpegTables.DC_LUMA_CODES;
+import static com.afollestad.materialcamera.util.JpegTables.DC_LUMA_SIZES;
+import static com.afollestad.materialcamera.util.JpegTables.DQT;
+import static com.afollestad.materialcamera.util.JpegTables.EOI;
+import static com.afollestad.materialcamera.util.JpegTables.SOF0;
+import static com.afollestad.materialcamera.util.JpegTables.SOI;
+import static com.afollestad.materialcamera.util.JpegTables.SOS;
+import static com.afollestad.materialcamera.util.JpegTables.writeQuantTable;
+import static com.afollestad.materialcamera.util.JpegTables.writeShort;
+
+/**
+ * Lossless rotation, mirroring and cropping of baseline JPEGs, like jpegtran. Instead of decoding to
+ * pixels, the quantized DCT blocks are moved to their new position and transposed or sign flipped in
+ * the frequency domain, so the result has exactly the quality of the original. Blocks are re-coded
+ * with the standard Huffman tables, since the originals may lack codes the new layout needs.
+ * <p>
+ * For rotations and flips, coefficients are spilled to a memory mapped temp file next to the output
+ * while the scan is read, then encoded one MCU row at a time, so heap use doesn't depend on the image
+ * size. APPn and COM segments are copied over, with the EXIF orientation and pixel dimensions updated.
+ * <p>
+ * Partial MCUs on an edge that would move to the top or left of the output are trimmed, as with
+ * {@code jpegtran -trim}, so the output can be a few pixels smaller than the input.
+ */
+public class JpegTransform {
+
+    @IntDef({NONE, FLIP_HORIZONTAL, ROTATE_180, FLIP_VERTICAL, TRANSPOSE, ROTATE_90, TRANSVERSE, ROTATE_270})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Transform {
+    }
+
+    // Values match the EXIF orientation that each transform corrects
+    public static final int NONE = 1;
+    public static final int FLIP_HORIZONTAL = 2;
+    public static final int ROTATE_180 = 3;
+    public static final int FLIP_VERTICAL = 4;
+    public static final int TRANSPOSE = 5;
+    public static final int ROTATE_90 = 6;
+    public static final int TRANSVERSE = 7;
+    public static final int ROTATE_270 = 8;
+
+    private JpegTransform() {
+    }
+
+    /**
+     * @return the transform for an EXIF orientation value; unknown values map to {@link #NONE}.
+     */
+    @Transform
+    public static int fromExifOrientation(int orientation) {
+        //noinspection WrongConstant
+        return orientation >= NONE && orientation <= ROTATE_270 ? orientation : NONE;
+    }
+
+    /**
+     * @return the transform that applies {@code transform} and then flips the result horizontally.
+     */
+    @Transform
+    public static int mirror(@Transform int transform) {
+        switch (transform) {
+            case FLIP_HORIZONTAL:
+                return NONE;
+            case ROTATE_180:
+                return FLIP_VERTICAL;
+            case FLIP_VERTICAL:
+                return ROTATE_180;
+            case TRANSPOSE:
+                return ROTATE_90;
+            case ROTATE_90:
+                return TRANSPOSE;
+            case TRANSVERSE:
+                return ROTATE_270;
+            case ROTATE_270:
+                return TRANSVERSE;
+            default:
+                return FLIP_HORIZONTAL;
+        }
+    }
+
+    private static boolean isTransposing(int transform) {
+        return transform >= TRANSPOSE;
+    }
+
+    private static boolean mirrorsX(int transform) {
+        return transform == FLIP_HORIZONTAL || transform == ROTATE_180 ||
+                transform == TRANSVERSE || transform == ROTATE_270;
+    }
+
+    private static boolean mirrorsY(int transform) {
+        return transform == FLIP_VERTICAL || transform == ROTATE_180 ||
+                transform == TRANSVERSE || transform == ROTATE_90;
+    }
+
+    /**
+     * Writes {@code input} transformed to {@code output}, which must be a different file.
+     *
+     * @throws IOException if the input isn't a baseline JPEG, or is smaller than one MCU along an
+     *                     axis that gets mirrored.
+     */
+    public static void transform(@NonNull File input, @NonNull File output, @Transform int transform) throws IOException {
+        final FileInputStream in = new FileInputStream(input);
+        File spill = null;
+        RandomAccessFile spillFile = null;
+        OutputStream out = null;
+        try {
+            final List<byte[]> markers = new ArrayList<>();
+            final JpegDecoder decoder = new JpegDecoder(in.getChannel(), markers);
+            final int count = decoder.getComponentCount();
+            final int maxH = decoder.getMaxSamplingH();
+            final int maxV = decoder.getMaxSamplingV();
+            final int mcusX = (decoder.getWidth() + maxH * 8 - 1) / (maxH * 8);
+            final int mcusY = (decoder.getHeight() + maxV * 8 - 1) / (maxV * 8);
+
+            // Trim partial MCUs off edges that get mirrored
+            final int width = mirrorsX(transform) ? decoder.getWidth() / (maxH * 8) * maxH * 8 : decoder.getWidth();
+            final int height = mirrorsY(transform) ? decoder.getHeight() / (maxV * 8) * maxV * 8 : decoder.getHeight();
+            if (width == 0 || height == 0)
+                throw new IOException("Image is too small to transform losslessly");
+
+            // Spill every block to a temp file, as shorts, component by component
+            final int[] blocksWide = new int[count];
+            final int[] offsets = new int[count];
+            int total = 0;
+            for (int c = 0; c < count; c++) {
+                blocksWide[c] = mcusX * decoder.getSamplingH(c);
+                offsets[c] = total;
+                total += blocksWide[c] * mcusY * decoder.getSamplingV(c) * 64;
+            }
+            spill = File.createTempFile("coefficients", ".tmp", output.getAbsoluteFile().getParentFile());
+            spillFile = new RandomAccessFile(spill, "rw");
+            final ShortBuffer store = spillFile.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, total * 2L)
+                    .order(ByteOrder.nativeOrder())
+                    .asShortBuffer();
+            decoder.readCoefficients(new JpegDecoder.BlockSink() {
+                @Override
+                public void block(int component, int blockX, int blockY, int[] coefficients) {
+                    final int start = offsets[component] + (blockY * blocksWide[component] + blockX) * 64;
+                    for (int i = 0; i < 64; i++)
+                        store.put(start + i, (short) coefficients[i]);
+                }
+            });
+
+            out = new BufferedOutputStream(new FileOutputStream(output), 64 * 1024);
+            writeTransformed(decoder, markers, store, blocksWide, offsets, width, height, transform, out);
+            out.close();
+            out = null;
+        } finally {
+            in.close();
+            if (out != null) out.close();
+            if (spillFile != null) spillFile.close();
+            //noinspection ResultOfMethodCallIgnored
+            if (spill != null) spill.delete();
+        }
+    }
+
+    /**
+     * Losslessly crops {@code input} into {@code output}, which must be a different file. The crop is
+     * done in one streaming pass: blocks inside the rectangle are re-coded as they're read and the
+     * rest are dropped, so nothing is spilled to disk.
+     * <p>
+     * JPEG data can only be cut on MCU boundaries (usually 16 pixels), so {@code left} and
+     * {@code top} are rounded down to the MCU grid; the size is kept as requested.
+     *
+     * @throws IllegalArgumentException if the rectangle isn't within the image.
+     */
+    public static void crop(@NonNull File input, @NonNull File output, int left, int top,
+                            int width, int height) throws IOException {
+        final FileInputStream in = new FileInputStream(input);
+        OutputStream out = null;
+        try {
+            final List<byte[]> markers = new ArrayList<>();
+            final JpegDecoder decoder = new JpegDecoder(in.getChannel(), markers);
+            if (left < 0 || top < 0 || width < 1 || height < 1 ||
+                    left + width > decoder.getWidth() || top + height > decoder.getHeight())
+                throw new IllegalArgumentException("Crop rectangle is outside of the image");
+            final int count = decoder.getComponentCount();
+            final int mcuWidth = decoder.getMaxSamplingH() * 8;
+            final int mcuHeight = decoder.getMaxSamplingV() * 8;
+            final int firstMcuX = left / mcuWidth;
+            final int firstMcuY = top / mcuHeight;
+            final int endMcuX = firstMcuX + (width + mcuWidth - 1) / mcuWidth;
+            final int endMcuY = firstMcuY + (height + mcuHeight - 1) / mcuHeight;
+
+            final int[] samplingH = new int[count];
+            final int[] samplingV = new int[count];
+            for (int c = 0; c < count; c++) {
+                samplingH[c] = decoder.getSamplingH(c);
+                samplingV[c] = decoder.getSamplingV(c);
+            }
+            for (byte[] segment : markers)
+                ExifSegment.setPixelDimensions(segment, width, height);
+            final OutputStream stream = new BufferedOutputStream(new FileOutputStream(output), 64 * 1024);
+            out = stream;
+            writeHeaders(decoder, markers, width, height, samplingH, samplingV, false, stream);
+
+            final JpegBitWriter writer = new JpegBitWriter(64 * 1024);
+            final int[] predictors = new int[count];
+            decoder.readCoefficients(new JpegDecoder.BlockSink() {
+                @Override
+                public void block(int component, int blockX, int blockY, int[] coefficients) throws IOException {
+                    final int mcuX = blockX / samplingH[component];
+                    final int mcuY = blockY / samplingV[component];
+                    if (mcuX < firstMcuX || mcuX >= endMcuX || mcuY < firstMcuY || mcuY >= endMcuY)
+                        return;
+                    writeBlock(writer, component, coefficients, predictors);
+                    if (writer.length() > 32 * 1024)
+                        writer.drainTo(stream);
+                }
+            });
+            writer.flush();
+            writer.drainTo(stream);
+            writeShort(stream, EOI);
+            out.close();
+            out = null;
+        } finally {
+            in.close();
+            if (out != null) out.close();
+        }
+    }
+
+    private static void writeTransformed(JpegDecoder decoder, List<byte[]> markers, ShortBuffer store,
+                                         int[] blocksWide, int[] offsets, int width, int height,
+                                         int transform, OutputStream out) throws IOException {
+        final boolean transposing = isTransposing(transform);
+        final boolean mirrorX = mirrorsX(transform);
+        final boolean mirrorY = mirrorsY(transform);
+        final int count = decoder.getComponentCount();
+
+        // Where each output coefficient comes from within its source block, and its sign
+        final int[] source = new int[64];
+        final int[] sign = new int[64];
+        for (int v = 0; v < 8; v++) {
+            for (int u = 0; u < 8; u++) {
+                final int inU = transposing ? v : u;
+                final int inV = transposing ? u : v;
+                source[v * 8 + u] = inV * 8 + inU;
+                sign[v * 8 + u] = (mirrorX && (inU & 1) != 0) != (mirrorY && (inV & 1) != 0) ? -1 : 1;
+            }
+        }
+
+        // Output geometry, sampling factors swap when transposing
+        final int outWidth = transposing ? height : width;
+        final int outHeight = transposing ? width : height;
+        final int[] outH = new int[count];
+        final int[] outV = new int[count];
+        int maxH = 1, maxV = 1;
+        for (int c = 0; c < count; c++) {
+            outH[c] = transposing ? decoder.getSamplingV(c) : decoder.getSamplingH(c);
+            outV[c] = transposing ? decoder.getSamplingH(c) : decoder.getSamplingV(c);
+            maxH = Math.max(maxH, outH[c]);
+            maxV = Math.max(maxV, outV[c]);
+        }
+        final int mcusX = (outWidth + maxH * 8 - 1) / (maxH * 8);
+        final int mcusY = (outHeight + maxV * 8 - 1) / (maxV * 8);
+        // Blocks across and down the kept part of the input, per component, for mirroring
+        final int[] keptWide = new int[count];
+        final int[] keptHigh = new int[count];
+        for (int c = 0; c < count; c++) {
+            keptWide[c] = width / (decoder.getMaxSamplingH() * 8) * decoder.getSamplingH(c);
+            keptHigh[c] = height / (decoder.getMaxSamplingV() * 8) * decoder.getSamplingV(c);
+        }
+
+        for (byte[] segment : markers) {
+            ExifSegment.resetOrientation(segment);
+            ExifSegment.setPixelDimensions(segment, outWidth, outHeight);
+        }
+        writeHeaders(decoder, markers, outWidth, outHeight, outH, outV, transposing, out);
+
+        final JpegBitWriter writer = new JpegBitWriter(mcusX * 64 * 8);
+        final int[] predictors = new int[count];
+        final int[] block = new int[64];
+        for (int mcuY = 0; mcuY < mcusY; mcuY++) {
+            for (int mcuX = 0; mcuX < mcusX; mcuX++) {
+                for (int c = 0; c < count; c++) {
+                    for (int by = 0; by < outV[c]; by++) {
+                        for (int bx = 0; bx < outH[c]; bx++) {
+                            final int x = mcuX * outH[c] + bx;
+                            final int y = mcuY * outV[c] + by;
+                            int inX = transposing ? y : x;
+                            int inY = transposing ? x : y;
+                            if (mirrorX) inX = keptWide[c] - 1 - inX;
+                            if (mirrorY) inY = keptHigh[c] - 1 - inY;
+                            final int start = offsets[c] + (inY * blocksWide[c] + inX) * 64;
+                            for (int i = 0; i < 64; i++)
+                                block[i] = sign[i] * store.get(start + source[i]);
+                            writeBlock(writer, c, block, predictors);
+                        }
+                    }
+                }
+            }
+            // Hand over whole bytes each MCU row; the scan has no restart markers, so bits carry over
+            if (mcuY == mcusY - 1) writer.flush();
+            writer.drainTo(out);
+        }
+        writeShort(out, EOI);
+    }
+
+    /**
+     * Component 0 is coded with the luminance tables, the others with the chrominance ones.
+     */
+    private static void writeBlock(JpegBitWriter writer, int component, int[] block, int[] predictors) {
+        if (component == 0) {
+            writer.writeBlock(block, block[0] - predictors[0],
+                    DC_LUMA_CODES, DC_LUMA_SIZES, AC_LUMA_CODES, AC_LUMA_SIZES);
+        } else {
+            writer.writeBlock(block, block[0] - predictors[component],
+                    DC_CHROMA_CODES, DC_CHROMA_SIZES, AC_CHROMA_CODES, AC_CHROMA_SIZES);
+        }
+        predictors[component] = block[0];
+    }
+
+    private static void writeHeaders(JpegDecoder decoder, List<byte[]> markers, int width, int height,
+                                     int[] samplingH, int[] samplingV, boolean transposing,
+                                     OutputStream out) throws IOException {
+        final int count = decoder.getComponentCount();
+        writeShort(out, SOI);
+        for (byte[] segment : markers)
+            out.write(segment);
+
+        // One table per component, transposed along with the blocks
+        writeShort(out, DQT);
+        writeShort(out, 2 + count * 65);
+        for (int c = 0; c < count; c++) {
+            final int[] table = decoder.getQuantTable(c);
+            final int[] quant = new int[64];
+            for (int i = 0; i < 64; i++) {
+                quant[i] = transposing ? table[(i & 7) * 8 + (i >> 3)] : table[i];
+                if (quant[i] > 255) throw new IOException("16 bit quantization tables are not supported");
+            }
+            writeQuantTable(out, c, quant);
+        }
+
+        writeShort(out, SOF0);
+        writeShort(out, 8 + count * 3);
+        out.write(8);
+        writeShort(out, height);
+        writeShort(out, width);
+        out.write(count);
+        for (int c = 0; c < count; c++) {
+            out.write(decoder.getComponentId(c));
+            out.write(samplingH[c] << 4 | samplingV[c]);
+            out.write(c);
+        }
+
+        JpegTables.writeStandardHuffmanTables(out);
+
+        writeShort(out, SOS);
+        writeShort(out, 6 + count * 2);
+        out.write(count);
+        for (int c = 0; c < count; c++) {
+            out.write(decoder.getComponentId(c));
+            out.write(c == 0 ? 0x00 : 0x11);
+        }
+        out.write(new byte[]{0, 63, 0});
+    }
+}
@@ -0,0 +1,79 @@
+package com.afollestad.materialcamera.util;
+
+import java.util.Locale;
+
+/**
+ * Counts latencies in power of 2 millisecond buckets: 0, 1, 2-3, 4-7 and so on up to
+ * {@link #BUCKETS} - 1, which takes everything longer. Recording is constant time and allocation
+ * free, so it can sit on a camera callback path; percentiles are only as precise as the buckets and
+ * report a bucket's upper bound, capped to the largest value seen.
+ */
+public class LatencyHistogram {
+
+    public static final int BUCKETS = 16;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount;
+    private long mSum;
+    private long mMax;
+
+    public synchronized void record(long ms) {
+        if (ms < 0) ms = 0;
+        mCounts[bucket(ms)]++;
+        mCount++;
+        mSum += ms;
+        if (ms > mMax) mMax = ms;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized long getMean() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the upper bound of the bucket that holds the given percentile, or 0 if nothing was
+     * recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank)
+                return Math.min(mMax, upperBound(i));
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            mCounts[i] = 0;
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "n=%d mean=%dms p50=%dms p90=%dms p99=%dms max=%dms",
+                mCount, getMean(), getPercentile(50), getPercentile(90), getPercentile(99), mMax);
+    }
+
+    private static int bucket(long ms) {
+        // 0 -> 0, 1 -> 1, 2-3 -> 2, 4-7 -> 3...
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms));
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,246 @@
+package com.afollestad.materialcamera.util;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_HDLR;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MDHD;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MDIA;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MINF;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MOOV;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MVHD;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_STBL;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_STSD;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_STSZ;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_STZ2;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_TKHD;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_TRAK;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_VIDE;
+import static com.afollestad.materialcamera.util.Mp4Util.findBox;
+import static com.afollestad.materialcamera.util.Mp4Util.readBoxHeader;
+import static com.afollestad.materialcamera.util.Mp4Util.readFully;
+
+/**
+ * Dimensions, duration, rotation and codec of a captured MP4 or JPEG, read from the container
+ * headers only. For MP4 files just the box headers and the few boxes that carry these values are
+ * read; for JPEGs, the segments before the frame header. Nothing is decoded.
+ */
+public class MediaInfo {
+
+    public static final String CODEC_JPEG = "jpeg";
+
+    private static final int JPEG_SOI = 0xFFD8;
+    private static final int JPEG_APP1 = 0xFFE1;
+    private static final int JPEG_SOS = 0xFFDA;
+    private static final int EXIF_HEADER = 0x45786966; // "Exif"
+    private static final int TIFF_TAG_ORIENTATION = 0x0112;
+
+    public int width;
+    public int height;
+    public long durationMs = -1;
+    /**
+     * Clockwise rotation in degrees that has to be applied for display.
+     */
+    public int rotation;
+    public long sizeBytes;
+    public String codec;
+    /**
+     * Number of video frames in an MP4, -1 if unknown and 0 if it's fragmented.
+     */
+    public int frameCount = -1;
+
+    /**
+     * @return the parsed values, or null if {@code file} isn't an MP4 or JPEG file.
+     */
+    public static MediaInfo read(@NonNull File file) throws IOException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer scratch = ByteBuffer.allocate(64);
+            scratch.limit(2);
+            if (channel.read(scratch, 0) < 2) return null;
+            final MediaInfo info = new MediaInfo();
+            info.sizeBytes = channel.size();
+            final boolean parsed = (scratch.getShort(0) & 0xFFFF) == JPEG_SOI ?
+                    info.readJpeg(channel) : info.readMp4(channel, scratch);
+            return parsed ? info : null;
+        } finally {
+            if (in != null) in.close();
+        }
+    }
+
+    private boolean readMp4(FileChannel channel, ByteBuffer scratch) throws IOException {
+        final long[] header = new long[3];
+        final long moov = findBox(channel, 0, sizeBytes, TYPE_MOOV, scratch, header);
+        if (moov < 0) return false;
+        final long moovStart = moov + header[2];
+        final long moovEnd = moov + header[0];
+
+        final long mvhd = findBox(channel, moovStart, moovEnd, TYPE_MVHD, scratch, header);
+        if (mvhd > -1) {
+            final ByteBuffer box = readContent(channel, mvhd + header[2], 32);
+            final int version = box.get(0);
+            final long timescale;
+            final long duration;
+            if (version == 1) {
+                timescale = box.getInt(20) & 0xFFFFFFFFL;
+                duration = box.getLong(24);
+            } else {
+                timescale = box.getInt(12) & 0xFFFFFFFFL;
+                duration = box.getInt(16) & 0xFFFFFFFFL;
+            }
+            if (timescale > 0) durationMs = duration * 1000 / timescale;
+        }
+
+        long position = moovStart;
+        while (readBoxHeader(channel, position, moovEnd, scratch, header)) {
+            final long trakSize = header[0];
+            if ((int) header[1] == TYPE_TRAK && readVideoTrack(channel, position + header[2], position + trakSize, scratch, header))
+                return true;
+            position += trakSize;
+        }
+        return durationMs > -1;
+    }
+
+    private boolean readVideoTrack(FileChannel channel, long start, long end, ByteBuffer scratch, long[] header) throws IOException {
+        final long mdia = findBox(channel, start, end, TYPE_MDIA, scratch, header);
+        if (mdia < 0) return false;
+        final long mdiaEnd = mdia + header[0];
+        final long mdiaStart = mdia + header[2];
+        final long hdlr = findBox(channel, mdiaStart, mdiaEnd, TYPE_HDLR, scratch, header);
+        if (hdlr < 0 || readContent(channel, hdlr + header[2] + 8, 4).getInt(0) != TYPE_VIDE)
+            return false;
+
+        final long tkhd = findBox(channel, start, end, TYPE_TKHD, scratch, header);
+        if (tkhd > -1) {
+            final long content = tkhd + header[2];
+            final int version = readContent(channel, content, 1).get(0);
+            // Skip version/flags, times, track ID, duration, then layer/volume/reserved fields
+            final ByteBuffer box = readContent(channel, content + 4 + (version == 1 ? 32 : 20) + 16, 44);
+            rotation = Mp4Util.rotationFromMatrix(box.getInt(0), box.getInt(4), box.getInt(12), box.getInt(16));
+            width = box.getInt(36) >>> 16;
+            height = box.getInt(40) >>> 16;
+        }
+
+        if (durationMs < 0) {
+            final long mdhd = findBox(channel, mdiaStart, mdiaEnd, TYPE_MDHD, scratch, header);
+            if (mdhd > -1) {
+                final ByteBuffer box = readContent(channel, mdhd + header[2], 32);
+                final boolean v1 = box.get(0) == 1;
+                final long timescale = box.getInt(v1 ? 20 : 12) & 0xFFFFFFFFL;
+                final long duration = v1 ? box.getLong(24) : box.getInt(16) & 0xFFFFFFFFL;
+                if (timescale > 0) durationMs = duration * 1000 / timescale;
+            }
+        }
+
+        final long minf = findBox(channel, mdiaStart, mdiaEnd, TYPE_MINF, scratch, header);
+        if (minf < 0) return true;
+        final long stbl = findBox(channel, minf + header[2], minf + header[0], TYPE_STBL, scratch, header);
+        if (stbl < 0) return true;
+        final long stblStart = stbl + header[2];
+        final long stblEnd = stbl + header[0];
+        long stsz = findBox(channel, stblStart, stblEnd, TYPE_STSZ, scratch, header);
+        if (stsz < 0) stsz = findBox(channel, stblStart, stblEnd, TYPE_STZ2, scratch, header);
+        if (stsz > -1) {
+            // version/flags, sample size (stsz) or field size (stz2), then the sample count
+            frameCount = readContent(channel, stsz + header[2], 12).getInt(8);
+        }
+        final long stsd = findBox(channel, stblStart, stblEnd, TYPE_STSD, scratch, header);
+        if (stsd < 0) return true;
+        // version/flags, entry count, then the first sample entry's size, type and visual fields
+        final ByteBuffer entry = readContent(channel, stsd + header[2], 44);
+        codec = Mp4Util.fourCCString(entry.getInt(12)).trim();
+        if (width == 0 || height == 0) {
+            width = entry.getShort(40) & 0xFFFF;
+            height = entry.getShort(42) & 0xFFFF;
+        }
+        return true;
+    }
+
+    private boolean readJpeg(FileChannel channel) throws IOException {
+        codec = CODEC_JPEG;
+        long position = 2;
+        final long size = sizeBytes;
+        while (position + 4 <= size) {
+            final ByteBuffer marker = readContent(channel, position, 4);
+            int code = marker.getShort(0) & 0xFFFF;
+            if ((code & 0xFF00) != 0xFF00) return false;
+            if (code == 0xFFFF) {
+                // Fill byte
+                position++;
+                continue;
+            }
+            final int length = marker.getShort(2) & 0xFFFF;
+            if (code == JPEG_SOS) return width > 0;
+            if (isStartOfFrame(code)) {
+                final ByteBuffer sof = readContent(channel, position + 4, 5);
+                height = sof.getShort(1) & 0xFFFF;
+                width = sof.getShort(3) & 0xFFFF;
+                return true;
+            } else if (code == JPEG_APP1 && length > 16) {
+                readExifOrientation(channel, position + 4, length - 2);
+            }
+            position += 2 + length;
+        }
+        return width > 0;
+    }
+
+    static boolean isStartOfFrame(int code) {
+        // SOF0-SOF15, except DHT (C4), JPG (C8) and DAC (CC)
+        return code >= 0xFFC0 && code <= 0xFFCF && code != 0xFFC4 && code != 0xFFC8 && code != 0xFFCC;
+    }
+
+    private void readExifOrientation(FileChannel channel, long start, int length) throws IOException {
+        // "Exif\0\0", TIFF header, then IFD0 entries; only IFD0 needs to be read
+        final ByteBuffer exif = readContent(channel, start, Math.min(length, 1024));
+        if (exif.limit() < 14 || exif.getInt(0) != EXIF_HEADER) return;
+        final int tiff = 6;
+        exif.order(exif.getShort(tiff) == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        final int ifd = tiff + exif.getInt(tiff + 4);
+        if (ifd < tiff || ifd + 2 > exif.limit()) return;
+        final int count = exif.getShort(ifd) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            final int entry = ifd + 2 + i * 12;
+            if (entry + 12 > exif.limit()) return;
+            if ((exif.getShort(entry) & 0xFFFF) == TIFF_TAG_ORIENTATION) {
+                rotation = exifOrientationToDegrees(exif.getShort(entry + 8) & 0xFFFF);
+                return;
+            }
+        }
+    }
+
+    static int exifOrientationToDegrees(int orientation) {
+        switch (orientation) {
+            case 3:
+            case 4:
+                return 180;
+            case 5:
+            case 6:
+                return 90;
+            case 7:
+            case 8:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    private static ByteBuffer readContent(FileChannel channel, long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - position)));
+        readFully(channel, buffer, position);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%dx%d, %d ms, %d\u00b0, %d bytes, %s", width, height, durationMs, rotation, sizeBytes, codec);
+    }
+}
@@ -0,0 +1,195 @@
+package com.afollestad.materialcamera.util;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.afollestad.materialcamera.util.JpegTables.APP0;
+import static com.afollestad.materialcamera.util.JpegTables.APP1;
+import static com.afollestad.materialcamera.util.JpegTables.COM;
+import static com.afollestad.materialcamera.util.JpegTables.EOI;
+import static com.afollestad.materialcamera.util.JpegTables.SOI;
+import static com.afollestad.materialcamera.util.JpegTables.SOS;
+
+/**
+ * Removes privacy sensitive metadata from a JPEG without decoding it. Segments are copied one at a
+ * time: APPn and COM segments are read into memory and dropped or edited in place, the table and
+ * frame segments are copied as they are, and everything from the first scan on is handed to
+ * {@link FileChannel#transferTo} untouched. Only the headers are ever parsed, so the work doesn't
+ * grow with the image resolution.
+ * <p>
+ * Metadata after the first scan of a progressive JPEG is left alone; cameras don't write any there.
+ */
+public class MetadataScrubber {
+
+    @IntDef(flag = true, value = {LOCATION, DEVICE, XMP, COMMENTS, EXIF})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Strip {
+    }
+
+    /**
+     * The EXIF GPS IFD and every value in it.
+     */
+    public static final int LOCATION = 1;
+    /**
+     * EXIF tags naming or identifying the camera, its owner and the software: make, model,
+     * software, artist, host computer, maker note, serial numbers, lens make/model and the image
+     * unique ID.
+     */
+    public static final int DEVICE = 1 << 1;
+    /**
+     * XMP packets, which editors use for location and history among others.
+     */
+    public static final int XMP = 1 << 2;
+    public static final int COMMENTS = 1 << 3;
+    /**
+     * The whole EXIF segment, including the orientation tag, so only use this on stills that are
+     * already upright.
+     */
+    public static final int EXIF = 1 << 4;
+
+    private static final int[] DEVICE_TAGS = {0x010F, 0x0110, 0x0131, 0x013B, 0x013C};
+    private static final int[] EXIF_DEVICE_TAGS = {0x927C, 0xA420, 0xA430, 0xA431, 0xA433, 0xA434, 0xA435};
+    private static final byte[] XMP_NAMESPACE = "http://ns.adobe.com/x".getBytes();
+
+    // What to do with a metadata segment
+    private static final int KEEP = 0;
+    private static final int EDITED = 1;
+    private static final int DROP = 2;
+
+    private MetadataScrubber() {
+    }
+
+    /**
+     * Copies {@code input} to {@code output} without the metadata selected by {@code flags}.
+     *
+     * @return false if there was nothing to remove; {@code output} is still a complete copy then.
+     */
+    public static boolean scrub(@NonNull File input, @NonNull File output, @Strip int flags) throws IOException {
+        final FileInputStream in = new FileInputStream(input);
+        try {
+            final FileOutputStream out = new FileOutputStream(output);
+            try {
+                return scrub(in.getChannel(), out.getChannel(), flags);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean scrub(FileChannel src, FileChannel dst, int flags) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(4);
+        read(src, header, 0, 2);
+        if (header.getShort(0) != (short) SOI)
+            throw new IOException("Not a JPEG file");
+        transfer(src, 0, 2, dst);
+
+        boolean changed = false;
+        long position = 2;
+        while (true) {
+            read(src, header, position, 2);
+            final int marker = header.getShort(0) & 0xFFFF;
+            if (marker == 0xFFFF) {
+                // Fill byte before a marker
+                position++;
+                continue;
+            } else if ((marker & 0xFF00) != 0xFF00) {
+                throw new IOException(String.format("Expected a marker at %d, found 0x%04X", position, marker));
+            } else if (marker == SOS) {
+                // The entropy coded data, any later tables and scans, EOI and whatever trails it
+                transfer(src, position, src.size() - position, dst);
+                return changed;
+            } else if (marker == EOI) {
+                transfer(src, position, 2, dst);
+                return changed;
+            }
+
+            read(src, header, position + 2, 2);
+            final int length = (header.getShort(0) & 0xFFFF) + 2;
+            if ((marker & 0xFFF0) == APP0 || marker == COM) {
+                final ByteBuffer segment = ByteBuffer.allocate(length);
+                read(src, segment, position, length);
+                final int action = strip(segment.array(), marker, flags);
+                if (action != DROP) {
+                    segment.rewind();
+                    while (segment.hasRemaining())
+                        dst.write(segment);
+                }
+                changed |= action != KEEP;
+            } else {
+                transfer(src, position, length, dst);
+            }
+            position += length;
+        }
+    }
+
+    /**
+     * Edits {@code segment} in place as {@code flags} ask.
+     *
+     * @return {@link #KEEP}, {@link #EDITED} or {@link #DROP}.
+     */
+    private static int strip(byte[] segment, int marker, int flags) {
+        if (marker == COM)
+            return (flags & COMMENTS) != 0 ? DROP : KEEP;
+        if (marker != APP1)
+            return KEEP;
+        if (startsWith(segment, 4, XMP_NAMESPACE))
+            return (flags & XMP) != 0 ? DROP : KEEP;
+        if (!ExifSegment.isExif(segment))
+            return KEEP;
+        if ((flags & EXIF) != 0)
+            return DROP;
+
+        final int ifd0 = ExifSegment.firstIfd(segment);
+        boolean changed = false;
+        if ((flags & LOCATION) != 0) {
+            ExifSegment.clearIfd(segment, ExifSegment.pointedIfd(segment, ifd0, ExifSegment.TAG_GPS_IFD));
+            changed = ExifSegment.removeEntry(segment, ifd0, ExifSegment.TAG_GPS_IFD);
+        }
+        if ((flags & DEVICE) != 0) {
+            for (int tag : DEVICE_TAGS)
+                changed |= ExifSegment.removeEntry(segment, ifd0, tag);
+            final int exifIfd = ExifSegment.pointedIfd(segment, ifd0, ExifSegment.TAG_EXIF_IFD);
+            for (int tag : EXIF_DEVICE_TAGS)
+                changed |= ExifSegment.removeEntry(segment, exifIfd, tag);
+        }
+        return changed ? EDITED : KEEP;
+    }
+
+    private static boolean startsWith(byte[] segment, int offset, byte[] prefix) {
+        if (segment.length < offset + prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (segment[offset + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static void read(FileChannel src, ByteBuffer buffer, long position, int count) throws IOException {
+        buffer.clear().limit(count);
+        while (buffer.hasRemaining()) {
+            if (src.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of JPEG data");
+        }
+    }
+
+    private static void transfer(FileChannel src, long position, long count, FileChannel dst) throws IOException {
+        while (count > 0) {
+            final long transferred = src.transferTo(position, count, dst);
+            if (transferred <= 0)
+                throw new EOFException("Unexpected end of JPEG data");
+            position += transferred;
+            count -= transferred;
+        }
+    }
+}
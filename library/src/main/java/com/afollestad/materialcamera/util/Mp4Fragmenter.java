@@ -0,0 +1,514 @@
+package com.afollestad.materialcamera.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_FTYP;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MDAT;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MDIA;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MINF;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MOOV;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_STBL;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_STSD;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_TRAK;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_VIDE;
+import static com.afollestad.materialcamera.util.Mp4Util.beginBox;
+import static com.afollestad.materialcamera.util.Mp4Util.beginFullBox;
+import static com.afollestad.materialcamera.util.Mp4Util.endBox;
+import static com.afollestad.materialcamera.util.Mp4Util.findBox;
+import static com.afollestad.materialcamera.util.Mp4Util.fourCC;
+import static com.afollestad.materialcamera.util.Mp4Util.transferFully;
+import static com.afollestad.materialcamera.util.Mp4Util.writeFully;
+
+/**
+ * Remuxes a regular MP4 file, as written by MediaRecorder, into a fragmented MP4 (an init segment
+ * followed by moof/mdat pairs) that DASH and HLS can serve without further processing.
+ * <p>
+ * Samples are copied from the input to the output with {@link FileChannel#transferTo}, they are
+ * never read into the heap. Fragments start on video sync samples, so each one can be decoded
+ * on its own and uploaded as soon as {@link Listener#onFragment} reports it.
+ */
+public class Mp4Fragmenter {
+
+    public interface Listener {
+
+        /**
+         * The ftyp and moov boxes at the start of the output, [0, size), have been written.
+         */
+        void onInitSegment(long size);
+
+        /**
+         * A moof/mdat pair has been written to [offset, offset + size) of the output.
+         */
+        void onFragment(int sequenceNumber, long offset, long size, long durationMs);
+    }
+
+    private static final int TYPE_MVEX = fourCC("mvex");
+    private static final int TYPE_MEHD = fourCC("mehd");
+    private static final int TYPE_TREX = fourCC("trex");
+    private static final int TYPE_MOOF = fourCC("moof");
+    private static final int TYPE_MFHD = fourCC("mfhd");
+    private static final int TYPE_TRAF = fourCC("traf");
+    private static final int TYPE_TFHD = fourCC("tfhd");
+    private static final int TYPE_TFDT = fourCC("tfdt");
+    private static final int TYPE_TRUN = fourCC("trun");
+
+    private static final int TFHD_SAMPLE_DESCRIPTION_INDEX = 0x000002;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+    private static final int TRUN_SAMPLE_COMPOSITION_OFFSET = 0x000800;
+
+    /**
+     * sample_depends_on = 2: doesn't depend on other samples.
+     */
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    /**
+     * sample_depends_on = 1 and sample_is_non_sync_sample.
+     */
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final long mFragmentDurationMs;
+    private Listener mListener;
+
+    // Per remux state, reused between fragments
+    private int[] mFirstSample;
+    private int[] mEndSample;
+    private long[] mDecodeTime;
+    private ByteBuffer mMoof;
+
+    /**
+     * @param fragmentDurationMs minimum duration of each fragment. Fragments are cut at the
+     *                           first video sync sample after this much time.
+     */
+    public Mp4Fragmenter(long fragmentDurationMs) {
+        if (fragmentDurationMs <= 0)
+            throw new IllegalArgumentException("Fragment duration must be positive");
+        mFragmentDurationMs = fragmentDurationMs;
+    }
+
+    public Mp4Fragmenter setListener(@Nullable Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    public void remux(@NonNull File input, @NonNull File output) throws IOException {
+        join(Collections.singletonList(input), output);
+    }
+
+    /**
+     * Remuxes recordings made one after the other with the same settings, e.g. the segments of a
+     * paused recording, into a single fragmented MP4. Each input continues the timeline where the
+     * previous one ended, its tracks starting together, so the output plays as one clip. Samples are
+     * copied as is; if the encoder configuration changed between inputs, the later samples refer to
+     * a second sample description instead.
+     *
+     * @throws IOException if the inputs don't have the same tracks, in the same order and with the
+     *                     same timescales.
+     */
+    public void join(@NonNull List<File> inputs, @NonNull File output) throws IOException {
+        if (inputs.isEmpty())
+            throw new IllegalArgumentException("Nothing to join");
+        final FileInputStream[] ins = new FileInputStream[inputs.size()];
+        RandomAccessFile out = null;
+        try {
+            final Mp4Track.Movie[] movies = new Mp4Track.Movie[inputs.size()];
+            final FileChannel[] inChannels = new FileChannel[inputs.size()];
+            for (int i = 0; i < inputs.size(); i++) {
+                ins[i] = new FileInputStream(inputs.get(i));
+                inChannels[i] = ins[i].getChannel();
+                movies[i] = Mp4Track.readMovie(inChannels[i]);
+                if (i > 0) checkCompatible(movies[0], movies[i], inputs.get(i));
+            }
+            out = new RandomAccessFile(output, "rw");
+            out.setLength(0);
+            join(movies, inChannels, out.getChannel());
+        } finally {
+            for (FileInputStream in : ins)
+                if (in != null) in.close();
+            if (out != null) out.close();
+        }
+    }
+
+    /**
+     * @return whether {@code file} is already a fragmented MP4, e.g. the output of {@link #join}.
+     */
+    public static boolean isFragmented(@NonNull File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer scratch = ByteBuffer.allocate(16);
+            final long[] header = new long[3];
+            final long moov = findBox(channel, 0, channel.size(), TYPE_MOOV, scratch, header);
+            return moov >= 0 && findBox(channel, moov + header[2], moov + header[0], TYPE_MVEX, scratch, header) >= 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void checkCompatible(Mp4Track.Movie first, Mp4Track.Movie movie, File input) throws IOException {
+        boolean compatible = movie.tracks.size() == first.tracks.size();
+        for (int i = 0; compatible && i < movie.tracks.size(); i++) {
+            final Mp4Track a = first.tracks.get(i);
+            final Mp4Track b = movie.tracks.get(i);
+            compatible = a.handlerType == b.handlerType && a.timescale == b.timescale;
+        }
+        if (!compatible)
+            throw new IOException("The tracks of " + input + " don't match the first input");
+    }
+
+    private void join(Mp4Track.Movie[] movies, FileChannel[] ins, FileChannel out) throws IOException {
+        final List<Mp4Track> firstTracks = movies[0].tracks;
+        final int trackCount = firstTracks.size();
+        mFirstSample = new int[trackCount];
+        mEndSample = new int[trackCount];
+        mDecodeTime = new long[trackCount];
+
+        int reference = 0;
+        for (int i = 0; i < trackCount; i++) {
+            if (firstTracks.get(i).handlerType == TYPE_VIDE) {
+                reference = i;
+                break;
+            }
+        }
+
+        // Distinct sample descriptions of each track, and the entry (1 based) each input refers to
+        final List<List<byte[]>> descriptions = new ArrayList<>(trackCount);
+        final int[][] descriptionIndices = new int[movies.length][trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            final List<byte[]> distinct = new ArrayList<>();
+            final List<Integer> firstEntries = new ArrayList<>();
+            int entryCount = 0;
+            for (int m = 0; m < movies.length; m++) {
+                final byte[] stsd = movies[m].tracks.get(i).stsd;
+                int index = 0;
+                while (index < distinct.size() && !Arrays.equals(distinct.get(index), stsd))
+                    index++;
+                if (index == distinct.size()) {
+                    distinct.add(stsd);
+                    firstEntries.add(entryCount + 1);
+                    entryCount += ByteBuffer.wrap(stsd).getInt(12);
+                }
+                descriptionIndices[m][i] = firstEntries.get(index);
+            }
+            descriptions.add(distinct);
+        }
+
+        long movieDuration = 0;
+        for (Mp4Track.Movie movie : movies)
+            movieDuration += movieDuration(movie) * movies[0].timescale / movie.timescale;
+
+        // Every track of an input starts where the longest track of the previous one ended
+        final long[] startUs = new long[movies.length];
+        final long[] trackDurations = new long[trackCount];
+        for (int m = 0; m < movies.length; m++) {
+            long durationUs = 0;
+            for (int i = 0; i < trackCount; i++) {
+                final Mp4Track track = movies[m].tracks.get(i);
+                final long ticks = mediaDuration(track);
+                durationUs = Math.max(durationUs, ticks * 1000000 / track.timescale);
+                // Where the track's samples end on the joined timeline
+                trackDurations[i] = startTicks(startUs[m], track) + ticks;
+            }
+            if (m + 1 < movies.length) startUs[m + 1] = startUs[m] + durationUs;
+        }
+
+        final ByteBuffer init = writeInitSegment(movies[0], descriptions, movieDuration, trackDurations);
+        writeFully(out, init, 0);
+        out.position(init.limit());
+        if (mListener != null) mListener.onInitSegment(init.limit());
+
+        int sequenceNumber = 1;
+        for (int m = 0; m < movies.length; m++) {
+            final List<Mp4Track> tracks = movies[m].tracks;
+            for (int i = 0; i < trackCount; i++) {
+                mFirstSample[i] = 0;
+                mDecodeTime[i] = startTicks(startUs[m], tracks.get(i));
+            }
+            sequenceNumber = writeFragments(tracks, reference, descriptionIndices[m], sequenceNumber, ins[m], out);
+        }
+        out.force(false);
+    }
+
+    private static long movieDuration(Mp4Track.Movie movie) {
+        final ByteBuffer mvhd = ByteBuffer.wrap(movie.mvhd);
+        return mvhd.get(8) == 1 ? mvhd.getLong(32) : mvhd.getInt(24) & 0xFFFFFFFFL;
+    }
+
+    private static long mediaDuration(Mp4Track track) {
+        long ticks = 0;
+        for (int sample = 0; sample < track.sampleCount; sample++)
+            ticks += track.sampleDurations[sample];
+        return ticks;
+    }
+
+    private static long startTicks(long startUs, Mp4Track track) {
+        return (startUs * track.timescale + 999999) / 1000000;
+    }
+
+    /**
+     * Overwrites the duration of an mvhd, tkhd or mdhd box written at {@code box}.
+     *
+     * @param offset   where the duration is in a version 0 box.
+     * @param offsetV1 where it is in a version 1 box, which has 64 bit times.
+     */
+    private static void putDuration(ByteBuffer out, int box, int offset, int offsetV1, long duration) {
+        if (out.get(box + 8) == 1) out.putLong(box + offsetV1, duration);
+        else out.putInt(box + offset, (int) duration);
+    }
+
+    /**
+     * Writes the samples of one input as fragments, continuing from {@link #mDecodeTime}.
+     *
+     * @return the sequence number of the next fragment.
+     */
+    private int writeFragments(List<Mp4Track> tracks, int reference, int[] descriptionIndices,
+                               int sequenceNumber, FileChannel in, FileChannel out) throws IOException {
+        final int trackCount = tracks.size();
+        final Mp4Track referenceTrack = tracks.get(reference);
+        final long fragmentTicks = mFragmentDurationMs * referenceTrack.timescale / 1000;
+        while (mFirstSample[reference] < referenceTrack.sampleCount) {
+            // Cut the reference track at the first sync sample after the fragment duration
+            int end = mFirstSample[reference];
+            long elapsed = 0;
+            while (end < referenceTrack.sampleCount) {
+                if (end > mFirstSample[reference] && elapsed >= fragmentTicks && referenceTrack.isSync(end))
+                    break;
+                elapsed += referenceTrack.sampleDurations[end];
+                end++;
+            }
+            mEndSample[reference] = end;
+            final boolean last = end == referenceTrack.sampleCount;
+            final long endTime = mDecodeTime[reference] + elapsed;
+
+            // Other tracks get every sample that starts before the reference track's cut
+            for (int i = 0; i < trackCount; i++) {
+                if (i == reference) continue;
+                final Mp4Track track = tracks.get(i);
+                int sample = mFirstSample[i];
+                long time = mDecodeTime[i];
+                while (sample < track.sampleCount && (last ||
+                        time * referenceTrack.timescale < endTime * track.timescale)) {
+                    time += track.sampleDurations[sample];
+                    sample++;
+                }
+                mEndSample[i] = sample;
+            }
+
+            final long offset = out.position();
+            writeFragment(tracks, descriptionIndices, sequenceNumber, in, out);
+            if (mListener != null) {
+                mListener.onFragment(sequenceNumber, offset, out.position() - offset,
+                        elapsed * 1000 / referenceTrack.timescale);
+            }
+
+            for (int i = 0; i < trackCount; i++) {
+                final Mp4Track track = tracks.get(i);
+                for (int sample = mFirstSample[i]; sample < mEndSample[i]; sample++)
+                    mDecodeTime[i] += track.sampleDurations[sample];
+                mFirstSample[i] = mEndSample[i];
+            }
+            sequenceNumber++;
+        }
+        return sequenceNumber;
+    }
+
+    /**
+     * @param movieDuration  the duration of all inputs, in the first one's movie timescale.
+     * @param trackDurations the duration of each track over all inputs, in its media timescale.
+     */
+    private static ByteBuffer writeInitSegment(Mp4Track.Movie movie, List<List<byte[]>> descriptions,
+                                               long movieDuration, long[] trackDurations) {
+        int capacity = 256 + movie.mvhd.length;
+        for (int i = 0; i < movie.tracks.size(); i++) {
+            final Mp4Track track = movie.tracks.get(i);
+            capacity += 256 + track.tkhd.length + track.mdhd.length + track.hdlr.length +
+                    track.minfHeaders.length;
+            for (byte[] stsd : descriptions.get(i))
+                capacity += stsd.length;
+        }
+        final ByteBuffer out = ByteBuffer.allocate(capacity);
+
+        final int ftyp = beginBox(out, TYPE_FTYP);
+        out.putInt(fourCC("iso5"));
+        out.putInt(0);
+        out.putInt(fourCC("iso5"));
+        out.putInt(fourCC("iso6"));
+        out.putInt(fourCC("mp41"));
+        endBox(out, ftyp);
+
+        final int moov = beginBox(out, TYPE_MOOV);
+        // The first input's headers, with the durations of all of them
+        final int mvhd = out.position();
+        out.put(movie.mvhd);
+        putDuration(out, mvhd, 24, 32, movieDuration);
+
+        for (int i = 0; i < movie.tracks.size(); i++) {
+            final Mp4Track track = movie.tracks.get(i);
+            final int trak = beginBox(out, TYPE_TRAK);
+            final int tkhd = out.position();
+            out.put(track.tkhd);
+            putDuration(out, tkhd, 28, 36, trackDurations[i] * movie.timescale / track.timescale);
+            final int mdia = beginBox(out, TYPE_MDIA);
+            final int mdhd = out.position();
+            out.put(track.mdhd);
+            putDuration(out, mdhd, 24, 32, trackDurations[i]);
+            out.put(track.hdlr);
+            final int minf = beginBox(out, TYPE_MINF);
+            out.put(track.minfHeaders);
+            final int stbl = beginBox(out, TYPE_STBL);
+            putSampleDescriptions(out, descriptions.get(i));
+            // Empty sample tables, the samples are described by each fragment's trun
+            for (String type : new String[]{"stts", "stsc", "stsz", "stco"}) {
+                final int box = beginFullBox(out, fourCC(type), 0, 0);
+                if (type.equals("stsz")) out.putInt(0); // sample_size
+                out.putInt(0);
+                endBox(out, box);
+            }
+            endBox(out, stbl);
+            endBox(out, minf);
+            endBox(out, mdia);
+            endBox(out, trak);
+        }
+
+        final int mvex = beginBox(out, TYPE_MVEX);
+        final int mehd = beginFullBox(out, TYPE_MEHD, 1, 0);
+        out.putLong(movieDuration);
+        endBox(out, mehd);
+        for (Mp4Track track : movie.tracks) {
+            final int trex = beginFullBox(out, TYPE_TREX, 0, 0);
+            out.putInt(track.trackId);
+            out.putInt(1); // default_sample_description_index
+            out.putInt(0); // default_sample_duration
+            out.putInt(0); // default_sample_size
+            out.putInt(0); // default_sample_flags
+            endBox(out, trex);
+        }
+        endBox(out, mvex);
+        endBox(out, moov);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Writes a single stsd box holding the entries of each of {@code descriptions} in turn.
+     */
+    private static void putSampleDescriptions(ByteBuffer out, List<byte[]> descriptions) {
+        if (descriptions.size() == 1) {
+            out.put(descriptions.get(0));
+            return;
+        }
+        final int stsd = beginFullBox(out, TYPE_STSD, 0, 0);
+        int entryCount = 0;
+        for (byte[] description : descriptions)
+            entryCount += ByteBuffer.wrap(description).getInt(12);
+        out.putInt(entryCount);
+        for (byte[] description : descriptions)
+            out.put(description, 16, description.length - 16);
+        endBox(out, stsd);
+    }
+
+    private void writeFragment(List<Mp4Track> tracks, int[] descriptionIndices, int sequenceNumber, FileChannel in, FileChannel out) throws IOException {
+        final int trackCount = tracks.size();
+
+        // The moof size is known up front, which gives each trun its offset into the mdat
+        int moofSize = 8 + 16;
+        long mdatPayload = 0;
+        for (int i = 0; i < trackCount; i++) {
+            final Mp4Track track = tracks.get(i);
+            final int count = mEndSample[i] - mFirstSample[i];
+            if (count == 0) continue;
+            moofSize += 8 + 16 + 20 + 20 + count * (track.compositionOffsets != null ? 16 : 12);
+            if (descriptionIndices[i] != 1) moofSize += 4;
+            for (int sample = mFirstSample[i]; sample < mEndSample[i]; sample++)
+                mdatPayload += track.sampleSizes[sample];
+        }
+        final boolean largeMdat = mdatPayload + 8 > 0xFFFFFFFFL;
+        final int mdatHeaderSize = largeMdat ? 16 : 8;
+
+        if (mMoof == null || mMoof.capacity() < moofSize + mdatHeaderSize)
+            mMoof = ByteBuffer.allocate(moofSize + mdatHeaderSize);
+        final ByteBuffer moof = mMoof;
+        moof.clear();
+
+        final int moofStart = beginBox(moof, TYPE_MOOF);
+        final int mfhd = beginFullBox(moof, TYPE_MFHD, 0, 0);
+        moof.putInt(sequenceNumber);
+        endBox(moof, mfhd);
+
+        long dataOffset = moofSize + mdatHeaderSize;
+        for (int i = 0; i < trackCount; i++) {
+            final Mp4Track track = tracks.get(i);
+            final int first = mFirstSample[i];
+            final int count = mEndSample[i] - first;
+            if (count == 0) continue;
+            final boolean hasCto = track.compositionOffsets != null;
+
+            final int traf = beginBox(moof, TYPE_TRAF);
+            final boolean otherDescription = descriptionIndices[i] != 1;
+            final int tfhd = beginFullBox(moof, TYPE_TFHD, 0, TFHD_DEFAULT_BASE_IS_MOOF |
+                    (otherDescription ? TFHD_SAMPLE_DESCRIPTION_INDEX : 0));
+            moof.putInt(track.trackId);
+            if (otherDescription) moof.putInt(descriptionIndices[i]);
+            endBox(moof, tfhd);
+            final int tfdt = beginFullBox(moof, TYPE_TFDT, 1, 0);
+            moof.putLong(mDecodeTime[i]);
+            endBox(moof, tfdt);
+
+            int flags = TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS;
+            if (hasCto) flags |= TRUN_SAMPLE_COMPOSITION_OFFSET;
+            // Version 1 makes the composition offsets signed
+            final int trun = beginFullBox(moof, TYPE_TRUN, hasCto ? 1 : 0, flags);
+            moof.putInt(count);
+            moof.putInt((int) dataOffset);
+            for (int sample = first; sample < first + count; sample++) {
+                moof.putInt(track.sampleDurations[sample]);
+                moof.putInt(track.sampleSizes[sample]);
+                moof.putInt(track.isSync(sample) ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+                if (hasCto) moof.putInt(track.compositionOffsets[sample]);
+                dataOffset += track.sampleSizes[sample];
+            }
+            endBox(moof, trun);
+            endBox(moof, traf);
+        }
+        endBox(moof, moofStart);
+
+        if (largeMdat) {
+            moof.putInt(1);
+            moof.putInt(TYPE_MDAT);
+            moof.putLong(mdatPayload + 16);
+        } else {
+            moof.putInt((int) (mdatPayload + 8));
+            moof.putInt(TYPE_MDAT);
+        }
+        moof.flip();
+        while (moof.hasRemaining())
+            out.write(moof);
+
+        for (int i = 0; i < trackCount; i++) {
+            final Mp4Track track = tracks.get(i);
+            // Copy runs of samples that are contiguous in the input with a single transfer
+            int sample = mFirstSample[i];
+            while (sample < mEndSample[i]) {
+                final long start = track.sampleOffsets[sample];
+                long length = track.sampleSizes[sample++];
+                while (sample < mEndSample[i] && track.sampleOffsets[sample] == start + length)
+                    length += track.sampleSizes[sample++];
+                transferFully(in, start, length, out);
+            }
+        }
+    }
+}
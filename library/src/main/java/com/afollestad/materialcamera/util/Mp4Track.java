@@ -0,0 +1,293 @@
+package com.afollestad.materialcamera.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_HDLR;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MDHD;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MDIA;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MINF;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MOOV;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_MVHD;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_STBL;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_STSD;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_STSZ;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_STZ2;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_TKHD;
+import static com.afollestad.materialcamera.util.Mp4Util.TYPE_TRAK;
+import static com.afollestad.materialcamera.util.Mp4Util.findBox;
+import static com.afollestad.materialcamera.util.Mp4Util.fourCC;
+import static com.afollestad.materialcamera.util.Mp4Util.readBoxHeader;
+import static com.afollestad.materialcamera.util.Mp4Util.readFully;
+
+/**
+ * A track of a regular (non-fragmented) MP4 file with its sample table expanded into flat arrays:
+ * where every sample lives in the file, how big it is, and when it is decoded and presented.
+ */
+class Mp4Track {
+
+    private static final int TYPE_STTS = fourCC("stts");
+    private static final int TYPE_CTTS = fourCC("ctts");
+    private static final int TYPE_STSC = fourCC("stsc");
+    private static final int TYPE_STCO = fourCC("stco");
+    private static final int TYPE_CO64 = fourCC("co64");
+    private static final int TYPE_STSS = fourCC("stss");
+
+    int trackId;
+    int handlerType;
+    long timescale;
+    long duration;
+
+    /**
+     * Raw boxes copied as-is into remuxed output.
+     */
+    byte[] tkhd;
+    byte[] mdhd;
+    byte[] hdlr;
+    byte[] stsd;
+    /**
+     * The media header (vmhd/smhd/nmhd) and dinf boxes of minf, everything but stbl.
+     */
+    byte[] minfHeaders;
+
+    int sampleCount;
+    long[] sampleOffsets;
+    int[] sampleSizes;
+    int[] sampleDurations;
+    /**
+     * Composition time offsets, null if the track has no ctts box.
+     */
+    int[] compositionOffsets;
+    /**
+     * Sync sample flags, null if every sample is a sync sample.
+     */
+    boolean[] syncSamples;
+
+    boolean isSync(int sample) {
+        return syncSamples == null || syncSamples[sample];
+    }
+
+    /**
+     * The movie header of a file, and its tracks.
+     */
+    static class Movie {
+        byte[] mvhd;
+        long timescale;
+        final List<Mp4Track> tracks = new ArrayList<>();
+    }
+
+    static Movie readMovie(FileChannel channel) throws IOException {
+        final ByteBuffer scratch = ByteBuffer.allocate(16);
+        final long[] header = new long[3];
+        final long moov = findBox(channel, 0, channel.size(), TYPE_MOOV, scratch, header);
+        if (moov < 0) throw new IOException("No moov box found");
+        final long moovStart = moov + header[2];
+        final long moovEnd = moov + header[0];
+
+        final Movie movie = new Movie();
+        final long mvhd = findBox(channel, moovStart, moovEnd, TYPE_MVHD, scratch, header);
+        if (mvhd < 0) throw new IOException("No mvhd box found");
+        movie.mvhd = readBox(channel, mvhd, header[0]);
+        final ByteBuffer mvhdBuffer = ByteBuffer.wrap(movie.mvhd);
+        movie.timescale = mvhdBuffer.get(8) == 1 ?
+                mvhdBuffer.getInt(28) & 0xFFFFFFFFL : mvhdBuffer.getInt(20) & 0xFFFFFFFFL;
+
+        long position = moovStart;
+        while (readBoxHeader(channel, position, moovEnd, scratch, header)) {
+            final long size = header[0];
+            if ((int) header[1] == TYPE_TRAK)
+                movie.tracks.add(readTrack(channel, position + header[2], position + size, scratch, header));
+            position += size;
+        }
+        if (movie.tracks.isEmpty()) throw new IOException("No tracks found");
+        return movie;
+    }
+
+    private static Mp4Track readTrack(FileChannel channel, long start, long end, ByteBuffer scratch, long[] header) throws IOException {
+        final Mp4Track track = new Mp4Track();
+        final long tkhd = findBox(channel, start, end, TYPE_TKHD, scratch, header);
+        if (tkhd < 0) throw new IOException("No tkhd box found");
+        track.tkhd = readBox(channel, tkhd, header[0]);
+        final ByteBuffer tkhdBuffer = ByteBuffer.wrap(track.tkhd);
+        track.trackId = tkhdBuffer.getInt(tkhdBuffer.get(8) == 1 ? 28 : 20);
+
+        final long mdia = findBox(channel, start, end, TYPE_MDIA, scratch, header);
+        if (mdia < 0) throw new IOException("No mdia box found");
+        final long mdiaStart = mdia + header[2];
+        final long mdiaEnd = mdia + header[0];
+
+        final long mdhd = findBox(channel, mdiaStart, mdiaEnd, TYPE_MDHD, scratch, header);
+        if (mdhd < 0) throw new IOException("No mdhd box found");
+        track.mdhd = readBox(channel, mdhd, header[0]);
+        final ByteBuffer mdhdBuffer = ByteBuffer.wrap(track.mdhd);
+        if (mdhdBuffer.get(8) == 1) {
+            track.timescale = mdhdBuffer.getInt(28) & 0xFFFFFFFFL;
+            track.duration = mdhdBuffer.getLong(32);
+        } else {
+            track.timescale = mdhdBuffer.getInt(20) & 0xFFFFFFFFL;
+            track.duration = mdhdBuffer.getInt(24) & 0xFFFFFFFFL;
+        }
+
+        final long hdlr = findBox(channel, mdiaStart, mdiaEnd, TYPE_HDLR, scratch, header);
+        if (hdlr < 0) throw new IOException("No hdlr box found");
+        track.hdlr = readBox(channel, hdlr, header[0]);
+        track.handlerType = ByteBuffer.wrap(track.hdlr).getInt(16);
+
+        final long minf = findBox(channel, mdiaStart, mdiaEnd, TYPE_MINF, scratch, header);
+        if (minf < 0) throw new IOException("No minf box found");
+        final long minfEnd = minf + header[0];
+        long stbl = -1;
+        long stblEnd = -1;
+        final ByteBuffer minfHeaders = ByteBuffer.allocate((int) header[0]);
+        long position = minf + header[2];
+        while (readBoxHeader(channel, position, minfEnd, scratch, header)) {
+            if ((int) header[1] == TYPE_STBL) {
+                stbl = position + header[2];
+                stblEnd = position + header[0];
+            } else {
+                minfHeaders.put(readBox(channel, position, header[0]));
+            }
+            position += header[0];
+        }
+        if (stbl < 0) throw new IOException("No stbl box found");
+        track.minfHeaders = new byte[minfHeaders.position()];
+        System.arraycopy(minfHeaders.array(), 0, track.minfHeaders, 0, track.minfHeaders.length);
+
+        final long stsd = findBox(channel, stbl, stblEnd, TYPE_STSD, scratch, header);
+        if (stsd < 0) throw new IOException("No stsd box found");
+        track.stsd = readBox(channel, stsd, header[0]);
+
+        track.readSampleSizes(channel, stbl, stblEnd, scratch, header);
+        track.readSampleOffsets(channel, stbl, stblEnd, scratch, header);
+        track.readSampleTimes(channel, stbl, stblEnd, scratch, header);
+        track.readSyncSamples(channel, stbl, stblEnd, scratch, header);
+        return track;
+    }
+
+    private void readSampleSizes(FileChannel channel, long stbl, long stblEnd, ByteBuffer scratch, long[] header) throws IOException {
+        long box = findBox(channel, stbl, stblEnd, TYPE_STSZ, scratch, header);
+        if (box > -1) {
+            final ByteBuffer stsz = readContent(channel, box, header);
+            final int uniformSize = stsz.getInt(4);
+            sampleCount = stsz.getInt(8);
+            sampleSizes = new int[sampleCount];
+            if (uniformSize != 0) {
+                for (int i = 0; i < sampleCount; i++)
+                    sampleSizes[i] = uniformSize;
+            } else {
+                stsz.position(12);
+                for (int i = 0; i < sampleCount; i++)
+                    sampleSizes[i] = stsz.getInt();
+            }
+            return;
+        }
+        box = findBox(channel, stbl, stblEnd, TYPE_STZ2, scratch, header);
+        if (box < 0) throw new IOException("No sample size box found");
+        final ByteBuffer stz2 = readContent(channel, box, header);
+        final int fieldSize = stz2.get(7);
+        sampleCount = stz2.getInt(8);
+        sampleSizes = new int[sampleCount];
+        stz2.position(12);
+        for (int i = 0; i < sampleCount; i++) {
+            if (fieldSize == 4) {
+                final int packed = stz2.get(12 + i / 2) & 0xFF;
+                sampleSizes[i] = (i & 1) == 0 ? packed >> 4 : packed & 0x0F;
+            } else if (fieldSize == 8) {
+                sampleSizes[i] = stz2.get() & 0xFF;
+            } else {
+                sampleSizes[i] = stz2.getShort() & 0xFFFF;
+            }
+        }
+    }
+
+    private void readSampleOffsets(FileChannel channel, long stbl, long stblEnd, ByteBuffer scratch, long[] header) throws IOException {
+        long box = findBox(channel, stbl, stblEnd, TYPE_STCO, scratch, header);
+        final boolean wide = box < 0;
+        if (wide) box = findBox(channel, stbl, stblEnd, TYPE_CO64, scratch, header);
+        if (box < 0) throw new IOException("No chunk offset box found");
+        final ByteBuffer chunks = readContent(channel, box, header);
+        final int chunkCount = chunks.getInt(4);
+
+        box = findBox(channel, stbl, stblEnd, TYPE_STSC, scratch, header);
+        if (box < 0) throw new IOException("No stsc box found");
+        final ByteBuffer stsc = readContent(channel, box, header);
+        final int entryCount = stsc.getInt(4);
+
+        sampleOffsets = new long[sampleCount];
+        int sample = 0;
+        for (int entry = 0; entry < entryCount; entry++) {
+            final int firstChunk = stsc.getInt(8 + entry * 12) - 1;
+            final int samplesPerChunk = stsc.getInt(12 + entry * 12);
+            final int lastChunk = entry + 1 < entryCount ? stsc.getInt(8 + (entry + 1) * 12) - 1 : chunkCount;
+            for (int chunk = firstChunk; chunk < lastChunk && chunk < chunkCount; chunk++) {
+                long offset = wide ? chunks.getLong(8 + chunk * 8) : chunks.getInt(8 + chunk * 4) & 0xFFFFFFFFL;
+                for (int i = 0; i < samplesPerChunk && sample < sampleCount; i++) {
+                    sampleOffsets[sample] = offset;
+                    offset += sampleSizes[sample++];
+                }
+            }
+        }
+        if (sample != sampleCount)
+            throw new IOException("Chunk table covers " + sample + " of " + sampleCount + " samples");
+    }
+
+    private void readSampleTimes(FileChannel channel, long stbl, long stblEnd, ByteBuffer scratch, long[] header) throws IOException {
+        long box = findBox(channel, stbl, stblEnd, TYPE_STTS, scratch, header);
+        if (box < 0) throw new IOException("No stts box found");
+        final ByteBuffer stts = readContent(channel, box, header);
+        sampleDurations = new int[sampleCount];
+        int sample = 0;
+        final int entryCount = stts.getInt(4);
+        for (int entry = 0; entry < entryCount; entry++) {
+            final int count = stts.getInt(8 + entry * 8);
+            final int delta = stts.getInt(12 + entry * 8);
+            for (int i = 0; i < count && sample < sampleCount; i++)
+                sampleDurations[sample++] = delta;
+        }
+
+        box = findBox(channel, stbl, stblEnd, TYPE_CTTS, scratch, header);
+        if (box < 0) return;
+        final ByteBuffer ctts = readContent(channel, box, header);
+        compositionOffsets = new int[sampleCount];
+        sample = 0;
+        final int cttsCount = ctts.getInt(4);
+        for (int entry = 0; entry < cttsCount; entry++) {
+            final int count = ctts.getInt(8 + entry * 8);
+            final int offset = ctts.getInt(12 + entry * 8);
+            for (int i = 0; i < count && sample < sampleCount; i++)
+                compositionOffsets[sample++] = offset;
+        }
+    }
+
+    private void readSyncSamples(FileChannel channel, long stbl, long stblEnd, ByteBuffer scratch, long[] header) throws IOException {
+        final long box = findBox(channel, stbl, stblEnd, TYPE_STSS, scratch, header);
+        if (box < 0) return;
+        final ByteBuffer stss = readContent(channel, box, header);
+        syncSamples = new boolean[sampleCount];
+        final int entryCount = stss.getInt(4);
+        for (int entry = 0; entry < entryCount; entry++) {
+            final int sample = stss.getInt(8 + entry * 4) - 1;
+            if (sample >= 0 && sample < sampleCount)
+                syncSamples[sample] = true;
+        }
+    }
+
+    /**
+     * Reads a full box's content, skipping its header. {@code header} must describe the box.
+     */
+    private static ByteBuffer readContent(FileChannel channel, long box, long[] header) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) (header[0] - header[2]));
+        readFully(channel, buffer, box + header[2]);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] readBox(FileChannel channel, long box, long size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        readFully(channel, buffer, box);
+        return buffer.array();
+    }
+}
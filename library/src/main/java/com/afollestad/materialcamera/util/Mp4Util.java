@@ -0,0 +1,400 @@
+package com.afollestad.materialcamera.util;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * In-place edits of MP4 files written by MediaRecorder. Nothing here copies the media data, only
+ * the affected header boxes are read and written through a {@link FileChannel}.
+ * <p>
+ * MediaRecorder reserves space for the moov box at the head of the file and pads what it doesn't
+ * use with a free box, so metadata can usually grow into that padding without touching mdat.
+ */
+public class Mp4Util {
+
+    static final int TYPE_FTYP = fourCC("ftyp");
+    static final int TYPE_MOOV = fourCC("moov");
+    static final int TYPE_MVHD = fourCC("mvhd");
+    static final int TYPE_TRAK = fourCC("trak");
+    static final int TYPE_TKHD = fourCC("tkhd");
+    static final int TYPE_MDIA = fourCC("mdia");
+    static final int TYPE_MDHD = fourCC("mdhd");
+    static final int TYPE_HDLR = fourCC("hdlr");
+    static final int TYPE_MINF = fourCC("minf");
+    static final int TYPE_STBL = fourCC("stbl");
+    static final int TYPE_STSD = fourCC("stsd");
+    static final int TYPE_STSZ = fourCC("stsz");
+    static final int TYPE_STZ2 = fourCC("stz2");
+    static final int TYPE_UDTA = fourCC("udta");
+    static final int TYPE_MDAT = fourCC("mdat");
+    static final int TYPE_FREE = fourCC("free");
+    static final int TYPE_SKIP = fourCC("skip");
+    static final int TYPE_VIDE = fourCC("vide");
+    static final int TYPE_SOUN = fourCC("soun");
+    /**
+     * ISO 6709 location box, as written by MediaRecorder.setLocation().
+     */
+    public static final String USER_DATA_LOCATION = "\u00a9xyz";
+
+    private static final int FIXED_ONE = 0x00010000;
+    private static final int FIXED_W = 0x40000000;
+    private static final int MATRIX_SIZE = 36;
+
+    private Mp4Util() {
+    }
+
+    static int fourCC(String type) {
+        if (type.length() != 4)
+            throw new IllegalArgumentException("Box types are four characters: " + type);
+        return ((type.charAt(0) & 0xFF) << 24) | ((type.charAt(1) & 0xFF) << 16) |
+                ((type.charAt(2) & 0xFF) << 8) | (type.charAt(3) & 0xFF);
+    }
+
+    static String fourCCString(int type) {
+        return new String(new char[]{(char) ((type >>> 24) & 0xFF), (char) ((type >>> 16) & 0xFF),
+                (char) ((type >>> 8) & 0xFF), (char) (type & 0xFF)});
+    }
+
+    /**
+     * Reads the header of the box at {@code position}. On return {@code header} holds the box
+     * size (including the header) at index 0, the type at index 1, and the header length at index 2.
+     *
+     * @return false if there isn't a complete box header at {@code position}
+     */
+    static boolean readBoxHeader(FileChannel channel, long position, long end, ByteBuffer scratch, long[] header) throws IOException {
+        if (end - position < 8) return false;
+        scratch.clear();
+        scratch.limit(8);
+        readFully(channel, scratch, position);
+        scratch.flip();
+        long size = scratch.getInt() & 0xFFFFFFFFL;
+        final int type = scratch.getInt();
+        int headerSize = 8;
+        if (size == 1) {
+            if (end - position < 16) return false;
+            scratch.clear();
+            scratch.limit(8);
+            readFully(channel, scratch, position + 8);
+            scratch.flip();
+            size = scratch.getLong();
+            headerSize = 16;
+        } else if (size == 0) {
+            // Box extends to the end of its container
+            size = end - position;
+        }
+        if (size < headerSize || position + size > end) return false;
+        header[0] = size;
+        header[1] = type;
+        header[2] = headerSize;
+        return true;
+    }
+
+    /**
+     * @return the offset of the first box of {@code type} in [start, end), or -1 if there is none.
+     */
+    static long findBox(FileChannel channel, long start, long end, int type, ByteBuffer scratch, long[] header) throws IOException {
+        long position = start;
+        while (readBoxHeader(channel, position, end, scratch, header)) {
+            if ((int) header[1] == type) return position;
+            position += header[0];
+        }
+        return -1;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of file at " + position);
+            position += read;
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /**
+     * Starts a box in {@code out}, its size is filled in by {@link #endBox(ByteBuffer, int)}.
+     *
+     * @return the offset of the box, to be passed to endBox.
+     */
+    static int beginBox(ByteBuffer out, int type) {
+        final int start = out.position();
+        out.putInt(0);
+        out.putInt(type);
+        return start;
+    }
+
+    static int beginFullBox(ByteBuffer out, int type, int version, int flags) {
+        final int start = beginBox(out, type);
+        out.putInt((version << 24) | flags);
+        return start;
+    }
+
+    static void endBox(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start);
+    }
+
+    /**
+     * Copies {@code length} bytes starting at {@code position} of {@code in} to the current position of {@code out}.
+     */
+    static void transferFully(FileChannel in, long position, long length, FileChannel out) throws IOException {
+        while (length > 0) {
+            final long transferred = in.transferTo(position, length, out);
+            if (transferred <= 0) throw new IOException("Unexpected end of file at " + position);
+            position += transferred;
+            length -= transferred;
+        }
+    }
+
+    /**
+     * Rewrites the display matrix of every video track, which is what players use to rotate the
+     * picture. Only the 36 bytes of each matrix are written.
+     *
+     * @param degrees clockwise rotation, one of 0, 90, 180 or 270.
+     */
+    public static void setOrientation(@NonNull File file, int degrees) throws IOException {
+        final int[] matrix = rotationMatrix(degrees);
+        final ByteBuffer out = ByteBuffer.allocate(MATRIX_SIZE);
+        for (int value : matrix)
+            out.putInt(value);
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer scratch = ByteBuffer.allocate(16);
+            final long[] header = new long[3];
+
+            final long moov = findBox(channel, 0, channel.size(), TYPE_MOOV, scratch, header);
+            if (moov < 0) throw new IOException("No moov box found in " + file);
+            final long moovEnd = moov + header[0];
+
+            int patched = 0;
+            long position = moov + header[2];
+            while (readBoxHeader(channel, position, moovEnd, scratch, header)) {
+                final long trakSize = header[0];
+                if ((int) header[1] == TYPE_TRAK) {
+                    final long matrixOffset = findVideoMatrix(channel, position + header[2], position + trakSize, scratch, header);
+                    if (matrixOffset > -1) {
+                        out.rewind();
+                        writeFully(channel, out, matrixOffset);
+                        patched++;
+                    }
+                }
+                position += trakSize;
+            }
+            if (patched == 0) throw new IOException("No video track found in " + file);
+        } finally {
+            if (raf != null) raf.close();
+        }
+    }
+
+    /**
+     * @return the file offset of the tkhd matrix if the trak spanning [start, end) is a video track.
+     */
+    private static long findVideoMatrix(FileChannel channel, long start, long end, ByteBuffer scratch, long[] header) throws IOException {
+        final long mdia = findBox(channel, start, end, TYPE_MDIA, scratch, header);
+        if (mdia < 0) return -1;
+        final long hdlr = findBox(channel, mdia + header[2], mdia + header[0], TYPE_HDLR, scratch, header);
+        if (hdlr < 0) return -1;
+        // version/flags (4), pre_defined (4), then the handler type
+        scratch.clear();
+        scratch.limit(4);
+        readFully(channel, scratch, hdlr + header[2] + 8);
+        scratch.flip();
+        if (scratch.getInt() != TYPE_VIDE) return -1;
+
+        final long tkhd = findBox(channel, start, end, TYPE_TKHD, scratch, header);
+        if (tkhd < 0) return -1;
+        final long content = tkhd + header[2];
+        scratch.clear();
+        scratch.limit(1);
+        readFully(channel, scratch, content);
+        final int version = scratch.get(0) & 0xFF;
+        // Times and duration are 64-bit in version 1, then 16 bytes of layer/volume/reserved fields
+        final long offset = content + 4 + (version == 1 ? 32 : 20) + 16;
+        if (offset + MATRIX_SIZE > tkhd + header[0])
+            throw new IOException("Truncated tkhd box at " + tkhd);
+        return offset;
+    }
+
+    private static int[] rotationMatrix(int degrees) {
+        switch (degrees) {
+            case 0:
+                return new int[]{FIXED_ONE, 0, 0, 0, FIXED_ONE, 0, 0, 0, FIXED_W};
+            case 90:
+                return new int[]{0, FIXED_ONE, 0, -FIXED_ONE, 0, 0, 0, 0, FIXED_W};
+            case 180:
+                return new int[]{-FIXED_ONE, 0, 0, 0, -FIXED_ONE, 0, 0, 0, FIXED_W};
+            case 270:
+                return new int[]{0, -FIXED_ONE, 0, FIXED_ONE, 0, 0, 0, 0, FIXED_W};
+            default:
+                throw new IllegalArgumentException("Unsupported rotation: " + degrees);
+        }
+    }
+
+    /**
+     * @return the clockwise rotation described by a tkhd matrix, or 0 if it isn't a plain rotation.
+     */
+    static int rotationFromMatrix(int a, int b, int c, int d) {
+        if (a == 0 && d == 0) {
+            if (b == FIXED_ONE && c == -FIXED_ONE) return 90;
+            if (b == -FIXED_ONE && c == FIXED_ONE) return 270;
+        } else if (b == 0 && c == 0 && a == -FIXED_ONE && d == -FIXED_ONE) {
+            return 180;
+        }
+        return 0;
+    }
+
+    /**
+     * Writes an ISO 6709 location in the same format as MediaRecorder.setLocation().
+     */
+    public static void setLocation(@NonNull File file, double latitude, double longitude) throws IOException {
+        final String iso6709 = String.format(Locale.US, "%+08.4f%+09.4f/", latitude, longitude);
+        setUserData(file, USER_DATA_LOCATION, iso6709);
+    }
+
+    /**
+     * Adds or replaces a QuickTime-style text entry (<code>&#169;xyz</code>, <code>&#169;day</code>, ...) in moov/udta.
+     */
+    public static void setUserData(@NonNull File file, @NonNull String type, @NonNull String value) throws IOException {
+        final byte[] text = value.getBytes(Charset.forName("UTF-8"));
+        // 16-bit string length, 16-bit packed language code (0x15C7 = "eng"), then the string
+        final ByteBuffer payload = ByteBuffer.allocate(4 + text.length);
+        payload.putShort((short) text.length);
+        payload.putShort((short) 0x15C7);
+        payload.put(text);
+        setUserData(file, type, payload.array());
+    }
+
+    /**
+     * Adds or replaces the moov/udta child box of {@code type}. The edit is done in place: the
+     * moov box is rewritten where it is, growing into a free box that directly follows it or
+     * into the end of the file. The sample data is never moved, so chunk offsets stay valid.
+     *
+     * @throws IOException if there is no room to grow moov without moving mdat.
+     */
+    public static void setUserData(@NonNull File file, @NonNull String type, @NonNull byte[] payload) throws IOException {
+        final int boxType = fourCC(type);
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            final FileChannel channel = raf.getChannel();
+            final long fileSize = channel.size();
+            final ByteBuffer scratch = ByteBuffer.allocate(16);
+            final long[] header = new long[3];
+
+            final long moov = findBox(channel, 0, fileSize, TYPE_MOOV, scratch, header);
+            if (moov < 0) throw new IOException("No moov box found in " + file);
+            if (header[2] != 8) throw new IOException("64-bit moov boxes are not supported");
+            final long moovSize = header[0];
+            final long moovEnd = moov + moovSize;
+
+            // Slack we can grow into without moving anything else
+            long slack;
+            boolean slackIsEof = false;
+            if (moovEnd == fileSize) {
+                slack = Long.MAX_VALUE;
+                slackIsEof = true;
+            } else if (readBoxHeader(channel, moovEnd, fileSize, scratch, header) &&
+                    ((int) header[1] == TYPE_FREE || (int) header[1] == TYPE_SKIP)) {
+                slack = header[0];
+            } else {
+                slack = 0;
+            }
+
+            final ByteBuffer oldMoov = ByteBuffer.allocate((int) moovSize);
+            readFully(channel, oldMoov, moov);
+            final byte[] newMoov = replaceUserData(oldMoov.array(), boxType, payload);
+            final long grow = newMoov.length - moovSize;
+
+            // Whatever is left of the slack must be empty or big enough for a free box header
+            final long remaining = slack - grow;
+            if (!slackIsEof && remaining != 0 && remaining < 8)
+                throw new IOException("Not enough free space after moov to update user data in place");
+
+            writeFully(channel, ByteBuffer.wrap(newMoov), moov);
+            if (!slackIsEof) {
+                if (remaining > 0) {
+                    final ByteBuffer free = ByteBuffer.allocate(8);
+                    free.putInt((int) remaining);
+                    free.putInt(TYPE_FREE);
+                    free.flip();
+                    writeFully(channel, free, moov + newMoov.length);
+                }
+            } else if (grow < 0) {
+                channel.truncate(moov + newMoov.length);
+            }
+            channel.force(false);
+        } finally {
+            if (raf != null) raf.close();
+        }
+    }
+
+    /**
+     * @return a copy of {@code moov} with the udta child of {@code type} replaced or added.
+     */
+    private static byte[] replaceUserData(byte[] moov, int type, byte[] payload) throws IOException {
+        final ByteBuffer in = ByteBuffer.wrap(moov);
+        int udtaOffset = -1;
+        int udtaSize = 0;
+        int position = 8;
+        while (position + 8 <= moov.length) {
+            final int size = in.getInt(position);
+            if (size < 8 || position + size > moov.length)
+                throw new IOException("Malformed moov box");
+            if (in.getInt(position + 4) == TYPE_UDTA) {
+                udtaOffset = position;
+                udtaSize = size;
+                break;
+            }
+            position += size;
+        }
+
+        // New udta contents: every existing child except the one being replaced, then the new one
+        final ByteBuffer udta = ByteBuffer.allocate(udtaSize + 8 + payload.length + 8);
+        udta.putInt(0);
+        udta.putInt(TYPE_UDTA);
+        if (udtaOffset > -1) {
+            int child = udtaOffset + 8;
+            final int udtaEnd = udtaOffset + udtaSize;
+            while (child + 8 <= udtaEnd) {
+                final int size = in.getInt(child);
+                if (size < 8 || child + size > udtaEnd) {
+                    // Some writers end udta with a 32-bit zero terminator
+                    break;
+                }
+                if (in.getInt(child + 4) != type)
+                    udta.put(moov, child, size);
+                child += size;
+            }
+        }
+        udta.putInt(8 + payload.length);
+        udta.putInt(type);
+        udta.put(payload);
+        udta.putInt(0, udta.position());
+
+        final int newUdtaSize = udta.position();
+        final ByteBuffer out = ByteBuffer.allocate(moov.length - udtaSize + newUdtaSize);
+        if (udtaOffset > -1) {
+            out.put(moov, 0, udtaOffset);
+            out.put(udta.array(), 0, newUdtaSize);
+            out.put(moov, udtaOffset + udtaSize, moov.length - udtaOffset - udtaSize);
+        } else {
+            out.put(moov);
+            out.put(udta.array(), 0, newUdtaSize);
+        }
+        out.putInt(0, out.capacity());
+        return out.array();
+    }
+}
@@ -0,0 +1,79 @@
+package com.afollestad.materialcamera.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits per-row image work into horizontal bands that run in parallel, one per core. The calling
+ * thread processes the first band itself. Small images are processed on the calling thread only,
+ * where handing off bands would cost more than it saves.
+ */
+class RowBands {
+
+    interface Kernel {
+        /**
+         * Processes rows [start, end). Bands never overlap, so kernels can write their output without
+         * synchronization.
+         */
+        void run(int start, int end);
+    }
+
+    private static final int MIN_PIXELS_PER_BAND = 64 * 1024;
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService sExecutor;
+
+    private RowBands() {
+    }
+
+    static void run(int rows, int rowWidth, final Kernel kernel) {
+        final int bands = Math.min(Math.min(THREADS, rows), Math.max(1, (int) ((long) rows * rowWidth / MIN_PIXELS_PER_BAND)));
+        if (bands <= 1) {
+            kernel.run(0, rows);
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(bands - 1);
+        final RuntimeException[] error = new RuntimeException[1];
+        final ExecutorService executor = executor();
+        for (int band = 1; band < bands; band++) {
+            final int start = rows * band / bands;
+            final int end = rows * (band + 1) / bands;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        kernel.run(start, end);
+                    } catch (RuntimeException e) {
+                        error[0] = e;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        kernel.run(0, rows / bands);
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for row bands", e);
+        }
+        if (error[0] != null) throw error[0];
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(THREADS - 1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "RowBands");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+}
@@ -0,0 +1,104 @@
+package com.afollestad.materialcamera.util;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decodes small, upright thumbnails of saved still shots on a single background thread. The JPEG
+ * is subsampled while decoding, so a thumbnail never costs a full size bitmap. Thumbnails are kept
+ * in a memory cache bounded to a fraction of the heap, so a tray that is recreated, e.g. on
+ * rotation, fills without decoding again.
+ * <p>
+ * All methods must be called from the main thread, callbacks are invoked on it too.
+ */
+public class StillThumbnails {
+
+    public interface Callback {
+
+        /**
+         * @param bitmap the thumbnail, or null if the still couldn't be decoded.
+         */
+        void onThumbnail(@NonNull String uri, @Nullable Bitmap bitmap);
+    }
+
+    private static final int CACHE_HEAP_FRACTION = 16;
+
+    private static ExecutorService sExecutor;
+    private static LruCache<String, Bitmap> sCache;
+    private static final Map<String, List<Callback>> sPending = new HashMap<>();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private StillThumbnails() {
+    }
+
+    /**
+     * Delivers a thumbnail of {@code uri} at least {@code size} pixels on its short side, straight
+     * away if it's cached.
+     */
+    public static void load(@NonNull final String uri, final int size, @NonNull Callback callback) {
+        if (sCache == null) {
+            final int maxKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / CACHE_HEAP_FRACTION);
+            sCache = new LruCache<String, Bitmap>(maxKb) {
+                @Override
+                protected int sizeOf(String key, Bitmap value) {
+                    return value.getRowBytes() * value.getHeight() / 1024;
+                }
+            };
+        }
+        final Bitmap cached = sCache.get(uri);
+        if (cached != null) {
+            callback.onThumbnail(uri, cached);
+            return;
+        }
+        List<Callback> waiting = sPending.get(uri);
+        if (waiting != null) {
+            waiting.add(callback);
+            return;
+        }
+        waiting = new ArrayList<>();
+        waiting.add(callback);
+        sPending.put(uri, waiting);
+        if (sExecutor == null)
+            sExecutor = Executors.newSingleThreadExecutor();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = ImageUtil.getRotatedBitmap(Uri.parse(uri).getPath(), size, size);
+                sHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (bitmap != null) sCache.put(uri, bitmap);
+                        final List<Callback> callbacks = sPending.remove(uri);
+                        if (callbacks == null) return;
+                        for (Callback callback : callbacks)
+                            callback.onThumbnail(uri, bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    public static void cancel(@NonNull Callback callback) {
+        for (List<Callback> callbacks : sPending.values())
+            callbacks.remove(callback);
+    }
+
+    /**
+     * Drops the cached thumbnail of a still that was deleted.
+     */
+    public static void evict(@NonNull String uri) {
+        if (sCache != null) sCache.remove(uri);
+    }
+}
@@ -0,0 +1,276 @@
+package com.afollestad.materialcamera.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Finds the highest JPEG quality at which a bitmap fits a byte budget. Each round encodes several
+ * candidate qualities at once on a small worker pool, splitting the remaining range evenly between
+ * them, so the search takes about log<sub>n+1</sub> rounds for n workers instead of log<sub>2</sub>
+ * sequential encodes. All candidates compress the same decoded bitmap, which must not be modified
+ * while a search runs.
+ */
+public class TargetSizeEncoder {
+
+    public static final int MIN_QUALITY = 30;
+    public static final int MAX_QUALITY = 95;
+
+    /**
+     * How often {@link #fit} scales the image down further when it can't fit at any quality.
+     */
+    private static final int MAX_SHRINKS = 4;
+    private static final float SHRINK_FACTOR = 0.75f;
+
+    private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static ExecutorService sExecutor;
+
+    public static class Result {
+        /**
+         * The encoded image, as a complete JPEG stream.
+         */
+        public final byte[] jpeg;
+        public final int quality;
+        /**
+         * Number of encodes the search ran.
+         */
+        public final int attempts;
+        public final long elapsedMs;
+
+        Result(byte[] jpeg, int quality, int attempts, long elapsedMs) {
+            this.jpeg = jpeg;
+            this.quality = quality;
+            this.attempts = attempts;
+            this.elapsedMs = elapsedMs;
+        }
+    }
+
+    private final long mMaxBytes;
+    // Encodes run by this instance over all searches
+    private int mAttempts;
+
+    public TargetSizeEncoder(long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("The byte budget must be positive");
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the encode at the highest quality that fits, or null if even {@link #MIN_QUALITY}
+     * is too large, in which case the bitmap needs to be scaled down.
+     */
+    @Nullable
+    public Result encode(@NonNull final Bitmap bitmap) throws InterruptedException {
+        final long start = SystemClock.elapsedRealtime();
+        final ExecutorService executor = executor();
+        byte[] best = null;
+        int bestQuality = -1;
+        int attempts = 0;
+        int low = MIN_QUALITY;
+        int high = MAX_QUALITY;
+        while (low <= high) {
+            // Split [low, high] evenly between the workers; when there are fewer qualities left than
+            // workers, try them all
+            final int count = Math.min(THREADS, high - low + 1);
+            final int[] qualities = new int[count];
+            final List<Future<byte[]>> encodes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                qualities[i] = count == high - low + 1 ? low + i : low + (high - low) * (i + 1) / (count + 1);
+                final int quality = qualities[i];
+                encodes.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(mMaxBytes, 4 * 1024 * 1024));
+                        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+                        return out.toByteArray();
+                    }
+                }));
+            }
+            attempts += count;
+            mAttempts += count;
+
+            // Continue above the highest quality that fit, below the next one up that didn't
+            final boolean[] fits = new boolean[count];
+            int fitting = -1;
+            for (int i = 0; i < count; i++) {
+                final byte[] jpeg;
+                try {
+                    jpeg = encodes.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("JPEG encode failed", e.getCause());
+                }
+                fits[i] = jpeg.length <= mMaxBytes;
+                if (fits[i]) {
+                    fitting = i;
+                    if (qualities[i] > bestQuality) {
+                        best = jpeg;
+                        bestQuality = qualities[i];
+                    }
+                }
+            }
+            if (fitting == -1) {
+                high = qualities[0] - 1;
+                continue;
+            }
+            low = qualities[fitting] + 1;
+            for (int i = fitting + 1; i < count; i++) {
+                if (!fits[i]) {
+                    high = qualities[i] - 1;
+                    break;
+                }
+            }
+        }
+        if (best == null) return null;
+        return new Result(best, bestQuality, attempts, SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * Re-encodes a JPEG file so it fits within {@code maxDimension} pixels on its long side and
+     * {@code maxBytes} in size, at the highest quality that allows. The file is decoded once
+     * (subsampled while decoding where possible) and every encode reuses those pixels; if no quality
+     * fits, the image is scaled down a further step and searched again. APPn and COM segments other
+     * than JFIF are carried over and count towards the budget, with the EXIF pixel dimensions
+     * updated.
+     *
+     * @param maxBytes     the byte budget, or -1 for none.
+     * @param maxDimension the maximum width and height, or -1 for none.
+     * @return the chosen encode with the total time spent, or null if the input already fits and
+     * nothing was written.
+     */
+    @Nullable
+    public static Result fit(@NonNull File input, @NonNull File output, long maxBytes, int maxDimension) throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(input.getAbsolutePath(), opts);
+        final int width = opts.outWidth;
+        final int height = opts.outHeight;
+        if (width <= 0 || height <= 0)
+            throw new IOException("Unable to read the size of " + input);
+        final int longSide = Math.max(width, height);
+        if ((maxBytes <= 0 || input.length() <= maxBytes) && (maxDimension <= 0 || longSide <= maxDimension))
+            return null;
+
+        final List<byte[]> markers = readMetadata(input);
+        long metadataBytes = 0;
+        for (byte[] segment : markers)
+            metadataBytes += segment.length;
+        final long budget = maxBytes > 0 ? maxBytes - metadataBytes : Long.MAX_VALUE;
+        if (budget <= 0)
+            throw new IOException("The image metadata alone is larger than " + maxBytes + " bytes");
+
+        // Decode once, letting the decoder subsample by powers of 2 towards the target size
+        float scale = maxDimension > 0 ? Math.min(1f, (float) maxDimension / longSide) : 1f;
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = 1;
+        while (longSide / (opts.inSampleSize * 2) >= longSide * scale)
+            opts.inSampleSize *= 2;
+        final Bitmap decoded = BitmapFactory.decodeFile(input.getAbsolutePath(), opts);
+        if (decoded == null)
+            throw new IOException("Unable to decode " + input);
+
+        try {
+            final TargetSizeEncoder encoder = new TargetSizeEncoder(budget);
+            for (int shrinks = 0; shrinks <= MAX_SHRINKS; shrinks++) {
+                final int targetWidth = Math.max(1, Math.round(width * scale));
+                final int targetHeight = Math.max(1, Math.round(height * scale));
+                final Bitmap bitmap = decoded.getWidth() == targetWidth && decoded.getHeight() == targetHeight ?
+                        decoded : Bitmap.createScaledBitmap(decoded, targetWidth, targetHeight, true);
+                final Result result;
+                try {
+                    result = maxBytes > 0 ? encoder.encode(bitmap) : encoder.encodeAt(bitmap, MAX_QUALITY);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while encoding " + input);
+                } finally {
+                    if (bitmap != decoded) bitmap.recycle();
+                }
+                if (result != null) {
+                    write(output, markers, result.jpeg, targetWidth, targetHeight);
+                    return new Result(result.jpeg, result.quality, encoder.mAttempts,
+                            SystemClock.elapsedRealtime() - start);
+                }
+                scale *= SHRINK_FACTOR;
+            }
+            throw new IOException("Unable to fit " + input + " in " + maxBytes + " bytes");
+        } finally {
+            decoded.recycle();
+        }
+    }
+
+    private Result encodeAt(Bitmap bitmap, int quality) {
+        final long start = SystemClock.elapsedRealtime();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+        mAttempts++;
+        return new Result(out.toByteArray(), quality, 1, SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * Reads the APPn and COM segments worth keeping: not JFIF, which the encoder writes itself, nor
+     * MPF, which indexes secondary images that are dropped.
+     */
+    private static List<byte[]> readMetadata(File input) throws IOException {
+        final List<byte[]> markers = new ArrayList<>();
+        final FileInputStream in = new FileInputStream(input);
+        try {
+            new JpegDecoder(in.getChannel(), markers);
+        } finally {
+            in.close();
+        }
+        for (int i = markers.size() - 1; i >= 0; i--) {
+            final byte[] segment = markers.get(i);
+            final int marker = 0xFF00 | (segment[1] & 0xFF);
+            if (marker == JpegTables.APP0 || (marker == JpegTables.APP0 + 2 && segment.length >= 8 &&
+                    segment[4] == 'M' && segment[5] == 'P' && segment[6] == 'F' && segment[7] == 0))
+                markers.remove(i);
+        }
+        return markers;
+    }
+
+    private static void write(File output, List<byte[]> markers, byte[] jpeg, int width, int height) throws IOException {
+        final FileOutputStream out = new FileOutputStream(output);
+        try {
+            out.write(jpeg, 0, 2);
+            for (byte[] segment : markers) {
+                ExifSegment.setPixelDimensions(segment, width, height);
+                out.write(segment);
+            }
+            out.write(jpeg, 2, jpeg.length - 2);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "TargetSizeEncoder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+}
@@ -0,0 +1,86 @@
+package com.afollestad.materialcamera.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Size-bounded disk cache of JPEG thumbnails. The least recently used entries are evicted first,
+ * recency is tracked through each file's modification time.
+ */
+class ThumbnailCache {
+
+    private final File mDir;
+    private final long mMaxSize;
+
+    ThumbnailCache(File dir, long maxSize) {
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Entries are keyed by the video's path and modification time, so re-recording to the same
+     * path never returns stale frames.
+     */
+    static String key(File video, int index) {
+        return Integer.toHexString(video.getAbsolutePath().hashCode()) + "_" +
+                video.lastModified() + "_" + (index < 0 ? "p" : Integer.toString(index));
+    }
+
+    @Nullable
+    Bitmap get(String key) {
+        final File file = new File(mDir, key + ".jpg");
+        if (!file.exists()) return null;
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        return BitmapFactory.decodeFile(file.getAbsolutePath());
+    }
+
+    void put(String key, Bitmap bitmap) throws IOException {
+        if (!mDir.exists() && !mDir.mkdirs())
+            throw new IOException("Unable to create " + mDir);
+        final File file = new File(mDir, key + ".jpg");
+        final File temp = new File(mDir, key + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+        } finally {
+            if (out != null) out.close();
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Unable to write " + file);
+        }
+        trim();
+    }
+
+    private void trim() {
+        final File[] files = mDir.listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File file : files)
+            total += file.length();
+        if (total <= mMaxSize) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (total <= mMaxSize) break;
+            final long length = file.length();
+            if (file.delete()) total -= length;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.afollestad.materialcamera.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Extracts a poster frame and a strip of evenly spaced scrubbing thumbnails from a recorded video.
+ * Frames are extracted on a single background thread and kept in a disk LRU cache, so the review
+ * screen can show them as soon as it opens, even before the player has prepared the video.
+ * <p>
+ * All methods must be called from the main thread, callbacks are invoked on it too.
+ */
+public class VideoThumbnails {
+
+    public interface Callback {
+
+        /**
+         * @param index  {@link #POSTER}, or the position in the strip.
+         * @param bitmap the frame, or null if it couldn't be extracted.
+         */
+        void onThumbnail(int index, @Nullable Bitmap bitmap);
+    }
+
+    public static final int POSTER = -1;
+    public static final int STRIP_COUNT = 8;
+
+    private static final String TAG = "VideoThumbnails";
+    private static final int POSTER_SIZE = 720;
+    private static final int STRIP_SIZE = 160;
+    private static final long CACHE_SIZE = 8 * 1024 * 1024;
+
+    private static ExecutorService sExecutor;
+    private static final Map<String, Job> sJobs = new HashMap<>();
+
+    private VideoThumbnails() {
+    }
+
+    /**
+     * Starts extracting the poster and strip of {@code uri} in the background, without waiting for
+     * the results. Call this as soon as the recording has been finalized.
+     */
+    public static void prefetch(@NonNull Context context, @NonNull String uri) {
+        load(context, uri, null);
+    }
+
+    /**
+     * Delivers the poster first, then each strip thumbnail as it becomes available. Cached frames are
+     * delivered without extracting them again.
+     */
+    public static void load(@NonNull Context context, @NonNull String uri, @Nullable Callback callback) {
+        Job job = sJobs.get(uri);
+        if (job == null) {
+            job = new Job(context, uri);
+            sJobs.put(uri, job);
+            if (sExecutor == null)
+                sExecutor = Executors.newSingleThreadExecutor();
+            sExecutor.execute(job);
+        }
+        if (callback != null) job.addCallback(callback);
+    }
+
+    public static void cancel(@NonNull Callback callback) {
+        for (Job job : sJobs.values())
+            job.mCallbacks.remove(callback);
+    }
+
+    private static class Job implements Runnable {
+
+        private final String mUri;
+        private final File mVideo;
+        private final ThumbnailCache mCache;
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        private final List<Callback> mCallbacks = new ArrayList<>();
+        // Frames delivered so far, for callbacks that register late. Only touched on the main thread.
+        private final Bitmap[] mDelivered = new Bitmap[STRIP_COUNT + 1];
+        private final boolean[] mDone = new boolean[STRIP_COUNT + 1];
+
+        Job(Context context, String uri) {
+            mUri = uri;
+            mVideo = new File(Uri.parse(uri).getPath());
+            mCache = new ThumbnailCache(new File(context.getCacheDir(), "mcam_thumbnails"), CACHE_SIZE);
+        }
+
+        void addCallback(Callback callback) {
+            mCallbacks.add(callback);
+            for (int i = 0; i < mDone.length; i++) {
+                if (mDone[i]) callback.onThumbnail(i - 1, mDelivered[i]);
+            }
+        }
+
+        @Override
+        public void run() {
+            MediaMetadataRetriever retriever = null;
+            long durationUs = -1;
+            try {
+                for (int index = POSTER; index < STRIP_COUNT; index++) {
+                    final String key = ThumbnailCache.key(mVideo, index);
+                    Bitmap bitmap = mCache.get(key);
+                    if (bitmap == null) {
+                        if (retriever == null) {
+                            retriever = new MediaMetadataRetriever();
+                            retriever.setDataSource(mVideo.getAbsolutePath());
+                            final String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+                            durationUs = duration != null ? Long.parseLong(duration) * 1000 : 0;
+                        }
+                        bitmap = extract(retriever, index, durationUs);
+                        if (bitmap != null) {
+                            try {
+                                mCache.put(key, bitmap);
+                            } catch (IOException e) {
+                                Log.w(TAG, "Failed to cache thumbnail " + key, e);
+                            }
+                        }
+                    }
+                    deliver(index, bitmap);
+                }
+            } catch (RuntimeException e) {
+                // MediaMetadataRetriever throws IllegalArgumentException/RuntimeException for unreadable files
+                Log.e(TAG, "Failed to extract thumbnails from " + mVideo, e);
+            } finally {
+                if (retriever != null) retriever.release();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        sJobs.remove(mUri);
+                    }
+                });
+            }
+        }
+
+        @Nullable
+        private static Bitmap extract(MediaMetadataRetriever retriever, int index, long durationUs) {
+            final Bitmap frame;
+            if (index == POSTER) {
+                frame = retriever.getFrameAtTime(0, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            } else {
+                // Centered in each slice of the video, the nearest key frame is close enough to scrub
+                final long timeUs = durationUs * (2 * index + 1) / (2 * STRIP_COUNT);
+                frame = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            }
+            if (frame == null) return null;
+            final int size = index == POSTER ? POSTER_SIZE : STRIP_SIZE;
+            final float scale = (float) size / Math.max(frame.getWidth(), frame.getHeight());
+            if (scale >= 1f) return frame;
+            final Bitmap scaled = Bitmap.createScaledBitmap(frame, Math.round(frame.getWidth() * scale),
+                    Math.round(frame.getHeight() * scale), true);
+            if (scaled != frame) frame.recycle();
+            return scaled;
+        }
+
+        private void deliver(final int index, final Bitmap bitmap) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mDelivered[index + 1] = bitmap;
+                    mDone[index + 1] = true;
+                    for (Callback callback : new ArrayList<>(mCallbacks))
+                        callback.onThumbnail(index, bitmap);
+                }
+            });
+        }
+    }
+}
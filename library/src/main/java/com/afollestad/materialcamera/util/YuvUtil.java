@@ -0,0 +1,228 @@
+package com.afollestad.materialcamera.util;
+
+import android.support.annotation.NonNull;
+
+import com.afollestad.materialcamera.FrameAnalyzer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pixel format conversion, cropping and downscaling of YUV 4:2:0 frames, such as those given to a
+ * {@link FrameAnalyzer}. All methods write into caller-owned output arrays, so they don't allocate
+ * per frame, and honor the row and pixel strides of each plane. Large images are processed in
+ * parallel row bands.
+ * <p>
+ * Colors use BT.601 video range, which is what the camera pipeline produces.
+ */
+public class YuvUtil {
+
+    private YuvUtil() {
+    }
+
+    /**
+     * Converts a YUV 4:2:0 frame (any layout, e.g. I420, NV12 or NV21 planes) to ARGB_8888.
+     *
+     * @param out receives width * height pixels, row by row.
+     */
+    public static void toArgb(@NonNull final ByteBuffer y, final int yRowStride,
+                              @NonNull final ByteBuffer u, @NonNull final ByteBuffer v,
+                              final int uvRowStride, final int uvPixelStride,
+                              final int width, final int height, @NonNull final int[] out) {
+        checkOutput(out.length, width, height);
+        RowBands.run(height, width, new RowBands.Kernel() {
+            @Override
+            public void run(int start, int end) {
+                for (int row = start; row < end; row++) {
+                    final int yRow = row * yRowStride;
+                    final int uvRow = (row >> 1) * uvRowStride;
+                    int index = row * width;
+                    for (int col = 0; col < width; col++) {
+                        final int uvIndex = uvRow + (col >> 1) * uvPixelStride;
+                        out[index++] = yuvToArgb(y.get(yRow + col) & 0xFF,
+                                u.get(uvIndex) & 0xFF, v.get(uvIndex) & 0xFF);
+                    }
+                }
+            }
+        });
+    }
+
+    public static void toArgb(@NonNull FrameAnalyzer.Frame frame, @NonNull int[] out) {
+        toArgb(frame.getPlane(0), frame.getRowStride(0), frame.getPlane(1), frame.getPlane(2),
+                frame.getRowStride(1), frame.getPixelStride(1), frame.getWidth(), frame.getHeight(), out);
+    }
+
+    /**
+     * Converts an NV21 buffer, as delivered by the old Camera API, to ARGB_8888.
+     */
+    public static void nv21ToArgb(@NonNull final byte[] nv21, final int width, final int height, @NonNull final int[] out) {
+        checkOutput(out.length, width, height);
+        final int vuStart = width * height;
+        RowBands.run(height, width, new RowBands.Kernel() {
+            @Override
+            public void run(int start, int end) {
+                for (int row = start; row < end; row++) {
+                    final int vuRow = vuStart + (row >> 1) * width;
+                    int index = row * width;
+                    for (int col = 0; col < width; col++) {
+                        final int vu = vuRow + (col & ~1);
+                        out[index] = yuvToArgb(nv21[index] & 0xFF, nv21[vu + 1] & 0xFF, nv21[vu] & 0xFF);
+                        index++;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the luma plane into a tightly packed grayscale buffer, dropping any row padding.
+     *
+     * @param out receives width * height bytes.
+     */
+    public static void toGray(@NonNull final ByteBuffer y, final int rowStride, final int pixelStride,
+                              final int width, final int height, @NonNull final byte[] out) {
+        checkOutput(out.length, width, height);
+        RowBands.run(height, width, new RowBands.Kernel() {
+            @Override
+            public void run(int start, int end) {
+                if (pixelStride == 1) {
+                    // Bulk copy row by row, on a duplicate so bands don't share a position
+                    final ByteBuffer plane = y.duplicate();
+                    for (int row = start; row < end; row++) {
+                        plane.position(row * rowStride);
+                        plane.get(out, row * width, width);
+                    }
+                    return;
+                }
+                for (int row = start; row < end; row++) {
+                    final int rowStart = row * rowStride;
+                    int index = row * width;
+                    for (int col = 0; col < width; col++)
+                        out[index++] = y.get(rowStart + col * pixelStride);
+                }
+            }
+        });
+    }
+
+    public static void toGray(@NonNull FrameAnalyzer.Frame frame, @NonNull byte[] out) {
+        toGray(frame.getPlane(0), frame.getRowStride(0), frame.getPixelStride(0), frame.getWidth(), frame.getHeight(), out);
+    }
+
+    /**
+     * Copies the rectangle at (left, top) of a packed single channel image into {@code out}.
+     */
+    public static void crop(@NonNull byte[] in, int inWidth, int inHeight, int left, int top,
+                            int width, int height, @NonNull byte[] out) {
+        checkCrop(inWidth, inHeight, left, top, width, height);
+        checkOutput(out.length, width, height);
+        for (int row = 0; row < height; row++)
+            System.arraycopy(in, (top + row) * inWidth + left, out, row * width, width);
+    }
+
+    /**
+     * Copies the rectangle at (left, top) of a packed ARGB image into {@code out}.
+     */
+    public static void crop(@NonNull int[] in, int inWidth, int inHeight, int left, int top,
+                            int width, int height, @NonNull int[] out) {
+        checkCrop(inWidth, inHeight, left, top, width, height);
+        checkOutput(out.length, width, height);
+        for (int row = 0; row < height; row++)
+            System.arraycopy(in, (top + row) * inWidth + left, out, row * width, width);
+    }
+
+    /**
+     * Box-filter downscales a packed single channel image by an integer factor. Trailing rows and
+     * columns that don't fill a whole box are dropped.
+     *
+     * @param out receives (inWidth / factor) * (inHeight / factor) bytes.
+     */
+    public static void downscale(@NonNull final byte[] in, final int inWidth, int inHeight,
+                                 final int factor, @NonNull final byte[] out) {
+        checkFactor(factor);
+        final int width = inWidth / factor;
+        final int height = inHeight / factor;
+        checkOutput(out.length, width, height);
+        final int area = factor * factor;
+        RowBands.run(height, inWidth * factor, new RowBands.Kernel() {
+            @Override
+            public void run(int start, int end) {
+                for (int row = start; row < end; row++) {
+                    final int inRow = row * factor * inWidth;
+                    for (int col = 0; col < width; col++) {
+                        int sum = 0;
+                        int index = inRow + col * factor;
+                        for (int dy = 0; dy < factor; dy++, index += inWidth) {
+                            for (int dx = 0; dx < factor; dx++)
+                                sum += in[index + dx] & 0xFF;
+                        }
+                        out[row * width + col] = (byte) ((sum + area / 2) / area);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Box-filter downscales a packed ARGB image by an integer factor, averaging each channel.
+     */
+    public static void downscale(@NonNull final int[] in, final int inWidth, int inHeight,
+                                 final int factor, @NonNull final int[] out) {
+        checkFactor(factor);
+        final int width = inWidth / factor;
+        final int height = inHeight / factor;
+        checkOutput(out.length, width, height);
+        final int area = factor * factor;
+        RowBands.run(height, inWidth * factor, new RowBands.Kernel() {
+            @Override
+            public void run(int start, int end) {
+                for (int row = start; row < end; row++) {
+                    final int inRow = row * factor * inWidth;
+                    for (int col = 0; col < width; col++) {
+                        int a = 0, r = 0, g = 0, b = 0;
+                        int index = inRow + col * factor;
+                        for (int dy = 0; dy < factor; dy++, index += inWidth) {
+                            for (int dx = 0; dx < factor; dx++) {
+                                final int pixel = in[index + dx];
+                                a += pixel >>> 24;
+                                r += (pixel >> 16) & 0xFF;
+                                g += (pixel >> 8) & 0xFF;
+                                b += pixel & 0xFF;
+                            }
+                        }
+                        final int half = area / 2;
+                        out[row * width + col] = ((a + half) / area) << 24 | ((r + half) / area) << 16 |
+                                ((g + half) / area) << 8 | ((b + half) / area);
+                    }
+                }
+            }
+        });
+    }
+
+    static int yuvToArgb(int y, int u, int v) {
+        final int c = 298 * Math.max(0, y - 16) + 128;
+        final int d = u - 128;
+        final int e = v - 128;
+        final int r = clamp((c + 409 * e) >> 8);
+        final int g = clamp((c - 100 * d - 208 * e) >> 8);
+        final int b = clamp((c + 516 * d) >> 8);
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static void checkOutput(int length, int width, int height) {
+        if (length < width * height)
+            throw new IllegalArgumentException("Output buffer holds " + length + " pixels, needs " + width * height);
+    }
+
+    private static void checkCrop(int inWidth, int inHeight, int left, int top, int width, int height) {
+        if (left < 0 || top < 0 || width < 0 || height < 0 || left + width > inWidth || top + height > inHeight)
+            throw new IllegalArgumentException("Crop rectangle is outside of the image");
+    }
+
+    private static void checkFactor(int factor) {
+        if (factor < 1)
+            throw new IllegalArgumentException("Downscale factor must be at least 1");
+    }
+}
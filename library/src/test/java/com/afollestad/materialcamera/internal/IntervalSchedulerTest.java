@@ -0,0 +1,137 @@
+package com.afollestad.materialcamera.internal;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IntervalSchedulerTest {
+
+    private static final long INTERVAL_MS = 1000;
+    private static final long START_MS = 5000;
+
+    /**
+     * A clock the test moves by hand.
+     */
+    private static class FakeClock implements IntervalScheduler.Clock {
+
+        long now = START_MS;
+
+        @Override
+        public long uptimeMs() {
+            return now;
+        }
+    }
+
+    private FakeClock mClock;
+    private IntervalScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mScheduler = new IntervalScheduler(INTERVAL_MS, mClock);
+    }
+
+    /**
+     * Moves the clock to the next slot plus {@code lateMs} and reports it due.
+     */
+    private boolean slotDue(long lateMs, boolean ready) {
+        mClock.now = mScheduler.getNextSlotAt() + lateMs;
+        return mScheduler.onSlotDue(ready);
+    }
+
+    @Test
+    public void slotsAreMultiplesOfTheIntervalFromTheStart() {
+        mScheduler.start();
+        assertTrue(mScheduler.isRunning());
+        for (int k = 0; k < 10; k++) {
+            assertEquals(START_MS + k * INTERVAL_MS, mScheduler.getNextSlotAt());
+            assertTrue(slotDue(0, true));
+        }
+        assertEquals(10, mScheduler.getTaken());
+        assertEquals(0, mScheduler.getMissed());
+    }
+
+    @Test
+    public void lateShotDoesNotPushTheNextSlot() {
+        mScheduler.start();
+        assertTrue(slotDue(0, true));
+        assertTrue(slotDue(INTERVAL_MS / 2, true));
+        // Still due on the original schedule, not an interval after the late shot
+        assertEquals(START_MS + 2 * INTERVAL_MS, mScheduler.getNextSlotAt());
+        assertEquals(INTERVAL_MS / 2, mScheduler.getJitter().getMax());
+        assertEquals(2, mScheduler.getJitter().getCount());
+    }
+
+    @Test
+    public void slotMoreThanHalfAnIntervalLateIsMissed() {
+        mScheduler.start();
+        assertTrue(slotDue(0, true));
+        assertFalse(slotDue(INTERVAL_MS / 2 + 1, true));
+        assertEquals(1, mScheduler.getMissed());
+        assertEquals(1, mScheduler.getTaken());
+        assertEquals(START_MS + 2 * INTERVAL_MS, mScheduler.getNextSlotAt());
+        // Missed slots don't count towards the jitter
+        assertEquals(1, mScheduler.getJitter().getCount());
+    }
+
+    @Test
+    public void slotIsMissedWhenNotReady() {
+        mScheduler.start();
+        assertFalse(slotDue(0, false));
+        assertEquals(1, mScheduler.getMissed());
+        assertEquals(0, mScheduler.getTaken());
+        assertEquals(START_MS + INTERVAL_MS, mScheduler.getNextSlotAt());
+        assertTrue(slotDue(0, true));
+    }
+
+    @Test
+    public void slotsThatPassedMeanwhileAreMissedToo() {
+        mScheduler.start();
+        assertTrue(slotDue(0, true));
+        // Slots 1 to 3 pass while the camera is busy, slot 4 is next
+        assertFalse(slotDue(2 * INTERVAL_MS + 100, true));
+        assertEquals(3, mScheduler.getMissed());
+        assertEquals(START_MS + 4 * INTERVAL_MS, mScheduler.getNextSlotAt());
+        assertTrue(slotDue(0, true));
+    }
+
+    @Test
+    public void restartBeginsANewScheduleAndKeepsTheStatistics() {
+        mScheduler.start();
+        assertTrue(slotDue(0, true));
+        assertFalse(slotDue(0, false));
+        mScheduler.stop();
+        assertFalse(mScheduler.isRunning());
+
+        mClock.now = 60000;
+        mScheduler.start();
+        assertEquals(60000, mScheduler.getNextSlotAt());
+        assertTrue(slotDue(0, true));
+        assertEquals(2, mScheduler.getTaken());
+        assertEquals(1, mScheduler.getMissed());
+    }
+
+    @Test
+    public void longIntervalsReopenTheCameraAheadOfTheSlot() {
+        final long interval = IntervalScheduler.CLOSE_CAMERA_MIN_INTERVAL_MS;
+        final IntervalScheduler scheduler = new IntervalScheduler(interval, mClock);
+        assertTrue(scheduler.closesCameraBetweenShots());
+        scheduler.start();
+        mClock.now = scheduler.getNextSlotAt();
+        assertTrue(scheduler.onSlotDue(true));
+        assertEquals(START_MS + interval - IntervalScheduler.CAMERA_WARMUP_MS, scheduler.getReopenAt());
+        // Reopening late doesn't move the slot
+        mClock.now = scheduler.getReopenAt() + 500;
+        assertEquals(START_MS + interval, scheduler.getNextSlotAt());
+    }
+
+    @Test
+    public void shortIntervalsKeepTheCameraOpen() {
+        assertFalse(mScheduler.closesCameraBetweenShots());
+        assertFalse(new IntervalScheduler(IntervalScheduler.CLOSE_CAMERA_MIN_INTERVAL_MS - 1, mClock)
+                .closesCameraBetweenShots());
+    }
+}
@@ -0,0 +1,137 @@
+package com.afollestad.materialcamera.internal;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PreRollBufferTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long FRAME_US = 33333;
+    private static final int GOP = 10;
+
+    private static void addVideo(PreRollBuffer buffer, int frame, int size) {
+        buffer.add(VIDEO, ByteBuffer.wrap(new byte[size]), frame * FRAME_US, frame % GOP == 0);
+    }
+
+    private static void assertStartsOnVideoSync(List<PreRollBuffer.Sample> samples) {
+        assertTrue("Nothing buffered", !samples.isEmpty());
+        assertEquals(VIDEO, samples.get(0).track);
+        assertTrue("Starts on a frame that can't be decoded", samples.get(0).keyFrame);
+    }
+
+    @Test
+    public void evictsWholeGroupsBeyondDuration() {
+        final long durationUs = 1000000;
+        final PreRollBuffer buffer = new PreRollBuffer(VIDEO, durationUs, Long.MAX_VALUE);
+        for (int frame = 0; frame < 100; frame++)
+            addVideo(buffer, frame, 100);
+        // The latest sync sample that still covers a second before frame 99 is frame 60
+        assertTrue(buffer.getDurationUs() >= durationUs);
+        assertTrue(buffer.getDurationUs() < durationUs + GOP * FRAME_US);
+        assertEquals(60, buffer.getEvicted());
+
+        final List<PreRollBuffer.Sample> samples = buffer.drain();
+        assertStartsOnVideoSync(samples);
+        assertEquals(60 * FRAME_US, samples.get(0).timeUs);
+        assertEquals(40, samples.size());
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getBytes());
+    }
+
+    @Test
+    public void keepsEverythingWhileShorterThanDuration() {
+        final PreRollBuffer buffer = new PreRollBuffer(VIDEO, 10000000, Long.MAX_VALUE);
+        for (int frame = 0; frame < 35; frame++)
+            addVideo(buffer, frame, 10);
+        assertEquals(0, buffer.getEvicted());
+        assertEquals(34 * FRAME_US, buffer.getDurationUs());
+        assertEquals(35 * (10 + PreRollBuffer.SAMPLE_OVERHEAD_BYTES), buffer.getBytes());
+    }
+
+    @Test
+    public void evictsByByteCap() {
+        final int size = 1000;
+        final long cap = 25 * (size + PreRollBuffer.SAMPLE_OVERHEAD_BYTES);
+        final PreRollBuffer buffer = new PreRollBuffer(VIDEO, 60000000, cap);
+        for (int frame = 0; frame < 100; frame++) {
+            addVideo(buffer, frame, size);
+            assertTrue(buffer.getBytes() <= cap);
+        }
+        // Over the cap the rest of the oldest group goes too, leaving the two latest groups
+        final List<PreRollBuffer.Sample> samples = buffer.drain();
+        assertStartsOnVideoSync(samples);
+        assertEquals(80 * FRAME_US, samples.get(0).timeUs);
+        assertEquals(20, samples.size());
+        assertEquals(80, buffer.getEvicted());
+    }
+
+    @Test
+    public void capBelowOneGroupKeepsNothingUntilTheNextSync() {
+        final int size = 1000;
+        final PreRollBuffer buffer = new PreRollBuffer(VIDEO, 60000000, 5 * (size + PreRollBuffer.SAMPLE_OVERHEAD_BYTES));
+        for (int frame = 0; frame < 7; frame++)
+            addVideo(buffer, frame, size);
+        // The group's sync sample had to go, what's left of it can't be decoded
+        assertTrue(buffer.isEmpty());
+        addVideo(buffer, 10, size);
+        assertStartsOnVideoSync(buffer.drain());
+    }
+
+    @Test
+    public void samplesBeforeFirstSyncAreDropped() {
+        final PreRollBuffer buffer = new PreRollBuffer(VIDEO, 1000000, Long.MAX_VALUE);
+        for (int frame = 1; frame < GOP; frame++)
+            addVideo(buffer, frame, 10);
+        assertTrue(buffer.isEmpty());
+        addVideo(buffer, GOP, 10);
+        addVideo(buffer, GOP + 1, 10);
+        final List<PreRollBuffer.Sample> samples = buffer.drain();
+        assertStartsOnVideoSync(samples);
+        assertEquals(2, samples.size());
+    }
+
+    @Test
+    public void drainLeavesOutOtherTracksBeforeTheSyncSample() {
+        final PreRollBuffer buffer = new PreRollBuffer(VIDEO, 1000000, Long.MAX_VALUE);
+        // Audio is encoded a little behind the video it goes with
+        for (int frame = 0; frame < 20; frame++) {
+            addVideo(buffer, frame, 10);
+            if (frame > 0)
+                buffer.add(AUDIO, ByteBuffer.wrap(new byte[4]), frame * FRAME_US - 5000, true);
+        }
+        addVideo(buffer, 45, 10);
+        buffer.add(AUDIO, ByteBuffer.wrap(new byte[4]), 45 * FRAME_US - 5000, true);
+
+        final List<PreRollBuffer.Sample> samples = buffer.drain();
+        assertStartsOnVideoSync(samples);
+        final long startUs = samples.get(0).timeUs;
+        assertEquals(10 * FRAME_US, startUs);
+        for (PreRollBuffer.Sample sample : samples)
+            assertTrue("Sample from before the start at " + sample.timeUs, sample.timeUs >= startUs);
+    }
+
+    @Test
+    public void copiesTheRemainingBytes() {
+        final PreRollBuffer buffer = new PreRollBuffer(VIDEO, 1000000, Long.MAX_VALUE);
+        final ByteBuffer data = ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5});
+        data.position(1);
+        data.limit(4);
+        buffer.add(VIDEO, data, 0, true);
+        data.put(1, (byte) 9);
+        final byte[] copy = buffer.drain().get(0).data;
+        assertEquals(3, copy.length);
+        assertEquals(2, copy[0]);
+        assertEquals(4, copy[2]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyDuration() {
+        new PreRollBuffer(VIDEO, 0, 1000);
+    }
+}
@@ -0,0 +1,391 @@
+package com.afollestad.materialcamera.internal;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PreRollRecorderTest {
+
+    private static final long FRAME_US = 33333;
+    private static final long AUDIO_US = 23220;
+    private static final int GOP = 30;
+    private static final long DURATION_US = 2000000;
+
+    /**
+     * An encoder the test feeds by hand. Its samples carry their time in the data, so the output
+     * can be checked for where each one came from.
+     */
+    private static class FakeEncoder implements PreRollRecorder.Encoder {
+
+        final Object format = new Object();
+        PreRollRecorder.Encoder.Callback callback;
+        // Samples delivered while stopping, the last ones left in the codec
+        final List<Long> pendingAtStop = new ArrayList<>();
+        boolean stopped;
+
+        @Override
+        public void start(@NonNull Callback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void stop() {
+            for (long timeUs : pendingAtStop)
+                sample(timeUs, false);
+            stopped = true;
+        }
+
+        void format() {
+            callback.onFormat(this, format);
+        }
+
+        void sample(long timeUs, boolean keyFrame) {
+            final ByteBuffer data = ByteBuffer.allocate(16);
+            data.putLong(timeUs);
+            // Only the bytes between position and limit are the sample
+            data.flip();
+            callback.onSample(this, data, timeUs, keyFrame);
+        }
+    }
+
+    private static class Written {
+
+        final int track;
+        final long timeUs;
+        final boolean keyFrame;
+
+        Written(int track, long timeUs, boolean keyFrame) {
+            this.track = track;
+            this.timeUs = timeUs;
+            this.keyFrame = keyFrame;
+        }
+    }
+
+    private static class FakeOutput implements PreRollRecorder.Output {
+
+        final List<Object> tracks = new ArrayList<>();
+        final List<Written> samples = Collections.synchronizedList(new ArrayList<Written>());
+        int starts;
+        int stops;
+        int discards;
+        boolean failWrites;
+
+        @Override
+        public int addTrack(@NonNull Object format) {
+            if (starts > 0) fail("Track added after starting");
+            tracks.add(format);
+            // Not the encoder's index, to check the recorder maps them
+            return 10 + tracks.size();
+        }
+
+        @Override
+        public void start() {
+            starts++;
+        }
+
+        @Override
+        public void writeSample(int track, @NonNull ByteBuffer data, long timeUs, boolean keyFrame) throws IOException {
+            if (starts != 1) fail("Sample written to an output that isn't started");
+            if (failWrites) throw new IOException("Disk full");
+            assertEquals(8, data.remaining());
+            assertEquals(timeUs, data.getLong(data.position()));
+            samples.add(new Written(track, timeUs, keyFrame));
+        }
+
+        @Override
+        public void stop() {
+            stops++;
+        }
+
+        @Override
+        public void discard() {
+            if (starts > 0) fail("Started output discarded");
+            discards++;
+        }
+
+        List<Long> times(int track) {
+            final List<Long> times = new ArrayList<>();
+            synchronized (samples) {
+                for (Written sample : samples) {
+                    if (sample.track == track) times.add(sample.timeUs);
+                }
+            }
+            return times;
+        }
+    }
+
+    /**
+     * Holds the flush until the test runs it, or runs it right away when not deferring.
+     */
+    private static class FakeExecutor implements Executor {
+
+        final List<Runnable> queued = new ArrayList<>();
+        boolean defer;
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            if (defer) queued.add(command);
+            else command.run();
+        }
+
+        void runQueued() {
+            for (Runnable command : queued)
+                command.run();
+            queued.clear();
+        }
+    }
+
+    private FakeEncoder mVideo;
+    private FakeEncoder mAudio;
+    private FakeExecutor mFlusher;
+    private PreRollRecorder mRecorder;
+    private FakeOutput mOutput;
+    // Read by the test while another thread encodes
+    private volatile int mVideoFrames;
+    private int mAudioFrames;
+
+    @Before
+    public void setUp() throws IOException {
+        mVideo = new FakeEncoder();
+        mAudio = new FakeEncoder();
+        mFlusher = new FakeExecutor();
+        mRecorder = new PreRollRecorder(Arrays.<PreRollRecorder.Encoder>asList(mVideo, mAudio),
+                DURATION_US, Long.MAX_VALUE, mFlusher);
+        mRecorder.start();
+        mOutput = new FakeOutput();
+    }
+
+    /**
+     * Encodes the next {@code frames} video frames, with the audio that goes with them.
+     */
+    private void encode(int frames) {
+        for (int i = 0; i < frames; i++, mVideoFrames++) {
+            final long videoUs = mVideoFrames * FRAME_US;
+            mVideo.sample(videoUs, mVideoFrames % GOP == 0);
+            while (mAudioFrames * AUDIO_US <= videoUs) {
+                mAudio.sample(mAudioFrames * AUDIO_US, true);
+                mAudioFrames++;
+            }
+        }
+    }
+
+    private static List<Long> expectedTimes(long firstUs, long lastUs, long stepUs) {
+        final List<Long> times = new ArrayList<>();
+        for (long timeUs = firstUs; timeUs <= lastUs; timeUs += stepUs)
+            times.add(timeUs);
+        return times;
+    }
+
+    @Test
+    public void handsOffFromBufferToLiveWithoutGapOrDuplicate() throws IOException {
+        mVideo.format();
+        mAudio.format();
+        encode(200);
+        mRecorder.record(mOutput);
+
+        assertEquals(Arrays.asList(mVideo.format, mAudio.format), mOutput.tracks);
+        assertEquals(1, mOutput.starts);
+        final Written first = mOutput.samples.get(0);
+        assertEquals(11, first.track);
+        assertTrue(first.keyFrame);
+        // The latest sync sample at least two seconds before the tap, frame 120 of 199
+        assertEquals(120 * FRAME_US, first.timeUs);
+        // Up to the newest sample buffered, the audio that goes with frame 199
+        assertEquals((mAudioFrames - 1) * AUDIO_US - 120 * FRAME_US, mRecorder.getPreRollUs());
+
+        encode(100);
+        assertTrue(mRecorder.stop());
+        assertNull(mRecorder.getError());
+        assertEquals(1, mOutput.stops);
+        // Every video frame from the sync sample on, in order and exactly once
+        assertEquals(expectedTimes(120 * FRAME_US, 299 * FRAME_US, FRAME_US), mOutput.times(11));
+        final List<Long> audio = mOutput.times(12);
+        assertTrue(audio.get(0) >= first.timeUs);
+        assertEquals(expectedTimes(audio.get(0), audio.get(audio.size() - 1), AUDIO_US), audio);
+        assertEquals((mAudioFrames - 1) * AUDIO_US, (long) audio.get(audio.size() - 1));
+    }
+
+    @Test
+    public void bufferIsWrittenOnTheFlushExecutor() throws IOException {
+        mVideo.format();
+        mAudio.format();
+        encode(200);
+        mFlusher.defer = true;
+        mRecorder.record(mOutput);
+        assertEquals(0, mOutput.starts);
+        assertEquals(1, mFlusher.queued.size());
+
+        // Encoded while the buffer waits its turn, these queue up behind it
+        encode(10);
+        assertTrue(mOutput.samples.isEmpty());
+        mFlusher.runQueued();
+        assertEquals(1, mOutput.starts);
+        assertEquals(expectedTimes(120 * FRAME_US, 209 * FRAME_US, FRAME_US), mOutput.times(11));
+
+        encode(10);
+        assertTrue(mRecorder.stop());
+        assertEquals(expectedTimes(120 * FRAME_US, 219 * FRAME_US, FRAME_US), mOutput.times(11));
+    }
+
+    @Test
+    public void stopWaitsForTheFlush() throws Exception {
+        mVideo.format();
+        mAudio.format();
+        encode(200);
+        mFlusher.defer = true;
+        mRecorder.record(mOutput);
+        final Thread flushing = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mFlusher.runQueued();
+            }
+        };
+        flushing.start();
+        assertTrue(mRecorder.stop());
+        flushing.join();
+        assertEquals(1, mOutput.stops);
+        assertEquals(expectedTimes(120 * FRAME_US, 199 * FRAME_US, FRAME_US), mOutput.times(11));
+    }
+
+    @Test
+    public void recordBeforeFirstKeyFrameStartsWithIt() throws IOException {
+        mVideo.format();
+        mAudio.format();
+        mRecorder.record(mOutput);
+        assertEquals(0, mOutput.starts);
+        assertEquals(-1, mRecorder.getPreRollUs());
+
+        // The encoder's first frames depend on a sync sample that was never seen
+        mVideo.sample(0, false);
+        mVideo.sample(FRAME_US, false);
+        mAudio.sample(FRAME_US, true);
+        assertEquals(0, mOutput.starts);
+
+        mVideo.sample(2 * FRAME_US, true);
+        mVideo.sample(3 * FRAME_US, false);
+        assertEquals(1, mOutput.starts);
+        assertEquals(0, mRecorder.getPreRollUs());
+        assertEquals(Arrays.asList(2 * FRAME_US, 3 * FRAME_US), mOutput.times(11));
+        assertTrue(mOutput.times(12).isEmpty());
+        assertTrue(mRecorder.stop());
+    }
+
+    @Test
+    public void outputWaitsForEveryFormat() throws IOException {
+        mVideo.format();
+        encode(10);
+        mRecorder.record(mOutput);
+        assertEquals(0, mOutput.starts);
+        mAudio.format();
+        encode(1);
+        assertEquals(1, mOutput.starts);
+        assertEquals(expectedTimes(0, 10 * FRAME_US, FRAME_US), mOutput.times(11));
+    }
+
+    @Test
+    public void lastSamplesDeliveredWhileStoppingAreWritten() throws IOException {
+        mVideo.format();
+        mAudio.format();
+        encode(40);
+        mRecorder.record(mOutput);
+        mVideo.pendingAtStop.add(40 * FRAME_US);
+        assertTrue(mRecorder.stop());
+        assertTrue(mVideo.stopped);
+        assertTrue(mAudio.stopped);
+        final List<Long> video = mOutput.times(11);
+        assertEquals(40 * FRAME_US, (long) video.get(video.size() - 1));
+    }
+
+    @Test
+    public void stopWithoutRecordingWritesNothing() {
+        mVideo.format();
+        mAudio.format();
+        encode(60);
+        assertFalse(mRecorder.stop());
+        assertEquals(0, mOutput.stops);
+        assertEquals(0, mOutput.discards);
+    }
+
+    @Test
+    public void stopBeforeFirstKeyFrameDiscardsTheOutput() throws IOException {
+        mVideo.format();
+        mRecorder.record(mOutput);
+        mVideo.sample(0, false);
+        assertFalse(mRecorder.stop());
+        assertEquals(0, mOutput.starts);
+        assertEquals(0, mOutput.stops);
+        assertEquals(1, mOutput.discards);
+    }
+
+    @Test
+    public void writeErrorFailsTheRecording() throws IOException {
+        mVideo.format();
+        mAudio.format();
+        encode(10);
+        mRecorder.record(mOutput);
+        mOutput.failWrites = true;
+        encode(1);
+        assertFalse(mRecorder.stop());
+        // Still finalized, it holds what was written before the error
+        assertEquals(1, mOutput.stops);
+        assertEquals("Disk full", mRecorder.getError().getMessage());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void recordsOnce() throws IOException {
+        mRecorder.record(mOutput);
+        mRecorder.record(new FakeOutput());
+    }
+
+    @Test
+    public void handOffIsSafeAgainstEncoderThreads() throws Exception {
+        final ExecutorService flusher = Executors.newSingleThreadExecutor();
+        mRecorder = new PreRollRecorder(Arrays.<PreRollRecorder.Encoder>asList(mVideo, mAudio),
+                DURATION_US, Long.MAX_VALUE, flusher);
+        mRecorder.start();
+        mVideo.format();
+        mAudio.format();
+        final Thread encoding = new Thread() {
+            @Override
+            public void run() {
+                encode(3000);
+            }
+        };
+        encoding.start();
+        // Somewhere in the middle of encoding
+        while (mVideoFrames < 1000)
+            Thread.yield();
+        mRecorder.record(mOutput);
+        encoding.join();
+        assertTrue(mRecorder.stop());
+        flusher.shutdown();
+
+        final List<Long> video = mOutput.times(11);
+        assertFalse("Nothing written", video.isEmpty());
+        final long firstUs = video.get(0);
+        assertEquals(0, Math.round(firstUs / (double) FRAME_US) % GOP);
+        assertEquals(expectedTimes(firstUs, 2999 * FRAME_US, FRAME_US), video);
+    }
+}
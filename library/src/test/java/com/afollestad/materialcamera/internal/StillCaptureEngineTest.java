@@ -0,0 +1,320 @@
+package com.afollestad.materialcamera.internal;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.afollestad.materialcamera.internal.StillCaptureEngine.AE_STATE_CONVERGED;
+import static com.afollestad.materialcamera.internal.StillCaptureEngine.AE_STATE_FLASH_REQUIRED;
+import static com.afollestad.materialcamera.internal.StillCaptureEngine.AE_STATE_PRECAPTURE;
+import static com.afollestad.materialcamera.internal.StillCaptureEngine.AF_STATE_FOCUSED_LOCKED;
+import static com.afollestad.materialcamera.internal.StillCaptureEngine.AF_STATE_NOT_FOCUSED_LOCKED;
+import static com.afollestad.materialcamera.internal.StillCaptureEngine.STATE_PICTURE_TAKEN;
+import static com.afollestad.materialcamera.internal.StillCaptureEngine.STATE_PREVIEW;
+import static com.afollestad.materialcamera.internal.StillCaptureEngine.STATE_WAITING_LOCK;
+import static com.afollestad.materialcamera.internal.StillCaptureEngine.STATE_WAITING_NON_PRECAPTURE;
+import static com.afollestad.materialcamera.internal.StillCaptureEngine.STATE_WAITING_PRECAPTURE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StillCaptureEngineTest {
+
+    // AF and AE states the engine doesn't act on
+    private static final int AF_STATE_ACTIVE_SCAN = 3;
+    private static final int AE_STATE_SEARCHING = 1;
+
+    /**
+     * Records the requests the engine makes, in order, on a clock the test moves by hand.
+     */
+    private static class FakeCamera implements StillCaptureEngine.Callback, StillCaptureEngine.Clock {
+
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        volatile long now = 1000;
+        volatile long deadline = -1;
+
+        @Override
+        public void lockFocus() {
+            calls.add("lockFocus");
+        }
+
+        @Override
+        public void triggerPrecapture() {
+            calls.add("triggerPrecapture");
+        }
+
+        @Override
+        public void captureStill() {
+            calls.add("captureStill");
+        }
+
+        @Override
+        public void onCaptureTimedOut() {
+            calls.add("onCaptureTimedOut");
+        }
+
+        @Override
+        public void scheduleDeadline(long delayMs) {
+            deadline = now + delayMs;
+        }
+
+        @Override
+        public long elapsedMs() {
+            return now;
+        }
+
+        /**
+         * Moves the clock to the last scheduled deadline and fires it, like the camera's handler.
+         */
+        void fireDeadline(StillCaptureEngine engine) {
+            now = deadline;
+            engine.checkDeadline();
+        }
+
+        List<String> takeCalls() {
+            synchronized (calls) {
+                final List<String> taken = new ArrayList<>(calls);
+                calls.clear();
+                return taken;
+            }
+        }
+    }
+
+    private FakeCamera mCamera;
+    private StillCaptureEngine mEngine;
+
+    @Before
+    public void setUp() {
+        mCamera = new FakeCamera();
+        mEngine = new StillCaptureEngine(mCamera, mCamera);
+    }
+
+    private static List<String> calls(String... calls) {
+        return Arrays.asList(calls);
+    }
+
+    @Test
+    public void focusedAndConvergedCapturesStraightAway() {
+        assertTrue(mEngine.start(true));
+        assertEquals(STATE_WAITING_LOCK, mEngine.getState());
+        assertEquals(calls("lockFocus"), mCamera.takeCalls());
+
+        mEngine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED);
+        assertEquals(STATE_WAITING_LOCK, mEngine.getState());
+        mCamera.now += 120;
+        mEngine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED);
+        assertEquals(STATE_PICTURE_TAKEN, mEngine.getState());
+        assertEquals(calls("captureStill"), mCamera.takeCalls());
+
+        mCamera.now += 80;
+        assertTrue(mEngine.onCaptureStarted());
+        assertTrue(mEngine.isIdle());
+        assertEquals(1, mEngine.getLatency(STATE_WAITING_LOCK).getCount());
+        assertEquals(1, mEngine.getSequenceLatency().getCount());
+        assertEquals(0, mEngine.getTimeoutsHit());
+    }
+
+    @Test
+    public void lockedFocusWithoutConvergedExposureRunsPrecapture() {
+        mEngine.start(true);
+        mEngine.onResult(AF_STATE_NOT_FOCUSED_LOCKED, AE_STATE_SEARCHING);
+        assertEquals(STATE_WAITING_PRECAPTURE, mEngine.getState());
+        assertEquals(calls("lockFocus", "triggerPrecapture"), mCamera.takeCalls());
+
+        mEngine.onResult(AF_STATE_NOT_FOCUSED_LOCKED, AE_STATE_SEARCHING);
+        assertEquals(STATE_WAITING_PRECAPTURE, mEngine.getState());
+        mEngine.onResult(AF_STATE_NOT_FOCUSED_LOCKED, AE_STATE_PRECAPTURE);
+        assertEquals(STATE_WAITING_NON_PRECAPTURE, mEngine.getState());
+        // Still running the precapture sequence
+        mEngine.onResult(AF_STATE_NOT_FOCUSED_LOCKED, AE_STATE_PRECAPTURE);
+        assertEquals(STATE_WAITING_NON_PRECAPTURE, mEngine.getState());
+        mEngine.onResult(AF_STATE_NOT_FOCUSED_LOCKED, AE_STATE_FLASH_REQUIRED);
+        assertEquals(STATE_PICTURE_TAKEN, mEngine.getState());
+        assertEquals(calls("captureStill"), mCamera.takeCalls());
+    }
+
+    @Test
+    public void withoutFocusStartsWithPrecapture() {
+        assertTrue(mEngine.start(false));
+        assertEquals(STATE_WAITING_PRECAPTURE, mEngine.getState());
+        assertEquals(calls("triggerPrecapture"), mCamera.takeCalls());
+        mEngine.onResult(null, AE_STATE_CONVERGED);
+        mEngine.onResult(null, AE_STATE_CONVERGED);
+        assertEquals(calls("captureStill"), mCamera.takeCalls());
+    }
+
+    @Test
+    public void missingStatesCaptureRightAway() {
+        mEngine.start(true);
+        mEngine.onResult(null, null);
+        assertEquals(STATE_PICTURE_TAKEN, mEngine.getState());
+        assertEquals(calls("lockFocus", "captureStill"), mCamera.takeCalls());
+    }
+
+    @Test
+    public void eachWaitingStateCapturesAtItsDeadline() {
+        mEngine.setTimeout(STATE_WAITING_LOCK, 300);
+        mEngine.start(true);
+        assertEquals(1300, mCamera.deadline);
+        // Results before the deadline don't move a focus that never locks
+        mCamera.now = 1299;
+        mEngine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED);
+        assertEquals(STATE_WAITING_LOCK, mEngine.getState());
+        mCamera.fireDeadline(mEngine);
+        assertEquals(STATE_PICTURE_TAKEN, mEngine.getState());
+        assertEquals(calls("lockFocus", "captureStill"), mCamera.takeCalls());
+        assertEquals(1, mEngine.getTimeoutsHit());
+        assertTrue(mEngine.onCaptureStarted());
+
+        mEngine.setTimeout(STATE_WAITING_PRECAPTURE, 200);
+        mEngine.start(false);
+        mCamera.fireDeadline(mEngine);
+        assertEquals(calls("triggerPrecapture", "captureStill"), mCamera.takeCalls());
+        assertEquals(2, mEngine.getTimeoutsHit());
+        assertTrue(mEngine.onCaptureStarted());
+
+        mEngine.setTimeout(STATE_WAITING_NON_PRECAPTURE, 400);
+        mEngine.start(false);
+        mEngine.onResult(null, AE_STATE_PRECAPTURE);
+        assertEquals(STATE_WAITING_NON_PRECAPTURE, mEngine.getState());
+        assertEquals(mCamera.now + 400, mCamera.deadline);
+        mCamera.fireDeadline(mEngine);
+        assertEquals(calls("triggerPrecapture", "captureStill"), mCamera.takeCalls());
+        assertEquals(3, mEngine.getTimeoutsHit());
+    }
+
+    @Test
+    public void deadlineIsCheckedWithEachResult() {
+        mEngine.setTimeout(STATE_WAITING_LOCK, 300);
+        mEngine.start(true);
+        // A late result notices the deadline even if the scheduled check hasn't run yet
+        mCamera.now += 301;
+        mEngine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_SEARCHING);
+        assertEquals(STATE_PICTURE_TAKEN, mEngine.getState());
+        assertEquals(1, mEngine.getTimeoutsHit());
+    }
+
+    @Test
+    public void stillThatNeverStartsGoesBackToIdle() {
+        mEngine.start(true);
+        mEngine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED);
+        mCamera.takeCalls();
+        mCamera.fireDeadline(mEngine);
+        assertTrue(mEngine.isIdle());
+        assertEquals(calls("onCaptureTimedOut"), mCamera.takeCalls());
+        assertEquals(1, mEngine.getTimeoutsHit());
+        // The exposure that does start after all is ignored, the focus was unlocked already
+        assertFalse(mEngine.onCaptureStarted());
+        assertEquals(0, mEngine.getSequenceLatency().getCount());
+    }
+
+    @Test
+    public void staleDeadlineDoesNothing() {
+        mEngine.start(true);
+        mEngine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED);
+        mEngine.onCaptureStarted();
+        mCamera.takeCalls();
+        mCamera.now += 10000;
+        mEngine.checkDeadline();
+        assertTrue(mEngine.isIdle());
+        assertTrue(mCamera.takeCalls().isEmpty());
+    }
+
+    @Test
+    public void secondShutterIsIgnoredWhileRunning() {
+        assertTrue(mEngine.start(true));
+        assertFalse(mEngine.start(true));
+        assertFalse(mEngine.start(false));
+        assertEquals(calls("lockFocus"), mCamera.takeCalls());
+        assertEquals(STATE_WAITING_LOCK, mEngine.getState());
+    }
+
+    @Test
+    public void resetAbandonsSequenceSilently() {
+        mEngine.start(true);
+        mEngine.reset();
+        mCamera.takeCalls();
+        assertTrue(mEngine.isIdle());
+        mEngine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED);
+        mCamera.fireDeadline(mEngine);
+        assertTrue(mCamera.takeCalls().isEmpty());
+        assertTrue(mEngine.start(true));
+    }
+
+    @Test
+    public void concurrentShuttersStartOneSequence() throws Exception {
+        final int threads = 4;
+        for (int round = 0; round < 200; round++) {
+            final FakeCamera camera = new FakeCamera();
+            final StillCaptureEngine engine = new StillCaptureEngine(camera, camera);
+            final CyclicBarrier barrier = new CyclicBarrier(threads);
+            final CountDownLatch done = new CountDownLatch(threads);
+            final AtomicInteger started = new AtomicInteger();
+            for (int i = 0; i < threads; i++) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            barrier.await();
+                            if (engine.start(true)) started.incrementAndGet();
+                        } catch (Exception ignored) {
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            done.await();
+            assertEquals(1, started.get());
+            assertEquals(calls("lockFocus"), camera.takeCalls());
+        }
+    }
+
+    @Test
+    public void resultRacingDeadlineCapturesOnce() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            final FakeCamera camera = new FakeCamera();
+            final StillCaptureEngine engine = new StillCaptureEngine(camera, camera);
+            engine.start(true);
+            camera.takeCalls();
+            // Both the focus lock and the deadline are due at once
+            camera.now = camera.deadline;
+            final CyclicBarrier barrier = new CyclicBarrier(2);
+            final Thread results = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                        engine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED);
+                    } catch (Exception ignored) {
+                    }
+                }
+            };
+            results.start();
+            barrier.await();
+            engine.checkDeadline();
+            results.join();
+            assertEquals(calls("captureStill"), camera.takeCalls());
+            assertEquals(STATE_PICTURE_TAKEN, engine.getState());
+        }
+    }
+
+    @Test
+    public void toStringListsPhases() {
+        mEngine.start(true);
+        mCamera.now += 50;
+        mEngine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED);
+        mEngine.onCaptureStarted();
+        final String summary = mEngine.toString();
+        assertTrue(summary, summary.contains("lock: "));
+        assertTrue(summary, summary.endsWith("deadlines hit: 0"));
+        assertEquals(STATE_PREVIEW, mEngine.getState());
+    }
+}
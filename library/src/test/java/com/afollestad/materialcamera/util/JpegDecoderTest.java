@@ -0,0 +1,286 @@
+package com.afollestad.materialcamera.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares decodes with the JDK's libjpeg based ImageIO decoder, pixel for pixel. Scaled decodes
+ * are compared with the reference averaged over the area each of their pixels covers, which is
+ * what the reduced inverse DCT approximates.
+ */
+public class JpegDecoderTest {
+
+    private static final int[] SCALES = {1, 2, 4, 8};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Per channel differences from the reference, over all pixels.
+     */
+    private static class Difference {
+        double mean;
+        int max;
+
+        @Override
+        public String toString() {
+            return String.format("mean %.2f, max %d", mean, max);
+        }
+    }
+
+    /**
+     * Smooth gradients with noise and hard edged rectangles, so both the low and the high
+     * frequencies carry something.
+     */
+    private static BufferedImage createImage(int width, int height, int type) {
+        final BufferedImage image = new BufferedImage(width, height, type);
+        final Random random = new Random(width * 31 + height);
+        // No steeper on small images than on large ones
+        final int spanX = Math.max(width, 64), spanY = Math.max(height, 64);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final boolean box = (x / 13 + y / 11) % 4 == 0;
+                final int r = Math.min(255, 30 + x * 200 / spanX + (box ? 50 : 0) + random.nextInt(8));
+                final int g = Math.min(255, 80 + y * 150 / spanY + random.nextInt(8));
+                final int b = Math.min(255, 200 - (x + y) * 150 / (spanX + spanY) + (box ? 40 : 0) + random.nextInt(8));
+                image.setRGB(x, y, 0xFF000000 | r << 16 | g << 8 | b);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Encodes with ImageIO, with the given chroma subsampling (1 for 4:4:4, 2 for 4:2:0) and
+     * restart interval in MCUs, 0 for none.
+     */
+    private static byte[] encode(BufferedImage image, int subsampling, int restartInterval) throws IOException {
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        final ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9f);
+        final IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        final String format = "javax_imageio_jpeg_image_1.0";
+        final Element tree = (Element) metadata.getAsTree(format);
+        final Element markers = (Element) tree.getElementsByTagName("markerSequence").item(0);
+        final NodeList components = tree.getElementsByTagName("componentSpec");
+        if (components.getLength() > 1) {
+            final Element luma = (Element) components.item(0);
+            luma.setAttribute("HsamplingFactor", String.valueOf(subsampling));
+            luma.setAttribute("VsamplingFactor", String.valueOf(subsampling));
+        }
+        if (restartInterval > 0) {
+            final Element dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", String.valueOf(restartInterval));
+            markers.insertBefore(dri, markers.getElementsByTagName("sos").item(0));
+        }
+        metadata.setFromTree(format, tree);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+        writer.setOutput(stream);
+        writer.write(null, new IIOImage(image, null, metadata), param);
+        stream.close();
+        writer.dispose();
+        return out.toByteArray();
+    }
+
+    private static int[] referenceDecode(byte[] jpeg) throws IOException {
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        if (image.getType() != BufferedImage.TYPE_BYTE_GRAY)
+            return image.getRGB(0, 0, width, height, null, 0, width);
+        // Straight from the raster, getRGB would treat the samples as linear and gamma correct them
+        final int[] samples = image.getRaster().getSamples(0, 0, width, height, 0, (int[]) null);
+        final int[] argb = new int[samples.length];
+        for (int i = 0; i < samples.length; i++)
+            argb[i] = 0xFF000000 | samples[i] << 16 | samples[i] << 8 | samples[i];
+        return argb;
+    }
+
+    private int[] decode(byte[] jpeg, int scale, int width, int height) throws IOException {
+        final File file = mFolder.newFile();
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(jpeg);
+        out.close();
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final JpegDecoder decoder = new JpegDecoder(raf.getChannel());
+            assertEquals(width, decoder.getWidth());
+            assertEquals(height, decoder.getHeight());
+            final int[] argb = new int[decoder.getScaledWidth(scale) * decoder.getScaledHeight(scale)];
+            decoder.decode(scale, argb);
+            return argb;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * What a scaled decode should come out as: the reference averaged over boxes of scale x scale
+     * pixels for luma, and of the chroma block size scaled the same way for chroma. Boxes cut by
+     * the right or bottom edge repeat the last column or row, like the encoder does to fill out the
+     * last blocks.
+     */
+    private static int[] expected(int[] argb, int width, int height, int scale, int subsampling) {
+        final double[][] planes = new double[3][width * height];
+        for (int i = 0; i < argb.length; i++) {
+            final int r = (argb[i] >> 16) & 0xFF, g = (argb[i] >> 8) & 0xFF, b = argb[i] & 0xFF;
+            planes[0][i] = 0.299 * r + 0.587 * g + 0.114 * b;
+            planes[1][i] = -0.168736 * r - 0.331264 * g + 0.5 * b;
+            planes[2][i] = 0.5 * r - 0.418688 * g - 0.081312 * b;
+        }
+        final int outWidth = (width + scale - 1) / scale;
+        final int outHeight = (height + scale - 1) / scale;
+        final int chromaBox = scale * subsampling;
+        final int[] out = new int[outWidth * outHeight];
+        for (int oy = 0; oy < outHeight; oy++) {
+            for (int ox = 0; ox < outWidth; ox++) {
+                final double y = average(planes[0], width, height, ox * scale, oy * scale, scale);
+                final int cx = ox / subsampling * chromaBox, cy = oy / subsampling * chromaBox;
+                final double cb = average(planes[1], width, height, cx, cy, chromaBox);
+                final double cr = average(planes[2], width, height, cx, cy, chromaBox);
+                out[oy * outWidth + ox] = 0xFF000000 | clamp(y + 1.402 * cr) << 16 |
+                        clamp(y - 0.344136 * cb - 0.714136 * cr) << 8 | clamp(y + 1.772 * cb);
+            }
+        }
+        return out;
+    }
+
+    private static double average(double[] plane, int width, int height, int left, int top, int size) {
+        double sum = 0;
+        for (int y = top; y < top + size; y++) {
+            for (int x = left; x < left + size; x++)
+                sum += plane[Math.min(y, height - 1) * width + Math.min(x, width - 1)];
+        }
+        return sum / (size * size);
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static Difference compare(int[] expected, int[] actual) {
+        assertEquals(expected.length, actual.length);
+        final Difference difference = new Difference();
+        long sum = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                final int channel = Math.abs(((expected[i] >> shift) & 0xFF) - ((actual[i] >> shift) & 0xFF));
+                sum += channel;
+                difference.max = Math.max(difference.max, channel);
+            }
+            assertEquals(0xFF000000, actual[i] & 0xFF000000);
+        }
+        difference.mean = (double) sum / (expected.length * 3);
+        return difference;
+    }
+
+    /**
+     * Decodes at every scale and checks each against the reference.
+     *
+     * @param subsampling 2 if the chroma is subsampled 2x2, 1 if not.
+     */
+    private void assertMatchesReference(byte[] jpeg, int width, int height, int subsampling) throws IOException {
+        final int[] reference = referenceDecode(jpeg);
+        for (int scale : SCALES) {
+            final Difference difference = compare(expected(reference, width, height, scale, subsampling),
+                    decode(jpeg, scale, width, height));
+            final String message = width + "x" + height + " at 1/" + scale + ": " + difference;
+            if (scale > 1) {
+                // The reduced IDCT keeps fewer frequencies than a box average passes
+                assertTrue(message, difference.mean < 2 && difference.max <= 20);
+            } else if (subsampling > 1) {
+                // Chroma is repeated here where libjpeg interpolates it
+                assertTrue(message, difference.mean < 1 && difference.max <= 16);
+            } else {
+                // Only the IDCT rounding differs
+                assertTrue(message, difference.mean < 0.1 && difference.max <= 3);
+            }
+        }
+    }
+
+    @Test
+    public void matchesReferenceWithChromaSubsampling() throws IOException {
+        final BufferedImage image = createImage(96, 64, BufferedImage.TYPE_INT_RGB);
+        assertMatchesReference(encode(image, 2, 0), 96, 64, 2);
+    }
+
+    @Test
+    public void matchesReferenceWithoutChromaSubsampling() throws IOException {
+        final BufferedImage image = createImage(96, 64, BufferedImage.TYPE_INT_RGB);
+        assertMatchesReference(encode(image, 1, 0), 96, 64, 1);
+    }
+
+    @Test
+    public void matchesReferenceForGrayscale() throws IOException {
+        final BufferedImage image = createImage(80, 56, BufferedImage.TYPE_BYTE_GRAY);
+        assertMatchesReference(encode(image, 1, 0), 80, 56, 1);
+    }
+
+    @Test
+    public void matchesReferenceForOddSizes() throws IOException {
+        for (int[] size : new int[][]{{1, 1}, {7, 9}, {37, 23}, {203, 151}}) {
+            final BufferedImage image = createImage(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+            assertMatchesReference(encode(image, 1, 0), size[0], size[1], 1);
+            assertMatchesReference(encode(image, 2, 0), size[0], size[1], 2);
+        }
+    }
+
+    @Test
+    public void matchesReferenceWithRestartIntervals() throws IOException {
+        final BufferedImage image = createImage(203, 151, BufferedImage.TYPE_INT_RGB);
+        // Intervals that end mid MCU row, at one MCU and past the marker numbers wrapping at 8
+        for (int interval : new int[]{1, 3, 13}) {
+            assertMatchesReference(encode(image, 1, interval), 203, 151, 1);
+            assertMatchesReference(encode(image, 2, interval), 203, 151, 2);
+        }
+    }
+
+    @Test
+    public void decodesOwnEncoderOutput() throws IOException {
+        // JpegEncoder writes a restart marker every four MCU rows
+        final int width = 181, height = 133;
+        final int[] argb = createImage(width, height, BufferedImage.TYPE_INT_RGB).getRGB(0, 0, width, height, null, 0, width);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JpegEncoder(90).encode(argb, width, height, out);
+        assertMatchesReference(out.toByteArray(), width, height, 2);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsProgressive() throws IOException {
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        final ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+        writer.setOutput(stream);
+        writer.write(null, new IIOImage(createImage(16, 16, BufferedImage.TYPE_INT_RGB), null, null), param);
+        stream.close();
+        decode(out.toByteArray(), 1, 16, 16);
+    }
+}
@@ -0,0 +1,254 @@
+package com.afollestad.materialcamera.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scrubs stills made of a small JpegEncoder image with hand built metadata segments in front of it,
+ * checking what's left of them and that the image data comes through byte for byte.
+ */
+public class MetadataScrubberTest {
+
+    private static final int ORIENTATION_ROTATE_90 = 6;
+    private static final byte[] MAKE = "Acme Cam\0".getBytes();
+    // GPSLatitude as three RATIONALs, 12/1 34/1 56/1
+    private static final byte[] LATITUDE = {0, 0, 0, 12, 0, 0, 0, 1, 0, 0, 0, 34, 0, 0, 0, 1, 0, 0, 0, 56, 0, 0, 0, 1};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] image() throws IOException {
+        final int width = 24, height = 16;
+        final int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; i++)
+            argb[i] = 0xFF000000 | (i * 7 & 0xFF) << 16 | (i * 3 & 0xFF) << 8 | (i & 0xFF);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JpegEncoder(90).encode(argb, width, height, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * A big endian EXIF segment: IFD0 with the make, orientation and pointers to an EXIF IFD with
+     * the pixel width and a GPS IFD with the latitude.
+     *
+     * @param gpsOffset where the GPS pointer points, relative to the TIFF header, or -1 for the
+     *                  actual GPS IFD.
+     */
+    private static byte[] exif(int gpsOffset) {
+        final int ifd0 = 8;
+        final int exifIfd = ifd0 + 2 + 4 * 12 + 4;
+        final int gpsIfd = exifIfd + 2 + 12 + 4;
+        final int make = gpsIfd + 2 + 2 * 12 + 4;
+        final int latitude = make + MAKE.length + 1;
+        final int tiffLength = latitude + LATITUDE.length;
+
+        final ByteBuffer segment = ByteBuffer.allocate(10 + tiffLength);
+        segment.putShort((short) JpegTables.APP1).putShort((short) (segment.capacity() - 2));
+        segment.put("Exif\0\0".getBytes());
+        segment.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(ifd0);
+
+        segment.putShort((short) 4);
+        putEntry(segment, 0x010F, 2, MAKE.length, make);
+        putEntry(segment, ExifSegment.TAG_ORIENTATION, 3, 1, ORIENTATION_ROTATE_90 << 16);
+        putEntry(segment, ExifSegment.TAG_EXIF_IFD, 4, 1, exifIfd);
+        putEntry(segment, ExifSegment.TAG_GPS_IFD, 4, 1, gpsOffset >= 0 ? gpsOffset : gpsIfd);
+        segment.putInt(0);
+
+        segment.putShort((short) 1);
+        putEntry(segment, ExifSegment.TAG_PIXEL_X_DIMENSION, 4, 1, 24);
+        segment.putInt(0);
+
+        segment.putShort((short) 2);
+        putEntry(segment, 0x0001, 2, 2, 'N' << 24);
+        putEntry(segment, 0x0002, 5, 3, latitude);
+        segment.putInt(0);
+
+        segment.put(MAKE).put((byte) 0);
+        segment.put(LATITUDE);
+        return segment.array();
+    }
+
+    private static void putEntry(ByteBuffer segment, int tag, int type, int count, int value) {
+        segment.putShort((short) tag).putShort((short) type).putInt(count).putInt(value);
+    }
+
+    private static byte[] segment(int marker, String payload) {
+        final byte[] data = payload.getBytes();
+        return ByteBuffer.allocate(4 + data.length).putShort((short) marker)
+                .putShort((short) (2 + data.length)).put(data).array();
+    }
+
+    /**
+     * @return {@code jpeg} with {@code segments} inserted after its SOI marker.
+     */
+    private static byte[] withSegments(byte[] jpeg, byte[]... segments) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(jpeg, 0, 2);
+        for (byte[] segment : segments)
+            out.write(segment, 0, segment.length);
+        out.write(jpeg, 2, jpeg.length - 2);
+        return out.toByteArray();
+    }
+
+    private File write(byte[] jpeg) throws IOException {
+        final File file = mFolder.newFile();
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(jpeg);
+        out.close();
+        return file;
+    }
+
+    private byte[] scrub(byte[] jpeg, int flags, boolean changes) throws IOException {
+        final File output = mFolder.newFile();
+        assertEquals(changes, MetadataScrubber.scrub(write(jpeg), output, flags));
+        return Files.readAllBytes(output.toPath());
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the EXIF segment of {@code jpeg}, which must be the first one after SOI.
+     */
+    private static byte[] exifOf(byte[] jpeg) {
+        final int length = (jpeg[4] & 0xFF) << 8 | jpeg[5] & 0xFF;
+        final byte[] segment = Arrays.copyOfRange(jpeg, 2, 4 + length);
+        assertTrue("No EXIF segment", ExifSegment.isExif(segment));
+        return segment;
+    }
+
+    private static void assertSameImageData(byte[] expected, byte[] actual) {
+        final byte[] sos = {(byte) 0xFF, (byte) 0xDA};
+        final int expectedSos = indexOf(expected, sos);
+        final int actualSos = indexOf(actual, sos);
+        assertTrue(expectedSos > 0 && actualSos > 0);
+        assertArrayEquals(Arrays.copyOfRange(expected, expectedSos, expected.length),
+                Arrays.copyOfRange(actual, actualSos, actual.length));
+    }
+
+    @Test
+    public void locationIsRemovedAndOrientationKept() throws IOException {
+        final byte[] input = withSegments(image(), exif(-1));
+        final byte[] output = scrub(input, MetadataScrubber.LOCATION, true);
+        // Edited in place, the segment keeps its size
+        assertEquals(input.length, output.length);
+        assertSameImageData(input, output);
+
+        final byte[] exif = exifOf(output);
+        final int ifd0 = ExifSegment.firstIfd(exif);
+        assertEquals(-1, ExifSegment.findEntry(exif, ifd0, ExifSegment.TAG_GPS_IFD));
+        assertEquals(-1, indexOf(exif, LATITUDE));
+        final int orientation = ExifSegment.findEntry(exif, ifd0, ExifSegment.TAG_ORIENTATION);
+        assertEquals(ORIENTATION_ROTATE_90, ExifSegment.readShort(exif, orientation + 8));
+        // The other IFDs still resolve
+        assertTrue(ExifSegment.findEntry(exif, ifd0, 0x010F) >= 0);
+        final int exifIfd = ExifSegment.pointedIfd(exif, ifd0, ExifSegment.TAG_EXIF_IFD);
+        assertTrue(ExifSegment.findEntry(exif, exifIfd, ExifSegment.TAG_PIXEL_X_DIMENSION) >= 0);
+    }
+
+    @Test
+    public void deviceTagsAreRemoved() throws IOException {
+        final byte[] input = withSegments(image(), exif(-1));
+        final byte[] exif = exifOf(scrub(input, MetadataScrubber.DEVICE, true));
+        final int ifd0 = ExifSegment.firstIfd(exif);
+        assertEquals(-1, ExifSegment.findEntry(exif, ifd0, 0x010F));
+        assertEquals(-1, indexOf(exif, MAKE));
+        assertTrue(ExifSegment.findEntry(exif, ifd0, ExifSegment.TAG_ORIENTATION) >= 0);
+        assertTrue(ExifSegment.findEntry(exif, ifd0, ExifSegment.TAG_GPS_IFD) >= 0);
+    }
+
+    @Test
+    public void exifFlagDropsTheWholeSegment() throws IOException {
+        final byte[] image = image();
+        final byte[] output = scrub(withSegments(image, exif(-1)), MetadataScrubber.EXIF, true);
+        assertArrayEquals(image, output);
+    }
+
+    @Test
+    public void commentsAndXmpAreDropped() throws IOException {
+        final byte[] image = image();
+        final byte[] xmp = segment(JpegTables.APP1, "http://ns.adobe.com/xap/1.0/\0<x:xmpmeta/>");
+        final byte[] comment = segment(JpegTables.COM, "Shot at home");
+        final byte[] input = withSegments(image, exif(-1), xmp, comment);
+        final byte[] output = scrub(input, MetadataScrubber.XMP | MetadataScrubber.COMMENTS, true);
+        assertArrayEquals(withSegments(image, exif(-1)), output);
+    }
+
+    @Test
+    public void nothingToRemoveCopiesTheInput() throws IOException {
+        final byte[] input = withSegments(image(), exif(-1));
+        assertArrayEquals(input, scrub(input, MetadataScrubber.COMMENTS | MetadataScrubber.XMP, false));
+        final byte[] plain = image();
+        assertArrayEquals(plain, scrub(plain, MetadataScrubber.LOCATION | MetadataScrubber.DEVICE, false));
+    }
+
+    @Test
+    public void gpsPointerOutOfRangeIsStillRemoved() throws IOException {
+        final byte[] input = withSegments(image(), exif(0x7FFF0000));
+        final byte[] output = scrub(input, MetadataScrubber.LOCATION, true);
+        final byte[] exif = exifOf(output);
+        assertEquals(-1, ExifSegment.findEntry(exif, ExifSegment.firstIfd(exif), ExifSegment.TAG_GPS_IFD));
+        assertSameImageData(input, output);
+    }
+
+    @Test
+    public void brokenIfdIsKeptAsIs() throws IOException {
+        final byte[] exif = exif(-1);
+        // IFD0 past the end of the segment
+        exif[14] = 0x7F;
+        final byte[] input = withSegments(image(), exif);
+        assertArrayEquals(input, scrub(input, MetadataScrubber.LOCATION | MetadataScrubber.DEVICE, false));
+
+        // More entries than the segment holds
+        final byte[] overlong = exif(-1);
+        overlong[18] = 0x7F;
+        final byte[] output = scrub(withSegments(image(), overlong), MetadataScrubber.LOCATION, true);
+        assertEquals(-1, indexOf(exifOf(output), LATITUDE));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNonJpeg() throws IOException {
+        scrub("GIF89a".getBytes(), MetadataScrubber.LOCATION, false);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedSegment() throws IOException {
+        final byte[] input = withSegments(image(), exif(-1));
+        // Cut inside the EXIF segment
+        scrub(Arrays.copyOf(input, 40), MetadataScrubber.LOCATION, false);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedHeaders() throws IOException {
+        final byte[] input = withSegments(image(), segment(JpegTables.COM, "comment"));
+        // Ends after the comment, before any scan
+        scrub(Arrays.copyOf(input, 2 + 11), MetadataScrubber.COMMENTS, false);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingMarker() throws IOException {
+        final byte[] input = withSegments(image(), segment(JpegTables.COM, "comment"));
+        // The byte after the comment should start the next marker
+        input[2 + 11] = 0x12;
+        scrub(input, MetadataScrubber.COMMENTS, false);
+    }
+}
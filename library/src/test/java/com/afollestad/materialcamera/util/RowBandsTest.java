@@ -0,0 +1,60 @@
+package com.afollestad.materialcamera.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RowBandsTest {
+
+    private static AtomicIntegerArray countRows(int rows, int rowWidth) {
+        final AtomicIntegerArray counts = new AtomicIntegerArray(rows);
+        RowBands.run(rows, rowWidth, new RowBands.Kernel() {
+            @Override
+            public void run(int start, int end) {
+                for (int row = start; row < end; row++)
+                    counts.incrementAndGet(row);
+            }
+        });
+        return counts;
+    }
+
+    @Test
+    public void runsEveryRowOnce() {
+        for (int rows : new int[]{1, 2, 7, 480, 1081}) {
+            final AtomicIntegerArray counts = countRows(rows, 4096);
+            for (int row = 0; row < rows; row++)
+                assertEquals("Row " + row + " of " + rows, 1, counts.get(row));
+        }
+    }
+
+    @Test
+    public void smallImagesStayOnCallingThread() {
+        final Thread caller = Thread.currentThread();
+        RowBands.run(16, 16, new RowBands.Kernel() {
+            @Override
+            public void run(int start, int end) {
+                assertEquals(caller, Thread.currentThread());
+                assertEquals(0, start);
+                assertEquals(16, end);
+            }
+        });
+    }
+
+    @Test
+    public void rethrowsBandFailure() {
+        try {
+            RowBands.run(4000, 4000, new RowBands.Kernel() {
+                @Override
+                public void run(int start, int end) {
+                    if (end == 4000) throw new IllegalStateException("last band");
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("last band", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.afollestad.materialcamera.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class YuvUtilTest {
+
+    // 100% color bars in BT.601 video range as Y, Cb, Cr, with the ARGB they stand for
+    private static final int[][] COLOR_BARS = {
+            {235, 128, 128, 0xFFFFFFFF}, // white
+            {210, 16, 146, 0xFFFFFF00}, // yellow
+            {170, 166, 16, 0xFF00FFFF}, // cyan
+            {145, 54, 34, 0xFF00FF00}, // green
+            {106, 202, 222, 0xFFFF00FF}, // magenta
+            {81, 90, 240, 0xFFFF0000}, // red
+            {41, 240, 110, 0xFF0000FF}, // blue
+            {16, 128, 128, 0xFF000000}, // black
+    };
+
+    // Rounding of the fixed point coefficients
+    private static final int TOLERANCE = 2;
+
+    /**
+     * A YUV 4:2:0 frame with padded rows, in one of the chroma layouts Image planes come in.
+     */
+    private static class Frame {
+
+        static final int I420 = 0;
+        static final int NV12 = 1;
+        static final int NV21 = 2;
+
+        final int width, height, yRowStride, uvRowStride, uvPixelStride;
+        final ByteBuffer y, u, v;
+        final byte[] luma, cb, cr;
+
+        Frame(int width, int height, int layout, Random random) {
+            this.width = width;
+            this.height = height;
+            final int chromaWidth = (width + 1) / 2;
+            final int chromaHeight = (height + 1) / 2;
+            luma = new byte[width * height];
+            cb = new byte[chromaWidth * chromaHeight];
+            cr = new byte[chromaWidth * chromaHeight];
+            for (int i = 0; i < luma.length; i++)
+                luma[i] = (byte) (16 + random.nextInt(220));
+            for (int i = 0; i < cb.length; i++) {
+                cb[i] = (byte) (16 + random.nextInt(225));
+                cr[i] = (byte) (16 + random.nextInt(225));
+            }
+
+            yRowStride = width + 7;
+            final byte[] yPlane = new byte[yRowStride * height];
+            for (int row = 0; row < height; row++)
+                System.arraycopy(luma, row * width, yPlane, row * yRowStride, width);
+            y = ByteBuffer.wrap(yPlane);
+
+            uvPixelStride = layout == I420 ? 1 : 2;
+            uvRowStride = chromaWidth * uvPixelStride + 5;
+            if (layout == I420) {
+                final byte[] uPlane = new byte[uvRowStride * chromaHeight];
+                final byte[] vPlane = new byte[uvRowStride * chromaHeight];
+                for (int row = 0; row < chromaHeight; row++) {
+                    System.arraycopy(cb, row * chromaWidth, uPlane, row * uvRowStride, chromaWidth);
+                    System.arraycopy(cr, row * chromaWidth, vPlane, row * uvRowStride, chromaWidth);
+                }
+                u = ByteBuffer.wrap(uPlane);
+                v = ByteBuffer.wrap(vPlane);
+            } else {
+                // One interleaved plane that both chroma buffers view, offset by one byte
+                final byte[] uvPlane = new byte[uvRowStride * chromaHeight + 1];
+                final int uOffset = layout == NV12 ? 0 : 1;
+                for (int row = 0; row < chromaHeight; row++) {
+                    for (int col = 0; col < chromaWidth; col++) {
+                        final int index = row * uvRowStride + col * 2;
+                        uvPlane[index + uOffset] = cb[row * chromaWidth + col];
+                        uvPlane[index + 1 - uOffset] = cr[row * chromaWidth + col];
+                    }
+                }
+                u = ByteBuffer.wrap(uvPlane, uOffset, uvPlane.length - uOffset).slice();
+                v = ByteBuffer.wrap(uvPlane, 1 - uOffset, uvPlane.length - 1 + uOffset).slice();
+            }
+        }
+
+        int[] toArgb() {
+            final int[] out = new int[width * height];
+            YuvUtil.toArgb(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, height, out);
+            return out;
+        }
+
+        /**
+         * The frame as NV21: full luma, then interleaved V and U at half resolution. Only valid for
+         * even sizes.
+         */
+        byte[] toNv21() {
+            final byte[] nv21 = new byte[width * height * 3 / 2];
+            System.arraycopy(luma, 0, nv21, 0, luma.length);
+            for (int i = 0; i < cb.length; i++) {
+                nv21[luma.length + i * 2] = cr[i];
+                nv21[luma.length + i * 2 + 1] = cb[i];
+            }
+            return nv21;
+        }
+
+        int expected(int col, int row) {
+            final int chroma = (row / 2) * ((width + 1) / 2) + col / 2;
+            return reference(luma[row * width + col] & 0xFF, cb[chroma] & 0xFF, cr[chroma] & 0xFF);
+        }
+    }
+
+    /**
+     * BT.601 video range to full range RGB in floating point.
+     */
+    private static int reference(int y, int u, int v) {
+        final double luma = 1.164 * (y - 16);
+        final int r = clamp(luma + 1.596 * (v - 128));
+        final int g = clamp(luma - 0.392 * (u - 128) - 0.813 * (v - 128));
+        final int b = clamp(luma + 2.017 * (u - 128));
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static void assertColor(String message, int expected, int actual) {
+        for (int shift = 0; shift <= 24; shift += 8) {
+            final int difference = Math.abs(((expected >>> shift) & 0xFF) - ((actual >>> shift) & 0xFF));
+            if (difference > TOLERANCE) {
+                fail(String.format("%s: expected %08X, got %08X", message, expected, actual));
+            }
+        }
+    }
+
+    private static void assertFrame(Frame frame, int[] out) {
+        for (int row = 0; row < frame.height; row++) {
+            for (int col = 0; col < frame.width; col++)
+                assertColor("Pixel " + col + "," + row, frame.expected(col, row), out[row * frame.width + col]);
+        }
+    }
+
+    @Test
+    public void colorBarsMatchTheirRgb() {
+        for (int[] bar : COLOR_BARS)
+            assertColor("Bar " + bar[0] + "," + bar[1] + "," + bar[2], bar[3], YuvUtil.yuvToArgb(bar[0], bar[1], bar[2]));
+    }
+
+    @Test
+    public void convertsEveryChromaLayout() {
+        final Random random = new Random(31);
+        for (int layout : new int[]{Frame.I420, Frame.NV12, Frame.NV21}) {
+            final Frame frame = new Frame(38, 22, layout, random);
+            assertFrame(frame, frame.toArgb());
+        }
+    }
+
+    @Test
+    public void convertsOddSizes() {
+        final Random random = new Random(7);
+        final Frame frame = new Frame(17, 9, Frame.NV12, random);
+        assertFrame(frame, frame.toArgb());
+        final Frame single = new Frame(1, 1, Frame.I420, random);
+        assertFrame(single, single.toArgb());
+    }
+
+    @Test
+    public void parallelBandsMatchTheReference() {
+        // Large enough to be split into row bands on a multi-core machine
+        final Frame frame = new Frame(640, 481, Frame.NV21, new Random(1));
+        assertFrame(frame, frame.toArgb());
+    }
+
+    @Test
+    public void nv21MatchesPlanarConversion() {
+        final Frame frame = new Frame(64, 48, Frame.I420, new Random(21));
+        final int[] out = new int[frame.width * frame.height];
+        YuvUtil.nv21ToArgb(frame.toNv21(), frame.width, frame.height, out);
+        assertArrayEquals(frame.toArgb(), out);
+    }
+
+    @Test
+    public void grayDropsRowPadding() {
+        final Frame frame = new Frame(33, 20, Frame.I420, new Random(3));
+        final byte[] out = new byte[frame.width * frame.height];
+        YuvUtil.toGray(frame.y, frame.yRowStride, 1, frame.width, frame.height, out);
+        assertArrayEquals(frame.luma, out);
+    }
+
+    @Test
+    public void grayHonorsPixelStride() {
+        final Frame frame = new Frame(20, 10, Frame.NV12, new Random(4));
+        // The interleaved chroma plane, read as a half size single channel image of Cb
+        final byte[] out = new byte[frame.cb.length];
+        YuvUtil.toGray(frame.u, frame.uvRowStride, frame.uvPixelStride, frame.width / 2, frame.height / 2, out);
+        assertArrayEquals(frame.cb, out);
+    }
+
+    @Test
+    public void cropsRectangle() {
+        final int[] image = new int[12 * 8];
+        for (int i = 0; i < image.length; i++)
+            image[i] = i;
+        final int[] out = new int[5 * 3];
+        YuvUtil.crop(image, 12, 8, 4, 2, 5, 3, out);
+        assertArrayEquals(new int[]{
+                28, 29, 30, 31, 32,
+                40, 41, 42, 43, 44,
+                52, 53, 54, 55, 56}, out);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCropOutsideImage() {
+        YuvUtil.crop(new byte[16], 4, 4, 2, 2, 3, 1, new byte[3]);
+    }
+
+    @Test
+    public void downscalesGrayBoxes() {
+        final byte[] image = {
+                0, 2, 10, 20, 99,
+                4, 6, 30, 41, 99,
+                99, 99, 99, 99, 99};
+        final byte[] out = new byte[2];
+        YuvUtil.downscale(image, 5, 3, 2, out);
+        // Box averages rounded to nearest, the trailing row and column are dropped
+        assertArrayEquals(new byte[]{3, 25}, out);
+    }
+
+    @Test
+    public void downscalesArgbChannelsSeparately() {
+        final int[] image = {
+                0xFF102030, 0x00204060,
+                0x80000000, 0x40FFFFFF};
+        final int[] out = new int[1];
+        YuvUtil.downscale(image, 2, 2, 2, out);
+        assertEquals(0x704C5864, out[0]);
+    }
+
+    @Test
+    public void parallelDownscaleMatchesSerialReference() {
+        final int width = 1001, height = 603, factor = 3;
+        final byte[] image = new byte[width * height];
+        new Random(5).nextBytes(image);
+        final byte[] out = new byte[(width / factor) * (height / factor)];
+        YuvUtil.downscale(image, width, height, factor, out);
+        for (int row = 0; row < height / factor; row++) {
+            for (int col = 0; col < width / factor; col++) {
+                int sum = 0;
+                for (int dy = 0; dy < factor; dy++) {
+                    for (int dx = 0; dx < factor; dx++)
+                        sum += image[(row * factor + dy) * width + col * factor + dx] & 0xFF;
+                }
+                assertEquals((sum + 4) / 9, out[row * (width / factor) + col] & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsSmallOutput() {
+        try {
+            YuvUtil.nv21ToArgb(new byte[24], 4, 4, new int[15]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("16"));
+        }
+    }
+}